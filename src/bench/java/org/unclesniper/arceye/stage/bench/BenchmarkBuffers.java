@@ -0,0 +1,34 @@
+package org.unclesniper.arceye.stage.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Helpers shared by the benchmarks.
+ *
+ * @since 0.2
+ */
+final class BenchmarkBuffers {
+
+	private BenchmarkBuffers() {}
+
+	static ByteBuffer allocate(int size, boolean direct, long seed) {
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		SplittableRandom random = new SplittableRandom(seed);
+		while(buffer.remaining() >= 8)
+			buffer.putLong(random.nextLong());
+		while(buffer.remaining() > 0)
+			buffer.put((byte)random.nextInt());
+		buffer.flip();
+		return buffer;
+	}
+
+	static File makeStagePath() throws IOException {
+		File file = File.createTempFile("stage-bench", ".stage");
+		file.deleteOnExit();
+		return file;
+	}
+
+}
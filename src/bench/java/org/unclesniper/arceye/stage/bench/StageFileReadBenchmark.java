@@ -0,0 +1,143 @@
+package org.unclesniper.arceye.stage.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.unclesniper.arceye.stage.StageFile;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+
+/**
+ * Throughput and latency of {@link StageFile#readChunk(ByteBuffer, long)}.
+ *
+ * The stage is filled with {@link #STAGE_SIZE} bytes of
+ * chunks of the benchmarked size once per trial and then
+ * read back either in sequence (each thread walking the
+ * chunks in order, wrapping around at the end) or at
+ * random chunk IDs. Since the file fits into the page
+ * cache of any reasonable machine, this measures the
+ * overhead of the stage and the system call path rather
+ * than that of the device.
+ *
+ * @since 0.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageFileReadBenchmark {
+
+	/**
+	 * Amount of data to read from.
+	 *
+	 * Equates 256 MiB.
+	 */
+	public static final long STAGE_SIZE = 256l * 1024l * 1024l;
+
+	public enum Pattern {
+		SEQUENTIAL,
+		RANDOM
+	}
+
+	@State(Scope.Benchmark)
+	public static class Stage {
+
+		@Param({"16", "256", "4096", "65536", "1048576"})
+		public int chunkSize;
+
+		File path;
+
+		StageFile stage;
+
+		long chunkCount;
+
+		@Setup(Level.Trial)
+		public void fill() throws IOException {
+			path = BenchmarkBuffers.makeStagePath();
+			chunkCount = StageFileReadBenchmark.STAGE_SIZE / chunkSize;
+			ByteBuffer data = BenchmarkBuffers.allocate(chunkSize, false, 0l);
+			ByteBuffer[] batch = new ByteBuffer[(int)Math.max(1l, Math.min(chunkCount,
+					(long)StageFile.MAX_GATHER_SIZE / chunkSize))];
+			try(StageFile writer = new StageFile(path, true)) {
+				for(long written = 0l; written < chunkCount; written += batch.length) {
+					for(int i = 0; i < batch.length; ++i)
+						batch[i] = data.duplicate();
+					writer.writeChunks(batch);
+				}
+			}
+			stage = new StageFile(path, false);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			stage.close();
+			path.delete();
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Reader {
+
+		@Param({"false", "true"})
+		public boolean direct;
+
+		@Param({"SEQUENTIAL", "RANDOM"})
+		public Pattern pattern;
+
+		ByteBuffer buffer;
+
+		SplittableRandom random;
+
+		long next;
+
+		@Setup(Level.Trial)
+		public void allocate(Stage stage) {
+			buffer = direct ? ByteBuffer.allocateDirect(stage.chunkSize) : ByteBuffer.allocate(stage.chunkSize);
+			random = new SplittableRandom(Thread.currentThread().getId());
+			next = random.nextLong(stage.chunkCount);
+		}
+
+		long nextChunkID(Stage stage) {
+			long index;
+			if(pattern == Pattern.RANDOM)
+				index = random.nextLong(stage.chunkCount);
+			else {
+				index = next;
+				if(++next == stage.chunkCount)
+					next = 0l;
+			}
+			return index * stage.chunkSize;
+		}
+
+	}
+
+	@Benchmark
+	@Threads(1)
+	public ByteBuffer read(Stage stage, Reader reader) {
+		reader.buffer.clear();
+		stage.stage.readChunk(reader.buffer, reader.nextChunkID(stage));
+		return reader.buffer;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public ByteBuffer readContended(Stage stage, Reader reader) {
+		reader.buffer.clear();
+		stage.stage.readChunk(reader.buffer, reader.nextChunkID(stage));
+		return reader.buffer;
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.unclesniper.arceye.stage.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.io.RandomAccessFile;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.unclesniper.arceye.stage.StageFile;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.unclesniper.arceye.stage.StageOptions;
+import org.unclesniper.arceye.stage.StageDurability;
+
+/**
+ * Throughput and latency of {@link StageFile#writeChunk(ByteBuffer)}.
+ *
+ * The stage is reopened before every iteration, either
+ * truncated to zero length or, for non-truncating opens,
+ * after cutting the file back to {@link #PREFILL_SIZE}
+ * bytes, so that iterations append to files of the same
+ * size and the disk footprint stays bounded.
+ * {@link StageOptions#getPreallocationExtent() Preallocated}
+ * stages are always truncated, since the prefilled file
+ * lacks their header; comparing them against unpreallocated
+ * ones with {@link StageDurability#PER_WRITE} shows whether
+ * appending without changing the file size outweighs the
+ * additional synchronous header write per append on the
+ * file system at hand.
+ *
+ * @since 0.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageFileWriteBenchmark {
+
+	/**
+	 * Size of the file before non-truncating opens.
+	 *
+	 * Equates 64 MiB.
+	 */
+	public static final long PREFILL_SIZE = 64l * 1024l * 1024l;
+
+	@State(Scope.Benchmark)
+	public static class Stage {
+
+		@Param({"16", "256", "4096", "65536", "1048576"})
+		public int chunkSize;
+
+		@Param({"PER_WRITE", "GROUP_COMMIT", "NONE"})
+		public StageDurability durability;
+
+		@Param({"true", "false"})
+		public boolean truncate;
+
+		@Param({"0", "67108864"})
+		public long preallocationExtent;
+
+		File path;
+
+		StageFile stage;
+
+		@Setup(Level.Trial)
+		public void createFile() throws IOException {
+			path = BenchmarkBuffers.makeStagePath();
+			try(RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+				file.setLength(StageFileWriteBenchmark.PREFILL_SIZE);
+			}
+		}
+
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			boolean preallocated = preallocationExtent > 0l;
+			if(!truncate && !preallocated) {
+				try(RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+					file.setLength(StageFileWriteBenchmark.PREFILL_SIZE);
+				}
+			}
+			StageOptions options = new StageOptions();
+			options.setDurability(durability);
+			options.setPreallocationExtent(preallocationExtent);
+			stage = new StageFile(path, truncate || preallocated, options);
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() throws IOException {
+			stage.close();
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteFile() {
+			path.delete();
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Chunk {
+
+		@Param({"false", "true"})
+		public boolean direct;
+
+		ByteBuffer buffer;
+
+		@Setup(Level.Trial)
+		public void allocate(Stage stage) {
+			buffer = BenchmarkBuffers.allocate(stage.chunkSize, direct, Thread.currentThread().getId());
+		}
+
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long write(Stage stage, Chunk chunk) {
+		chunk.buffer.rewind();
+		return stage.stage.writeChunk(chunk.buffer);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long writeContended(Stage stage, Chunk chunk) {
+		chunk.buffer.rewind();
+		return stage.stage.writeChunk(chunk.buffer);
+	}
+
+}
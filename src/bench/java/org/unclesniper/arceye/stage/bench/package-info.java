@@ -0,0 +1,11 @@
+/**
+ * JMH microbenchmarks for the stage layer.
+ *
+ * Run via the <tt>bench</tt> goal of the build, which expects
+ * the JMH jars in the <tt>lib</tt> directory. Parameters may be
+ * narrowed on the command line as usual, for example
+ * <tt>-p chunkSize=4096 -t 8</tt>.
+ *
+ * @since 0.2
+ */
+package org.unclesniper.arceye.stage.bench;
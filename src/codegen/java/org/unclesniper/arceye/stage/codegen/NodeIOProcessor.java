@@ -0,0 +1,380 @@
+package org.unclesniper.arceye.stage.codegen;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.io.IOException;
+import javax.tools.Diagnostic;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.ExecutableElement;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.AbstractProcessor;
+import javax.lang.model.element.RecordComponentElement;
+import javax.annotation.processing.SupportedAnnotationTypes;
+
+/**
+ * Annotation processor generating codecs for
+ * {@link org.unclesniper.arceye.stage.GenerateNodeIO annotated}
+ * records and classes.
+ *
+ * For each annotated type, a codec class is emitted into the
+ * package of that type. Its simple name is taken from the
+ * annotation or else formed by concatenating the simple names of
+ * the annotated type and its enclosing types, followed by
+ * <tt>NodeIO</tt>. The size of the encoding is computed at
+ * compile time from the primitive types of the components; each
+ * component is accessed at a constant offset from the
+ * <i>position</i> of the buffer, which is advanced once per node,
+ * after a single check of the <i>remaining</i> bytes.
+ * <p>
+ * The processor is registered as a service in the jar of the
+ * <tt>codegen</tt> module, so putting that jar on the annotation
+ * processor path of <tt>javac</tt> (or on its class path, absent
+ * a processor path) suffices to enable it.
+ *
+ * @since 0.2
+ */
+@SupportedAnnotationTypes(NodeIOProcessor.ANNOTATION_NAME)
+public class NodeIOProcessor extends AbstractProcessor {
+
+	private static final class Component {
+
+		final String name;
+
+		final TypeKind kind;
+
+		final int offset;
+
+		Component(String name, TypeKind kind, int offset) {
+			this.name = name;
+			this.kind = kind;
+			this.offset = offset;
+		}
+
+	}
+
+	/**
+	 * Qualified name of the annotation processed.
+	 *
+	 * @since 0.2
+	 */
+	public static final String ANNOTATION_NAME = "org.unclesniper.arceye.stage.GenerateNodeIO";
+
+	private static final String CODEC_SUFFIX = "NodeIO";
+
+	/**
+	 * Construct a processor.
+	 *
+	 * Called by <tt>javac</tt> upon discovering
+	 * the processor.
+	 *
+	 * @since 0.2
+	 */
+	public NodeIOProcessor() {}
+
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for(TypeElement annotation : annotations) {
+			for(Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if(element.getKind() != ElementKind.RECORD && element.getKind() != ElementKind.CLASS)
+					error(element, "@GenerateNodeIO applies to records and classes only");
+				else
+					generate((TypeElement)element, NodeIOProcessor.getCodecName(element, annotation));
+			}
+		}
+		return true;
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private static String getCodecName(Element element, TypeElement annotation) {
+		for(AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if(!mirror.getAnnotationType().asElement().equals(annotation))
+				continue;
+			for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+					: mirror.getElementValues().entrySet()) {
+				if(entry.getKey().getSimpleName().contentEquals("name")) {
+					String name = entry.getValue().getValue().toString();
+					if(!name.isEmpty())
+						return name;
+				}
+			}
+		}
+		StringBuilder builder = new StringBuilder();
+		for(Element type = element; type instanceof TypeElement; type = type.getEnclosingElement())
+			builder.insert(0, type.getSimpleName());
+		return builder.append(NodeIOProcessor.CODEC_SUFFIX).toString();
+	}
+
+	private static int getSize(TypeKind kind) {
+		switch(kind) {
+			case BOOLEAN:
+			case BYTE:
+				return 1;
+			case SHORT:
+			case CHAR:
+				return 2;
+			case INT:
+			case FLOAT:
+				return 4;
+			case LONG:
+			case DOUBLE:
+				return 8;
+			default:
+				return -1;
+		}
+	}
+
+	private boolean checkType(TypeElement type) {
+		boolean valid = true;
+		if(type.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(type, "Cannot generate codec for abstract class " + type.getQualifiedName());
+			valid = false;
+		}
+		if(!type.getTypeParameters().isEmpty()) {
+			error(type, "Cannot generate codec for generic type " + type.getQualifiedName());
+			valid = false;
+		}
+		if(type.getKind() == ElementKind.CLASS && type.getEnclosingElement() instanceof TypeElement
+				&& !type.getModifiers().contains(Modifier.STATIC)) {
+			error(type, "Cannot generate codec for inner class " + type.getQualifiedName());
+			valid = false;
+		}
+		for(Element enclosing = type; enclosing instanceof TypeElement;
+				enclosing = enclosing.getEnclosingElement()) {
+			if(enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+				error(type, "Cannot generate codec for " + type.getQualifiedName()
+						+ ", as " + enclosing.getSimpleName() + " is private");
+				valid = false;
+			}
+		}
+		return valid;
+	}
+
+	private Component makeComponent(Element element, TypeMirror type, int offset) {
+		if(NodeIOProcessor.getSize(type.getKind()) < 0) {
+			error(element, "Component " + element.getSimpleName() + " is of type " + type
+					+ ", but only primitive types are supported");
+			return null;
+		}
+		return new Component(element.getSimpleName().toString(), type.getKind(), offset);
+	}
+
+	private List<Component> getRecordComponents(TypeElement type) {
+		List<Component> components = new ArrayList<Component>();
+		int offset = 0;
+		boolean valid = true;
+		for(RecordComponentElement element : type.getRecordComponents()) {
+			Component component = makeComponent(element, element.asType(), offset);
+			if(component == null)
+				valid = false;
+			else {
+				components.add(component);
+				offset += NodeIOProcessor.getSize(component.kind);
+			}
+		}
+		return valid ? components : null;
+	}
+
+	private List<Component> getFieldComponents(TypeElement type) {
+		List<Component> components = new ArrayList<Component>();
+		int offset = 0;
+		boolean valid = false;
+		for(Element member : type.getEnclosedElements()) {
+			if(member.getKind() == ElementKind.CONSTRUCTOR && ((ExecutableElement)member).getParameters().isEmpty()
+					&& !member.getModifiers().contains(Modifier.PRIVATE))
+				valid = true;
+		}
+		if(!valid)
+			error(type, "Class " + type.getQualifiedName() + " lacks a non-private constructor without parameters");
+		// fields declared by superclasses come first
+		List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+		for(TypeElement declaring = type; declaring != null; declaring = NodeIOProcessor.getSuperclass(declaring))
+			hierarchy.add(0, declaring);
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		Set<String> names = new HashSet<String>();
+		for(TypeElement declaring : hierarchy) {
+			boolean inherited = declaring != type;
+			boolean foreign = !processingEnv.getElementUtils().getPackageOf(declaring).equals(pkg);
+			for(Element member : declaring.getEnclosedElements()) {
+				if(member.getKind() != ElementKind.FIELD)
+					continue;
+				Set<Modifier> modifiers = member.getModifiers();
+				if(modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+					continue;
+				String description = inherited ? "Field " + member.getSimpleName() + " inherited from "
+						+ declaring.getQualifiedName() : "Field " + member.getSimpleName();
+				Element site = inherited ? type : member;
+				if(modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+					error(site, description + " must be neither private nor final");
+					valid = false;
+					continue;
+				}
+				if(foreign && !modifiers.contains(Modifier.PUBLIC)) {
+					error(site, description + " must be public, as it is declared in another package");
+					valid = false;
+					continue;
+				}
+				if(!names.add(member.getSimpleName().toString())) {
+					error(site, description + " hides a field of a superclass");
+					valid = false;
+					continue;
+				}
+				Component component = makeComponent(member, ((VariableElement)member).asType(), offset);
+				if(component == null)
+					valid = false;
+				else {
+					components.add(component);
+					offset += NodeIOProcessor.getSize(component.kind);
+				}
+			}
+		}
+		return valid ? components : null;
+	}
+
+	private static TypeElement getSuperclass(TypeElement type) {
+		TypeMirror superclass = type.getSuperclass();
+		if(superclass.getKind() != TypeKind.DECLARED)
+			return null;
+		return (TypeElement)((DeclaredType)superclass).asElement();
+	}
+
+	private void generate(TypeElement type, String codecName) {
+		if(!checkType(type))
+			return;
+		boolean isRecord = type.getKind() == ElementKind.RECORD;
+		List<Component> components = isRecord ? getRecordComponents(type) : getFieldComponents(type);
+		if(components == null)
+			return;
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		String typeName = type.getQualifiedName().toString();
+		if(!packageName.isEmpty())
+			typeName = typeName.substring(packageName.length() + 1);
+		String source = NodeIOProcessor.emit(packageName, typeName, codecName, isRecord, components,
+				NodeIOProcessor.isPublic(type));
+		String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + '.' + codecName;
+		try(Writer writer = processingEnv.getFiler().createSourceFile(qualifiedCodecName, type).openWriter()) {
+			writer.write(source);
+		}
+		catch(IOException ioe) {
+			error(type, "Failed to write codec " + qualifiedCodecName + ": " + ioe.getMessage());
+		}
+	}
+
+	private static boolean isPublic(TypeElement type) {
+		for(Element enclosing = type; enclosing instanceof TypeElement;
+				enclosing = enclosing.getEnclosingElement()) {
+			if(!enclosing.getModifiers().contains(Modifier.PUBLIC))
+				return false;
+		}
+		return true;
+	}
+
+	private static String getAccessorSuffix(TypeKind kind) {
+		switch(kind) {
+			case SHORT:
+				return "Short";
+			case CHAR:
+				return "Char";
+			case INT:
+				return "Int";
+			case FLOAT:
+				return "Float";
+			case LONG:
+				return "Long";
+			case DOUBLE:
+				return "Double";
+			default:
+				return "";
+		}
+	}
+
+	private static String emitPut(Component component, String value) {
+		String index = component.offset == 0 ? "base" : "base + " + component.offset;
+		if(component.kind == TypeKind.BOOLEAN)
+			return "buffer.put(" + index + ", (byte)(" + value + " ? 1 : 0));";
+		return "buffer.put" + NodeIOProcessor.getAccessorSuffix(component.kind) + '(' + index + ", " + value + ");";
+	}
+
+	private static String emitGet(Component component) {
+		String index = component.offset == 0 ? "base" : "base + " + component.offset;
+		if(component.kind == TypeKind.BOOLEAN)
+			return "buffer.get(" + index + ") != (byte)0";
+		return "buffer.get" + NodeIOProcessor.getAccessorSuffix(component.kind) + '(' + index + ')';
+	}
+
+	private static String emit(String packageName, String typeName, String codecName, boolean isRecord,
+			List<Component> components, boolean isPublic) {
+		int size = 0;
+		for(Component component : components)
+			size += NodeIOProcessor.getSize(component.kind);
+		String sizeName = codecName + ".NODE_SIZE";
+		StringBuilder out = new StringBuilder();
+		if(!packageName.isEmpty())
+			out.append("package ").append(packageName).append(";\n\n");
+		out.append("@javax.annotation.processing.Generated(\"").append(NodeIOProcessor.class.getName())
+				.append("\")\n");
+		out.append(isPublic ? "public " : "").append("final class ").append(codecName)
+				.append(" extends org.unclesniper.arceye.stage.AbstractNodeIO<").append(typeName).append("> {\n\n");
+		out.append("\tpublic static final int NODE_SIZE = ").append(size).append(";\n\n");
+		out.append("\tpublic static final ").append(codecName).append(" INSTANCE = new ").append(codecName)
+				.append("();\n\n");
+		out.append("\tpublic ").append(codecName).append("() {}\n\n");
+		out.append("\tpublic int getNodeBufferSize() {\n\t\treturn ").append(sizeName).append(";\n\t}\n\n");
+		out.append("\tprotected boolean isSelfDelimiting() {\n\t\treturn true;\n\t}\n\n");
+		// writeNode
+		out.append("\tpublic void writeNode(").append(typeName).append(" node, java.nio.ByteBuffer buffer) {\n");
+		out.append("\t\tint base = buffer.position();\n");
+		out.append("\t\tif(buffer.limit() - base < ").append(sizeName).append(")\n");
+		out.append("\t\t\tthrow new java.nio.BufferOverflowException();\n");
+		for(Component component : components) {
+			String value = "node." + component.name + (isRecord ? "()" : "");
+			out.append("\t\t").append(NodeIOProcessor.emitPut(component, value)).append('\n');
+		}
+		out.append("\t\tbuffer.position(base + ").append(sizeName).append(");\n\t}\n\n");
+		// readNode
+		out.append("\tpublic ").append(typeName).append(" readNode(java.nio.ByteBuffer buffer) {\n");
+		out.append("\t\tint base = buffer.position();\n");
+		out.append("\t\tif(buffer.limit() - base < ").append(sizeName).append(")\n");
+		out.append("\t\t\tthrow new java.nio.BufferUnderflowException();\n");
+		if(isRecord) {
+			out.append("\t\t").append(typeName).append(" node = new ").append(typeName).append('(');
+			for(int i = 0; i < components.size(); ++i) {
+				out.append(i == 0 ? "\n\t\t\t\t" : ",\n\t\t\t\t");
+				out.append(NodeIOProcessor.emitGet(components.get(i)));
+			}
+			out.append(");\n");
+		}
+		else {
+			out.append("\t\t").append(typeName).append(" node = new ").append(typeName).append("();\n");
+			for(Component component : components) {
+				out.append("\t\tnode.").append(component.name).append(" = ")
+						.append(NodeIOProcessor.emitGet(component)).append(";\n");
+			}
+		}
+		out.append("\t\tbuffer.position(base + ").append(sizeName).append(");\n");
+		out.append("\t\treturn node;\n\t}\n\n}\n");
+		return out.toString();
+	}
+
+}
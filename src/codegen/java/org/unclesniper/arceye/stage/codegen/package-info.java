@@ -0,0 +1,10 @@
+/**
+ * Compile-time code generation for the stage layer.
+ *
+ * Built by the <tt>codegen</tt> goal into a jar of its own,
+ * which is needed on the processor path of the compiler only;
+ * the generated code depends on the main jar alone.
+ *
+ * @since 0.2
+ */
+package org.unclesniper.arceye.stage.codegen;
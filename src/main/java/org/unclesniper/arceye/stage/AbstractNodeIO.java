@@ -0,0 +1,87 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base class for node codecs.
+ *
+ * Subclasses need only implement the in-buffer
+ * {@link #writeNode(Object, ByteBuffer) writeNode} and
+ * {@link #readNode(ByteBuffer) readNode} (as well as the
+ * size accessors); the variants storing a node as a chunk
+ * of its own are implemented on top of those, prefixing
+ * the encoding with its four-byte length so the chunk can
+ * be read back without knowing its size in advance. The
+ * buffers passed to these variants must thus hold at least
+ * <tt>{@link #getNodeBufferSize()} + 4</tt> bytes.
+ *
+ * @param <NodeT>
+ * 	type of the nodes encoded
+ * @since 0.2
+ * @see NodeCodecs
+ */
+public abstract class AbstractNodeIO<NodeT> implements NodeIO<NodeT> {
+
+	/**
+	 * Size of the length prefix of chunks written by
+	 * {@link #writeNode(Object, ByteBuffer, Stage)}.
+	 *
+	 * @since 0.2
+	 */
+	public static final int CHUNK_PREFIX_SIZE = 4;
+
+	/**
+	 * Construct a codec.
+	 *
+	 * @since 0.2
+	 */
+	protected AbstractNodeIO() {}
+
+	/**
+	 * Determine whether encodings carry their own length.
+	 *
+	 * An encoding is self-delimiting if
+	 * {@link #readNode(ByteBuffer) readNode} consumes
+	 * exactly the bytes written by
+	 * {@link #writeNode(Object, ByteBuffer) writeNode},
+	 * even if more bytes follow; this holds for fixed-size
+	 * encodings as well as for length-prefixed ones. Codecs
+	 * combining several encodings (such as
+	 * {@link NodeCodecs#tuple(NodeIO[]) tuples}) need not
+	 * delimit self-delimiting components.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if encodings
+	 * 	are self-delimiting; <tt>false</tt> unless
+	 * 	overridden
+	 * @since 0.2
+	 */
+	protected boolean isSelfDelimiting() {
+		return false;
+	}
+
+	public long writeNode(NodeT node, ByteBuffer buffer, Stage stage) {
+		buffer.clear();
+		buffer.putInt(0);
+		writeNode(node, buffer);
+		buffer.putInt(0, buffer.position() - AbstractNodeIO.CHUNK_PREFIX_SIZE);
+		buffer.flip();
+		return stage.writeChunk(buffer);
+	}
+
+	public NodeT readNode(ByteBuffer buffer, Stage stage, long offset) {
+		buffer.clear();
+		buffer.limit(AbstractNodeIO.CHUNK_PREFIX_SIZE);
+		stage.readChunk(buffer, offset);
+		int size = buffer.getInt(0);
+		if(size < 0 || size > buffer.capacity())
+			throw new IllegalStateException("Malformed node in chunk " + offset
+					+ ": encoding of " + size + " bytes");
+		buffer.clear();
+		buffer.limit(size);
+		stage.readChunk(buffer, offset + AbstractNodeIO.CHUNK_PREFIX_SIZE);
+		buffer.flip();
+		return readNode(buffer);
+	}
+
+}
@@ -0,0 +1,155 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bookkeeping of append ranges of a stage.
+ *
+ * Writers {@link #reserve(long) reserve} a range of
+ * offsets at the logical end of the stage by atomically
+ * advancing that end, write their data to the reserved
+ * range without holding any lock, and then report the
+ * range as {@link #complete(long, long) complete}. Since
+ * writes may complete out of order, the tracker keeps
+ * completed ranges above the first incomplete one aside
+ * until the gap has been filled, thus maintaining the
+ * <i>visible end</i>: the offset up to which all
+ * reserved ranges have completed.
+ *
+ * @since 0.2
+ */
+final class AppendTracker {
+
+	/**
+	 * Offset at which the first chunk is placed.
+	 *
+	 * Nonzero if the stage begins with a file header.
+	 */
+	private final long origin;
+
+	private final AtomicLong reservedEnd;
+
+	private volatile long visibleEnd;
+
+	/**
+	 * Completed ranges beyond the visible end.
+	 *
+	 * Maps start offsets to end offsets.
+	 * Guarded by <tt>this</tt>.
+	 */
+	private final TreeMap<Long, Long> completed = new TreeMap<Long, Long>();
+
+	AppendTracker(long end, long origin) {
+		this.origin = origin;
+		reservedEnd = new AtomicLong(end);
+		visibleEnd = end;
+	}
+
+	long getReservedEnd() {
+		return reservedEnd.get();
+	}
+
+	long getVisibleEnd() {
+		return visibleEnd;
+	}
+
+	long reserve(long size) {
+		return reservedEnd.getAndAdd(size);
+	}
+
+	/**
+	 * Reserve a range unless it would exceed a limit.
+	 *
+	 * The range is reserved regardless of <tt>limit</tt>
+	 * if nothing has been reserved yet, so that oversized
+	 * ranges can be placed at the start of an empty stage.
+	 *
+	 * @return
+	 * 	the start of the reserved range, or <tt>-1</tt>
+	 * 	if the range would exceed <tt>limit</tt>
+	 */
+	long tryReserve(long size, long limit) {
+		for(;;) {
+			long start = reservedEnd.get();
+			if(start > origin && start + size > limit)
+				return -1l;
+			if(reservedEnd.compareAndSet(start, start + size))
+				return start;
+		}
+	}
+
+	/**
+	 * Resize the most recent reservation.
+	 *
+	 * Moves the reserved end from <tt>expected</tt> to
+	 * <tt>end</tt>, which grows or shrinks the range
+	 * ending at <tt>expected</tt>, unless another range
+	 * has been reserved after it in the meantime.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if the reservation was resized
+	 */
+	boolean tryResize(long expected, long end) {
+		return reservedEnd.compareAndSet(expected, end);
+	}
+
+	/**
+	 * Mark a reserved range as complete.
+	 *
+	 * Must be called exactly once per reservation, even
+	 * if writing the range failed, as the visible end
+	 * would otherwise never move past the range.
+	 */
+	synchronized void complete(long start, long end) {
+		if(start == end)
+			return;
+		if(start != visibleEnd) {
+			completed.put(start, end);
+			return;
+		}
+		Long next;
+		while((next = completed.remove(end)) != null)
+			end = next;
+		visibleEnd = end;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until the visible end has reached <tt>end</tt>.
+	 *
+	 * Waits uninterruptibly.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if the calling thread was
+	 * 	interrupted while waiting
+	 */
+	synchronized boolean awaitVisible(long end) {
+		boolean interrupted = false;
+		while(visibleEnd < end) {
+			try {
+				wait();
+			}
+			catch(InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		return interrupted;
+	}
+
+	/**
+	 * Move both ends forward to <tt>end</tt>.
+	 *
+	 * Used after data has been appended by other means.
+	 * Must only be called while no reservation is
+	 * outstanding.
+	 */
+	synchronized void advanceTo(long end) {
+		if(end <= reservedEnd.get())
+			return;
+		reservedEnd.set(end);
+		visibleEnd = end;
+		notifyAll();
+	}
+
+}
@@ -6,7 +6,9 @@ public class ArcStack<ElementT> {
 
 	public static final class Node<ElementT> {
 
-		private static int STATIC_PART_BUFFER_SIZE = 16;
+		private static int STATIC_PART_BUFFER_SIZE = 24;
+
+		private static final int PAYLOAD_SIZE_OFFSET = 20;
 
 		private final ArcStack<ElementT> stack;
 
@@ -14,12 +16,18 @@ public class ArcStack<ElementT> {
 
 		private final long height;
 
-		private final ElementT payload;
+		private ElementT payload;
+
+		private byte[] encodedPayload;
 
-		private final long parentID;
+		private long parentID;
 
 		private Node<ElementT> parent;
 
+		private int size = -1;
+
+		private int parentSize = -1;
+
 		public Node(ArcStack<ElementT> stack, long id, long height, ElementT payload,
 				long parentID, Node<ElementT> parent) {
 			this.stack = stack;
@@ -55,6 +63,10 @@ public class ArcStack<ElementT> {
 		}
 
 		public ElementT getPayload() {
+			if(encodedPayload != null) {
+				payload = stack.elementIO.readNode(ByteBuffer.wrap(encodedPayload));
+				encodedPayload = null;
+			}
 			return payload;
 		}
 
@@ -76,47 +88,110 @@ public class ArcStack<ElementT> {
 			return Node.STATIC_PART_BUFFER_SIZE + elementIO.getNodeBufferSize();
 		}
 
-		public long writeNode(Node<ElementT> node, ByteBuffer buffer, StageFile file) {
+		public int getNodeSize(Node<ElementT> node) {
+			if(node.encodedPayload != null)
+				return Node.STATIC_PART_BUFFER_SIZE + node.encodedPayload.length;
+			return Node.STATIC_PART_BUFFER_SIZE + elementIO.getNodeSize(node.payload);
+		}
+
+		public long writeNode(Node<ElementT> node, ByteBuffer buffer, Stage file) {
 			buffer.clear();
-			buffer.putLong(node.height).putLong(node.parentID);
-			elementIO.writeNode(node.payload, buffer);
+			writeNode(node, buffer);
 			buffer.flip();
 			return stage.writeChunk(buffer);
 		}
 
 		public void writeNode(Node<ElementT> node, ByteBuffer buffer) {
-			buffer.putLong(node.height).putLong(node.parentID);
-			elementIO.writeNode(node.payload, buffer);
+			int start = buffer.position();
+			buffer.putLong(node.height).putLong(node.parentID).putInt(node.parentSize).putInt(0);
+			if(node.encodedPayload == null)
+				elementIO.writeNode(node.payload, buffer);
+			else
+				buffer.put(node.encodedPayload);
+			int payloadSize = buffer.position() - start - Node.STATIC_PART_BUFFER_SIZE;
+			buffer.putInt(start + Node.PAYLOAD_SIZE_OFFSET, payloadSize);
 		}
 
-		public Node<ElementT> readNode(ByteBuffer buffer, StageFile file, long offset) {
-			buffer.rewind();
-			buffer.limit(Node.STATIC_PART_BUFFER_SIZE + elementIO.getNodeBufferSize());
+		public Node<ElementT> readNode(ByteBuffer buffer, Stage file, long offset) {
+			buffer.clear();
+			buffer.limit(Node.STATIC_PART_BUFFER_SIZE);
 			stage.readChunk(buffer, offset);
+			int payloadSize = buffer.getInt(Node.PAYLOAD_SIZE_OFFSET);
+			if(payloadSize < 0 || payloadSize > buffer.capacity() - Node.STATIC_PART_BUFFER_SIZE)
+				throw new IllegalStateException("Malformed stack node in chunk " + offset
+						+ ": payload of " + payloadSize + " bytes");
+			buffer.limit(Node.STATIC_PART_BUFFER_SIZE + payloadSize);
+			stage.readChunk(buffer, offset + Node.STATIC_PART_BUFFER_SIZE);
 			buffer.flip();
-			long height = buffer.getLong();
-			long parentID = buffer.getLong();
-			ElementT payload = elementIO.readNode(buffer);
-			return new Node<ElementT>(ArcStack.this, offset, height, payload, parentID, null);
+			Node<ElementT> node = readNode(buffer);
+			node.id = offset;
+			return node;
 		}
 
 		public Node<ElementT> readNode(ByteBuffer buffer) {
 			long height = buffer.getLong();
 			long parentID = buffer.getLong();
-			ElementT payload = elementIO.readNode(buffer);
-			return new Node<ElementT>(ArcStack.this, -1l, height, payload, parentID, null);
+			int parentSize = buffer.getInt();
+			int payloadSize = buffer.getInt();
+			ElementT payload = null;
+			byte[] encodedPayload = null;
+			if(lazyDecoding) {
+				encodedPayload = new byte[payloadSize];
+				buffer.get(encodedPayload);
+			}
+			else {
+				ByteBuffer payloadBuffer = buffer.duplicate();
+				payloadBuffer.limit(buffer.position() + payloadSize);
+				payload = elementIO.readNode(payloadBuffer);
+				buffer.position(payloadBuffer.limit());
+			}
+			Node<ElementT> node = new Node<ElementT>(ArcStack.this, -1l, height, payload, parentID, null);
+			node.encodedPayload = encodedPayload;
+			node.size = Node.STATIC_PART_BUFFER_SIZE + payloadSize;
+			node.parentSize = parentSize;
+			return node;
+		}
+
+	}
+
+	private static final class NodeTracer implements ChunkTracer {
+
+		private final NodeIO<?> elementIO;
+
+		NodeTracer(NodeIO<?> elementIO) {
+			this.elementIO = elementIO;
+		}
+
+		public void trace(Stage stage, long chunkID, ChunkLayout layout) {
+			BufferPool pool = stage.getBufferPool();
+			ByteBuffer buffer = pool.acquire(Node.STATIC_PART_BUFFER_SIZE - 8);
+			ByteBuffer payload = null;
+			try {
+				stage.readChunk(buffer, chunkID + 8l);
+				int payloadSize = buffer.getInt(Node.PAYLOAD_SIZE_OFFSET - 8);
+				layout.setSize(Node.STATIC_PART_BUFFER_SIZE + payloadSize);
+				layout.addReference(8, buffer.getLong(0), this);
+				if(payloadSize > 0 && elementIO.hasReferences()) {
+					payload = pool.acquire(payloadSize);
+					stage.readChunk(payload, chunkID + Node.STATIC_PART_BUFFER_SIZE);
+					payload.flip();
+					elementIO.traceNode(payload, Node.STATIC_PART_BUFFER_SIZE, layout);
+				}
+			}
+			finally {
+				pool.release(buffer);
+				pool.release(payload);
+			}
 		}
 
 	}
 
 	public static final int DEFAULT_MAX_CACHED_NODES = 8;
 
-	private StageFile stage;
+	private Stage stage;
 
 	private NodeIO<ElementT> elementIO;
 
-	private ByteBuffer ioBuffer;
-
 	private int maxCachedNodes = ArcStack.DEFAULT_MAX_CACHED_NODES;
 
 	private int cachedNodes;
@@ -125,42 +200,153 @@ public class ArcStack<ElementT> {
 
 	private final NodeIO<Node<ElementT>> nodeIO = new WholeNodeIO();
 
+	private boolean lazyDecoding;
+
 	public ArcStack() {}
 
-	public ArcStack(StageFile stage, NodeIO<ElementT> elementIO) {
+	public ArcStack(Stage stage, NodeIO<ElementT> elementIO) {
 		this.stage = stage;
 		this.elementIO = elementIO;
 	}
 
-	public ArcStack(StageFile stage, NodeIO<ElementT> elementIO, long topID, int maxCachedNodes, boolean attach) {
+	public ArcStack(Stage stage, NodeIO<ElementT> elementIO, long topID, int maxCachedNodes, boolean attach) {
 		this.stage = stage;
 		this.elementIO = elementIO;
 		this.maxCachedNodes = maxCachedNodes <= 0 ? ArcStack.DEFAULT_MAX_CACHED_NODES : maxCachedNodes;
 		if(topID >= 0l) {
-			ByteBuffer buffer = getLoadBuffer();
-			synchronized(buffer) {
-				top = nodeIO.readNode(buffer, stage, topID);
-			}
+			top = loadNode(topID, -1);
 			cachedNodes = 1;
 		}
 		if(!attach)
 			setStage(null);
 	}
 
-	private ByteBuffer getLoadBuffer() {
-		ByteBuffer buffer = ioBuffer;
-		int haveSize = buffer == null ? 0 : buffer.capacity();
-		int wantSize = Node.STATIC_PART_BUFFER_SIZE + elementIO.getNodeBufferSize();
-		if(haveSize < wantSize)
-			ioBuffer = buffer = ByteBuffer.allocate(wantSize);
-		return buffer;
+	private int getNodeBufferSize() {
+		return Node.STATIC_PART_BUFFER_SIZE + elementIO.getNodeBufferSize();
 	}
 
-	public final StageFile getStage() {
+	private Node<ElementT> loadNode(long id, int size) {
+		BufferPool pool = stage.getBufferPool();
+		ByteBuffer buffer = pool.acquire(size < 0 ? getNodeBufferSize() : size);
+		try {
+			if(size < 0)
+				return nodeIO.readNode(buffer, stage, id);
+			stage.readChunk(buffer, id);
+			buffer.flip();
+			Node<ElementT> node = nodeIO.readNode(buffer);
+			node.id = id;
+			return node;
+		}
+		finally {
+			pool.release(buffer);
+		}
+	}
+
+	public static ChunkTracer newChunkTracer(NodeIO<?> elementIO) {
+		if(elementIO == null)
+			throw new NullPointerException();
+		return new NodeTracer(elementIO);
+	}
+
+	public final long[] getReferencedChunkIDs() {
+		int count = 0;
+		for(Node<ElementT> node = top; node != null; node = node.parent)
+			++count;
+		long[] ids = new long[count * 2];
+		int index = 0;
+		for(Node<ElementT> node = top; node != null; node = node.parent) {
+			ids[index++] = node.id;
+			ids[index++] = node.parentID;
+		}
+		return ids;
+	}
+
+	public final void relocate(Stage stage, ChunkMapping mapping) {
+		for(Node<ElementT> node = top; node != null; node = node.parent) {
+			if((node.id >= 0l && !mapping.contains(node.id))
+					|| (node.parentID >= 0l && !mapping.contains(node.parentID)))
+				throw new IllegalArgumentException("Chunk " + (mapping.contains(node.id) ? node.parentID : node.id)
+						+ " is missing from the chunk mapping");
+		}
+		for(Node<ElementT> node = top; node != null; node = node.parent) {
+			node.id = mapping.map(node.id);
+			node.parentID = mapping.map(node.parentID);
+		}
+		this.stage = stage;
+	}
+
+	public final boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	public final void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public final Node<ElementT> getTop() {
+		return top;
+	}
+
+	public final boolean isEmpty() {
+		return top == null;
+	}
+
+	public final long getHeight() {
+		return top == null ? 0l : top.height + 1l;
+	}
+
+	public final ElementT peek() {
+		if(top == null)
+			throw new IllegalStateException("Stack is empty");
+		return top.getPayload();
+	}
+
+	public final void push(ElementT element) {
+		if(top == null)
+			top = new Node<ElementT>(this, 0l, element);
+		else
+			top = new Node<ElementT>(this, top.height + 1l, element, top.id, top);
+		++cachedNodes;
+		if(cachedNodes > maxCachedNodes && stage != null && elementIO != null)
+			evict();
+	}
+
+	public final ElementT pop() {
+		if(top == null)
+			throw new IllegalStateException("Stack is empty");
+		Node<ElementT> node = top;
+		if(node.parent == null && node.parentID >= 0l) {
+			if(stage == null || elementIO == null)
+				throw new IllegalStateException("Cannot load node " + node.parentID
+						+ " while detached from stage");
+			node.parent = loadNode(node.parentID, node.parentSize);
+		}
+		else
+			--cachedNodes;
+		top = node.parent;
+		return node.getPayload();
+	}
+
+	public final long save() {
+		saveAll();
+		return top == null ? -1l : top.id;
+	}
+
+	private void evict() {
+		saveAll();
+		int keep = (maxCachedNodes + 1) / 2;
+		Node<ElementT> node = top;
+		for(int i = 1; i < keep; ++i)
+			node = node.parent;
+		node.parent = null;
+		cachedNodes = keep;
+	}
+
+	public final Stage getStage() {
 		return stage;
 	}
 
-	public final void setStage(StageFile stage) {
+	public final void setStage(Stage stage) {
 		if(stage == this.stage)
 			return;
 		if(elementIO != null) {
@@ -177,13 +363,60 @@ public class ArcStack<ElementT> {
 		this.stage = stage;
 	}
 
+	private static void checkNodeSize(Node<?> node, ByteBuffer buffer) {
+		if(buffer.position() != node.size)
+			throw new IllegalStateException("Element was encoded in " + (buffer.position()
+					- Node.STATIC_PART_BUFFER_SIZE) + " bytes, but reported a size of "
+					+ (node.size - Node.STATIC_PART_BUFFER_SIZE) + " bytes");
+	}
+
 	private void saveAll() {
-		ByteBuffer buffer = getLoadBuffer();
-		synchronized(buffer) {
-			for(Node<ElementT> node = top; node != null; node = node.parent) {
-				if(node.id >= 0l)
-					break;
-				node.id = nodeIO.writeNode(node, buffer, stage);
+		int nodeCount = 0;
+		for(Node<ElementT> node = top; node != null && node.id < 0l; node = node.parent)
+			++nodeCount;
+		if(nodeCount == 0)
+			return;
+		// parents first, so each node can refer to its parent
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Node<ElementT>[] nodes = new Node[nodeCount];
+		Node<ElementT> node = top;
+		long capacity = 0l;
+		int maxNodeSize = 0;
+		for(int i = nodeCount - 1; i >= 0; --i) {
+			nodes[i] = node;
+			node.size = nodeIO.getNodeSize(node);
+			capacity += node.size + stage.getFrameOverhead();
+			maxNodeSize = Math.max(maxNodeSize, node.size);
+			node = node.parent;
+		}
+		ByteBuffer buffer = stage.getBufferPool().acquire(maxNodeSize);
+		boolean committed = false;
+		try(StageTransaction transaction = stage.beginTransaction(capacity)) {
+			for(int i = 0; i < nodeCount; ++i) {
+				node = nodes[i];
+				if(node.parent != null) {
+					node.parentID = node.parent.id;
+					node.parentSize = node.parent.size;
+				}
+				buffer.clear();
+				nodeIO.writeNode(node, buffer);
+				ArcStack.checkNodeSize(node, buffer);
+				buffer.flip();
+				node.id = transaction.add(buffer);
+			}
+			transaction.commit();
+			committed = true;
+		}
+		finally {
+			stage.getBufferPool().release(buffer);
+			if(!committed) {
+				for(int i = 0; i < nodeCount; ++i) {
+					nodes[i].id = -1l;
+					if(i > 0) {
+						nodes[i].parentID = -1l;
+						nodes[i].parentSize = -1;
+					}
+				}
 			}
 		}
 	}
@@ -192,7 +425,7 @@ public class ArcStack<ElementT> {
 		//TODO
 	}
 
-	private Node<ElementT> mapToStage(StageFile stage) {
+	private Node<ElementT> mapToStage(Stage stage) {
 		//TODO
 		return null;
 	}
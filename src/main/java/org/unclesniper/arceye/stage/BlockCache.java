@@ -0,0 +1,263 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read cache of fixed-size aligned blocks of a stage.
+ *
+ * Since stage data never changes once written, cached
+ * blocks never need to be invalidated; the cache only
+ * holds blocks that lie entirely below the visible end
+ * of the stage. The number of cached blocks is bounded
+ * by the byte budget, and blocks are evicted according
+ * to the CLOCK algorithm: Each hit sets a reference bit,
+ * and the clock hand evicts the first block it finds
+ * whose bit is clear, clearing the bits of the blocks
+ * it passes.
+ * <p>
+ * Concurrent misses on the same block are deduplicated:
+ * The first thread to miss installs a loading entry and
+ * reads the block, while all other threads wait for that
+ * read to finish. Readers pin a block while copying from
+ * it, so that the buffers of evicted blocks can safely be
+ * recycled for new blocks. This keeps off-heap blocks from
+ * being allocated over and over in the steady state.
+ * Should every block be pinned when a new one is to be
+ * inserted, the new block is served to the readers waiting
+ * for it without being cached.
+ *
+ * @since 0.2
+ */
+final class BlockCache {
+
+	private static final int LOADING = 0;
+
+	private static final int LOADED = 1;
+
+	private static final int FAILED = 2;
+
+	private static final class Block {
+
+		final long index;
+
+		/**
+		 * Pin count, or <tt>-1</tt> once evicted.
+		 */
+		final AtomicInteger pins = new AtomicInteger();
+
+		volatile boolean referenced = true;
+
+		/**
+		 * Guarded by <tt>this</tt>.
+		 */
+		int state = BlockCache.LOADING;
+
+		ByteBuffer data;
+
+		Block(long index) {
+			this.index = index;
+		}
+
+		boolean pin() {
+			for(;;) {
+				int count = pins.get();
+				if(count < 0)
+					return false;
+				if(pins.compareAndSet(count, count + 1))
+					return true;
+			}
+		}
+
+		void unpin() {
+			pins.decrementAndGet();
+		}
+
+		boolean evict() {
+			return pins.compareAndSet(0, -1);
+		}
+
+		synchronized void finish(int state) {
+			this.state = state;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the block to be loaded.
+		 *
+		 * Waits uninterruptibly, but restores
+		 * the interrupt status of the thread.
+		 *
+		 * @return
+		 * 	<tt>true</tt> if the block was loaded,
+		 * 	<tt>false</tt> if loading it failed
+		 */
+		synchronized boolean await() {
+			boolean interrupted = false;
+			while(state == BlockCache.LOADING) {
+				try {
+					wait();
+				}
+				catch(InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+			return state == BlockCache.LOADED;
+		}
+
+	}
+
+	/**
+	 * Source of block data.
+	 */
+	interface Loader {
+
+		void load(ByteBuffer buffer, long offset);
+
+	}
+
+	private final int blockSize;
+
+	private final boolean offHeap;
+
+	private final ConcurrentHashMap<Long, Block> blocks = new ConcurrentHashMap<Long, Block>();
+
+	/**
+	 * The clock. Guarded by <tt>this</tt>.
+	 */
+	private final Block[] slots;
+
+	/**
+	 * The clock hand. Guarded by <tt>this</tt>.
+	 */
+	private int hand;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> recycled = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	BlockCache(long budget, int blockSize, boolean offHeap) {
+		this.blockSize = blockSize;
+		this.offHeap = offHeap;
+		long slotCount = budget / blockSize;
+		if(slotCount < 1l)
+			slotCount = 1l;
+		else if(slotCount > (long)Integer.MAX_VALUE)
+			slotCount = Integer.MAX_VALUE;
+		slots = new Block[(int)slotCount];
+	}
+
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Read as much as possible through the cache.
+	 *
+	 * Transfers bytes into <tt>buffer</tt> starting at
+	 * <tt>offset</tt> until either the buffer is full or
+	 * the next byte lies in a block that does not end at
+	 * or below <tt>available</tt>.
+	 *
+	 * @return
+	 * 	the number of bytes transferred
+	 */
+	int read(Loader loader, ByteBuffer buffer, long offset, long available) {
+		int total = 0;
+		while(buffer.remaining() > 0) {
+			long index = offset / blockSize;
+			long blockStart = index * blockSize;
+			if(blockStart + blockSize > available)
+				break;
+			Block block = pinBlock(loader, index);
+			try {
+				int within = (int)(offset - blockStart);
+				int count = blockSize - within;
+				if(count > buffer.remaining())
+					count = buffer.remaining();
+				ByteBuffer source = block.data.duplicate();
+				source.limit(within + count);
+				source.position(within);
+				buffer.put(source);
+				total += count;
+				offset += count;
+			}
+			finally {
+				block.unpin();
+			}
+		}
+		return total;
+	}
+
+	private Block pinBlock(Loader loader, long index) {
+		Long key = index;
+		for(;;) {
+			Block block = blocks.get(key);
+			if(block == null) {
+				Block fresh = new Block(index);
+				block = blocks.putIfAbsent(key, fresh);
+				if(block == null) {
+					load(loader, fresh);
+					block = fresh;
+				}
+			}
+			if(block.await() && block.pin()) {
+				block.referenced = true;
+				return block;
+			}
+		}
+	}
+
+	private void load(Loader loader, Block block) {
+		boolean loaded = false;
+		try {
+			ByteBuffer data = recycled.poll();
+			if(data == null)
+				data = offHeap ? ByteBuffer.allocateDirect(blockSize) : ByteBuffer.allocate(blockSize);
+			data.clear();
+			loader.load(data, block.index * blockSize);
+			block.data = data;
+			// if all blocks are pinned, serve this one to the waiting readers without caching it
+			if(!insert(block))
+				blocks.remove(block.index, block);
+			loaded = true;
+		}
+		finally {
+			if(!loaded)
+				blocks.remove(block.index, block);
+			block.finish(loaded ? BlockCache.LOADED : BlockCache.FAILED);
+		}
+	}
+
+	/**
+	 * Place a loaded block in the clock.
+	 *
+	 * The hand sweeps the clock at most twice, since the
+	 * first rotation clears all reference bits, so the
+	 * second finds a victim unless all blocks are pinned.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if the block was placed, or <tt>false</tt>
+	 * 	if no block could be evicted to make room for it
+	 */
+	private synchronized boolean insert(Block block) {
+		for(long step = 2l * slots.length; step > 0l; --step) {
+			Block victim = slots[hand];
+			if(victim == null || (!victim.referenced && victim.evict())) {
+				if(victim != null) {
+					blocks.remove(victim.index, victim);
+					recycled.offer(victim.data);
+				}
+				slots[hand] = block;
+				hand = (hand + 1) % slots.length;
+				return true;
+			}
+			victim.referenced = false;
+			hand = (hand + 1) % slots.length;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Pool of reusable direct buffers for stage I/O.
+ *
+ * Heap buffers handed to a {@link java.nio.channels.FileChannel}
+ * are copied through a temporary direct buffer by the channel,
+ * so code transferring data to and from a stage should use
+ * direct buffers. Since those are expensive to allocate and
+ * are only freed by the garbage collector, they are pooled
+ * instead: A buffer is {@link #acquire(int) acquired} for the
+ * duration of a single operation and then
+ * {@link #release(ByteBuffer) released} back to the pool.
+ * As every operation has a buffer of its own, no buffer is
+ * ever shared between threads, so no locking is required.
+ * <p>
+ * Buffers are kept in size classes of powers of two from
+ * {@link #MIN_CLASS_SIZE} to {@link #MAX_CLASS_SIZE} bytes.
+ * Each class retains up to {@link #RETAINED_BYTES_PER_CLASS}
+ * bytes worth of buffers (but at least one buffer); buffers
+ * released beyond that are left to the garbage collector.
+ * Requests for more than <tt>MAX_CLASS_SIZE</tt> bytes are
+ * served with fresh heap buffers, which are not retained.
+ * The free lists are lock-free stacks, so recently released
+ * (and thus likely cached) buffers are reused first.
+ * <p>
+ * Each {@link StageFile} owns a pool, which may be
+ * {@link StageFile#getBufferPool() retrieved} for use
+ * by structures stored in the stage.
+ *
+ * @since 0.2
+ */
+public final class BufferPool {
+
+	/**
+	 * Capacity of the smallest pooled buffers.
+	 *
+	 * @since 0.2
+	 */
+	public static final int MIN_CLASS_SIZE = 256;
+
+	/**
+	 * Capacity of the largest pooled buffers.
+	 *
+	 * Equates {@link StageFile#MAX_GATHER_SIZE},
+	 * so the stage itself can use pooled buffers
+	 * for gathering writes and coalesced reads.
+	 *
+	 * @since 0.2
+	 */
+	public static final int MAX_CLASS_SIZE = StageFile.MAX_GATHER_SIZE;
+
+	/**
+	 * Number of bytes retained per size class.
+	 *
+	 * Equates 4 MiB.
+	 *
+	 * @since 0.2
+	 */
+	public static final int RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(BufferPool.MIN_CLASS_SIZE);
+
+	private static final int CLASS_COUNT
+			= Integer.numberOfTrailingZeros(BufferPool.MAX_CLASS_SIZE) - BufferPool.MIN_CLASS_SHIFT + 1;
+
+	private final ConcurrentLinkedDeque<ByteBuffer>[] free;
+
+	private final AtomicInteger[] freeCounts;
+
+	/**
+	 * Construct an empty pool.
+	 *
+	 * @since 0.2
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool() {
+		free = new ConcurrentLinkedDeque[BufferPool.CLASS_COUNT];
+		freeCounts = new AtomicInteger[BufferPool.CLASS_COUNT];
+		for(int i = 0; i < BufferPool.CLASS_COUNT; ++i) {
+			free[i] = new ConcurrentLinkedDeque<ByteBuffer>();
+			freeCounts[i] = new AtomicInteger();
+		}
+	}
+
+	private static int getSizeClass(int size) {
+		if(size <= BufferPool.MIN_CLASS_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - BufferPool.MIN_CLASS_SHIFT;
+	}
+
+	private static int getRetainLimit(int sizeClass) {
+		return Math.max(1, BufferPool.RETAINED_BYTES_PER_CLASS >> (sizeClass + BufferPool.MIN_CLASS_SHIFT));
+	}
+
+	/**
+	 * Obtain a buffer of at least the given size.
+	 *
+	 * The returned buffer has a <i>position</i> of zero
+	 * and a <i>limit</i> of <tt>size</tt>; its capacity
+	 * may be larger. Its contents are undefined. The
+	 * caller has exclusive use of the buffer until it
+	 * is {@link #release(ByteBuffer) released}.
+	 *
+	 * @param size
+	 * 	number of bytes needed
+	 * @return
+	 * 	a direct buffer, unless <tt>size</tt> exceeds
+	 * 	{@link #MAX_CLASS_SIZE}
+	 * @throws IllegalArgumentException
+	 * 	if <tt>size</tt> is negative
+	 * @since 0.2
+	 */
+	public ByteBuffer acquire(int size) {
+		if(size < 0)
+			throw new IllegalArgumentException("Negative buffer size: " + size);
+		if(size > BufferPool.MAX_CLASS_SIZE)
+			return ByteBuffer.allocate(size);
+		int sizeClass = BufferPool.getSizeClass(size);
+		ByteBuffer buffer = free[sizeClass].pollFirst();
+		if(buffer == null)
+			buffer = ByteBuffer.allocateDirect(BufferPool.MIN_CLASS_SIZE << sizeClass);
+		else
+			freeCounts[sizeClass].decrementAndGet();
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 *
+	 * The caller <b>must not</b> use the buffer (nor any
+	 * buffer sharing its content, such as slices of it)
+	 * afterwards. Heap buffers (such as those handed out
+	 * for oversized requests) and <tt>null</tt> are
+	 * ignored, so releasing may unconditionally be done
+	 * in a <tt>finally</tt> block.
+	 *
+	 * @param buffer
+	 * 	buffer obtained via {@link #acquire(int) acquire}
+	 * @since 0.2
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || !buffer.isDirect() || buffer.isReadOnly())
+			return;
+		int capacity = buffer.capacity();
+		if(capacity < BufferPool.MIN_CLASS_SIZE || capacity > BufferPool.MAX_CLASS_SIZE
+				|| Integer.bitCount(capacity) != 1)
+			return;
+		int sizeClass = BufferPool.getSizeClass(capacity);
+		if(freeCounts[sizeClass].incrementAndGet() > BufferPool.getRetainLimit(sizeClass)) {
+			freeCounts[sizeClass].decrementAndGet();
+			return;
+		}
+		free[sizeClass].offerFirst(buffer);
+	}
+
+}
@@ -0,0 +1,353 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Transaction staging its chunks in a buffer.
+ *
+ * Implements {@link StageTransaction} on top of a range of
+ * the stage reserved up front, which the stage extends,
+ * gives back and ends via the hooks of this class. Chunks
+ * are staged in a buffer from the
+ * {@link Stage#getBufferPool() buffer pool} of the stage,
+ * preceded by their frame headers if the stage has any
+ * {@link Stage#getFrameOverhead() frame overhead}, so the
+ * staged bytes are an exact image of the range.
+ * <p>
+ * Should the transaction allocate fewer bytes than were
+ * reserved, the remainder is given back if the reservation
+ * can be {@link #tryResize(long, long) resized}, or else left
+ * as padding: zero bytes, or a single padding frame in a
+ * framed stage. Allocating more bytes than were reserved
+ * extends the reservation under the same condition, and
+ * fails otherwise. An aborted transaction treats its whole
+ * range the same way.
+ *
+ * @since 0.2
+ */
+abstract class BufferedTransaction implements StageTransaction {
+
+	private final Stage stage;
+
+	private final int frameOverhead;
+
+	private final long base;
+
+	private long capacity;
+
+	private long used;
+
+	private ByteBuffer staging;
+
+	private long[] offsets = new long[16];
+
+	private int[] lengths = new int[16];
+
+	private boolean[] filled = new boolean[16];
+
+	private int chunkCount;
+
+	private boolean open = true;
+
+	/**
+	 * Construct a transaction over a reserved range.
+	 *
+	 * Called by the stage once the range has been
+	 * reserved (and any locks have been acquired).
+	 *
+	 * @param stage
+	 * 	the stage appended to
+	 * @param base
+	 * 	start of the reserved range
+	 * @param capacity
+	 * 	size of the reserved range
+	 */
+	BufferedTransaction(Stage stage, long base, long capacity) {
+		this.stage = stage;
+		this.frameOverhead = stage.getFrameOverhead();
+		this.base = base;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Move the end of the reservation.
+	 *
+	 * Must succeed if and only if nothing has been
+	 * reserved after <tt>end</tt> in the meantime.
+	 *
+	 * @param end
+	 * 	current end of the reservation
+	 * @param newEnd
+	 * 	desired end of the reservation
+	 * @return
+	 * 	<tt>true</tt> if the reservation now ends
+	 * 	at <tt>newEnd</tt>
+	 */
+	abstract boolean tryResize(long end, long newEnd);
+
+	/**
+	 * Write bytes into the reserved range.
+	 *
+	 * @param buffer
+	 * 	the bytes to write, between the position
+	 * 	and the limit of the buffer
+	 * @param offset
+	 * 	chunk ID at which to write
+	 */
+	abstract void write(ByteBuffer buffer, long offset);
+
+	/**
+	 * End the reservation.
+	 *
+	 * Called exactly once, when the transaction ends,
+	 * even if writing failed; releases anything the
+	 * stage holds on behalf of the transaction.
+	 *
+	 * @param end
+	 * 	end of the range occupied by the transaction
+	 */
+	abstract void complete(long end);
+
+	/**
+	 * Called if writing the range failed.
+	 *
+	 * Called before {@link #complete(long)}, so the stage
+	 * can deal with whatever the failed write left behind
+	 * in the range. Does nothing unless overridden.
+	 *
+	 * @param end
+	 * 	end of the range occupied by the transaction
+	 * @param cause
+	 * 	the exception thrown while writing, which is
+	 * 	rethrown afterwards
+	 */
+	void abandoned(long end, RuntimeException cause) {}
+
+	/**
+	 * Called after the transaction has been committed successfully.
+	 *
+	 * Does nothing unless overridden.
+	 *
+	 * @param end
+	 * 	end of the range occupied by the transaction
+	 * @param begin
+	 * 	{@link System#nanoTime()} at the start of the commit
+	 */
+	void committed(long end, long begin) {}
+
+	public Stage getStage() {
+		return stage;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public long getSize() {
+		return used;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	private void checkOpen() {
+		if(!open)
+			throw new IllegalStateException("Transaction has already ended");
+	}
+
+	/**
+	 * Determine whether the given number of allocated bytes fits the reservation.
+	 *
+	 * In a framed stage, the remainder must either be
+	 * empty or be able to hold a padding frame.
+	 */
+	private boolean fits(long size, long reserved) {
+		return size == reserved || size <= reserved - frameOverhead;
+	}
+
+	private void ensureCapacity(long size) {
+		if(fits(size, capacity))
+			return;
+		long newCapacity = Math.max(capacity * 2l, size + frameOverhead);
+		if(!tryResize(base + capacity, base + newCapacity))
+			throw new IllegalStateException("Transaction exceeds its reservation of " + capacity
+					+ " bytes, and the stage has been appended to since");
+		capacity = newCapacity;
+	}
+
+	private void ensureStaging(long size) {
+		if(size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Transaction exceeds the maximum size of "
+					+ Integer.MAX_VALUE + " bytes");
+		if(staging != null && staging.capacity() >= size)
+			return;
+		BufferPool pool = stage.getBufferPool();
+		int newSize = (int)Math.min((long)Integer.MAX_VALUE,
+				Math.max(size, staging == null ? Math.min(capacity, (long)StageFile.MAX_GATHER_SIZE)
+						: staging.capacity() * 2l));
+		ByteBuffer newStaging = pool.acquire(newSize);
+		newStaging.limit(newStaging.capacity());
+		if(staging != null) {
+			staging.clear();
+			newStaging.put(staging);
+			newStaging.clear();
+			pool.release(staging);
+		}
+		staging = newStaging;
+	}
+
+	public long allocate(int size) {
+		if(size < 0)
+			throw new IllegalArgumentException("Negative chunk size: " + size);
+		checkOpen();
+		long offset = used + frameOverhead;
+		ensureCapacity(offset + size);
+		ensureStaging(offset + size);
+		if(chunkCount == offsets.length) {
+			offsets = Arrays.copyOf(offsets, chunkCount * 2);
+			lengths = Arrays.copyOf(lengths, chunkCount * 2);
+			filled = Arrays.copyOf(filled, chunkCount * 2);
+		}
+		offsets[chunkCount] = offset;
+		lengths[chunkCount] = size;
+		filled[chunkCount] = size == 0;
+		++chunkCount;
+		used = offset + size;
+		return base + offset;
+	}
+
+	public void put(long chunkID, ByteBuffer buffer) {
+		if(buffer == null)
+			throw new NullPointerException();
+		checkOpen();
+		int index = Arrays.binarySearch(offsets, 0, chunkCount, chunkID - base);
+		if(index < 0)
+			throw new IllegalArgumentException("Chunk " + chunkID + " was not allocated by this transaction");
+		// empty chunks share their ID with the next chunk
+		while(index + 1 < chunkCount && offsets[index + 1] == offsets[index])
+			++index;
+		if(buffer.remaining() == 0 && index > 0 && offsets[index - 1] == offsets[index])
+			return;
+		if(buffer.remaining() != lengths[index])
+			throw new IllegalArgumentException("Chunk " + chunkID + " has a size of " + lengths[index]
+					+ " bytes, but " + buffer.remaining() + " bytes were given");
+		staging.limit((int)offsets[index] + lengths[index]);
+		staging.position((int)offsets[index]);
+		staging.put(buffer);
+		filled[index] = true;
+	}
+
+	public long add(ByteBuffer buffer) {
+		long chunkID = allocate(buffer.remaining());
+		put(chunkID, buffer);
+		return chunkID;
+	}
+
+	public void commit() {
+		checkOpen();
+		for(int i = 0; i < chunkCount; ++i) {
+			if(!filled[i])
+				throw new IllegalStateException("Chunk " + (base + offsets[i]) + " has not been filled");
+		}
+		long begin = System.nanoTime();
+		if(frameOverhead > 0) {
+			CRC32C crc = new CRC32C();
+			for(int i = 0; i < chunkCount; ++i) {
+				int offset = (int)offsets[i];
+				staging.limit(offset + lengths[i]);
+				staging.position(offset);
+				ChunkFraming.beginChecksum(crc, lengths[i]);
+				crc.update(staging);
+				staging.putInt(offset - frameOverhead, lengths[i]);
+				staging.putInt(offset - frameOverhead + 4, (int)crc.getValue());
+			}
+		}
+		committed(finish(used), begin);
+	}
+
+	public void abort() {
+		checkOpen();
+		finish(0l);
+	}
+
+	public void close() {
+		if(open)
+			finish(0l);
+	}
+
+	/**
+	 * Write the first bytes of the staging buffer and end the transaction.
+	 *
+	 * Gives back or pads the rest of the reservation
+	 * and completes the reserved range.
+	 *
+	 * @param size
+	 * 	number of staged bytes to write
+	 * @return
+	 * 	the end of the range completed
+	 */
+	private long finish(long size) {
+		open = false;
+		long end = base + capacity;
+		try {
+			if(size < capacity && tryResize(end, base + size))
+				end = base + size;
+			else if(size < capacity)
+				size = pad(size);
+			if(size > 0l) {
+				staging.limit((int)size);
+				staging.position(0);
+				write(staging, base);
+			}
+		}
+		catch(RuntimeException re) {
+			abandoned(end, re);
+			throw re;
+		}
+		finally {
+			complete(end);
+			stage.getBufferPool().release(staging);
+			staging = null;
+		}
+		return end;
+	}
+
+	/**
+	 * Pad the range between the given size and the reservation.
+	 *
+	 * Only the last byte of the padding is written
+	 * (preceded by a frame header in a framed stage),
+	 * since the bytes skipped over read as zero anyway.
+	 *
+	 * @return
+	 * 	the number of staged bytes to write
+	 */
+	private long pad(long size) {
+		long gap = capacity - size;
+		if(frameOverhead > 0) {
+			int length = (int)(gap - frameOverhead);
+			CRC32C crc = new CRC32C();
+			ChunkFraming.beginChecksum(crc, length);
+			byte[] zeros = new byte[Math.min(length, 4096)];
+			for(int left = length; left > 0; left -= zeros.length)
+				crc.update(zeros, 0, Math.min(left, zeros.length));
+			ensureStaging(size + frameOverhead);
+			staging.clear();
+			staging.putInt((int)size, length);
+			staging.putInt((int)size + 4, (int)crc.getValue());
+			size += frameOverhead;
+			gap = length;
+		}
+		if(gap > 0l)
+			write(ByteBuffer.allocate(1), base + capacity - 1l);
+		return size;
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression scheme for chunks.
+ *
+ * Used by {@link CompressedStage} to transform chunks
+ * before they are written to, and after they are read
+ * from, the backing stage. Implementations must be
+ * thread safe, as chunks may be encoded and decoded
+ * concurrently.
+ *
+ * @since 0.2
+ */
+public interface ChunkCodec {
+
+	/**
+	 * Determine the maximum encoded size of a chunk.
+	 *
+	 * @param rawLength
+	 * 	size of the chunk before encoding
+	 * @return
+	 * 	an upper bound of the size of the chunk
+	 * 	after encoding
+	 * @since 0.2
+	 */
+	int getMaxEncodedLength(int rawLength);
+
+	/**
+	 * Encode a chunk.
+	 *
+	 * Consumes the remaining bytes of <tt>source</tt> and
+	 * places the encoded bytes into <tt>target</tt>, which
+	 * has at least {@link #getMaxEncodedLength(int)} bytes
+	 * remaining, advancing the positions of both buffers.
+	 *
+	 * @param source
+	 * 	raw chunk bytes
+	 * @param target
+	 * 	destination for encoded bytes
+	 * @since 0.2
+	 */
+	void encode(ByteBuffer source, ByteBuffer target);
+
+	/**
+	 * Decode a chunk.
+	 *
+	 * Consumes the remaining bytes of <tt>source</tt>, which
+	 * are the result of a previous {@link #encode encode},
+	 * and places the decoded bytes into <tt>target</tt>, which
+	 * has exactly as many bytes remaining as the chunk had
+	 * before encoding.
+	 *
+	 * @param source
+	 * 	encoded chunk bytes
+	 * @param target
+	 * 	destination for raw chunk bytes
+	 * @throws IllegalArgumentException
+	 * 	if the encoded bytes are malformed
+	 * @since 0.2
+	 */
+	void decode(ByteBuffer source, ByteBuffer target);
+
+}
@@ -0,0 +1,375 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Framed stage file format.
+ *
+ * A {@link StageOptions#isFramed() framed} stage file starts
+ * with a sixteen-byte header: an eight-byte magic number and
+ * the eight-byte <i>watermark</i>, below which all frames are
+ * known to have reached the device. One frame per chunk
+ * follows: a four-byte length, the four-byte
+ * {@link CRC32C} checksum of the length and the chunk, and
+ * the chunk itself. Since the checksum covers the length,
+ * a region of zero bytes never passes for a run of empty
+ * frames.
+ * The chunk ID of a chunk is the offset of the chunk proper,
+ * so reads are unaffected by the framing.
+ * <p>
+ * The watermark is always a frame boundary and is only ever
+ * moved after the data below it has been flushed. It is not
+ * flushed itself, since a stale watermark merely prolongs the
+ * next recovery.
+ * <p>
+ * {@link #recover(FileChannel, File, Executor, boolean) Recovery}
+ * only examines the tail past the watermark, which is all a
+ * crash can have torn: it walks the frame headers sequentially,
+ * which is cheap since it skips over the payloads, and then
+ * verifies the checksums of the frames in parallel batches of
+ * about {@link #VERIFY_BATCH_SIZE} bytes each. Frames below the
+ * watermark are trusted and never truncated.
+ *
+ * @since 0.2
+ */
+final class ChunkFraming {
+
+	/**
+	 * Magic number at the start of a framed stage file.
+	 *
+	 * Spells <tt>ARCSTGF1</tt> in ASCII.
+	 */
+	static final long FILE_MAGIC = 0x4152435354474631l;
+
+	static final int FILE_HEADER_SIZE = 16;
+
+	/**
+	 * Offset of the watermark within the file header.
+	 */
+	static final int WATERMARK_OFFSET = 8;
+
+	static final int FRAME_HEADER_SIZE = 8;
+
+	/**
+	 * Size of blocks read while scanning.
+	 *
+	 * Equates 1 MiB.
+	 */
+	static final int SCAN_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Number of payload bytes verified per parallel task.
+	 *
+	 * Equates 4 MiB.
+	 */
+	static final long VERIFY_BATCH_SIZE = 4l * 1024l * 1024l;
+
+	/**
+	 * Frames found by the header walk.
+	 */
+	private static final class FrameList {
+
+		long[] offsets = new long[64];
+
+		int[] lengths = new int[64];
+
+		int[] checksums = new int[64];
+
+		int count;
+
+		void add(long offset, int length, int checksum) {
+			if(count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				lengths = Arrays.copyOf(lengths, count * 2);
+				checksums = Arrays.copyOf(checksums, count * 2);
+			}
+			offsets[count] = offset;
+			lengths[count] = length;
+			checksums[count] = checksum;
+			++count;
+		}
+
+	}
+
+	private ChunkFraming() {}
+
+	/**
+	 * Start the checksum of a frame.
+	 *
+	 * Resets the checksum and feeds it the length field
+	 * of the frame header, in the order it is stored in;
+	 * the chunk is to be fed afterwards.
+	 *
+	 * @param crc
+	 * 	the checksum to reset
+	 * @param length
+	 * 	length of the chunk
+	 */
+	static void beginChecksum(CRC32C crc, int length) {
+		crc.reset();
+		crc.update(length >>> 24);
+		crc.update(length >>> 16);
+		crc.update(length >>> 8);
+		crc.update(length);
+	}
+
+	/**
+	 * Frame chunks for writing.
+	 *
+	 * The checksums are computed here, so this should
+	 * be called before any lock is taken.
+	 *
+	 * @param buffers
+	 * 	chunks to be framed; their positions
+	 * 	are not modified
+	 * @return
+	 * 	the frame headers interleaved with the
+	 * 	chunks, each header preceding its chunk
+	 */
+	static ByteBuffer[] frame(ByteBuffer[] buffers) {
+		ByteBuffer[] parts = new ByteBuffer[buffers.length * 2];
+		CRC32C crc = new CRC32C();
+		for(int i = 0; i < buffers.length; ++i) {
+			ByteBuffer payload = buffers[i];
+			ChunkFraming.beginChecksum(crc, payload.remaining());
+			crc.update(payload.duplicate());
+			ByteBuffer header = ByteBuffer.allocate(ChunkFraming.FRAME_HEADER_SIZE);
+			header.putInt(payload.remaining());
+			header.putInt((int)crc.getValue());
+			header.flip();
+			parts[i * 2] = header;
+			parts[i * 2 + 1] = payload;
+		}
+		return parts;
+	}
+
+	/**
+	 * Validate a framed stage file and cut off its torn tail.
+	 *
+	 * Writes the file header if the file is empty (or too
+	 * short to even hold the file header, which can only be
+	 * the result of a crash during creation). Otherwise,
+	 * walks and verifies the frames past the watermark and
+	 * truncates the file to the end of the last frame that
+	 * precedes the first incomplete or corrupt one among
+	 * them. A read-only file is never modified; its torn
+	 * tail is merely excluded from the returned end.
+	 *
+	 * @param channel
+	 * 	channel of the file; must be open for
+	 * 	reading and writing
+	 * @param path
+	 * 	path of the file, for error messages
+	 * @param executor
+	 * 	executor on which to verify checksums,
+	 * 	or <tt>null</tt> to verify sequentially
+	 * @param readOnly
+	 * 	whether the file must not be modified
+	 * @return
+	 * 	the end of the last intact frame
+	 * @throws IOException
+	 * 	if the file is not a framed stage file, if
+	 * 	it ends below its watermark (that is, data
+	 * 	known to be durable has been lost), or if
+	 * 	an I/O error occurs
+	 */
+	static long recover(FileChannel channel, File path, Executor executor, boolean readOnly) throws IOException {
+		long size = channel.size();
+		if(size < ChunkFraming.FILE_HEADER_SIZE && readOnly)
+			throw new IOException("Not a framed stage file: " + path.getAbsolutePath());
+		ByteBuffer header = ByteBuffer.allocate(ChunkFraming.FILE_HEADER_SIZE);
+		if(size < ChunkFraming.FILE_HEADER_SIZE) {
+			channel.truncate(0l);
+			header.putLong(ChunkFraming.FILE_MAGIC).putLong((long)ChunkFraming.FILE_HEADER_SIZE);
+			header.flip();
+			ChunkFraming.writeFully(channel, header, 0l);
+			channel.force(true);
+			return ChunkFraming.FILE_HEADER_SIZE;
+		}
+		ChunkFraming.readFully(channel, header, 0l, ChunkFraming.FILE_HEADER_SIZE);
+		if(header.getLong(0) != ChunkFraming.FILE_MAGIC)
+			throw new IOException("Not a framed stage file: " + path.getAbsolutePath());
+		long watermark = header.getLong(ChunkFraming.WATERMARK_OFFSET);
+		if(watermark < ChunkFraming.FILE_HEADER_SIZE || watermark > size)
+			throw new IOException("Watermark " + watermark + " of framed stage file "
+					+ path.getAbsolutePath() + " lies outside the file of " + size + " bytes");
+		ByteBuffer block = ByteBuffer.allocate((int)Math.max(Math.min(size - watermark,
+				(long)ChunkFraming.SCAN_BLOCK_SIZE), (long)ChunkFraming.FRAME_HEADER_SIZE));
+		FrameList frames = new FrameList();
+		long end = ChunkFraming.walk(channel, block, watermark, size, frames);
+		int bad = ChunkFraming.verify(channel, frames, executor);
+		if(bad >= 0)
+			end = frames.offsets[bad] - ChunkFraming.FRAME_HEADER_SIZE;
+		if(end < size && !readOnly) {
+			channel.truncate(end);
+			channel.force(true);
+		}
+		return end;
+	}
+
+	/**
+	 * Collect the headers of all complete frames past the watermark.
+	 *
+	 * Reads the file in blocks, but starts a new block at
+	 * the next header whenever that header lies outside the
+	 * current block, thus skipping over large payloads.
+	 *
+	 * @return
+	 * 	the end of the last complete frame
+	 */
+	private static long walk(FileChannel channel, ByteBuffer block, long watermark, long size, FrameList frames)
+			throws IOException {
+		long position = watermark;
+		long blockStart = watermark;
+		int blockLength = 0;
+		while(size - position >= ChunkFraming.FRAME_HEADER_SIZE) {
+			if(position + ChunkFraming.FRAME_HEADER_SIZE > blockStart + blockLength) {
+				blockStart = position;
+				blockLength = (int)Math.min(size - position, (long)block.capacity());
+				ChunkFraming.readFully(channel, block, blockStart, blockLength);
+			}
+			int index = (int)(position - blockStart);
+			int length = block.getInt(index);
+			int checksum = block.getInt(index + 4);
+			long payload = position + ChunkFraming.FRAME_HEADER_SIZE;
+			if(length < 0 || length > size - payload)
+				break;
+			frames.add(payload, length, checksum);
+			position = payload + length;
+		}
+		return position;
+	}
+
+	/**
+	 * Verify the checksums of the frames collected.
+	 *
+	 * @return
+	 * 	the index of the first corrupt frame,
+	 * 	or <tt>-1</tt> if all frames are intact
+	 */
+	private static int verify(FileChannel channel, FrameList frames, Executor executor) throws IOException {
+		int[] bounds = new int[frames.count + 1];
+		int taskCount = 0;
+		long batch = 0l;
+		for(int i = 0; i < frames.count; ++i) {
+			if(batch == 0l)
+				bounds[taskCount++] = i;
+			batch += frames.lengths[i] + ChunkFraming.FRAME_HEADER_SIZE;
+			if(batch >= ChunkFraming.VERIFY_BATCH_SIZE)
+				batch = 0l;
+		}
+		bounds[taskCount] = frames.count;
+		if(executor == null || taskCount < 2) {
+			for(int i = 0; i < taskCount; ++i) {
+				int bad = ChunkFraming.verifyRange(channel, frames, bounds[i], bounds[i + 1]);
+				if(bad >= 0)
+					return bad;
+			}
+			return -1;
+		}
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		CompletableFuture<Integer>[] futures = new CompletableFuture[taskCount];
+		for(int i = 0; i < taskCount; ++i) {
+			int from = bounds[i], to = bounds[i + 1];
+			futures[i] = CompletableFuture.supplyAsync(() -> {
+				try {
+					return ChunkFraming.verifyRange(channel, frames, from, to);
+				}
+				catch(IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}, executor);
+		}
+		int bad = -1;
+		for(int i = 0; i < taskCount; ++i) {
+			int result;
+			try {
+				result = futures[i].join();
+			}
+			catch(CompletionException ce) {
+				Throwable cause = ce.getCause();
+				if(cause instanceof UncheckedIOException)
+					throw ((UncheckedIOException)cause).getCause();
+				if(cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if(cause instanceof Error)
+					throw (Error)cause;
+				throw ce;
+			}
+			if(result >= 0 && bad < 0)
+				bad = result;
+		}
+		return bad;
+	}
+
+	/**
+	 * Verify the checksums of adjacent frames.
+	 *
+	 * The range is read in blocks of up to
+	 * {@link #SCAN_BLOCK_SIZE} bytes, so payloads
+	 * may span several blocks.
+	 *
+	 * @return
+	 * 	the index of the first corrupt frame in the
+	 * 	range, or <tt>-1</tt> if all are intact
+	 */
+	private static int verifyRange(FileChannel channel, FrameList frames, int from, int to) throws IOException {
+		long position = frames.offsets[from];
+		long end = frames.offsets[to - 1] + frames.lengths[to - 1];
+		ByteBuffer block = ByteBuffer.allocate((int)Math.min(end - position, (long)ChunkFraming.SCAN_BLOCK_SIZE));
+		CRC32C crc = new CRC32C();
+		int frame = from;
+		ChunkFraming.beginChecksum(crc, frames.lengths[frame]);
+		while(frame < to) {
+			int blockLength = (int)Math.min(end - position, (long)block.capacity());
+			ChunkFraming.readFully(channel, block, position, blockLength);
+			long blockEnd = position + blockLength;
+			while(frame < to) {
+				long payloadStart = frames.offsets[frame];
+				long payloadEnd = payloadStart + frames.lengths[frame];
+				long start = Math.max(payloadStart, position);
+				long stop = Math.min(payloadEnd, blockEnd);
+				if(start < stop) {
+					block.limit((int)(stop - position));
+					block.position((int)(start - position));
+					crc.update(block);
+				}
+				if(payloadEnd > blockEnd)
+					break;
+				if((int)crc.getValue() != frames.checksums[frame])
+					return frame;
+				if(++frame < to)
+					ChunkFraming.beginChecksum(crc, frames.lengths[frame]);
+			}
+			position = blockEnd;
+		}
+		return -1;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer block, long offset, int length)
+			throws IOException {
+		block.clear();
+		block.limit(length);
+		while(block.remaining() > 0) {
+			int count = channel.read(block, offset + block.position());
+			if(count < 0)
+				throw new IOException("Stage file shrank during recovery");
+		}
+		block.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while(buffer.remaining() > 0)
+			offset += channel.write(buffer, offset);
+	}
+
+}
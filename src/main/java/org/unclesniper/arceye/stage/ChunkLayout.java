@@ -0,0 +1,120 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.Arrays;
+
+/**
+ * Size and references of a single chunk.
+ *
+ * Filled in by a {@link ChunkTracer}. A reference is an
+ * eight-byte chunk ID (in the byte order of
+ * {@link java.nio.ByteBuffer}) stored at some position
+ * within the chunk; the tracer reports both the position
+ * and the ID found there, along with the tracer for the
+ * referenced chunk. Negative IDs denote the absence of a
+ * reference and need not be reported.
+ *
+ * @since 0.2
+ */
+public final class ChunkLayout {
+
+	private int size = -1;
+
+	private int referenceCount;
+
+	private int[] positions = new int[4];
+
+	private long[] targets = new long[4];
+
+	private ChunkTracer[] tracers = new ChunkTracer[4];
+
+	ChunkLayout() {}
+
+	void reset() {
+		size = -1;
+		for(int i = 0; i < referenceCount; ++i)
+			tracers[i] = null;
+		referenceCount = 0;
+	}
+
+	/**
+	 * Retrieve the size of the chunk.
+	 *
+	 * @return
+	 * 	the size reported, or <tt>-1</tt> if none was
+	 * @since 0.2
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Report the size of the chunk.
+	 *
+	 * @param size
+	 * 	number of bytes in the chunk
+	 * @throws IllegalArgumentException
+	 * 	if <tt>size</tt> is negative
+	 * @since 0.2
+	 */
+	public void setSize(int size) {
+		if(size < 0)
+			throw new IllegalArgumentException("Negative chunk size: " + size);
+		this.size = size;
+	}
+
+	/**
+	 * Report a reference to another chunk.
+	 *
+	 * @param position
+	 * 	offset of the reference within the chunk
+	 * @param chunkID
+	 * 	ID stored at that position; ignored
+	 * 	if negative
+	 * @param tracer
+	 * 	tracer for the referenced chunk;
+	 * 	must not be <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if <tt>position</tt> is negative
+	 * @throws NullPointerException
+	 * 	if <tt>tracer</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public void addReference(int position, long chunkID, ChunkTracer tracer) {
+		if(position < 0)
+			throw new IllegalArgumentException("Negative reference position: " + position);
+		if(tracer == null)
+			throw new NullPointerException();
+		if(chunkID < 0l)
+			return;
+		if(referenceCount == positions.length) {
+			positions = Arrays.copyOf(positions, referenceCount * 2);
+			targets = Arrays.copyOf(targets, referenceCount * 2);
+			tracers = Arrays.copyOf(tracers, referenceCount * 2);
+		}
+		positions[referenceCount] = position;
+		targets[referenceCount] = chunkID;
+		tracers[referenceCount] = tracer;
+		++referenceCount;
+	}
+
+	int getReferenceCount() {
+		return referenceCount;
+	}
+
+	int getReferencePosition(int index) {
+		return positions[index];
+	}
+
+	long getReferenceTarget(int index) {
+		return targets[index];
+	}
+
+	ChunkTracer getReferenceTracer(int index) {
+		return tracers[index];
+	}
+
+	int[] copyReferencePositions() {
+		return Arrays.copyOf(positions, referenceCount);
+	}
+
+}
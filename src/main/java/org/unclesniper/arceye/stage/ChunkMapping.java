@@ -0,0 +1,101 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.Arrays;
+
+/**
+ * Old-to-new chunk ID mapping produced by compaction.
+ *
+ * Holds the IDs of all chunks found to be live, in
+ * ascending order, along with the IDs they have been
+ * copied to. Lookups are binary searches over two
+ * primitive arrays, so the mapping takes sixteen bytes
+ * per live chunk.
+ *
+ * @since 0.2
+ * @see StageCompactor#compact()
+ */
+public final class ChunkMapping {
+
+	private final long[] oldIDs;
+
+	private final long[] newIDs;
+
+	ChunkMapping(long[] oldIDs, long[] newIDs) {
+		this.oldIDs = oldIDs;
+		this.newIDs = newIDs;
+	}
+
+	/**
+	 * Retrieve the number of live chunks.
+	 *
+	 * @return
+	 * 	the number of chunks copied
+	 * @since 0.2
+	 */
+	public int size() {
+		return oldIDs.length;
+	}
+
+	/**
+	 * Retrieve an old chunk ID by index.
+	 *
+	 * @param index
+	 * 	index between zero (inclusive)
+	 * 	and {@link #size()} (exclusive)
+	 * @return
+	 * 	the <tt>index</tt>th smallest live chunk ID
+	 * @since 0.2
+	 */
+	public long getOldID(int index) {
+		return oldIDs[index];
+	}
+
+	/**
+	 * Retrieve a new chunk ID by index.
+	 *
+	 * @param index
+	 * 	index between zero (inclusive)
+	 * 	and {@link #size()} (exclusive)
+	 * @return
+	 * 	the new ID of the chunk
+	 * 	{@link #getOldID(int) formerly} at <tt>index</tt>
+	 * @since 0.2
+	 */
+	public long getNewID(int index) {
+		return newIDs[index];
+	}
+
+	/**
+	 * Translate a chunk ID.
+	 *
+	 * @param oldID
+	 * 	chunk ID in the source stage
+	 * @return
+	 * 	the corresponding chunk ID in the target stage,
+	 * 	<tt>oldID</tt> itself if it is negative (id est,
+	 * 	not a reference), or <tt>-1</tt> if the chunk
+	 * 	was not live
+	 * @since 0.2
+	 */
+	public long map(long oldID) {
+		if(oldID < 0l)
+			return oldID;
+		int index = Arrays.binarySearch(oldIDs, oldID);
+		return index < 0 ? -1l : newIDs[index];
+	}
+
+	/**
+	 * Determine whether a chunk was copied.
+	 *
+	 * @param oldID
+	 * 	chunk ID in the source stage
+	 * @return
+	 * 	<tt>true</tt> if and only if the
+	 * 	chunk was found to be live
+	 * @since 0.2
+	 */
+	public boolean contains(long oldID) {
+		return oldID >= 0l && Arrays.binarySearch(oldIDs, oldID) >= 0;
+	}
+
+}
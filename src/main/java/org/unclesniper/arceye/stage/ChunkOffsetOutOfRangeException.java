@@ -14,6 +14,12 @@ public class ChunkOffsetOutOfRangeException extends StagingException {
 		this.chunkOffset = chunkOffset;
 	}
 
+	public ChunkOffsetOutOfRangeException(long chunkOffset) {
+		super("Chunk offset " + chunkOffset + " is out of range in memory stage");
+		stageFile = null;
+		this.chunkOffset = chunkOffset;
+	}
+
 	public File getStageFile() {
 		return stageFile;
 	}
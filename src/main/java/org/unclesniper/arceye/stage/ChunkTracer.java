@@ -0,0 +1,36 @@
+package org.unclesniper.arceye.stage;
+
+/**
+ * Describes the layout of chunks written by some structure.
+ *
+ * A {@link StageCompactor} cannot know where one chunk ends
+ * nor which of its bytes are chunk IDs of other chunks, so
+ * each structure stored in a stage supplies a tracer for
+ * its chunks. Given a chunk ID, the tracer reads whatever
+ * it needs from the stage and reports the size of the chunk
+ * and the references it contains to the given layout.
+ * Tracers of structures embedding {@link NodeIO nodes} in
+ * their chunks leave the references within the nodes to
+ * {@link NodeIO#traceNode(java.nio.ByteBuffer, int, ChunkLayout)}.
+ *
+ * @since 0.2
+ * @see History#newChunkTracer(NodeIO)
+ * @see ArcStack#newChunkTracer(NodeIO)
+ */
+public interface ChunkTracer {
+
+	/**
+	 * Describe a chunk.
+	 *
+	 * @param stage
+	 * 	stage holding the chunk
+	 * @param chunkID
+	 * 	ID of the chunk to describe
+	 * @param layout
+	 * 	collector to report the size and
+	 * 	references of the chunk to
+	 * @since 0.2
+	 */
+	void trace(Stage stage, long chunkID, ChunkLayout layout);
+
+}
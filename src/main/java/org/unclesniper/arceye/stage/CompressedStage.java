@@ -0,0 +1,361 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Stage compressing chunks transparently.
+ *
+ * Wraps a backing {@link StageFile}, to which each chunk
+ * is written as a <i>frame</i>: an eight-byte header
+ * holding the uncompressed length of the chunk and the
+ * length of the stored bytes, followed by the bytes
+ * {@link ChunkCodec#encode encoded} by the
+ * {@link #getCodec() codec}. If encoding does not make a
+ * chunk smaller, it is stored verbatim instead (which is
+ * indicated by a negative stored length). The chunk ID of
+ * a chunk is the offset of its frame in the backing stage.
+ * <p>
+ * Since a chunk can only be decoded as a whole, reads
+ * must start at a chunk ID, and may read up to as many
+ * bytes as the chunk had before encoding; reading fewer
+ * yields a prefix of the chunk. Unlike with
+ * <tt>StageFile</tt>, reading from offsets other than
+ * chunk IDs is <b>not</b> supported, and will typically
+ * fail with a {@link MalformedChunkException}. Structures
+ * reading their chunks in parts (such as {@link History},
+ * {@link ArcStack} and the chunks written by
+ * {@link AbstractNodeIO}) can thus not be kept in a
+ * compressed stage.
+ * <p>
+ * Encoding happens before the chunk is handed to the
+ * backing stage, so no lock of the backing stage is held
+ * while compressing; the backing stage only ever sees the
+ * final append. If an executor is given,
+ * {@link #writeChunks(ByteBuffer[]) batches} are encoded
+ * on its threads in parallel before being appended
+ * together. Apart from the above, the semantics of all
+ * operations are those of the respective operations of
+ * <tt>StageFile</tt>.
+ *
+ * @since 0.2
+ */
+public final class CompressedStage implements Stage {
+
+	/**
+	 * Size of the frame header.
+	 *
+	 * @since 0.2
+	 */
+	public static final int FRAME_HEADER_SIZE = 8;
+
+	private final StageFile backing;
+
+	private final ChunkCodec codec;
+
+	private final Executor executor;
+
+	/**
+	 * Wrap a stage file, compressing with the given codec.
+	 *
+	 * @param backing
+	 * 	stage to store frames in; must not be <tt>null</tt>
+	 * @param codec
+	 * 	codec to encode chunks with, or <tt>null</tt>
+	 * 	to use a {@link DeflateChunkCodec}
+	 * @param executor
+	 * 	executor to encode batches on, or <tt>null</tt>
+	 * 	to encode on the calling thread
+	 * @throws NullPointerException
+	 * 	if <tt>backing</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public CompressedStage(StageFile backing, ChunkCodec codec, Executor executor) {
+		if(backing == null)
+			throw new NullPointerException();
+		this.backing = backing;
+		this.codec = codec == null ? new DeflateChunkCodec() : codec;
+		this.executor = executor;
+	}
+
+	/**
+	 * Wrap a stage file, compressing with deflate.
+	 *
+	 * @param backing
+	 * 	stage to store frames in; must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>backing</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public CompressedStage(StageFile backing) {
+		this(backing, null, null);
+	}
+
+	/**
+	 * Retrieve the backing stage.
+	 *
+	 * @return
+	 * 	the stage holding the frames
+	 * @since 0.2
+	 */
+	public StageFile getBacking() {
+		return backing;
+	}
+
+	/**
+	 * Retrieve the buffer pool of the backing stage.
+	 *
+	 * @return
+	 * 	the pool of {@link #getBacking() the backing stage}
+	 * @since 0.2
+	 */
+	public BufferPool getBufferPool() {
+		return backing.getBufferPool();
+	}
+
+	/**
+	 * Retrieve the codec.
+	 *
+	 * @return
+	 * 	the codec used to encode chunks
+	 * @since 0.2
+	 */
+	public ChunkCodec getCodec() {
+		return codec;
+	}
+
+	private ByteBuffer encodeFrame(ByteBuffer source) {
+		int rawLength = source.remaining();
+		ByteBuffer frame = ByteBuffer.allocate(CompressedStage.FRAME_HEADER_SIZE
+				+ Math.max(rawLength, codec.getMaxEncodedLength(rawLength)));
+		frame.position(CompressedStage.FRAME_HEADER_SIZE);
+		codec.encode(source.duplicate(), frame);
+		int storedLength = frame.position() - CompressedStage.FRAME_HEADER_SIZE;
+		if(storedLength >= rawLength) {
+			frame.position(CompressedStage.FRAME_HEADER_SIZE);
+			frame.put(source.duplicate());
+			storedLength = -1;
+		}
+		source.position(source.limit());
+		frame.flip();
+		frame.putInt(0, rawLength);
+		frame.putInt(4, storedLength);
+		return frame;
+	}
+
+	/**
+	 * Write a chunk of data to the stage.
+	 *
+	 * See {@link StageFile#writeChunk(ByteBuffer)}. The
+	 * chunk is encoded on the calling thread and then
+	 * appended to the backing stage as a single frame.
+	 *
+	 * @param buffer
+	 * 	source buffer from which bytes to be written
+	 * 	are drawn
+	 * @return
+	 * 	resulting chunk ID of the chunk written
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws ChunkWriteIOException
+	 * 	if the underlying channel write fails
+	 * 	with an {@link IOException}
+	 * @since 0.2
+	 */
+	public long writeChunk(ByteBuffer buffer) {
+		return backing.writeChunk(encodeFrame(buffer));
+	}
+
+	/**
+	 * Write several chunks of data to the stage at once.
+	 *
+	 * See {@link StageFile#writeChunks(ByteBuffer[])}.
+	 * The chunks are encoded (in parallel, if an executor
+	 * was given) and then appended to the backing stage
+	 * together.
+	 *
+	 * @param buffers
+	 * 	source buffers from which the bytes of the
+	 * 	individual chunks are drawn
+	 * @return
+	 * 	the chunk IDs of the written chunks, in the
+	 * 	order of the <tt>buffers</tt>
+	 * @since 0.2
+	 */
+	public long[] writeChunks(ByteBuffer... buffers) {
+		ByteBuffer[] frames = new ByteBuffer[buffers.length];
+		if(executor == null || buffers.length < 2) {
+			for(int i = 0; i < buffers.length; ++i)
+				frames[i] = encodeFrame(buffers[i]);
+		}
+		else {
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			CompletableFuture<ByteBuffer>[] futures = new CompletableFuture[buffers.length];
+			for(int i = 0; i < buffers.length; ++i) {
+				ByteBuffer buffer = buffers[i];
+				if(buffer == null)
+					throw new NullPointerException();
+				futures[i] = CompletableFuture.supplyAsync(() -> encodeFrame(buffer), executor);
+			}
+			try {
+				for(int i = 0; i < futures.length; ++i)
+					frames[i] = futures[i].join();
+			}
+			catch(CompletionException ce) {
+				Throwable cause = ce.getCause();
+				if(cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if(cause instanceof Error)
+					throw (Error)cause;
+				throw ce;
+			}
+		}
+		return backing.writeChunks(frames);
+	}
+
+	private int checkHeader(ByteBuffer header, long chunkID, int wanted) {
+		int rawLength = header.getInt(0);
+		int storedLength = header.getInt(4);
+		if(rawLength < 0 || storedLength < -1)
+			throw new MalformedChunkException(backing.getPath(), chunkID, "Invalid frame header");
+		if(wanted > rawLength)
+			throw new ChunkOffsetOutOfRangeException(backing.getPath(), chunkID + rawLength);
+		return storedLength < 0 ? rawLength : storedLength;
+	}
+
+	private void decodeFrame(ByteBuffer header, ByteBuffer stored, ByteBuffer buffer, long chunkID) {
+		int rawLength = header.getInt(0);
+		boolean verbatim = header.getInt(4) < 0;
+		int wanted = buffer.remaining();
+		if(verbatim) {
+			stored.limit(stored.position() + wanted);
+			buffer.put(stored);
+			return;
+		}
+		ByteBuffer target;
+		if(wanted == rawLength) {
+			target = buffer.slice();
+			buffer.position(buffer.limit());
+		}
+		else
+			target = ByteBuffer.allocate(rawLength);
+		try {
+			codec.decode(stored, target);
+		}
+		catch(IllegalArgumentException iae) {
+			throw new MalformedChunkException(backing.getPath(), chunkID, iae.getMessage());
+		}
+		if(wanted != rawLength) {
+			target.flip();
+			target.limit(wanted);
+			buffer.put(target);
+		}
+	}
+
+	/**
+	 * Read a chunk of data from the stage.
+	 *
+	 * See {@link StageFile#readChunk(ByteBuffer, long)}.
+	 * Fills the <tt>buffer</tt> with the first bytes of
+	 * the chunk, which requires reading the frame header
+	 * and then the stored bytes from the backing stage.
+	 *
+	 * @param buffer
+	 * 	destination buffer into which read bytes
+	 * 	are placed
+	 * @param chunkID
+	 * 	chunk ID from which to read
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the chunk ID is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if the chunk is shorter than requested,
+	 * 	or lies beyond the end of the backing stage
+	 * @throws MalformedChunkException
+	 * 	if the chunk ID does not refer to a frame
+	 * @throws ChunkReadIOException
+	 * 	if the underlying channel read fails with
+	 * 	an {@link IOException}
+	 * @since 0.2
+	 */
+	public void readChunk(ByteBuffer buffer, long chunkID) {
+		if(buffer.remaining() == 0)
+			return;
+		ByteBuffer header = ByteBuffer.allocate(CompressedStage.FRAME_HEADER_SIZE);
+		backing.readChunk(header, chunkID);
+		int storedLength = checkHeader(header, chunkID, buffer.remaining());
+		if(header.getInt(4) < 0) {
+			backing.readChunk(buffer, chunkID + CompressedStage.FRAME_HEADER_SIZE);
+			return;
+		}
+		ByteBuffer stored = ByteBuffer.allocate(storedLength);
+		backing.readChunk(stored, chunkID + CompressedStage.FRAME_HEADER_SIZE);
+		stored.flip();
+		decodeFrame(header, stored, buffer, chunkID);
+	}
+
+	/**
+	 * Read several chunks of data from the stage at once.
+	 *
+	 * See {@link StageFile#readChunks(long[], ByteBuffer[])}.
+	 * All frame headers are read in one batch, and then all
+	 * stored bytes are read in another.
+	 *
+	 * @param chunkIDs
+	 * 	chunk IDs from which to read
+	 * @param buffers
+	 * 	destination buffers, one per chunk ID
+	 * @since 0.2
+	 */
+	public void readChunks(long[] chunkIDs, ByteBuffer[] buffers) {
+		if(chunkIDs.length != buffers.length)
+			throw new IllegalArgumentException("Number of chunk IDs (" + chunkIDs.length
+					+ ") does not match number of buffers (" + buffers.length + ")");
+		ByteBuffer[] headers = new ByteBuffer[chunkIDs.length];
+		for(int i = 0; i < headers.length; ++i)
+			headers[i] = ByteBuffer.allocate(CompressedStage.FRAME_HEADER_SIZE);
+		backing.readChunks(chunkIDs, headers);
+		long[] offsets = new long[chunkIDs.length];
+		ByteBuffer[] stored = new ByteBuffer[chunkIDs.length];
+		for(int i = 0; i < chunkIDs.length; ++i) {
+			offsets[i] = chunkIDs[i] + CompressedStage.FRAME_HEADER_SIZE;
+			stored[i] = ByteBuffer.allocate(checkHeader(headers[i], chunkIDs[i], buffers[i].remaining()));
+		}
+		backing.readChunks(offsets, stored);
+		for(int i = 0; i < chunkIDs.length; ++i) {
+			stored[i].flip();
+			if(buffers[i].remaining() > 0)
+				decodeFrame(headers[i], stored[i], buffers[i], chunkIDs[i]);
+		}
+	}
+
+	/**
+	 * Flush the backing stage.
+	 *
+	 * See {@link StageFile#sync()}.
+	 *
+	 * @since 0.2
+	 */
+	public void sync() {
+		backing.sync();
+	}
+
+	/**
+	 * Close the backing stage.
+	 *
+	 * See {@link StageFile#close()}.
+	 *
+	 * @throws IOException
+	 * 	if an I/O error occurs when attempting
+	 * 	to close the file
+	 * @since 0.2
+	 */
+	public void close() throws IOException {
+		backing.close();
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+/**
+ * Chunk codec based on {@link Deflater}.
+ *
+ * Uses raw deflate streams (without zlib header and
+ * checksum), as the framing of {@link CompressedStage}
+ * already records the lengths involved. Each thread
+ * keeps its own <tt>Deflater</tt> and <tt>Inflater</tt>
+ * per codec, which are reset rather than reallocated.
+ *
+ * @since 0.2
+ */
+public class DeflateChunkCodec implements ChunkCodec {
+
+	private final int level;
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * Construct a codec using the default compression level.
+	 *
+	 * @since 0.2
+	 */
+	public DeflateChunkCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Construct a codec using the given compression level.
+	 *
+	 * @param level
+	 * 	compression level as per {@link Deflater#setLevel(int)}
+	 * @throws IllegalArgumentException
+	 * 	if the compression level is invalid
+	 * @since 0.2
+	 */
+	public DeflateChunkCodec(int level) {
+		if((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		this.level = level;
+		deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+	}
+
+	/**
+	 * Retrieve the compression level.
+	 *
+	 * @return
+	 * 	the compression level
+	 * @since 0.2
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public int getMaxEncodedLength(int rawLength) {
+		// stored blocks: 5 bytes of overhead per 16 KiB, plus slack
+		return rawLength + (rawLength >> 12) + (rawLength >> 14) + 16;
+	}
+
+	public void encode(ByteBuffer source, ByteBuffer target) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(source);
+		deflater.finish();
+		while(!deflater.finished()) {
+			if(deflater.deflate(target) == 0 && target.remaining() == 0)
+				throw new IllegalStateException("Deflated chunk exceeds maximum encoded length");
+		}
+	}
+
+	public void decode(ByteBuffer source, ByteBuffer target) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(source);
+		try {
+			while(target.remaining() > 0) {
+				if(inflater.inflate(target) == 0 && (inflater.finished() || inflater.needsInput()))
+					throw new IllegalArgumentException("Deflated chunk is shorter than recorded");
+			}
+		}
+		catch(DataFormatException dfe) {
+			throw new IllegalArgumentException("Malformed deflated chunk: " + dfe.getMessage(), dfe);
+		}
+	}
+
+}
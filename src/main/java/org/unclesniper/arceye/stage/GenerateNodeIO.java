@@ -0,0 +1,52 @@
+package org.unclesniper.arceye.stage;
+
+import java.lang.annotation.Target;
+import java.lang.annotation.Retention;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Request a generated {@link NodeIO} for a record or class.
+ *
+ * Processed at compile time by the annotation processor of
+ * the <tt>codegen</tt> module
+ * (<tt>org.unclesniper.arceye.stage.codegen.NodeIOProcessor</tt>),
+ * which emits a final codec class alongside the annotated type,
+ * named after it with a <tt>NodeIO</tt> suffix unless
+ * {@link #name() named explicitly}. The codec extends
+ * {@link AbstractNodeIO}, exposes a <tt>NODE_SIZE</tt> constant
+ * and a shared <tt>INSTANCE</tt>, and encodes the components in
+ * declaration order at constant offsets, using absolute
+ * <tt>ByteBuffer</tt> accesses and a single bounds check per node.
+ * <p>
+ * Components must be of primitive types. For a record, these
+ * are its record components, read via their accessors and
+ * passed to its canonical constructor. For a class, these are
+ * its non-<tt>static</tt>, non-<tt>transient</tt> fields,
+ * including those inherited from superclasses (which come
+ * first), which must be neither <tt>private</tt> nor
+ * <tt>final</tt>, must be <tt>public</tt> if declared in
+ * another package, and must not hide one another; the class
+ * must have a non-<tt>private</tt> constructor without
+ * parameters.
+ * In either case, the type must not be <tt>private</tt> or
+ * abstract, nor be an inner class. Violations are reported as
+ * compilation errors.
+ *
+ * @since 0.2
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+public @interface GenerateNodeIO {
+
+	/**
+	 * Simple name of the generated codec class.
+	 *
+	 * @return
+	 * 	the name of the codec class, or an empty
+	 * 	string to derive it from the annotated type
+	 * @since 0.2
+	 */
+	String name() default "";
+
+}
@@ -1,8 +1,13 @@
 package org.unclesniper.arceye.stage;
 
+import java.util.Set;
 import java.util.List;
+import java.util.ArrayList;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.LinkedList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 
 /*   [s0]
  * forward:
@@ -44,8 +49,6 @@ public class History<StateT> {
 
 		}
 
-		public static int STATIC_PART_BUFFER_SIZE = 16;
-
 		private final History<StateT> history;
 
 		private long id;
@@ -54,6 +57,8 @@ public class History<StateT> {
 
 		private StateT state;
 
+		private byte[] encodedState;
+
 		private long previousID;
 
 		private Snapshot<StateT> previous;
@@ -89,6 +94,10 @@ public class History<StateT> {
 		}
 
 		public StateT getState() {
+			if(encodedState != null) {
+				state = history.stateIO.readNode(ByteBuffer.wrap(encodedState));
+				encodedState = null;
+			}
 			return state;
 		}
 
@@ -108,26 +117,58 @@ public class History<StateT> {
 			return nextLinks == null ? 0 : nextLinks.size();
 		}
 
-		private ByteBuffer getSaveBuffer() {
-			ByteBuffer buffer = history.ioBuffer;
-			int haveSize = buffer == null ? 0 : buffer.capacity();
-			int wantSize = Snapshot.STATIC_PART_BUFFER_SIZE + getNextLinkCount() * 8 + 4
-					+ history.stateIO.getNodeBufferSize();
-			if(haveSize < wantSize)
-				history.ioBuffer = buffer = ByteBuffer.allocate(wantSize);
-			return buffer;
+		private int getSaveBufferSize() {
+			return History.HEADER_SIZE + getNextLinkCount() * 8
+					+ (encodedState == null ? history.stateIO.getNodeSize(state) : encodedState.length);
+		}
+
+		private long getChunkSize() {
+			return history.stage.getFrameOverhead() + getSaveBufferSize();
+		}
+
+		// the sizes mirror the recursion of the respective save methods
+
+		private long getBackwardSaveSize() {
+			long size = 0l;
+			for(Snapshot<StateT> node = this; node != null && node.id < 0l;
+					node = node.stratum > 0l && node.previousID < 0l ? node.previous : null)
+				size += node.getChunkSize();
+			return size;
+		}
+
+		private long getForwardSaveSize() {
+			if(id >= 0l)
+				return 0l;
+			long size = getChunkSize();
+			if(nextLinks != null) {
+				for(NextLink<StateT> link : nextLinks) {
+					if(link.nextID < 0l && link.next != null)
+						size += link.next.getForwardSaveSize();
+				}
+			}
+			return size;
 		}
 
-		private void saveThisNode(Snapshot<StateT> skipForward, boolean backward, StageFile stage) {
+		private long getSaveAllSize() {
+			if(id >= 0l)
+				return 0l;
+			long size = getForwardSaveSize();
+			if(stratum > 0l && previousID < 0l)
+				size += previous.getBackwardSaveSize();
+			return size;
+		}
+
+		private void saveThisNode(Snapshot<StateT> skipForward, boolean backward, Stage stage) {
 			if(id >= 0l)
 				return;
-			ByteBuffer buffer = getSaveBuffer();
-			synchronized(buffer) {
-				buffer.clear();
+			SaveBatch<StateT> batch = stage == null ? history.saveBatch : null;
+			if(stage == null)
+				stage = history.stage;
+			ByteBuffer buffer = stage.getBufferPool().acquire(getSaveBufferSize());
+			try {
 				buffer.putLong(stratum).putLong(backward ? previousID : -1l);
-				history.stateIO.writeNode(state, buffer);
+				buffer.putInt(getNextLinkCount()).putInt(0);
 				if(nextLinks != null) {
-					buffer.putInt(nextLinks.size());
 					for(NextLink<StateT> link : nextLinks) {
 						if(skipForward != null && link.next == skipForward)
 							buffer.putLong(-1l);
@@ -135,32 +176,46 @@ public class History<StateT> {
 							buffer.putLong(link.nextID);
 					}
 				}
+				int stateStart = buffer.position();
+				if(encodedState == null)
+					history.stateIO.writeNode(state, buffer);
 				else
-					buffer.putInt(0);
+					buffer.put(encodedState);
+				buffer.putInt(History.STATE_SIZE_OFFSET, buffer.position() - stateStart);
 				buffer.flip();
-				id = (stage != null ? stage : history.stage).writeChunk(buffer);
+				if(batch == null)
+					id = stage.writeChunk(buffer);
+				else
+					batch.save(this, buffer);
+			}
+			finally {
+				stage.getBufferPool().release(buffer);
 			}
 		}
 
+		// called with a save batch open, which detaches snapshots only once committed
+
 		private long saveBackward(long minCachedStratum, Snapshot<StateT> skipForward) {
+			SaveBatch<StateT> batch = history.saveBatch;
 			if(id < 0l) {
 				if(stratum > 0l && previousID < 0l)
-					previousID = previous.saveBackward(minCachedStratum, this);
+					batch.linkBackward(this, previous.saveBackward(minCachedStratum, this));
 				saveThisNode(skipForward, true, null);
 			}
 			if(stratum == minCachedStratum)
-				previous = null;
+				batch.detachBackward(this);
 			return id;
 		}
 
 		private long saveForward(long maxCachedStratum) {
+			SaveBatch<StateT> batch = history.saveBatch;
 			if(id < 0l) {
 				if(nextLinks != null) {
 					for(NextLink<StateT> link : nextLinks) {
 						if(link.nextID < 0l && link.next != null) {
-							link.nextID = link.next.saveForward(maxCachedStratum);
+							batch.linkForward(link, link.next.saveForward(maxCachedStratum));
 							if(stratum == maxCachedStratum)
-								link.next = null;
+								batch.detachForward(link);
 						}
 					}
 				}
@@ -176,23 +231,26 @@ public class History<StateT> {
 			long minCachedStratum = stratum - stratumDelta;
 			if(minCachedStratum < 0l)
 				minCachedStratum = 0l;
-			if(stratum > 0l && previousID < 0l)
-				previousID = previous.saveBackward(minCachedStratum, this);
-			if(stratum == minCachedStratum)
-				previous = null;
 			long maxCachedStratum = stratum + stratumDelta;
 			if(maxCachedStratum < 0l)
 				maxCachedStratum = Long.MAX_VALUE;
-			if(nextLinks != null) {
-				for(NextLink<StateT> link : nextLinks) {
-					if(link.nextID < 0l && link.next != null) {
-						link.nextID = link.next.saveForward(maxCachedStratum);
-						if(stratum == maxCachedStratum)
-							link.next = null;
+			try(SaveBatch<StateT> batch = history.beginSave(getSaveAllSize())) {
+				if(stratum > 0l && previousID < 0l)
+					batch.linkBackward(this, previous.saveBackward(minCachedStratum, this));
+				if(stratum == minCachedStratum)
+					batch.detachBackward(this);
+				if(nextLinks != null) {
+					for(NextLink<StateT> link : nextLinks) {
+						if(link.nextID < 0l && link.next != null) {
+							batch.linkForward(link, link.next.saveForward(maxCachedStratum));
+							if(stratum == maxCachedStratum)
+								batch.detachForward(link);
+						}
 					}
 				}
+				saveThisNode(null, true, null);
+				batch.commit();
 			}
-			saveThisNode(null, true, null);
 		}
 
 		public void liftAll() {
@@ -210,9 +268,8 @@ public class History<StateT> {
 
 		private void liftForward() {
 			if(nextLinks != null) {
+				history.loadNextLinks(nextLinks);
 				for(NextLink<StateT> link : nextLinks) {
-					if(link.next == null && link.nextID >= 0l)
-						link.next = history.loadSnapshot(link.nextID, -1l, null);
 					if(link.next != null)
 						link.next.liftForward();
 				}
@@ -222,11 +279,11 @@ public class History<StateT> {
 
 		private void updateCacheLevel() {
 			long stratumDelta = (long)history.maxCachedStrata;
-			// update backward
+			// find backward
 			long minCachedStratum = stratum - stratumDelta;
 			if(minCachedStratum < 0l)
 				minCachedStratum = 0l;
-			Snapshot<StateT> node = this, prev = null;
+			Snapshot<StateT> node = this, prev = null, backward = null;
 			for(;;) {
 				if(node.stratum > minCachedStratum) {
 					if(node.previous == null)
@@ -236,45 +293,56 @@ public class History<StateT> {
 				}
 				else {
 					if(node.previous != null)
-						node.saveBackward(minCachedStratum, prev);
+						backward = node;
 					break;
 				}
 			}
-			// update forward
+			// find forward
 			long maxCachedStratum = stratum + stratumDelta;
 			if(maxCachedStratum < 0l)
 				maxCachedStratum = Long.MAX_VALUE;
-			updateCacheLevelForward(maxCachedStratum);
+			List<NextLink<StateT>> forward = new ArrayList<NextLink<StateT>>();
+			findCacheLevelForward(maxCachedStratum, forward);
+			// save both in one batch
+			long size = backward == null ? 0l : backward.getBackwardSaveSize();
+			for(NextLink<StateT> link : forward)
+				size += link.next.getForwardSaveSize();
+			try(SaveBatch<StateT> batch = history.beginSave(size)) {
+				if(backward != null)
+					backward.saveBackward(minCachedStratum, prev);
+				for(NextLink<StateT> link : forward) {
+					long nextID = link.next.saveForward(maxCachedStratum);
+					if(nextID != link.nextID)
+						batch.linkForward(link, nextID);
+					batch.detachForward(link);
+				}
+				batch.commit();
+			}
 		}
 
-		private void updateCacheLevelForward(long maxCachedStratum) {
+		private void findCacheLevelForward(long maxCachedStratum, List<NextLink<StateT>> forward) {
 			if(nextLinks == null)
 				return;
 			if(stratum >= maxCachedStratum) {
 				for(NextLink<StateT> link : nextLinks) {
-					if(link.next != null) {
-						link.nextID = link.next.saveForward(maxCachedStratum);
-						link.next = null;
-					}
+					if(link.next != null)
+						forward.add(link);
 				}
 			}
 			else {
+				history.loadNextLinks(nextLinks);
 				for(NextLink<StateT> link : nextLinks) {
-					if(link.next == null) {
-						if(link.nextID < 0l)
-							continue;
-						link.next = history.loadSnapshot(link.nextID, -1l, null);
-					}
-					link.next.updateCacheLevelForward(maxCachedStratum);
+					if(link.next != null)
+						link.next.findCacheLevelForward(maxCachedStratum, forward);
 				}
 			}
 		}
 
-		private Snapshot<StateT> mapToStage(StageFile stage) {
+		private Snapshot<StateT> mapToStage(Stage stage) {
 			return mapToStageBackward(stage, null);
 		}
 
-		private Snapshot<StateT> mapToStageBackward(StageFile stage, Snapshot<StateT> skipForward) {
+		private Snapshot<StateT> mapToStageBackward(Stage stage, Snapshot<StateT> skipForward) {
 			// map backward
 			long newPreviousID;
 			Snapshot<StateT> newPrevious;
@@ -296,21 +364,23 @@ public class History<StateT> {
 			// map forward
 			List<NextLink<StateT>> newNextLinks = mapNextLinksToStage(stage, skipForward);
 			Snapshot<StateT> newSnapshot = new Snapshot<>(history, -1l, stratum, state, newPreviousID);
+			newSnapshot.encodedState = encodedState;
 			newSnapshot.previous = newPrevious;
 			newSnapshot.nextLinks = newNextLinks;
 			newSnapshot.saveThisNode(null, true, stage);
 			return newSnapshot;
 		}
 
-		private Snapshot<StateT> mapToStageForward(StageFile stage) {
+		private Snapshot<StateT> mapToStageForward(Stage stage) {
 			List<NextLink<StateT>> newNextLinks = mapNextLinksToStage(stage, null);
 			Snapshot<StateT> newSnapshot = new Snapshot<>(history, -1l, stratum, state, -1l);
+			newSnapshot.encodedState = encodedState;
 			newSnapshot.nextLinks = newNextLinks;
 			newSnapshot.saveThisNode(null, false, stage);
 			return newSnapshot;
 		}
 
-		private List<NextLink<StateT>> mapNextLinksToStage(StageFile stage, Snapshot<StateT> skipForward) {
+		private List<NextLink<StateT>> mapNextLinksToStage(Stage stage, Snapshot<StateT> skipForward) {
 			List<NextLink<StateT>> newNextLinks;
 			if(nextLinks == null || nextLinks.isEmpty())
 				newNextLinks = null;
@@ -348,6 +418,18 @@ public class History<StateT> {
 			return newNextLinks;
 		}
 
+		private void restoreElidedLink(Snapshot<StateT> next) {
+			if(nextLinks == null)
+				return;
+			for(NextLink<StateT> link : nextLinks) {
+				if(link.next == null && link.nextID < 0l) {
+					link.nextID = next.id;
+					link.next = next;
+					return;
+				}
+			}
+		}
+
 		public void reinstate() {
 			long hs = history.currentState.stratum;
 			if(hs == stratum)
@@ -362,13 +444,153 @@ public class History<StateT> {
 
 	}
 
+	private static final class SnapshotTracer implements ChunkTracer {
+
+		private final NodeIO<?> stateIO;
+
+		SnapshotTracer(NodeIO<?> stateIO) {
+			this.stateIO = stateIO;
+		}
+
+		public void trace(Stage stage, long chunkID, ChunkLayout layout) {
+			BufferPool pool = stage.getBufferPool();
+			ByteBuffer header = pool.acquire(History.HEADER_SIZE);
+			ByteBuffer body = null;
+			try {
+				stage.readChunk(header, chunkID);
+				int linkCount = header.getInt(History.LINK_COUNT_OFFSET);
+				int stateSize = header.getInt(History.STATE_SIZE_OFFSET);
+				History.checkHeader(chunkID, linkCount, stateSize);
+				layout.setSize(History.HEADER_SIZE + linkCount * 8 + stateSize);
+				layout.addReference(8, header.getLong(8), this);
+				boolean traceState = stateSize > 0 && stateIO.hasReferences();
+				if(linkCount == 0 && !traceState)
+					return;
+				body = pool.acquire(linkCount * 8 + (traceState ? stateSize : 0));
+				stage.readChunk(body, chunkID + History.HEADER_SIZE);
+				for(int i = 0; i < linkCount; ++i)
+					layout.addReference(History.HEADER_SIZE + i * 8, body.getLong(i * 8), this);
+				if(traceState) {
+					body.position(linkCount * 8);
+					stateIO.traceNode(body, History.HEADER_SIZE + linkCount * 8, layout);
+				}
+			}
+			finally {
+				pool.release(header);
+				pool.release(body);
+			}
+		}
+
+	}
+
+	/**
+	 * Snapshots saved together.
+	 *
+	 * Snapshots are added to one
+	 * {@link Stage#beginTransaction(long) transaction},
+	 * which is begun once the first snapshot is saved.
+	 * Their chunk IDs (and the links referring to them)
+	 * are filled in right away, so that snapshots saved
+	 * later can refer to them, but are reset unless the
+	 * batch is {@link #commit() committed}; likewise, the
+	 * cached snapshots to be detached in the course of the
+	 * save are only detached once the batch is committed,
+	 * so a failed save leaves the history as it was.
+	 */
+	private static final class SaveBatch<StateT> implements AutoCloseable {
+
+		private final History<StateT> history;
+
+		private final long capacity;
+
+		private StageTransaction transaction;
+
+		private final List<Runnable> rollback = new ArrayList<Runnable>();
+
+		private final List<Snapshot<StateT>> backwardDetached = new ArrayList<Snapshot<StateT>>();
+
+		private final List<Snapshot.NextLink<StateT>> forwardDetached
+				= new ArrayList<Snapshot.NextLink<StateT>>();
+
+		private boolean committed;
+
+		SaveBatch(History<StateT> history, long capacity) {
+			this.history = history;
+			this.capacity = capacity;
+		}
+
+		void save(Snapshot<StateT> snapshot, ByteBuffer buffer) {
+			if(transaction == null)
+				transaction = history.stage.beginTransaction(Math.max(capacity,
+						history.stage.getFrameOverhead() + (long)buffer.remaining()));
+			snapshot.id = transaction.add(buffer);
+			rollback.add(() -> snapshot.id = -1l);
+		}
+
+		void linkBackward(Snapshot<StateT> snapshot, long previousID) {
+			long oldID = snapshot.previousID;
+			snapshot.previousID = previousID;
+			rollback.add(() -> snapshot.previousID = oldID);
+		}
+
+		void linkForward(Snapshot.NextLink<StateT> link, long nextID) {
+			long oldID = link.nextID;
+			link.nextID = nextID;
+			rollback.add(() -> link.nextID = oldID);
+		}
+
+		void detachBackward(Snapshot<StateT> snapshot) {
+			backwardDetached.add(snapshot);
+		}
+
+		void detachForward(Snapshot.NextLink<StateT> link) {
+			forwardDetached.add(link);
+		}
+
+		void commit() {
+			if(transaction != null)
+				transaction.commit();
+			committed = true;
+			for(Snapshot<StateT> snapshot : backwardDetached)
+				snapshot.previous = null;
+			for(Snapshot.NextLink<StateT> link : forwardDetached)
+				link.next = null;
+		}
+
+		/**
+		 * End the batch, rolling it back unless it has been committed.
+		 *
+		 * Aborts the transaction if it is still open, such
+		 * as when saving a snapshot has failed, so that the
+		 * original exception is not masked by a commit.
+		 */
+		public void close() {
+			history.saveBatch = null;
+			if(committed)
+				return;
+			try {
+				if(transaction != null)
+					transaction.close();
+			}
+			finally {
+				for(int i = rollback.size() - 1; i >= 0; --i)
+					rollback.get(i).run();
+			}
+		}
+
+	}
+
 	public static final int DEFAULT_MAX_CACHED_STRATA = 1;
 
-	private StageFile stage;
+	private static final int LINK_COUNT_OFFSET = 16;
 
-	private NodeIO<StateT> stateIO;
+	private static final int STATE_SIZE_OFFSET = 20;
+
+	private static final int HEADER_SIZE = 24;
 
-	private ByteBuffer ioBuffer;
+	private Stage stage;
+
+	private NodeIO<StateT> stateIO;
 
 	private int maxCachedStrata = History.DEFAULT_MAX_CACHED_STRATA;
 
@@ -378,7 +600,11 @@ public class History<StateT> {
 
 	private int backwardTail;
 
-	public History(StateT initialState, StageFile stage, NodeIO<StateT> stateIO) {
+	private SaveBatch<StateT> saveBatch;
+
+	private boolean lazyDecoding;
+
+	public History(StateT initialState, Stage stage, NodeIO<StateT> stateIO) {
 		this.stage = stage;
 		this.stateIO = stateIO;
 		currentState = new Snapshot<StateT>(this, initialState);
@@ -388,7 +614,7 @@ public class History<StateT> {
 		this(initialState, null, null);
 	}
 
-	public History(StageFile stage, NodeIO<StateT> stateIO, long rootID, int maxCachedStrata, boolean attach) {
+	public History(Stage stage, NodeIO<StateT> stateIO, long rootID, int maxCachedStrata, boolean attach) {
 		this.stage = stage;
 		this.stateIO = stateIO;
 		this.maxCachedStrata = maxCachedStrata < 0 ? History.DEFAULT_MAX_CACHED_STRATA : maxCachedStrata;
@@ -399,23 +625,23 @@ public class History<StateT> {
 			setStage(null);
 	}
 
-	public History(StageFile stage, NodeIO<StateT> stateIO, long rootID, int maxCachedStrata) {
+	public History(Stage stage, NodeIO<StateT> stateIO, long rootID, int maxCachedStrata) {
 		this(stage, stateIO, rootID, maxCachedStrata, true);
 	}
 
-	public History(StageFile stage, NodeIO<StateT> stateIO, long rootID, boolean attach) {
+	public History(Stage stage, NodeIO<StateT> stateIO, long rootID, boolean attach) {
 		this(stage, stateIO, rootID, -1, attach);
 	}
 
-	public History(StageFile stage, NodeIO<StateT> stateIO, long rootID) {
+	public History(Stage stage, NodeIO<StateT> stateIO, long rootID) {
 		this(stage, stateIO, rootID, -1, true);
 	}
 
-	public final StageFile getStage() {
+	public final Stage getStage() {
 		return stage;
 	}
 
-	public final void setStage(StageFile stage) {
+	public final void setStage(Stage stage) {
 		if(stage == this.stage)
 			return;
 		if(stateIO != null) {
@@ -432,6 +658,22 @@ public class History<StateT> {
 		this.stage = stage;
 	}
 
+	private SaveBatch<StateT> beginSave(long capacity) {
+		if(saveBatch != null)
+			throw new IllegalStateException("Snapshots are already being saved");
+		saveBatch = new SaveBatch<StateT>(this, capacity);
+		return saveBatch;
+	}
+
+	private SaveBatch<StateT> beginNextLinksSave(Snapshot.NextLink<StateT> skip) {
+		long size = 0l;
+		for(Snapshot.NextLink<StateT> link : currentState.nextLinks) {
+			if(link != skip && link.nextID < 0l && link.next != null)
+				size += link.next.getForwardSaveSize();
+		}
+		return beginSave(size);
+	}
+
 	private void saveAll() {
 		currentState.saveAll();
 		if(forwardTail > maxCachedStrata)
@@ -445,6 +687,87 @@ public class History<StateT> {
 		forwardTail = backwardTail = -1;
 	}
 
+	public static ChunkTracer newChunkTracer(NodeIO<?> stateIO) {
+		if(stateIO == null)
+			throw new NullPointerException();
+		return new SnapshotTracer(stateIO);
+	}
+
+	private static void checkHeader(long id, int linkCount, int stateSize) {
+		if(linkCount < 0 || stateSize < 0
+				|| (long)linkCount * 8l + stateSize > Integer.MAX_VALUE - History.HEADER_SIZE)
+			throw new IllegalStateException("Malformed snapshot header in chunk " + id + ": " + linkCount
+					+ " next links, state of " + stateSize + " bytes");
+	}
+
+	private List<Snapshot<StateT>> getCachedSnapshots() {
+		List<Snapshot<StateT>> snapshots = new ArrayList<Snapshot<StateT>>();
+		Set<Snapshot<StateT>> seen = Collections.newSetFromMap(new IdentityHashMap<Snapshot<StateT>, Boolean>());
+		ArrayDeque<Snapshot<StateT>> pending = new ArrayDeque<Snapshot<StateT>>();
+		pending.add(currentState);
+		Snapshot<StateT> snapshot;
+		while((snapshot = pending.pollLast()) != null) {
+			if(!seen.add(snapshot))
+				continue;
+			snapshots.add(snapshot);
+			if(snapshot.previous != null)
+				pending.add(snapshot.previous);
+			if(snapshot.nextLinks != null) {
+				for(Snapshot.NextLink<StateT> link : snapshot.nextLinks) {
+					if(link.next != null)
+						pending.add(link.next);
+				}
+			}
+		}
+		return snapshots;
+	}
+
+	public final long[] getReferencedChunkIDs() {
+		List<Long> ids = new ArrayList<Long>();
+		for(Snapshot<StateT> snapshot : getCachedSnapshots()) {
+			if(snapshot.id >= 0l)
+				ids.add(snapshot.id);
+			if(snapshot.previousID >= 0l)
+				ids.add(snapshot.previousID);
+			if(snapshot.nextLinks != null) {
+				for(Snapshot.NextLink<StateT> link : snapshot.nextLinks) {
+					if(link.nextID >= 0l)
+						ids.add(link.nextID);
+				}
+			}
+		}
+		long[] result = new long[ids.size()];
+		for(int i = 0; i < result.length; ++i)
+			result[i] = ids.get(i);
+		return result;
+	}
+
+	private static void checkRelocatable(ChunkMapping mapping, long id) {
+		if(id >= 0l && !mapping.contains(id))
+			throw new IllegalArgumentException("Chunk " + id + " is missing from the chunk mapping");
+	}
+
+	public final void relocate(Stage stage, ChunkMapping mapping) {
+		List<Snapshot<StateT>> snapshots = getCachedSnapshots();
+		for(Snapshot<StateT> snapshot : snapshots) {
+			History.checkRelocatable(mapping, snapshot.id);
+			History.checkRelocatable(mapping, snapshot.previousID);
+			if(snapshot.nextLinks != null) {
+				for(Snapshot.NextLink<StateT> link : snapshot.nextLinks)
+					History.checkRelocatable(mapping, link.nextID);
+			}
+		}
+		for(Snapshot<StateT> snapshot : snapshots) {
+			snapshot.id = mapping.map(snapshot.id);
+			snapshot.previousID = mapping.map(snapshot.previousID);
+			if(snapshot.nextLinks != null) {
+				for(Snapshot.NextLink<StateT> link : snapshot.nextLinks)
+					link.nextID = mapping.map(link.nextID);
+			}
+		}
+		this.stage = stage;
+	}
+
 	public final NodeIO<StateT> getStateIO() {
 		return stateIO;
 	}
@@ -452,6 +775,10 @@ public class History<StateT> {
 	public final void setStateIO(NodeIO<StateT> stateIO) {
 		if(stateIO == this.stateIO)
 			return;
+		if(this.stateIO != null) {
+			for(Snapshot<StateT> snapshot : getCachedSnapshots())
+				snapshot.getState();
+		}
 		if(stage != null) {
 			if(this.stateIO == null) {
 				this.stateIO = stateIO;
@@ -464,6 +791,14 @@ public class History<StateT> {
 		this.stateIO = stateIO;
 	}
 
+	public final boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	public final void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
 	public final int getMaxCachedStrata() {
 		return maxCachedStrata;
 	}
@@ -492,53 +827,113 @@ public class History<StateT> {
 		return currentState.id;
 	}
 
-	private ByteBuffer getLoadBuffer() {
-		ByteBuffer buffer = ioBuffer;
-		int haveSize = buffer == null ? 0 : buffer.capacity();
-		int wantSize = Snapshot.STATIC_PART_BUFFER_SIZE + 4 + stateIO.getNodeBufferSize();
-		if(haveSize < wantSize)
-			ioBuffer = buffer = ByteBuffer.allocate(wantSize);
-		return buffer;
+	private Snapshot<StateT> loadSnapshot(long id, long elidedForwardID, Snapshot<StateT> elidedForward) {
+		return loadSnapshots(new long[] {id}, elidedForwardID, elidedForward).get(0);
 	}
 
-	private Snapshot<StateT> loadSnapshot(long id, long elidedForwardID, Snapshot<StateT> elidedForward) {
-		ByteBuffer buffer = getLoadBuffer();
-		synchronized(buffer) {
-			int nodeSize = stateIO.getNodeBufferSize();
-			int readsize = Snapshot.STATIC_PART_BUFFER_SIZE + 4 + nodeSize;
+	private void loadNextLinks(List<Snapshot.NextLink<StateT>> links) {
+		int count = 0;
+		for(Snapshot.NextLink<StateT> link : links) {
+			if(link.next == null && link.nextID >= 0l)
+				++count;
+		}
+		if(count == 0)
+			return;
+		long[] ids = new long[count];
+		int index = 0;
+		for(Snapshot.NextLink<StateT> link : links) {
+			if(link.next == null && link.nextID >= 0l)
+				ids[index++] = link.nextID;
+		}
+		List<Snapshot<StateT>> snapshots = loadSnapshots(ids, -1l, null);
+		index = 0;
+		for(Snapshot.NextLink<StateT> link : links) {
+			if(link.next == null && link.nextID >= 0l)
+				link.next = snapshots.get(index++);
+		}
+	}
+
+	private List<Snapshot<StateT>> loadSnapshots(long[] ids, long elidedForwardID, Snapshot<StateT> elidedForward) {
+		BufferPool pool = stage.getBufferPool();
+		ByteBuffer buffer = pool.acquire(ids.length * History.HEADER_SIZE);
+		ByteBuffer bodyBuffer = null;
+		try {
+			// read all headers in one batch
+			ByteBuffer[] headers = new ByteBuffer[ids.length];
 			buffer.clear();
-			buffer.limit(readsize);
-			stage.readChunk(buffer, id);
-			buffer.flip();
-			long stratum = buffer.getLong();
-			long previousID = buffer.getLong();
-			StateT state = stateIO.readNode(buffer);
-			Snapshot<StateT> snapshot = new Snapshot<>(this, id, stratum, state, previousID);
-			int linkCount = buffer.getInt();
-			if(linkCount > 0)
-				snapshot.nextLinks = new LinkedList<Snapshot.NextLink<StateT>>();
-			int bufSize = buffer.capacity();
-			int batchSize = bufSize / nodeSize;
-			long offset = id + Snapshot.STATIC_PART_BUFFER_SIZE + 4;
-			while(linkCount > 0) {
-				int chunkSize = batchSize;
-				if(chunkSize > linkCount)
-					chunkSize = linkCount;
-				buffer.clear();
-				buffer.limit(chunkSize * nodeSize);
-				stage.readChunk(buffer, offset);
-				offset += chunkSize * nodeSize;
-				buffer.flip();
-				for(int i = 0; i < chunkSize; ++i) {
-					long nextID = buffer.getLong();
-					if(nextID < 0l)
-						snapshot.nextLinks.add(new Snapshot.NextLink<StateT>(elidedForwardID, elidedForward));
-					else
-						snapshot.nextLinks.add(new Snapshot.NextLink<StateT>(nextID, null));
+			for(int i = 0; i < ids.length; ++i) {
+				buffer.limit((i + 1) * History.HEADER_SIZE);
+				buffer.position(i * History.HEADER_SIZE);
+				headers[i] = buffer.slice();
+			}
+			stage.readChunks(ids, headers);
+			int[] linkCounts = new int[ids.length];
+			int[] bodySizes = new int[ids.length];
+			long totalBodySize = 0l;
+			int withBodies = 0;
+			for(int i = 0; i < ids.length; ++i) {
+				linkCounts[i] = headers[i].getInt(History.LINK_COUNT_OFFSET);
+				int stateSize = headers[i].getInt(History.STATE_SIZE_OFFSET);
+				History.checkHeader(ids[i], linkCounts[i], stateSize);
+				bodySizes[i] = linkCounts[i] * 8 + stateSize;
+				totalBodySize += bodySizes[i];
+				if(bodySizes[i] > 0)
+					++withBodies;
+			}
+			if(totalBodySize > Integer.MAX_VALUE)
+				throw new IllegalStateException("Snapshots too large to be loaded at once: "
+						+ totalBodySize + " bytes");
+			// read all link tables and states in another batch
+			bodyBuffer = pool.acquire((int)totalBodySize);
+			long[] bodyOffsets = new long[withBodies];
+			ByteBuffer[] bodies = new ByteBuffer[ids.length];
+			ByteBuffer[] nonEmptyBodies = new ByteBuffer[withBodies];
+			int bodyIndex = 0;
+			for(int i = 0; i < ids.length; ++i) {
+				bodyBuffer.limit(bodyBuffer.position() + bodySizes[i]);
+				bodies[i] = bodyBuffer.slice();
+				bodyBuffer.position(bodyBuffer.limit());
+				if(bodySizes[i] == 0)
+					continue;
+				bodyOffsets[bodyIndex] = ids[i] + History.HEADER_SIZE;
+				nonEmptyBodies[bodyIndex++] = bodies[i];
+			}
+			if(withBodies > 0)
+				stage.readChunks(bodyOffsets, nonEmptyBodies);
+			List<Snapshot<StateT>> snapshots = new ArrayList<Snapshot<StateT>>(ids.length);
+			for(int i = 0; i < ids.length; ++i) {
+				ByteBuffer header = headers[i];
+				ByteBuffer body = bodies[i];
+				body.flip();
+				body.position(linkCounts[i] * 8);
+				StateT state = null;
+				byte[] encodedState = null;
+				if(lazyDecoding) {
+					encodedState = new byte[body.remaining()];
+					body.get(encodedState);
 				}
-				linkCount -= chunkSize;
+				else
+					state = stateIO.readNode(body);
+				Snapshot<StateT> snapshot
+						= new Snapshot<>(this, ids[i], header.getLong(0), state, header.getLong(8));
+				snapshot.encodedState = encodedState;
+				if(linkCounts[i] > 0) {
+					snapshot.nextLinks = new LinkedList<Snapshot.NextLink<StateT>>();
+					for(int j = 0; j < linkCounts[i]; ++j) {
+						long nextID = body.getLong(j * 8);
+						if(nextID < 0l)
+							snapshot.nextLinks.add(new Snapshot.NextLink<StateT>(elidedForwardID, elidedForward));
+						else
+							snapshot.nextLinks.add(new Snapshot.NextLink<StateT>(nextID, null));
+					}
+				}
+				snapshots.add(snapshot);
 			}
-			return snapshot;
+			return snapshots;
+		}
+		finally {
+			pool.release(buffer);
+			pool.release(bodyBuffer);
 		}
 	}
 
@@ -546,10 +941,13 @@ public class History<StateT> {
 		if(currentState.nextLinks == null)
 			currentState.nextLinks = new LinkedList<Snapshot.NextLink<StateT>>();
 		else if(stage != null && stateIO != null) {
-			for(Snapshot.NextLink<StateT> link : currentState.nextLinks) {
-				if(link.nextID < 0l && link.next != null)
-					link.nextID = link.next.saveForward(currentState.stratum);
-				link.next = null;
+			try(SaveBatch<StateT> batch = beginNextLinksSave(null)) {
+				for(Snapshot.NextLink<StateT> link : currentState.nextLinks) {
+					if(link.nextID < 0l && link.next != null)
+						batch.linkForward(link, link.next.saveForward(currentState.stratum));
+					batch.detachForward(link);
+				}
+				batch.commit();
 			}
 		}
 		Snapshot<StateT> newSnapshot = new Snapshot<>(this, -1l,
@@ -572,7 +970,9 @@ public class History<StateT> {
 		if(currentState.previous == null)
 			currentState.previous = loadSnapshot(currentState.previousID, currentState.id, currentState);
 		++forwardTail;
+		Snapshot<StateT> oldState = currentState;
 		currentState = currentState.previous;
+		currentState.restoreElidedLink(oldState);
 		if(backwardTail == 0) {
 			if(stage != null && stateIO != null)
 				updateCacheLevel();
@@ -662,13 +1062,17 @@ public class History<StateT> {
 			newSnapshot.previous = currentState;
 			newSnapshot.previousID = currentState.id;
 		}
-		for(Snapshot.NextLink<StateT> link : currentState.nextLinks) {
-			if(link == desiredLink)
-				link.nextID = -1l;
-			else if(link.nextID < 0l && link.next != null)
-				link.nextID = link.next.saveForward(currentState.stratum);
-			link.next = null;
+		if(stage != null && stateIO != null) {
+			try(SaveBatch<StateT> batch = beginNextLinksSave(desiredLink)) {
+				for(Snapshot.NextLink<StateT> link : currentState.nextLinks) {
+					if(link != desiredLink && link.nextID < 0l && link.next != null)
+						batch.linkForward(link, link.next.saveForward(currentState.stratum));
+					batch.detachForward(link);
+				}
+				batch.commit();
+			}
 		}
+		desiredLink.nextID = -1l;
 		++backwardTail;
 		currentState = newSnapshot;
 		if(forwardTail == 0) {
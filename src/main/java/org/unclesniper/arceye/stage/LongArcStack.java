@@ -0,0 +1,345 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stack of <tt>long</tt> values kept in a stage.
+ *
+ * Behaves like an {@link ArcStack} of <tt>Long</tt>
+ * elements using {@link NodeCodecs#LONG}, and writes
+ * the very same chunks, so the chunk IDs of either may
+ * be handed to the other and
+ * {@link ArcStack#newChunkTracer(NodeIO) its tracer}
+ * applies. Values are, however, kept unboxed throughout:
+ * {@link #push(long) push}, {@link #pop() pop} and
+ * {@link #peek() peek} never allocate a <tt>Long</tt>,
+ * and pushing allocates nothing but the node itself.
+ * <p>
+ * At most {@link #getMaxCachedNodes() a given number}
+ * of nodes is kept in memory; once that is exceeded,
+ * all nodes not yet saved are saved at once (in a single
+ * {@link Stage#beginTransaction(long) transaction}) and
+ * the lower half of the cached nodes is dropped, to be
+ * reloaded on demand when popping.
+ * Like <tt>ArcStack</tt>, this class is not thread safe.
+ *
+ * @since 0.2
+ */
+public final class LongArcStack {
+
+	private static final class Node {
+
+		long id;
+
+		final long height;
+
+		final long value;
+
+		long parentID;
+
+		Node parent;
+
+		Node(long id, long height, long value, long parentID, Node parent) {
+			this.id = id;
+			this.height = height;
+			this.value = value;
+			this.parentID = parentID;
+			this.parent = parent;
+		}
+
+	}
+
+	/**
+	 * Size of a node in the stage.
+	 *
+	 * Equates the size of an <tt>ArcStack</tt>
+	 * node holding an eight-byte payload.
+	 *
+	 * @since 0.2
+	 */
+	public static final int NODE_SIZE = 32;
+
+	private static final int PAYLOAD_SIZE = 8;
+
+	private final Stage stage;
+
+	private final int maxCachedNodes;
+
+	private int cachedNodes;
+
+	private Node top;
+
+	/**
+	 * Construct an empty stack.
+	 *
+	 * @param stage
+	 * 	stage to keep nodes in; must not be <tt>null</tt>
+	 * @param maxCachedNodes
+	 * 	maximum number of nodes kept in memory, or a
+	 * 	non-positive value to use
+	 * 	{@link ArcStack#DEFAULT_MAX_CACHED_NODES}
+	 * @throws NullPointerException
+	 * 	if <tt>stage</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public LongArcStack(Stage stage, int maxCachedNodes) {
+		if(stage == null)
+			throw new NullPointerException();
+		this.stage = stage;
+		this.maxCachedNodes = maxCachedNodes <= 0 ? ArcStack.DEFAULT_MAX_CACHED_NODES : maxCachedNodes;
+	}
+
+	/**
+	 * Reopen a stack saved earlier.
+	 *
+	 * @param stage
+	 * 	stage the nodes were saved to;
+	 * 	must not be <tt>null</tt>
+	 * @param topID
+	 * 	chunk ID of the top node, as returned by
+	 * 	{@link #save() save}, or a negative value
+	 * 	for an empty stack
+	 * @param maxCachedNodes
+	 * 	maximum number of nodes kept in memory, or a
+	 * 	non-positive value to use the default
+	 * @throws NullPointerException
+	 * 	if <tt>stage</tt> is <tt>null</tt>
+	 * @throws IllegalStateException
+	 * 	if the top node is malformed
+	 * @since 0.2
+	 */
+	public LongArcStack(Stage stage, long topID, int maxCachedNodes) {
+		this(stage, maxCachedNodes);
+		if(topID >= 0l) {
+			top = loadNode(topID);
+			cachedNodes = 1;
+		}
+	}
+
+	/**
+	 * Retrieve the stage nodes are kept in.
+	 *
+	 * @return
+	 * 	the stage
+	 * @since 0.2
+	 */
+	public Stage getStage() {
+		return stage;
+	}
+
+	/**
+	 * Retrieve the maximum number of nodes kept in memory.
+	 *
+	 * @return
+	 * 	the maximum number of cached nodes
+	 * @since 0.2
+	 */
+	public int getMaxCachedNodes() {
+		return maxCachedNodes;
+	}
+
+	/**
+	 * Determine whether the stack is empty.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if the
+	 * 	stack holds no values
+	 * @since 0.2
+	 */
+	public boolean isEmpty() {
+		return top == null;
+	}
+
+	/**
+	 * Retrieve the number of values on the stack.
+	 *
+	 * @return
+	 * 	the height of the stack
+	 * @since 0.2
+	 */
+	public long getHeight() {
+		return top == null ? 0l : top.height + 1l;
+	}
+
+	/**
+	 * Retrieve the topmost value.
+	 *
+	 * @return
+	 * 	the value pushed last and not popped yet
+	 * @throws IllegalStateException
+	 * 	if the stack is empty
+	 * @since 0.2
+	 */
+	public long peek() {
+		if(top == null)
+			throw new IllegalStateException("Stack is empty");
+		return top.value;
+	}
+
+	/**
+	 * Push a value onto the stack.
+	 *
+	 * @param value
+	 * 	value to push
+	 * @throws ChunkWriteIOException
+	 * 	if saving evicted nodes fails
+	 * @since 0.2
+	 */
+	public void push(long value) {
+		if(top == null)
+			top = new Node(-1l, 0l, value, -1l, null);
+		else
+			top = new Node(-1l, top.height + 1l, value, top.id, top);
+		if(++cachedNodes > maxCachedNodes)
+			evict();
+	}
+
+	/**
+	 * Pop the topmost value off the stack.
+	 *
+	 * The node of the value remains in
+	 * the stage, if it had been saved.
+	 *
+	 * @return
+	 * 	the value pushed last and not popped yet
+	 * @throws IllegalStateException
+	 * 	if the stack is empty, or if the node
+	 * 	below is malformed
+	 * @throws ChunkReadIOException
+	 * 	if loading the node below fails
+	 * @since 0.2
+	 */
+	public long pop() {
+		if(top == null)
+			throw new IllegalStateException("Stack is empty");
+		Node node = top;
+		if(node.parent == null && node.parentID >= 0l)
+			node.parent = loadNode(node.parentID);
+		else
+			--cachedNodes;
+		top = node.parent;
+		return node.value;
+	}
+
+	/**
+	 * Save all nodes to the stage.
+	 *
+	 * @return
+	 * 	the chunk ID of the top node, from which the
+	 * 	stack may be {@link #LongArcStack(Stage, long, int) reopened},
+	 * 	or <tt>-1</tt> if the stack is empty
+	 * @throws ChunkWriteIOException
+	 * 	if writing to the stage fails
+	 * @since 0.2
+	 */
+	public long save() {
+		saveAll();
+		return top == null ? -1l : top.id;
+	}
+
+	/**
+	 * Retrieve the chunks referenced by the cached nodes.
+	 *
+	 * To be handed to a {@link StageCompactor}
+	 * along with {@link #newChunkTracer()}.
+	 *
+	 * @return
+	 * 	the IDs of the cached nodes and their parents;
+	 * 	negative IDs denote unsaved nodes
+	 * @since 0.2
+	 */
+	public long[] getReferencedChunkIDs() {
+		long[] ids = new long[cachedNodes * 2];
+		int index = 0;
+		for(Node node = top; node != null; node = node.parent) {
+			ids[index++] = node.id;
+			ids[index++] = node.parentID;
+		}
+		return ids;
+	}
+
+	/**
+	 * Create a tracer for the chunks written by long stacks.
+	 *
+	 * @return
+	 * 	a tracer for the nodes of a stack
+	 * @since 0.2
+	 */
+	public static ChunkTracer newChunkTracer() {
+		return ArcStack.newChunkTracer(NodeCodecs.LONG);
+	}
+
+	private Node loadNode(long id) {
+		BufferPool pool = stage.getBufferPool();
+		ByteBuffer buffer = pool.acquire(LongArcStack.NODE_SIZE);
+		try {
+			stage.readChunk(buffer, id);
+			buffer.flip();
+			long height = buffer.getLong();
+			long parentID = buffer.getLong();
+			buffer.getInt();
+			if(buffer.getInt() != LongArcStack.PAYLOAD_SIZE)
+				throw new IllegalStateException("Chunk " + id + " does not hold a long stack node");
+			return new Node(id, height, NodeCodecs.LONG.readLong(buffer), parentID, null);
+		}
+		finally {
+			pool.release(buffer);
+		}
+	}
+
+	private static void encode(Node node, ByteBuffer buffer) {
+		buffer.putLong(node.height).putLong(node.parentID);
+		buffer.putInt(node.parentID < 0l ? -1 : LongArcStack.NODE_SIZE).putInt(LongArcStack.PAYLOAD_SIZE);
+		NodeCodecs.LONG.writeLong(node.value, buffer);
+	}
+
+	private void evict() {
+		saveAll();
+		int keep = (maxCachedNodes + 1) / 2;
+		Node node = top;
+		for(int i = 1; i < keep; ++i)
+			node = node.parent;
+		node.parent = null;
+		cachedNodes = keep;
+	}
+
+	private void saveAll() {
+		int nodeCount = 0;
+		for(Node node = top; node != null && node.id < 0l; node = node.parent)
+			++nodeCount;
+		if(nodeCount == 0)
+			return;
+		Node[] nodes = new Node[nodeCount];
+		Node node = top;
+		for(int i = nodeCount - 1; i >= 0; --i) {
+			nodes[i] = node;
+			node = node.parent;
+		}
+		ByteBuffer buffer = stage.getBufferPool().acquire(LongArcStack.NODE_SIZE);
+		boolean committed = false;
+		try(StageTransaction transaction = stage.beginTransaction((long)nodeCount
+				* (LongArcStack.NODE_SIZE + stage.getFrameOverhead()))) {
+			for(int i = 0; i < nodeCount; ++i) {
+				if(i > 0)
+					nodes[i].parentID = nodes[i - 1].id;
+				buffer.clear();
+				LongArcStack.encode(nodes[i], buffer);
+				buffer.flip();
+				nodes[i].id = transaction.add(buffer);
+			}
+			transaction.commit();
+			committed = true;
+		}
+		finally {
+			stage.getBufferPool().release(buffer);
+			if(!committed) {
+				for(int i = 0; i < nodeCount; ++i) {
+					nodes[i].id = -1l;
+					if(i > 0)
+						nodes[i].parentID = -1l;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+
+public class MalformedChunkException extends StagingException {
+
+	private final File stageFile;
+
+	private final long chunkOffset;
+
+	public MalformedChunkException(File stageFile, long chunkOffset, String problem) {
+		super("Malformed chunk at offset " + chunkOffset + " in stage file " + stageFile.getAbsolutePath()
+				+ (problem == null ? "" : ": " + problem));
+		this.stageFile = stageFile;
+		this.chunkOffset = chunkOffset;
+	}
+
+	public File getStageFile() {
+		return stageFile;
+	}
+
+	public long getChunkOffset() {
+		return chunkOffset;
+	}
+
+}
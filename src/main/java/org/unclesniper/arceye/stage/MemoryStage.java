@@ -0,0 +1,425 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stage keeping its chunks in memory only.
+ *
+ * Chunks are appended to a growable arena of direct
+ * buffers (<i>blocks</i>) of a fixed size, allocated
+ * as needed, so a memory stage occupies off-heap memory
+ * proportional to the bytes written, but does not add
+ * to the heap. Chunk IDs are offsets into the arena,
+ * starting at zero, and since there are no frame headers,
+ * reads may cross chunk boundaries, just as with an
+ * unframed {@link StageFile}. Nothing is ever written
+ * to disk, so structures kept in a memory stage incur
+ * no system calls at all; this is useful for short-lived
+ * structures as well as for telling the cost of a
+ * structure apart from the cost of its I/O.
+ * <p>
+ * Appends (including {@link #beginTransaction(long) transactions})
+ * are serialized; reads proceed concurrently
+ * with each other and with appends, and see every chunk
+ * whose append has returned. The memory is released
+ * upon {@link #close() close}, after which all
+ * operations fail with an {@link IllegalStateException}.
+ *
+ * @since 0.2
+ */
+public final class MemoryStage implements Stage {
+
+	/**
+	 * Default block size.
+	 *
+	 * Equates 1 MiB.
+	 *
+	 * @since 0.2
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final int blockSize;
+
+	private final BufferPool bufferPool = new BufferPool();
+
+	/**
+	 * Blocks of the arena, in order.
+	 *
+	 * Entries beyond the blocks in use are <tt>null</tt>.
+	 * The array is replaced rather than modified when it
+	 * grows, and blocks are published here before any
+	 * byte in them becomes visible via {@link #end},
+	 * so readers need not lock. Becomes <tt>null</tt>
+	 * once the stage is closed.
+	 */
+	private volatile ByteBuffer[] blocks = new ByteBuffer[16];
+
+	/**
+	 * Number of bytes written so far.
+	 *
+	 * Only ever advanced after the bytes below
+	 * have been copied into the arena.
+	 */
+	private volatile long end;
+
+	/**
+	 * Lock serializing appends.
+	 *
+	 * Held by {@link #beginTransaction(long) transactions}
+	 * for as long as they are open.
+	 */
+	private final Lock appendLock = new ReentrantLock();
+
+	/**
+	 * Construct an empty memory stage with the default block size.
+	 *
+	 * @since 0.2
+	 */
+	public MemoryStage() {
+		this(MemoryStage.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Construct an empty memory stage.
+	 *
+	 * @param blockSize
+	 * 	number of bytes by which to grow the arena
+	 * @throws IllegalArgumentException
+	 * 	if <tt>blockSize</tt> is not positive
+	 * @since 0.2
+	 */
+	public MemoryStage(int blockSize) {
+		if(blockSize <= 0)
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Retrieve the block size.
+	 *
+	 * @return
+	 * 	the number of bytes by which the arena grows
+	 * @since 0.2
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Retrieve the number of bytes written so far.
+	 *
+	 * @return
+	 * 	the chunk ID the next chunk will receive
+	 * @since 0.2
+	 */
+	public long getSize() {
+		return end;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	private ByteBuffer[] getBlocks() {
+		ByteBuffer[] current = blocks;
+		if(current == null)
+			throw new IllegalStateException("Memory stage has been closed");
+		return current;
+	}
+
+	/**
+	 * Read a chunk of data from the stage.
+	 *
+	 * See {@link StageFile#readChunk(ByteBuffer, long)};
+	 * since the arena is in memory, this never blocks.
+	 *
+	 * @param buffer
+	 * 	destination buffer into which read bytes
+	 * 	are placed
+	 * @param chunkID
+	 * 	chunk ID (id est, offset into the arena)
+	 * 	from which to read
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if <tt>chunkID</tt> is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present at the
+	 * 	given <tt>chunkID</tt>
+	 * @throws IllegalStateException
+	 * 	if the stage has been closed
+	 * @since 0.2
+	 */
+	public void readChunk(ByteBuffer buffer, long chunkID) {
+		if(chunkID < 0l)
+			throw new IllegalArgumentException("Negative position");
+		long limit = end;
+		ByteBuffer[] current = getBlocks();
+		if(chunkID + buffer.remaining() > limit)
+			throw new ChunkOffsetOutOfRangeException(Math.max(chunkID, limit));
+		long offset = chunkID;
+		while(buffer.hasRemaining()) {
+			ByteBuffer block = current[(int)(offset / blockSize)].duplicate();
+			int position = (int)(offset % blockSize);
+			int length = Math.min(buffer.remaining(), blockSize - position);
+			block.limit(position + length).position(position);
+			buffer.put(block);
+			offset += length;
+		}
+	}
+
+	/**
+	 * Read several chunks of data from the stage at once.
+	 *
+	 * See {@link StageFile#readChunks(long[], ByteBuffer[])};
+	 * the chunks are simply copied one by one.
+	 *
+	 * @param chunkIDs
+	 * 	chunk IDs from which to read
+	 * @param buffers
+	 * 	destination buffers, one per chunk ID
+	 * @throws NullPointerException
+	 * 	if <tt>chunkIDs</tt> or <tt>buffers</tt> is
+	 * 	or contains <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the arrays differ in length, or if any
+	 * 	chunk ID is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present for
+	 * 	any of the requested regions
+	 * @throws IllegalStateException
+	 * 	if the stage has been closed
+	 * @since 0.2
+	 */
+	public void readChunks(long[] chunkIDs, ByteBuffer[] buffers) {
+		if(chunkIDs.length != buffers.length)
+			throw new IllegalArgumentException("Number of chunk IDs (" + chunkIDs.length
+					+ ") does not match number of buffers (" + buffers.length + ")");
+		for(int i = 0; i < chunkIDs.length; ++i) {
+			if(chunkIDs[i] < 0l)
+				throw new IllegalArgumentException("Negative position");
+			if(buffers[i] == null)
+				throw new NullPointerException();
+		}
+		for(int i = 0; i < chunkIDs.length; ++i)
+			readChunk(buffers[i], chunkIDs[i]);
+	}
+
+	/**
+	 * Copy a chunk to the end of the arena.
+	 *
+	 * Must be called while holding {@link #appendLock}.
+	 * Does not advance {@link #end}.
+	 */
+	private void place(ByteBuffer[] current, ByteBuffer buffer, long offset) {
+		while(buffer.hasRemaining()) {
+			ByteBuffer block = current[(int)(offset / blockSize)].duplicate();
+			int position = (int)(offset % blockSize);
+			int length = Math.min(buffer.remaining(), blockSize - position);
+			block.position(position);
+			ByteBuffer source = buffer.duplicate();
+			source.limit(source.position() + length);
+			block.put(source);
+			buffer.position(buffer.position() + length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * Make sure the arena can hold the given number of bytes.
+	 *
+	 * Must be called while holding {@link #appendLock}.
+	 *
+	 * @return
+	 * 	the current blocks
+	 */
+	private ByteBuffer[] reserve(long size) {
+		ByteBuffer[] current = getBlocks();
+		long needed = (size + blockSize - 1l) / blockSize;
+		if(needed > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Memory stage cannot hold " + size + " bytes");
+		int count = (int)needed;
+		if(count > current.length)
+			current = Arrays.copyOf(current, Math.max(count, current.length * 2));
+		else if(count == 0 || current[count - 1] != null)
+			return current;
+		else
+			current = current.clone();
+		for(int i = 0; i < count; ++i) {
+			if(current[i] == null)
+				current[i] = ByteBuffer.allocateDirect(blockSize);
+		}
+		blocks = current;
+		return current;
+	}
+
+	/**
+	 * Write a chunk of data to the stage.
+	 *
+	 * See {@link StageFile#writeChunk(ByteBuffer)}.
+	 *
+	 * @param buffer
+	 * 	source buffer from which bytes to be written
+	 * 	are drawn
+	 * @return
+	 * 	resulting chunk ID of the chunk written
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalStateException
+	 * 	if the stage has been closed
+	 * @since 0.2
+	 */
+	public long writeChunk(ByteBuffer buffer) {
+		appendLock.lock();
+		try {
+			long id = end;
+			long next = id + buffer.remaining();
+			place(reserve(next), buffer, id);
+			end = next;
+			return id;
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Write several chunks of data to the stage at once.
+	 *
+	 * See {@link StageFile#writeChunks(ByteBuffer[])}.
+	 * The chunks end up adjacent, in the order given.
+	 *
+	 * @param buffers
+	 * 	source buffers from which the bytes of the
+	 * 	individual chunks are drawn
+	 * @return
+	 * 	the chunk IDs of the written chunks, in the
+	 * 	order of the <tt>buffers</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>buffers</tt> is or contains <tt>null</tt>
+	 * @throws IllegalStateException
+	 * 	if the stage has been closed
+	 * @since 0.2
+	 */
+	public long[] writeChunks(ByteBuffer... buffers) {
+		long size = 0l;
+		for(ByteBuffer buffer : buffers)
+			size += buffer.remaining();
+		long[] ids = new long[buffers.length];
+		appendLock.lock();
+		try {
+			long next = end;
+			ByteBuffer[] current = reserve(next + size);
+			for(int i = 0; i < buffers.length; ++i) {
+				ids[i] = next;
+				next += buffers[i].remaining();
+				place(current, buffers[i], ids[i]);
+			}
+			end = next;
+		}
+		finally {
+			appendLock.unlock();
+		}
+		return ids;
+	}
+
+	/**
+	 * Transaction appending to the arena.
+	 *
+	 * Holds the {@link #appendLock} while open, so
+	 * its reservation can always be resized. The
+	 * {@link #end} is only advanced if all bytes of
+	 * the transaction have been placed.
+	 */
+	private final class ArenaTransaction extends BufferedTransaction {
+
+		private long written;
+
+		ArenaTransaction(long base, long capacity) {
+			super(MemoryStage.this, base, capacity);
+			written = base;
+		}
+
+		boolean tryResize(long end, long newEnd) {
+			return true;
+		}
+
+		void write(ByteBuffer buffer, long offset) {
+			long next = offset + buffer.remaining();
+			place(reserve(next), buffer, offset);
+			written = next;
+		}
+
+		void complete(long end) {
+			if(written == end)
+				MemoryStage.this.end = end;
+			appendLock.unlock();
+		}
+
+	}
+
+	/**
+	 * Begin a batch of appends.
+	 *
+	 * See {@link StageFile#beginTransaction(long)}. The
+	 * transaction holds the stage exclusively until it
+	 * ends, so other appends wait for it, and its
+	 * reservation can always be extended and given back.
+	 * The chunks are copied into the arena when the
+	 * transaction is committed.
+	 *
+	 * @param capacity
+	 * 	estimated number of bytes the
+	 * 	transaction will occupy
+	 * @return
+	 * 	the open transaction
+	 * @throws IllegalArgumentException
+	 * 	if <tt>capacity</tt> is negative
+	 * @throws IllegalStateException
+	 * 	if the stage has been closed
+	 * @since 0.2
+	 */
+	public StageTransaction beginTransaction(long capacity) {
+		if(capacity < 0l)
+			throw new IllegalArgumentException("Negative transaction capacity: " + capacity);
+		appendLock.lock();
+		try {
+			getBlocks();
+			return new ArenaTransaction(end, capacity);
+		}
+		catch(RuntimeException | Error e) {
+			appendLock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Does nothing, as chunks are never persisted.
+	 *
+	 * @since 0.2
+	 */
+	public void sync() {}
+
+	/**
+	 * Release the memory held by the stage.
+	 *
+	 * Subsequent operations fail with an
+	 * {@link IllegalStateException}. Closing
+	 * a closed stage has no effect.
+	 *
+	 * @since 0.2
+	 */
+	public void close() {
+		appendLock.lock();
+		try {
+			blocks = null;
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+}
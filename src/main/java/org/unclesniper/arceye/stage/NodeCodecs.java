@@ -0,0 +1,813 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ready-made node codecs for common types.
+ *
+ * All codecs provided here are stateless and may thus
+ * be shared freely, including between threads. The
+ * codecs for primitive types additionally offer methods
+ * taking and returning unboxed values (such as
+ * {@link LongNodeIO#writeLong(long, ByteBuffer) writeLong}
+ * and {@link LongNodeIO#readLong(ByteBuffer) readLong}),
+ * which structures specialized for those types (such as
+ * {@link LongArcStack}) use to avoid boxing altogether.
+ * <p>
+ * Encodings are big-endian. Variable-length encodings
+ * (byte arrays and strings) are prefixed with their
+ * four-byte length, so that all codecs provided here
+ * are self-delimiting and may be combined into
+ * {@link #tuple(NodeIO[]) tuples} without overhead.
+ *
+ * @since 0.2
+ */
+public final class NodeCodecs {
+
+	/**
+	 * Codec for <tt>long</tt> values, taking eight bytes.
+	 *
+	 * @since 0.2
+	 */
+	public static final class LongNodeIO extends AbstractNodeIO<Long> {
+
+		private LongNodeIO() {}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return 8;
+		}
+
+		public int getNodeSize(Long node) {
+			return 8;
+		}
+
+		public void writeNode(Long node, ByteBuffer buffer) {
+			buffer.putLong(node);
+		}
+
+		public Long readNode(ByteBuffer buffer) {
+			return buffer.getLong();
+		}
+
+		/**
+		 * Encode an unboxed value.
+		 *
+		 * @param value
+		 * 	value to encode
+		 * @param buffer
+		 * 	buffer to encode the value into
+		 * @since 0.2
+		 */
+		public void writeLong(long value, ByteBuffer buffer) {
+			buffer.putLong(value);
+		}
+
+		/**
+		 * Decode an unboxed value.
+		 *
+		 * @param buffer
+		 * 	buffer to decode the value from
+		 * @return
+		 * 	the decoded value
+		 * @since 0.2
+		 */
+		public long readLong(ByteBuffer buffer) {
+			return buffer.getLong();
+		}
+
+	}
+
+	/**
+	 * Codec for <tt>int</tt> values, taking four bytes.
+	 *
+	 * @since 0.2
+	 */
+	public static final class IntNodeIO extends AbstractNodeIO<Integer> {
+
+		private IntNodeIO() {}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return 4;
+		}
+
+		public int getNodeSize(Integer node) {
+			return 4;
+		}
+
+		public void writeNode(Integer node, ByteBuffer buffer) {
+			buffer.putInt(node);
+		}
+
+		public Integer readNode(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+
+		/**
+		 * Encode an unboxed value.
+		 *
+		 * @param value
+		 * 	value to encode
+		 * @param buffer
+		 * 	buffer to encode the value into
+		 * @since 0.2
+		 */
+		public void writeInt(int value, ByteBuffer buffer) {
+			buffer.putInt(value);
+		}
+
+		/**
+		 * Decode an unboxed value.
+		 *
+		 * @param buffer
+		 * 	buffer to decode the value from
+		 * @return
+		 * 	the decoded value
+		 * @since 0.2
+		 */
+		public int readInt(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+
+	}
+
+	/**
+	 * Codec for <tt>double</tt> values, taking eight bytes.
+	 *
+	 * Values are encoded bit for bit, so
+	 * <tt>NaN</tt> payloads are preserved.
+	 *
+	 * @since 0.2
+	 */
+	public static final class DoubleNodeIO extends AbstractNodeIO<Double> {
+
+		private DoubleNodeIO() {}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return 8;
+		}
+
+		public int getNodeSize(Double node) {
+			return 8;
+		}
+
+		public void writeNode(Double node, ByteBuffer buffer) {
+			buffer.putLong(Double.doubleToRawLongBits(node));
+		}
+
+		public Double readNode(ByteBuffer buffer) {
+			return Double.longBitsToDouble(buffer.getLong());
+		}
+
+		/**
+		 * Encode an unboxed value.
+		 *
+		 * @param value
+		 * 	value to encode
+		 * @param buffer
+		 * 	buffer to encode the value into
+		 * @since 0.2
+		 */
+		public void writeDouble(double value, ByteBuffer buffer) {
+			buffer.putLong(Double.doubleToRawLongBits(value));
+		}
+
+		/**
+		 * Decode an unboxed value.
+		 *
+		 * @param buffer
+		 * 	buffer to decode the value from
+		 * @return
+		 * 	the decoded value
+		 * @since 0.2
+		 */
+		public double readDouble(ByteBuffer buffer) {
+			return Double.longBitsToDouble(buffer.getLong());
+		}
+
+	}
+
+	/**
+	 * Codec for chunk IDs referring to other chunks.
+	 *
+	 * Takes eight bytes, just as {@link LongNodeIO}, but
+	 * normalizes negative values (which denote the absence
+	 * of a chunk) to <tt>-1</tt>, as structures in this
+	 * package do, so that encoded references compare equal
+	 * and can be told apart from actual chunk IDs.
+	 * <p>
+	 * The encoded chunk IDs are
+	 * {@link #traceNode(ByteBuffer, int, ChunkLayout) reported}
+	 * as references to chunks described by the
+	 * {@link #getTracer() tracer} given to
+	 * {@link NodeCodecs#chunkID(ChunkTracer)}. Tracing a
+	 * reference encoded by {@link NodeCodecs#CHUNK_ID}, which
+	 * lacks a tracer, fails rather than losing the chunk.
+	 *
+	 * @since 0.2
+	 */
+	public static final class ChunkIDNodeIO extends AbstractNodeIO<Long> {
+
+		private final ChunkTracer tracer;
+
+		private ChunkIDNodeIO(ChunkTracer tracer) {
+			this.tracer = tracer;
+		}
+
+		/**
+		 * Retrieve the tracer for the referenced chunks.
+		 *
+		 * @return
+		 * 	the tracer, or <tt>null</tt> if
+		 * 	references cannot be traced
+		 * @since 0.2
+		 */
+		public ChunkTracer getTracer() {
+			return tracer;
+		}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return 8;
+		}
+
+		public int getNodeSize(Long node) {
+			return 8;
+		}
+
+		public void writeNode(Long node, ByteBuffer buffer) {
+			writeChunkID(node, buffer);
+		}
+
+		public Long readNode(ByteBuffer buffer) {
+			return readChunkID(buffer);
+		}
+
+		/**
+		 * Encode an unboxed chunk ID.
+		 *
+		 * @param chunkID
+		 * 	chunk ID to encode; negative
+		 * 	if there is no such chunk
+		 * @param buffer
+		 * 	buffer to encode the chunk ID into
+		 * @since 0.2
+		 */
+		public void writeChunkID(long chunkID, ByteBuffer buffer) {
+			buffer.putLong(chunkID < 0l ? -1l : chunkID);
+		}
+
+		/**
+		 * Decode an unboxed chunk ID.
+		 *
+		 * @param buffer
+		 * 	buffer to decode the chunk ID from
+		 * @return
+		 * 	the decoded chunk ID, or <tt>-1</tt>
+		 * 	if there is no such chunk
+		 * @since 0.2
+		 */
+		public long readChunkID(ByteBuffer buffer) {
+			long chunkID = buffer.getLong();
+			return chunkID < 0l ? -1l : chunkID;
+		}
+
+		public boolean hasReferences() {
+			return true;
+		}
+
+		/**
+		 * Report the encoded chunk ID as a reference.
+		 *
+		 * @throws IllegalStateException
+		 * 	if the chunk ID is not negative, but
+		 * 	this codec has no {@link #getTracer() tracer}
+		 * @since 0.2
+		 */
+		public void traceNode(ByteBuffer buffer, int position, ChunkLayout layout) {
+			long chunkID = readChunkID(buffer);
+			if(chunkID < 0l)
+				return;
+			if(tracer == null)
+				throw new IllegalStateException("Cannot trace reference to chunk " + chunkID
+						+ " without a tracer for the referenced chunks");
+			layout.addReference(position, chunkID, tracer);
+		}
+
+	}
+
+	/**
+	 * Codec for byte arrays of a fixed length.
+	 *
+	 * No length is encoded.
+	 *
+	 * @since 0.2
+	 */
+	public static final class FixedBytesNodeIO extends AbstractNodeIO<byte[]> {
+
+		private final int length;
+
+		private FixedBytesNodeIO(int length) {
+			this.length = length;
+		}
+
+		/**
+		 * Retrieve the length of the arrays encoded.
+		 *
+		 * @return
+		 * 	the number of bytes in each array
+		 * @since 0.2
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return length;
+		}
+
+		public int getNodeSize(byte[] node) {
+			return length;
+		}
+
+		public void writeNode(byte[] node, ByteBuffer buffer) {
+			if(node.length != length)
+				throw new IllegalArgumentException("Expected " + length + " bytes, but got " + node.length);
+			buffer.put(node);
+		}
+
+		public byte[] readNode(ByteBuffer buffer) {
+			byte[] node = new byte[length];
+			buffer.get(node);
+			return node;
+		}
+
+	}
+
+	/**
+	 * Codec for byte arrays of varying length.
+	 *
+	 * Arrays are prefixed with their four-byte length.
+	 *
+	 * @since 0.2
+	 */
+	public static final class BytesNodeIO extends AbstractNodeIO<byte[]> {
+
+		private final int maxLength;
+
+		private BytesNodeIO(int maxLength) {
+			this.maxLength = maxLength;
+		}
+
+		/**
+		 * Retrieve the maximum length of the arrays encoded.
+		 *
+		 * @return
+		 * 	the maximum number of bytes in an array
+		 * @since 0.2
+		 */
+		public int getMaxLength() {
+			return maxLength;
+		}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return 4 + maxLength;
+		}
+
+		public int getNodeSize(byte[] node) {
+			return 4 + node.length;
+		}
+
+		public void writeNode(byte[] node, ByteBuffer buffer) {
+			if(node.length > maxLength)
+				throw new IllegalArgumentException("Expected at most " + maxLength + " bytes, but got "
+						+ node.length);
+			buffer.putInt(node.length).put(node);
+		}
+
+		public byte[] readNode(ByteBuffer buffer) {
+			int length = buffer.getInt();
+			if(length < 0 || length > buffer.remaining())
+				throw new IllegalStateException("Malformed byte array encoding: length " + length);
+			byte[] node = new byte[length];
+			buffer.get(node);
+			return node;
+		}
+
+	}
+
+	/**
+	 * Codec for strings, encoded as UTF-8.
+	 *
+	 * Strings are prefixed with the four-byte length of
+	 * their encoding. They are encoded directly into the
+	 * buffer, without an intermediate byte array.
+	 * Unpaired surrogates are encoded as <tt>'?'</tt>, as
+	 * {@link String#getBytes(java.nio.charset.Charset)} does.
+	 *
+	 * @since 0.2
+	 */
+	public static final class StringNodeIO extends AbstractNodeIO<String> {
+
+		private final int maxEncodedLength;
+
+		private StringNodeIO(int maxEncodedLength) {
+			this.maxEncodedLength = maxEncodedLength;
+		}
+
+		/**
+		 * Retrieve the maximum length of the encodings.
+		 *
+		 * @return
+		 * 	the maximum number of bytes the UTF-8
+		 * 	encoding of a string may take
+		 * @since 0.2
+		 */
+		public int getMaxEncodedLength() {
+			return maxEncodedLength;
+		}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			return 4 + maxEncodedLength;
+		}
+
+		public int getNodeSize(String node) {
+			return 4 + NodeCodecs.getEncodedLength(node);
+		}
+
+		public void writeNode(String node, ByteBuffer buffer) {
+			int length = NodeCodecs.getEncodedLength(node);
+			if(length > maxEncodedLength)
+				throw new IllegalArgumentException("Expected at most " + maxEncodedLength
+						+ " bytes of UTF-8, but got " + length);
+			buffer.putInt(length);
+			int count = node.length();
+			for(int i = 0; i < count; ++i) {
+				char c = node.charAt(i);
+				if(c < 0x80)
+					buffer.put((byte)c);
+				else if(c < 0x800)
+					buffer.put((byte)(0xC0 | (c >> 6))).put((byte)(0x80 | (c & 0x3F)));
+				else if(!Character.isSurrogate(c))
+					buffer.put((byte)(0xE0 | (c >> 12))).put((byte)(0x80 | ((c >> 6) & 0x3F)))
+							.put((byte)(0x80 | (c & 0x3F)));
+				else if(Character.isHighSurrogate(c) && i + 1 < count
+						&& Character.isLowSurrogate(node.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, node.charAt(++i));
+					buffer.put((byte)(0xF0 | (cp >> 18))).put((byte)(0x80 | ((cp >> 12) & 0x3F)))
+							.put((byte)(0x80 | ((cp >> 6) & 0x3F))).put((byte)(0x80 | (cp & 0x3F)));
+				}
+				else
+					buffer.put((byte)'?');
+			}
+		}
+
+		public String readNode(ByteBuffer buffer) {
+			int length = buffer.getInt();
+			if(length < 0 || length > buffer.remaining())
+				throw new IllegalStateException("Malformed string encoding: length " + length);
+			String node;
+			if(buffer.hasArray())
+				node = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+						StandardCharsets.UTF_8);
+			else {
+				byte[] bytes = new byte[length];
+				buffer.duplicate().get(bytes);
+				node = new String(bytes, StandardCharsets.UTF_8);
+			}
+			buffer.position(buffer.position() + length);
+			return node;
+		}
+
+	}
+
+	/**
+	 * Codec for tuples of values.
+	 *
+	 * A tuple is represented as an <tt>Object[]</tt>
+	 * holding one value per component codec. The
+	 * encodings of the values are concatenated; those
+	 * of components that are not
+	 * {@link AbstractNodeIO#isSelfDelimiting() self-delimiting}
+	 * are prefixed with their four-byte length.
+	 *
+	 * @since 0.2
+	 */
+	public static final class TupleNodeIO extends AbstractNodeIO<Object[]> {
+
+		private final NodeIO<?>[] components;
+
+		private final boolean[] delimited;
+
+		/**
+		 * Index of the last component whose encodings
+		 * may refer to chunks, or <tt>-1</tt> if none.
+		 */
+		private final int lastTraced;
+
+		private TupleNodeIO(NodeIO<?>[] components) {
+			this.components = components.clone();
+			delimited = new boolean[components.length];
+			int lastTraced = -1;
+			for(int i = 0; i < components.length; ++i) {
+				if(this.components[i] == null)
+					throw new NullPointerException();
+				delimited[i] = this.components[i] instanceof AbstractNodeIO
+						&& ((AbstractNodeIO<?>)this.components[i]).isSelfDelimiting();
+				if(this.components[i].hasReferences())
+					lastTraced = i;
+			}
+			this.lastTraced = lastTraced;
+		}
+
+		/**
+		 * Retrieve the number of components.
+		 *
+		 * @return
+		 * 	the length of the tuples encoded
+		 * @since 0.2
+		 */
+		public int getArity() {
+			return components.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		private NodeIO<Object> getComponent(int index) {
+			return (NodeIO<Object>)components[index];
+		}
+
+		private void checkArity(Object[] node) {
+			if(node.length != components.length)
+				throw new IllegalArgumentException("Expected a tuple of " + components.length
+						+ " values, but got " + node.length);
+		}
+
+		protected boolean isSelfDelimiting() {
+			return true;
+		}
+
+		public int getNodeBufferSize() {
+			int size = 0;
+			for(int i = 0; i < components.length; ++i)
+				size += components[i].getNodeBufferSize() + (delimited[i] ? 0 : 4);
+			return size;
+		}
+
+		public int getNodeSize(Object[] node) {
+			checkArity(node);
+			int size = 0;
+			for(int i = 0; i < components.length; ++i)
+				size += getComponent(i).getNodeSize(node[i]) + (delimited[i] ? 0 : 4);
+			return size;
+		}
+
+		public void writeNode(Object[] node, ByteBuffer buffer) {
+			checkArity(node);
+			for(int i = 0; i < components.length; ++i) {
+				if(delimited[i]) {
+					getComponent(i).writeNode(node[i], buffer);
+					continue;
+				}
+				int start = buffer.position();
+				buffer.putInt(0);
+				getComponent(i).writeNode(node[i], buffer);
+				buffer.putInt(start, buffer.position() - start - 4);
+			}
+		}
+
+		public Object[] readNode(ByteBuffer buffer) {
+			Object[] node = new Object[components.length];
+			for(int i = 0; i < components.length; ++i) {
+				if(delimited[i]) {
+					node[i] = components[i].readNode(buffer);
+					continue;
+				}
+				int length = buffer.getInt();
+				if(length < 0 || length > buffer.remaining())
+					throw new IllegalStateException("Malformed tuple encoding: component " + i
+							+ " has length " + length);
+				ByteBuffer component = buffer.duplicate();
+				component.limit(buffer.position() + length);
+				node[i] = components[i].readNode(component);
+				buffer.position(component.limit());
+			}
+			return node;
+		}
+
+		public boolean hasReferences() {
+			return lastTraced >= 0;
+		}
+
+		/**
+		 * Report the chunk references within the components.
+		 *
+		 * Components preceding the last one that may refer to
+		 * chunks are skipped by their length prefix or, if
+		 * self-delimiting, by decoding them.
+		 *
+		 * @since 0.2
+		 */
+		public void traceNode(ByteBuffer buffer, int position, ChunkLayout layout) {
+			int base = buffer.position();
+			for(int i = 0; i <= lastTraced; ++i) {
+				ByteBuffer component = buffer.duplicate();
+				if(delimited[i]) {
+					components[i].readNode(buffer);
+					component.limit(buffer.position());
+				}
+				else {
+					int length = buffer.getInt();
+					if(length < 0 || length > buffer.remaining())
+						throw new IllegalStateException("Malformed tuple encoding: component " + i
+								+ " has length " + length);
+					component.position(buffer.position());
+					component.limit(buffer.position() + length);
+					buffer.position(component.limit());
+				}
+				if(components[i].hasReferences())
+					components[i].traceNode(component, position + component.position() - base, layout);
+			}
+		}
+
+	}
+
+	/**
+	 * Codec for <tt>long</tt> values.
+	 *
+	 * @since 0.2
+	 */
+	public static final LongNodeIO LONG = new LongNodeIO();
+
+	/**
+	 * Codec for <tt>int</tt> values.
+	 *
+	 * @since 0.2
+	 */
+	public static final IntNodeIO INT = new IntNodeIO();
+
+	/**
+	 * Codec for <tt>double</tt> values.
+	 *
+	 * @since 0.2
+	 */
+	public static final DoubleNodeIO DOUBLE = new DoubleNodeIO();
+
+	/**
+	 * Codec for references to other chunks.
+	 *
+	 * References encoded by this codec cannot be traced;
+	 * use {@link #chunkID(ChunkTracer)} for chunks of a
+	 * stage that is to be {@link StageCompactor compacted}.
+	 *
+	 * @since 0.2
+	 */
+	public static final ChunkIDNodeIO CHUNK_ID = new ChunkIDNodeIO(null);
+
+	private NodeCodecs() {}
+
+	/**
+	 * Obtain a codec for traceable references to other chunks.
+	 *
+	 * @param tracer
+	 * 	tracer for the referenced chunks
+	 * @return
+	 * 	the codec
+	 * @throws NullPointerException
+	 * 	if <tt>tracer</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public static ChunkIDNodeIO chunkID(ChunkTracer tracer) {
+		if(tracer == null)
+			throw new NullPointerException();
+		return new ChunkIDNodeIO(tracer);
+	}
+
+	/**
+	 * Obtain a codec for byte arrays of a fixed length.
+	 *
+	 * @param length
+	 * 	length of the arrays
+	 * @return
+	 * 	the codec
+	 * @throws IllegalArgumentException
+	 * 	if <tt>length</tt> is negative
+	 * @since 0.2
+	 */
+	public static FixedBytesNodeIO fixedBytes(int length) {
+		if(length < 0)
+			throw new IllegalArgumentException("Negative length: " + length);
+		return new FixedBytesNodeIO(length);
+	}
+
+	/**
+	 * Obtain a codec for length-prefixed byte arrays.
+	 *
+	 * @param maxLength
+	 * 	maximum length of the arrays
+	 * @return
+	 * 	the codec
+	 * @throws IllegalArgumentException
+	 * 	if <tt>maxLength</tt> is negative
+	 * @since 0.2
+	 */
+	public static BytesNodeIO bytes(int maxLength) {
+		if(maxLength < 0)
+			throw new IllegalArgumentException("Negative length: " + maxLength);
+		return new BytesNodeIO(maxLength);
+	}
+
+	/**
+	 * Obtain a codec for strings.
+	 *
+	 * @param maxEncodedLength
+	 * 	maximum length of the UTF-8
+	 * 	encoding of the strings
+	 * @return
+	 * 	the codec
+	 * @throws IllegalArgumentException
+	 * 	if <tt>maxEncodedLength</tt> is negative
+	 * @since 0.2
+	 */
+	public static StringNodeIO utf8(int maxEncodedLength) {
+		if(maxEncodedLength < 0)
+			throw new IllegalArgumentException("Negative length: " + maxEncodedLength);
+		return new StringNodeIO(maxEncodedLength);
+	}
+
+	/**
+	 * Obtain a codec for tuples.
+	 *
+	 * @param components
+	 * 	codecs for the individual components
+	 * @return
+	 * 	the codec
+	 * @throws NullPointerException
+	 * 	if <tt>components</tt> is or
+	 * 	contains <tt>null</tt>
+	 * @since 0.2
+	 */
+	public static TupleNodeIO tuple(NodeIO<?>... components) {
+		return new TupleNodeIO(components);
+	}
+
+	/**
+	 * Compute the length of the UTF-8 encoding of a string.
+	 *
+	 * @param string
+	 * 	string to measure
+	 * @return
+	 * 	the number of bytes {@link StringNodeIO}
+	 * 	encodes the string in, excluding the
+	 * 	length prefix
+	 * @since 0.2
+	 */
+	public static int getEncodedLength(String string) {
+		int count = string.length();
+		int length = 0;
+		for(int i = 0; i < count; ++i) {
+			char c = string.charAt(i);
+			if(c < 0x80)
+				++length;
+			else if(c < 0x800)
+				length += 2;
+			else if(!Character.isSurrogate(c))
+				length += 3;
+			else if(Character.isHighSurrogate(c) && i + 1 < count
+					&& Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				++i;
+			}
+			else
+				++length;
+		}
+		return length;
+	}
+
+}
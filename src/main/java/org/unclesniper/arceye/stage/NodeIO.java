@@ -6,12 +6,52 @@ public interface NodeIO<NodeT> {
 
 	int getNodeBufferSize();
 
-	long writeNode(NodeT node, ByteBuffer buffer, StageFile file);
+	default int getNodeSize(NodeT node) {
+		return getNodeBufferSize();
+	}
+
+	long writeNode(NodeT node, ByteBuffer buffer, Stage stage);
 
 	void writeNode(NodeT node, ByteBuffer buffer);
 
-	NodeT readNode(ByteBuffer buffer, StageFile file, long offset);
+	NodeT readNode(ByteBuffer buffer, Stage stage, long offset);
 
 	NodeT readNode(ByteBuffer buffer);
 
+	/**
+	 * Determine whether encoded nodes may refer to chunks.
+	 *
+	 * Structures only call
+	 * {@link #traceNode(ByteBuffer, int, ChunkLayout) traceNode}
+	 * if this is <tt>true</tt>, sparing the reads otherwise.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if encodings may hold chunk IDs;
+	 * 	<tt>false</tt> unless overridden
+	 * @since 0.2
+	 */
+	default boolean hasReferences() {
+		return false;
+	}
+
+	/**
+	 * Report the chunk references within an encoded node.
+	 *
+	 * Called by the {@link ChunkTracer tracers} of structures
+	 * embedding nodes in their chunks (such as
+	 * {@link History#newChunkTracer(NodeIO)}), so that a
+	 * {@link StageCompactor} keeps the chunks referenced by
+	 * the nodes and remaps their IDs.
+	 *
+	 * @param buffer
+	 * 	buffer holding the encoding of the node
+	 * 	between its position and its limit
+	 * @param position
+	 * 	offset of the encoding within the chunk
+	 * @param layout
+	 * 	layout of the chunk to report the references to
+	 * @since 0.2
+	 */
+	default void traceNode(ByteBuffer buffer, int position, ChunkLayout layout) {}
+
 }
@@ -0,0 +1,107 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Preallocated stage file format.
+ *
+ * A stage file opened with a positive
+ * {@link StageOptions#getPreallocationExtent() preallocation extent}
+ * starts with a sixteen-byte header: an eight-byte magic number,
+ * followed by the eight-byte logical end of the stage. The
+ * chunks follow the header; everything between the logical end
+ * and the end of the file is preallocated space, which is
+ * zero-filled and not part of the stage.
+ * <p>
+ * The logical end is only ever updated after the data below
+ * it has been flushed, so it never covers data that might not
+ * have reached the device.
+ *
+ * @since 0.2
+ */
+final class Preallocation {
+
+	/**
+	 * Magic number at the start of a preallocated stage file.
+	 *
+	 * Spells <tt>ARCSTGE1</tt> in ASCII.
+	 */
+	static final long FILE_MAGIC = 0x4152435354474531l;
+
+	static final int FILE_HEADER_SIZE = 16;
+
+	/**
+	 * Offset of the logical end within the header.
+	 */
+	static final int END_OFFSET = 8;
+
+	private Preallocation() {}
+
+	/**
+	 * Read the logical end of a preallocated stage file.
+	 *
+	 * Writes the file header if the file is empty (or too
+	 * short to even hold the file header, which can only be
+	 * the result of a crash during creation), unless the
+	 * file is read-only.
+	 *
+	 * @param channel
+	 * 	channel of the file; must be open for
+	 * 	reading and writing
+	 * @param path
+	 * 	path of the file, for error messages
+	 * @param readOnly
+	 * 	whether the file must not be modified
+	 * @return
+	 * 	the logical end of the stage
+	 * @throws IOException
+	 * 	if the file is not a preallocated stage file,
+	 * 	or if an I/O error occurs
+	 */
+	static long recover(FileChannel channel, File path, boolean readOnly) throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(Preallocation.FILE_HEADER_SIZE);
+		if(size < Preallocation.FILE_HEADER_SIZE && readOnly)
+			throw new IOException("Not a preallocated stage file: " + path.getAbsolutePath());
+		if(size < Preallocation.FILE_HEADER_SIZE) {
+			channel.truncate(0l);
+			header.putLong(Preallocation.FILE_MAGIC).putLong((long)Preallocation.FILE_HEADER_SIZE);
+			header.flip();
+			while(header.remaining() > 0)
+				channel.write(header, header.position());
+			channel.force(true);
+			return Preallocation.FILE_HEADER_SIZE;
+		}
+		while(header.remaining() > 0) {
+			if(channel.read(header, header.position()) < 0)
+				throw new IOException("Stage file shrank during recovery");
+		}
+		if(header.getLong(0) != Preallocation.FILE_MAGIC)
+			throw new IOException("Not a preallocated stage file: " + path.getAbsolutePath());
+		long end = header.getLong(Preallocation.END_OFFSET);
+		if(end < Preallocation.FILE_HEADER_SIZE || end > size)
+			throw new IOException("Logical end " + end + " of preallocated stage file "
+					+ path.getAbsolutePath() + " lies outside the file");
+		return end;
+	}
+
+	/**
+	 * Round an offset up to a whole number of extents.
+	 *
+	 * @param end
+	 * 	offset to be covered
+	 * @param extent
+	 * 	size of an extent; must be positive
+	 * @return
+	 * 	the smallest multiple of <tt>extent</tt>
+	 * 	not less than <tt>end</tt>
+	 */
+	static long roundUp(long end, long extent) {
+		long remainder = end % extent;
+		return remainder == 0l ? end : end - remainder + extent;
+	}
+
+}
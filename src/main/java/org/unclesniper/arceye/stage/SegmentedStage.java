@@ -0,0 +1,576 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+
+/**
+ * Stage spanning a sequence of rolling files.
+ *
+ * A segmented stage consists of several <i>segments</i>,
+ * each of which is a {@link StageFile}. Chunks are appended
+ * to the <i>current</i> (highest numbered) segment until
+ * appending another chunk would make it exceed the
+ * configured segment size, at which point the current
+ * segment is <i>sealed</i> (flushed and never written
+ * to again) and a new segment is started. A chunk never
+ * spans segments; chunks larger than the segment size
+ * occupy a segment of their own.
+ * <p>
+ * The chunk IDs handed out by a segmented stage encode
+ * both the segment number (in the upper
+ * <tt>63 - {@link #OFFSET_BITS}</tt> bits) and the offset
+ * of the chunk within that segment (in the lower
+ * {@link #OFFSET_BITS} bits), see
+ * {@link #makeChunkID(int, long) makeChunkID}. Chunk IDs
+ * are thus still non-negative, but no longer file offsets,
+ * and reads must not cross segment boundaries. Other than
+ * that, the semantics of all operations are those of the
+ * respective operations of <tt>StageFile</tt>.
+ * <p>
+ * The segment files reside in the directory of the
+ * <i>base path</i> given upon construction, and are named
+ * after the base path, with the segment number appended
+ * as a dot and seven decimal digits; the base path itself
+ * is not used as a file. When a segmented stage is
+ * reopened, existing segments are picked up, and segments
+ * other than the last are opened with
+ * {@link StageOptions#setMemoryMapped(boolean) memory mapping}
+ * enabled, as they are known to be immutable. Segments
+ * that have become unreachable (say, after
+ * compaction) may be
+ * {@link #dropSegment(int) dropped} individually, which
+ * simply deletes their files.
+ *
+ * @since 0.2
+ */
+public final class SegmentedStage implements Stage {
+
+	/**
+	 * Number of chunk ID bits encoding the offset within a segment.
+	 *
+	 * This also limits the size of a segment
+	 * to <tt>2<sup>40</sup></tt> bytes.
+	 *
+	 * @since 0.2
+	 */
+	public static final int OFFSET_BITS = 40;
+
+	/**
+	 * Maximum segment size.
+	 *
+	 * @since 0.2
+	 */
+	public static final long MAX_SEGMENT_SIZE = 1l << SegmentedStage.OFFSET_BITS;
+
+	/**
+	 * Maximum segment number.
+	 *
+	 * @since 0.2
+	 */
+	public static final int MAX_SEGMENT = (int)(Long.MAX_VALUE >>> SegmentedStage.OFFSET_BITS);
+
+	private static final long OFFSET_MASK = SegmentedStage.MAX_SEGMENT_SIZE - 1l;
+
+	private final File basePath;
+
+	private final long segmentSize;
+
+	private final StageOptions options;
+
+	private final StageOptions sealedOptions;
+
+	/**
+	 * Segments by number.
+	 *
+	 * Dropped segments are <tt>null</tt>. The array
+	 * is replaced rather than modified, under
+	 * {@link #rollLock}.
+	 */
+	private volatile StageFile[] segments;
+
+	/**
+	 * Monitor guarding the creation and removal of segments.
+	 */
+	private final Object rollLock = new Object();
+
+	private final BufferPool bufferPool = new BufferPool();
+
+	/**
+	 * Open a segmented stage.
+	 *
+	 * @param basePath
+	 * 	base path of the segment files;
+	 * 	must not be <tt>null</tt>
+	 * @param truncate
+	 * 	<tt>true</tt> if and only if all existing
+	 * 	segments should be discarded
+	 * @param segmentSize
+	 * 	size (in bytes) beyond which the current
+	 * 	segment is sealed
+	 * @param options
+	 * 	tunables for the individual segments,
+	 * 	or <tt>null</tt> to use the defaults
+	 * @throws NullPointerException
+	 * 	if <tt>basePath</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if <tt>segmentSize</tt> is not positive or
+	 * 	exceeds {@link #MAX_SEGMENT_SIZE}
+	 * @throws IOException
+	 * 	if an I/O error occurs when attemping to
+	 * 	list, delete or open the segment files
+	 * @since 0.2
+	 */
+	public SegmentedStage(File basePath, boolean truncate, long segmentSize, StageOptions options)
+			throws IOException {
+		if(segmentSize <= 0l || segmentSize > SegmentedStage.MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Illegal segment size: " + segmentSize);
+		this.basePath = basePath;
+		this.segmentSize = segmentSize;
+		this.options = options == null ? new StageOptions() : new StageOptions(options);
+		sealedOptions = new StageOptions(this.options);
+		sealedOptions.setMemoryMapped(true);
+		int[] existing = findSegments();
+		if(truncate) {
+			for(int segment : existing) {
+				File file = getSegmentPath(segment);
+				if(!file.delete() && file.exists())
+					throw new IOException("Failed to delete segment file " + file.getAbsolutePath());
+			}
+			existing = new int[0];
+		}
+		if(existing.length == 0) {
+			segments = new StageFile[] {new StageFile(getSegmentPath(0), true, this.options)};
+			return;
+		}
+		StageFile[] opened = new StageFile[existing[existing.length - 1] + 1];
+		try {
+			for(int i = 0; i < existing.length; ++i)
+				opened[existing[i]] = new StageFile(getSegmentPath(existing[i]), false,
+						i == existing.length - 1 ? this.options : sealedOptions);
+		}
+		catch(IOException ioe) {
+			for(StageFile segment : opened) {
+				if(segment != null)
+					segment.close();
+			}
+			throw ioe;
+		}
+		segments = opened;
+	}
+
+	private int[] findSegments() {
+		File directory = basePath.getAbsoluteFile().getParentFile();
+		String[] names = directory == null ? null : directory.list();
+		if(names == null)
+			return new int[0];
+		Pattern pattern = Pattern.compile(Pattern.quote(basePath.getName()) + "\\.([0-9]{7})");
+		int[] found = new int[names.length];
+		int count = 0;
+		for(String name : names) {
+			Matcher matcher = pattern.matcher(name);
+			if(matcher.matches())
+				found[count++] = Integer.parseInt(matcher.group(1));
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * Compose a chunk ID.
+	 *
+	 * @param segment
+	 * 	segment number
+	 * @param offset
+	 * 	offset within the segment
+	 * @return
+	 * 	the chunk ID referring to the given
+	 * 	offset within the given segment
+	 * @throws IllegalArgumentException
+	 * 	if either argument is out of range
+	 * @since 0.2
+	 */
+	public static long makeChunkID(int segment, long offset) {
+		if(segment < 0 || segment > SegmentedStage.MAX_SEGMENT)
+			throw new IllegalArgumentException("Segment number out of range: " + segment);
+		if(offset < 0l || offset >= SegmentedStage.MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Segment offset out of range: " + offset);
+		return ((long)segment << SegmentedStage.OFFSET_BITS) | offset;
+	}
+
+	/**
+	 * Extract the segment number from a chunk ID.
+	 *
+	 * @param chunkID
+	 * 	a chunk ID handed out by a segmented stage
+	 * @return
+	 * 	the segment number
+	 * @since 0.2
+	 */
+	public static int getSegment(long chunkID) {
+		return (int)(chunkID >>> SegmentedStage.OFFSET_BITS);
+	}
+
+	/**
+	 * Extract the segment offset from a chunk ID.
+	 *
+	 * @param chunkID
+	 * 	a chunk ID handed out by a segmented stage
+	 * @return
+	 * 	the offset within the segment
+	 * @since 0.2
+	 */
+	public static long getSegmentOffset(long chunkID) {
+		return chunkID & SegmentedStage.OFFSET_MASK;
+	}
+
+	/**
+	 * Retrieve the base path of the segment files.
+	 *
+	 * @return
+	 * 	the base path given upon construction
+	 * @since 0.2
+	 */
+	public File getBasePath() {
+		return basePath;
+	}
+
+	/**
+	 * Retrieve the path of a segment file.
+	 *
+	 * @param segment
+	 * 	segment number
+	 * @return
+	 * 	the path of the file that does (or would)
+	 * 	hold the given segment
+	 * @since 0.2
+	 */
+	public File getSegmentPath(int segment) {
+		return new File(basePath.getAbsoluteFile().getParentFile(),
+				basePath.getName() + "." + String.format("%07d", segment));
+	}
+
+	/**
+	 * Retrieve the segment size.
+	 *
+	 * @return
+	 * 	the size beyond which segments are sealed
+	 * @since 0.2
+	 */
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Retrieve the number of the current segment.
+	 *
+	 * All segments with lower numbers are sealed.
+	 *
+	 * @return
+	 * 	the number of the segment being appended to
+	 * @since 0.2
+	 */
+	public int getCurrentSegment() {
+		return segments.length - 1;
+	}
+
+	/**
+	 * Retrieve the buffer pool of this stage.
+	 *
+	 * The pool is separate from those
+	 * of the individual segments.
+	 *
+	 * @return
+	 * 	the pool
+	 * @since 0.2
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Retrieve the number of bytes written before each chunk.
+	 *
+	 * Transactions on a segmented stage append each chunk
+	 * separately, since a chunk ID cannot be told before
+	 * it is known whether the chunk still fits into the
+	 * current segment.
+	 *
+	 * @return
+	 * 	the frame overhead of the segments
+	 * @since 0.2
+	 */
+	public int getFrameOverhead() {
+		return options.isFramed() ? ChunkFraming.FRAME_HEADER_SIZE : 0;
+	}
+
+	/**
+	 * Retrieve a segment.
+	 *
+	 * The returned stage <b>must not</b> be written to.
+	 *
+	 * @param segment
+	 * 	segment number
+	 * @return
+	 * 	the stage holding the given segment, or
+	 * 	<tt>null</tt> if no such segment exists
+	 * @since 0.2
+	 */
+	public StageFile getSegmentFile(int segment) {
+		StageFile[] current = segments;
+		return segment >= 0 && segment < current.length ? current[segment] : null;
+	}
+
+	private StageFile getSegmentForRead(long chunkID) {
+		if(chunkID < 0l)
+			throw new IllegalArgumentException("Negative position");
+		StageFile segment = getSegmentFile(SegmentedStage.getSegment(chunkID));
+		if(segment == null)
+			throw new ChunkOffsetOutOfRangeException(basePath, chunkID);
+		return segment;
+	}
+
+	/**
+	 * Read a chunk of data from the stage.
+	 *
+	 * See {@link StageFile#readChunk(ByteBuffer, long)}.
+	 * The region to be read must lie within a single
+	 * segment; reading from a dropped segment is treated
+	 * like reading beyond the end of a stage file.
+	 *
+	 * @param buffer
+	 * 	destination buffer into which read bytes
+	 * 	are placed
+	 * @param chunkID
+	 * 	chunk ID from which to read
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the chunk ID is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present in the
+	 * 	segment, or the segment does not exist
+	 * @throws ChunkReadIOException
+	 * 	if the underlying channel read fails with
+	 * 	an {@link IOException}
+	 * @since 0.2
+	 */
+	public void readChunk(ByteBuffer buffer, long chunkID) {
+		getSegmentForRead(chunkID).readChunk(buffer, SegmentedStage.getSegmentOffset(chunkID));
+	}
+
+	/**
+	 * Read several chunks of data from the stage at once.
+	 *
+	 * See {@link StageFile#readChunks(long[], ByteBuffer[])}.
+	 * The requests are grouped by segment, and each group
+	 * is passed on to its segment as a single batch.
+	 *
+	 * @param chunkIDs
+	 * 	chunk IDs from which to read
+	 * @param buffers
+	 * 	destination buffers, one per chunk ID
+	 * @since 0.2
+	 */
+	public void readChunks(long[] chunkIDs, ByteBuffer[] buffers) {
+		if(chunkIDs.length != buffers.length)
+			throw new IllegalArgumentException("Number of chunk IDs (" + chunkIDs.length
+					+ ") does not match number of buffers (" + buffers.length + ")");
+		boolean[] done = new boolean[chunkIDs.length];
+		for(int i = 0; i < chunkIDs.length; ++i) {
+			if(done[i])
+				continue;
+			int segment = SegmentedStage.getSegment(chunkIDs[i]);
+			int count = 0;
+			for(int j = i; j < chunkIDs.length; ++j) {
+				if(!done[j] && SegmentedStage.getSegment(chunkIDs[j]) == segment)
+					++count;
+			}
+			long[] offsets = new long[count];
+			ByteBuffer[] group = new ByteBuffer[count];
+			count = 0;
+			for(int j = i; j < chunkIDs.length; ++j) {
+				if(!done[j] && SegmentedStage.getSegment(chunkIDs[j]) == segment) {
+					offsets[count] = SegmentedStage.getSegmentOffset(chunkIDs[j]);
+					group[count++] = buffers[j];
+					done[j] = true;
+				}
+			}
+			getSegmentForRead(chunkIDs[i]).readChunks(offsets, group);
+		}
+	}
+
+	/**
+	 * Write a chunk of data to the stage.
+	 *
+	 * See {@link StageFile#writeChunk(ByteBuffer)}.
+	 * The chunk is appended to the current segment,
+	 * rolling over to a new segment first if the
+	 * current one has no room for the chunk.
+	 *
+	 * @param buffer
+	 * 	source buffer from which bytes to be written
+	 * 	are drawn
+	 * @return
+	 * 	resulting chunk ID of the chunk written
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws ChunkWriteIOException
+	 * 	if the underlying channel write fails
+	 * 	with an {@link IOException}, or a new
+	 * 	segment cannot be created
+	 * @since 0.2
+	 */
+	public long writeChunk(ByteBuffer buffer) {
+		for(;;) {
+			StageFile[] current = segments;
+			int segment = current.length - 1;
+			long offset = current[segment].appendChunk(buffer, segmentSize);
+			if(offset >= 0l)
+				return SegmentedStage.makeChunkID(segment, offset);
+			roll(segment);
+		}
+	}
+
+	/**
+	 * Write several chunks of data to the stage at once.
+	 *
+	 * See {@link StageFile#writeChunks(ByteBuffer[])}.
+	 * All chunks are appended to the same segment.
+	 *
+	 * @param buffers
+	 * 	source buffers from which the bytes of the
+	 * 	individual chunks are drawn
+	 * @return
+	 * 	the chunk IDs of the written chunks, in the
+	 * 	order of the <tt>buffers</tt>
+	 * @since 0.2
+	 */
+	public long[] writeChunks(ByteBuffer... buffers) {
+		for(;;) {
+			StageFile[] current = segments;
+			int segment = current.length - 1;
+			long[] ids = current[segment].appendChunks(buffers, segmentSize);
+			if(ids != null) {
+				for(int i = 0; i < ids.length; ++i)
+					ids[i] = SegmentedStage.makeChunkID(segment, ids[i]);
+				return ids;
+			}
+			roll(segment);
+		}
+	}
+
+	/**
+	 * Seal the given segment and start a new one.
+	 *
+	 * Does nothing if the given segment is no longer
+	 * current, meaning some other thread has already
+	 * rolled over.
+	 */
+	private void roll(int full) {
+		synchronized(rollLock) {
+			StageFile[] current = segments;
+			if(current.length - 1 != full)
+				return;
+			if(current.length > SegmentedStage.MAX_SEGMENT)
+				throw new IllegalStateException("Maximum number of segments exceeded in segmented stage "
+						+ basePath.getAbsolutePath());
+			current[full].sync();
+			StageFile next;
+			try {
+				next = new StageFile(getSegmentPath(current.length), true, options);
+			}
+			catch(IOException ioe) {
+				throw new ChunkWriteIOException(getSegmentPath(current.length), ioe);
+			}
+			StageFile[] grown = Arrays.copyOf(current, current.length + 1);
+			grown[current.length] = next;
+			segments = grown;
+		}
+	}
+
+	/**
+	 * Flush the current segment.
+	 *
+	 * See {@link StageFile#sync()}. Sealed
+	 * segments have been flushed already.
+	 *
+	 * @since 0.2
+	 */
+	public void sync() {
+		StageFile[] current = segments;
+		current[current.length - 1].sync();
+	}
+
+	/**
+	 * Drop a sealed segment.
+	 *
+	 * Closes and deletes the segment file. Chunks in
+	 * the segment can no longer be read afterwards.
+	 * This is meant for segments known to hold no live
+	 * chunks, such as after live chunks have been copied
+	 * elsewhere by compaction.
+	 *
+	 * @param segment
+	 * 	number of the segment to drop
+	 * @return
+	 * 	<tt>true</tt> if the segment existed
+	 * @throws IllegalArgumentException
+	 * 	if <tt>segment</tt> is the current segment
+	 * @throws IOException
+	 * 	if closing or deleting the file fails
+	 * @since 0.2
+	 */
+	public boolean dropSegment(int segment) throws IOException {
+		StageFile dropped;
+		synchronized(rollLock) {
+			StageFile[] current = segments;
+			if(segment == current.length - 1)
+				throw new IllegalArgumentException("Cannot drop current segment " + segment
+						+ " of segmented stage " + basePath.getAbsolutePath());
+			if(segment < 0 || segment >= current.length || current[segment] == null)
+				return false;
+			dropped = current[segment];
+			current = current.clone();
+			current[segment] = null;
+			segments = current;
+		}
+		dropped.close();
+		File file = dropped.getPath();
+		if(!file.delete() && file.exists())
+			throw new IOException("Failed to delete segment file " + file.getAbsolutePath());
+		return true;
+	}
+
+	/**
+	 * Close all segments.
+	 *
+	 * See {@link StageFile#close()}.
+	 *
+	 * @throws IOException
+	 * 	if an I/O error occurs when attempting
+	 * 	to close any of the segment files
+	 * @since 0.2
+	 */
+	public void close() throws IOException {
+		IOException failure = null;
+		for(StageFile segment : segments) {
+			if(segment == null)
+				continue;
+			try {
+				segment.close();
+			}
+			catch(IOException ioe) {
+				if(failure == null)
+					failure = ioe;
+			}
+		}
+		if(failure != null)
+			throw failure;
+	}
+
+}
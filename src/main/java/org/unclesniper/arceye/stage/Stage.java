@@ -0,0 +1,177 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only store of chunks of bytes.
+ *
+ * A stage is what the structures in this package
+ * (such as {@link History} and {@link ArcStack}) keep
+ * their nodes in. The contract is the one established
+ * by {@link StageFile}: each chunk
+ * {@link #writeChunk(ByteBuffer) appended} yields a
+ * non-negative <i>chunk ID</i>, and reading from a chunk
+ * ID will always yield the bytes originally written.
+ * Reads need not cover whole chunks; any region starting
+ * at a chunk ID and not exceeding the chunk may be read,
+ * and whether reads crossing chunk boundaries succeed
+ * is up to the implementation. Chunks written together
+ * via {@link #writeChunks(ByteBuffer[]) writeChunks}
+ * are adjacent. All operations are thread safe.
+ * <p>
+ * Implementations include {@link StageFile} itself
+ * (which keeps its chunks in a file, optionally
+ * {@link StageOptions#setMemoryMapped(boolean) memory-mapped}),
+ * {@link SegmentedStage}, {@link TieredStage},
+ * {@link CompressedStage} and {@link MemoryStage}, which
+ * keeps its chunks in memory only and never performs
+ * any I/O.
+ *
+ * @since 0.2
+ */
+public interface Stage extends Closeable {
+
+	/**
+	 * Retrieve the buffer pool associated with this stage.
+	 *
+	 * Structures stored in the stage should
+	 * acquire their I/O buffers from this pool.
+	 *
+	 * @return
+	 * 	the pool; never <tt>null</tt>
+	 * @since 0.2
+	 */
+	BufferPool getBufferPool();
+
+	/**
+	 * Read a chunk of data from the stage.
+	 *
+	 * Fills the <i>remaining</i> bytes of the
+	 * buffer and advances its <i>position</i>
+	 * accordingly. See
+	 * {@link StageFile#readChunk(ByteBuffer, long)}.
+	 *
+	 * @param buffer
+	 * 	destination buffer into which read bytes
+	 * 	are placed
+	 * @param chunkID
+	 * 	chunk ID from which to read
+	 * @throws IllegalArgumentException
+	 * 	if <tt>chunkID</tt> is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present
+	 * 	at the given <tt>chunkID</tt>
+	 * @since 0.2
+	 */
+	void readChunk(ByteBuffer buffer, long chunkID);
+
+	/**
+	 * Read several chunks of data from the stage at once.
+	 *
+	 * See {@link StageFile#readChunks(long[], ByteBuffer[])}.
+	 *
+	 * @param chunkIDs
+	 * 	chunk IDs from which to read
+	 * @param buffers
+	 * 	destination buffers, one per chunk ID
+	 * @throws IllegalArgumentException
+	 * 	if the arrays differ in length, or if
+	 * 	any chunk ID is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present for
+	 * 	any of the requested regions
+	 * @since 0.2
+	 */
+	void readChunks(long[] chunkIDs, ByteBuffer[] buffers);
+
+	/**
+	 * Append a chunk of data to the stage.
+	 *
+	 * Consumes the <i>remaining</i> bytes of the
+	 * buffer. See {@link StageFile#writeChunk(ByteBuffer)}.
+	 *
+	 * @param buffer
+	 * 	source buffer from which bytes to be written
+	 * 	are drawn
+	 * @return
+	 * 	resulting chunk ID of the chunk written
+	 * @since 0.2
+	 */
+	long writeChunk(ByteBuffer buffer);
+
+	/**
+	 * Append several chunks of data to the stage at once.
+	 *
+	 * The chunks end up adjacent, in the order given.
+	 * See {@link StageFile#writeChunks(ByteBuffer[])}.
+	 *
+	 * @param buffers
+	 * 	source buffers from which the bytes of the
+	 * 	individual chunks are drawn
+	 * @return
+	 * 	the chunk IDs of the written chunks, in the
+	 * 	order of the <tt>buffers</tt>
+	 * @since 0.2
+	 */
+	long[] writeChunks(ByteBuffer... buffers);
+
+	/**
+	 * Retrieve the number of bytes occupied before each chunk.
+	 *
+	 * Needed to size the reservation of a
+	 * {@link #beginTransaction(long) transaction}.
+	 *
+	 * @return
+	 * 	the size of the frame header of a
+	 * 	{@link StageOptions#isFramed() framed} stage;
+	 * 	zero unless overridden
+	 * @since 0.2
+	 */
+	default int getFrameOverhead() {
+		return 0;
+	}
+
+	/**
+	 * Begin a batch of appends.
+	 *
+	 * The <tt>capacity</tt> should cover the sizes of all
+	 * chunks to be appended in the transaction, plus
+	 * {@link #getFrameOverhead() the frame overhead} for
+	 * each of them. See {@link StageTransaction} for
+	 * details. The calling thread <b>must</b> end the
+	 * transaction, preferably via a
+	 * <tt>try</tt>-with-resources statement.
+	 * <p>
+	 * This default implementation returns a transaction
+	 * that merely {@link #writeChunk(ByteBuffer) appends}
+	 * each chunk as it is added. Stages able to tell the
+	 * chunk IDs of chunks ahead of time should override
+	 * it to append all chunks at once.
+	 *
+	 * @param capacity
+	 * 	estimated number of bytes the
+	 * 	transaction will occupy
+	 * @return
+	 * 	the open transaction
+	 * @throws IllegalArgumentException
+	 * 	if <tt>capacity</tt> is negative
+	 * @since 0.2
+	 */
+	default StageTransaction beginTransaction(long capacity) {
+		if(capacity < 0l)
+			throw new IllegalArgumentException("Negative transaction capacity: " + capacity);
+		return new UnbufferedTransaction(this, capacity);
+	}
+
+	/**
+	 * Make all chunks written so far durable.
+	 *
+	 * Does nothing for stages that do not
+	 * persist their chunks in the first place.
+	 *
+	 * @since 0.2
+	 */
+	void sync();
+
+}
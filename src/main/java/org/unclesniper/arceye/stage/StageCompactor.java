@@ -0,0 +1,301 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.Map;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Copies the live chunks of a stage into another stage.
+ *
+ * Since stages only ever grow, chunks no longer referenced
+ * by any structure (such as abandoned {@link History}
+ * branches or popped {@link ArcStack} nodes) remain in the
+ * file forever. The compactor starts from a set of
+ * {@link #addRoot(long, ChunkTracer) root chunks}, finds all
+ * chunks reachable from them and copies exactly those to a
+ * target stage, rewriting the references between them, and
+ * returns a {@link ChunkMapping} from old to new chunk IDs.
+ * Live structures can then be
+ * {@link History#relocate(Stage, ChunkMapping) re-pointed}
+ * to the target stage, and the source stage discarded.
+ * <p>
+ * Unlike {@link History#setStage(Stage)}, which copies
+ * the structure recursively through its object graph, the
+ * compactor works in two passes over the chunks themselves:
+ * <ol>
+ * 	<li>
+ * 		The reachable chunks are found by a traversal with
+ * 		an explicit work list (so the depth of a structure
+ * 		is not limited by the call stack), consulting the
+ * 		{@link ChunkTracer} of each chunk for its size and
+ * 		references. Only this metadata is retained.
+ * 	</li>
+ * 	<li>
+ * 		Since the chunks are copied in the order of their
+ * 		old IDs, and thus retain their relative order, the
+ * 		new ID of each chunk is known in advance. The chunks
+ * 		are then streamed in batches of up to
+ * 		{@link StageFile#MAX_GATHER_SIZE} bytes: each batch
+ * 		is read with a single (coalescing)
+ * 		{@link Stage#readChunks(long[], ByteBuffer[]) batch read},
+ * 		its references are patched in place and it is appended
+ * 		to the target with a single
+ * 		{@link StageFile#writeChunks(ByteBuffer[]) batch write}.
+ * 	</li>
+ * </ol>
+ * The memory needed is thus proportional to the number of
+ * live chunks (and their references), but not to their size.
+ * <p>
+ * The source stage must not be modified while the compactor
+ * runs, lest chunks written in the meantime be missed, and
+ * the target stage must not be written to by anyone else,
+ * lest the predicted chunk IDs be wrong; the latter is
+ * detected and reported as an {@link IllegalStateException}.
+ * The source may be any {@link Stage} (such as a
+ * {@link MemoryStage} being moved to disk), whereas the
+ * target must be a <tt>StageFile</tt>, so that the chunk
+ * IDs can be predicted. The target stage need not be empty.
+ *
+ * @since 0.2
+ */
+public final class StageCompactor {
+
+	private static final class LiveChunk {
+
+		final int size;
+
+		final int[] referencePositions;
+
+		LiveChunk(int size, int[] referencePositions) {
+			this.size = size;
+			this.referencePositions = referencePositions;
+		}
+
+	}
+
+	private static final class PendingChunk {
+
+		final long chunkID;
+
+		final ChunkTracer tracer;
+
+		PendingChunk(long chunkID, ChunkTracer tracer) {
+			this.chunkID = chunkID;
+			this.tracer = tracer;
+		}
+
+	}
+
+	private final Stage source;
+
+	private final StageFile target;
+
+	private final ArrayDeque<PendingChunk> roots = new ArrayDeque<PendingChunk>();
+
+	/**
+	 * Prepare to compact a stage.
+	 *
+	 * @param source
+	 * 	stage to copy live chunks from;
+	 * 	must not be <tt>null</tt>
+	 * @param target
+	 * 	stage to copy live chunks to;
+	 * 	must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if either stage is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if both stages are the same
+	 * @since 0.2
+	 */
+	public StageCompactor(Stage source, StageFile target) {
+		if(source == null || target == null)
+			throw new NullPointerException();
+		if(source == target)
+			throw new IllegalArgumentException("Cannot compact a stage into itself");
+		this.source = source;
+		this.target = target;
+	}
+
+	/**
+	 * Retrieve the source stage.
+	 *
+	 * @return
+	 * 	the stage live chunks are copied from
+	 * @since 0.2
+	 */
+	public Stage getSource() {
+		return source;
+	}
+
+	/**
+	 * Retrieve the target stage.
+	 *
+	 * @return
+	 * 	the stage live chunks are copied to
+	 * @since 0.2
+	 */
+	public StageFile getTarget() {
+		return target;
+	}
+
+	/**
+	 * Add a chunk from which to search for live chunks.
+	 *
+	 * Negative chunk IDs are ignored, so that IDs
+	 * of unsaved structures may be passed as is.
+	 *
+	 * @param chunkID
+	 * 	ID of a live chunk
+	 * @param tracer
+	 * 	tracer for that chunk; must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>tracer</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public void addRoot(long chunkID, ChunkTracer tracer) {
+		if(tracer == null)
+			throw new NullPointerException();
+		if(chunkID >= 0l)
+			roots.add(new PendingChunk(chunkID, tracer));
+	}
+
+	/**
+	 * Add several chunks from which to search for live chunks.
+	 *
+	 * @param chunkIDs
+	 * 	IDs of live chunks
+	 * @param tracer
+	 * 	tracer for those chunks; must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>chunkIDs</tt> or <tt>tracer</tt> is <tt>null</tt>
+	 * @since 0.2
+	 * @see #addRoot(long, ChunkTracer)
+	 */
+	public void addRoots(long[] chunkIDs, ChunkTracer tracer) {
+		for(long chunkID : chunkIDs)
+			addRoot(chunkID, tracer);
+	}
+
+	/**
+	 * Copy all chunks reachable from the roots.
+	 *
+	 * The roots are consumed, so the compactor may be
+	 * reused with new roots afterwards.
+	 *
+	 * @return
+	 * 	the mapping from the IDs of the chunks copied
+	 * 	to their IDs in the target stage
+	 * @throws IllegalStateException
+	 * 	if a tracer reports an invalid layout, or if the
+	 * 	target stage was written to concurrently
+	 * @throws ChunkReadIOException
+	 * 	if reading from the source stage fails
+	 * @throws ChunkWriteIOException
+	 * 	if writing to the target stage fails
+	 * @since 0.2
+	 */
+	public ChunkMapping compact() {
+		Map<Long, LiveChunk> live = mark();
+		long[] oldIDs = new long[live.size()];
+		int index = 0;
+		for(Long chunkID : live.keySet())
+			oldIDs[index++] = chunkID;
+		Arrays.sort(oldIDs);
+		LiveChunk[] chunks = new LiveChunk[oldIDs.length];
+		for(int i = 0; i < oldIDs.length; ++i)
+			chunks[i] = live.get(oldIDs[i]);
+		live = null;
+		long[] newIDs = new long[oldIDs.length];
+		int overhead = target.getFrameOverhead();
+		long next = target.getReservedEnd();
+		for(int i = 0; i < oldIDs.length; ++i) {
+			newIDs[i] = next + overhead;
+			next = newIDs[i] + chunks[i].size;
+		}
+		ChunkMapping mapping = new ChunkMapping(oldIDs, newIDs);
+		copy(chunks, mapping);
+		return mapping;
+	}
+
+	/**
+	 * Find all chunks reachable from the roots.
+	 */
+	private Map<Long, LiveChunk> mark() {
+		Map<Long, LiveChunk> live = new HashMap<Long, LiveChunk>();
+		ArrayDeque<PendingChunk> pending = new ArrayDeque<PendingChunk>(roots);
+		roots.clear();
+		ChunkLayout layout = new ChunkLayout();
+		PendingChunk chunk;
+		while((chunk = pending.pollLast()) != null) {
+			if(live.containsKey(chunk.chunkID))
+				continue;
+			layout.reset();
+			chunk.tracer.trace(source, chunk.chunkID, layout);
+			int size = layout.getSize();
+			if(size < 0)
+				throw new IllegalStateException("Tracer did not report the size of chunk " + chunk.chunkID);
+			int referenceCount = layout.getReferenceCount();
+			for(int i = 0; i < referenceCount; ++i) {
+				if(layout.getReferencePosition(i) > size - 8)
+					throw new IllegalStateException("Reference at position " + layout.getReferencePosition(i)
+							+ " exceeds chunk " + chunk.chunkID + " of size " + size);
+				long referenced = layout.getReferenceTarget(i);
+				if(!live.containsKey(referenced))
+					pending.add(new PendingChunk(referenced, layout.getReferenceTracer(i)));
+			}
+			live.put(chunk.chunkID, new LiveChunk(size, layout.copyReferencePositions()));
+		}
+		return live;
+	}
+
+	/**
+	 * Stream the live chunks to the target stage.
+	 */
+	private void copy(LiveChunk[] chunks, ChunkMapping mapping) {
+		BufferPool pool = target.getBufferPool();
+		int from = 0;
+		while(from < chunks.length) {
+			long total = chunks[from].size;
+			int to = from + 1;
+			while(to < chunks.length && total + chunks[to].size <= StageFile.MAX_GATHER_SIZE)
+				total += chunks[to++].size;
+			ByteBuffer block = pool.acquire((int)total);
+			try {
+				ByteBuffer[] slices = new ByteBuffer[to - from];
+				long[] oldIDs = new long[to - from];
+				for(int i = from; i < to; ++i) {
+					block.limit(block.position() + chunks[i].size);
+					slices[i - from] = block.slice();
+					block.position(block.limit());
+					oldIDs[i - from] = mapping.getOldID(i);
+				}
+				source.readChunks(oldIDs, slices);
+				for(int i = from; i < to; ++i) {
+					ByteBuffer slice = slices[i - from];
+					slice.flip();
+					for(int position : chunks[i].referencePositions) {
+						long referenced = slice.getLong(position);
+						long mapped = mapping.map(referenced);
+						if(referenced >= 0l && mapped < 0l)
+							throw new IllegalStateException("Chunk " + mapping.getOldID(i)
+									+ " references untraced chunk " + referenced + " at position " + position);
+						slice.putLong(position, mapped);
+					}
+				}
+				long[] written = target.writeChunks(slices);
+				for(int i = from; i < to; ++i) {
+					if(written[i - from] != mapping.getNewID(i))
+						throw new IllegalStateException("Target stage " + target.getPath().getAbsolutePath()
+								+ " was written to during compaction");
+				}
+			}
+			finally {
+				pool.release(block);
+			}
+			from = to;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package org.unclesniper.arceye.stage;
+
+/**
+ * Durability level of a stage.
+ *
+ * Determines when data {@link StageFile#writeChunk(java.nio.ByteBuffer) appended}
+ * to a {@link StageFile} is flushed to the storage device, and thus when a
+ * chunk is guaranteed to survive a crash or power failure. The level is
+ * chosen when the stage is {@link StageFile#StageFile(java.io.File, boolean, StageOptions) opened}
+ * and remains fixed for the lifetime of the stage object.
+ *
+ * @since 0.2
+ * @see StageOptions#setDurability(StageDurability)
+ */
+public enum StageDurability {
+
+	/**
+	 * Flush every single write.
+	 *
+	 * The file is opened with
+	 * {@link java.nio.file.StandardOpenOption#DSYNC DSYNC},
+	 * meaning each write returns only after its data has
+	 * reached the device. This is the behavior of stages
+	 * opened without explicit options.
+	 *
+	 * @since 0.2
+	 */
+	PER_WRITE,
+
+	/**
+	 * Flush concurrent writes together.
+	 *
+	 * Writes are performed without synchronous flushing.
+	 * Before a write returns its chunk ID, the writing
+	 * thread waits for a single
+	 * {@link java.nio.channels.FileChannel#force(boolean) force}
+	 * covering its chunk. One of the waiting threads
+	 * performs that force on behalf of all writes that
+	 * have completed by then, optionally after lingering
+	 * for the {@link StageOptions#getGroupCommitWindow() group commit window}
+	 * in order to collect more writes. Chunk IDs are thus
+	 * still only returned once their data is durable, but
+	 * the cost of a flush is shared among all writers.
+	 *
+	 * @since 0.2
+	 */
+	GROUP_COMMIT,
+
+	/**
+	 * Flush at most once per interval.
+	 *
+	 * Writes are performed without synchronous flushing.
+	 * A write that finds the last flush to be older than the
+	 * {@link StageOptions#getSyncInterval() sync interval}
+	 * flushes the file before returning. Chunks written in
+	 * between may be lost in a crash, but only those written
+	 * within the last interval before the last write (or
+	 * after the last explicit {@link StageFile#sync() sync}).
+	 * The file is also flushed when the stage is
+	 * {@link StageFile#close() closed}.
+	 *
+	 * @since 0.2
+	 */
+	PERIODIC,
+
+	/**
+	 * Never flush implicitly.
+	 *
+	 * Data reaches the device whenever the operating system
+	 * sees fit, or when {@link StageFile#sync() sync} is
+	 * called explicitly. This is appropriate for stages that
+	 * are not intended to survive the current session.
+	 *
+	 * @since 0.2
+	 */
+	NONE
+
+}
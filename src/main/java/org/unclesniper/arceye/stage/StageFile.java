@@ -1,13 +1,33 @@
 package org.unclesniper.arceye.stage;
 
 import java.io.File;
-import java.io.Closeable;
+import java.util.Arrays;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 import java.nio.file.OpenOption;
+import javax.management.ObjectName;
+import javax.management.JMException;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.FutureTask;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.SynchronousQueue;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * On-disk storage for large data structures.
@@ -72,6 +92,17 @@ import java.nio.channels.ClosedChannelException;
  * 		<tt>K + N &lt;= 10</tt>.
  * 	</li>
  * </ul>
+ * The exception to this is a stage opened in
+ * {@link StageOptions#isFramed() framed} mode, in which
+ * each chunk is preceded by a small header holding its
+ * length and checksum, so that a torn tail can be
+ * detected and discarded when the file is reopened.
+ * Chunk IDs still denote the first byte of the chunk
+ * proper, but reads spanning several chunks will see
+ * the headers in between. Likewise, a stage opened with
+ * {@link StageOptions#getPreallocationExtent() preallocation}
+ * starts with a small header holding its logical end, so
+ * the first chunk ID is not zero.
  * <p>
  * It shall be noted that reads and writes are thread
  * safe with the granularity of these operations. If
@@ -99,7 +130,30 @@ import java.nio.channels.ClosedChannelException;
  *
  * @since 0.1
  */
-public final class StageFile implements Closeable {
+public final class StageFile implements Stage {
+
+	/**
+	 * Maximum size of the staging buffer used by
+	 * {@link #writeChunks(ByteBuffer[]) writeChunks}.
+	 *
+	 * Equates 1 MiB. Batches exceeding this size are
+	 * written in several steps.
+	 *
+	 * @since 0.2
+	 */
+	public static final int MAX_GATHER_SIZE = 1024 * 1024;
+
+	/**
+	 * Maximum gap between coalesced reads.
+	 *
+	 * {@link #readChunks(long[], ByteBuffer[]) readChunks}
+	 * merges two requested regions into a single read if
+	 * no more than this many bytes lie between them.
+	 * Equates 4 KiB.
+	 *
+	 * @since 0.2
+	 */
+	public static final int MAX_COALESCE_GAP = 4 * 1024;
 
 	/**
 	 * Options for non-truncating open.
@@ -131,6 +185,51 @@ public final class StageFile implements Closeable {
 	 */
 	private static final OpenOption[] TRUNC_OPTIONS;
 
+	/**
+	 * Options for non-truncating open without synchronous writes.
+	 *
+	 * Used instead of {@link #NOTRUNC_OPTIONS} if the
+	 * {@link StageOptions#getDurability() durability level}
+	 * is anything but {@link StageDurability#PER_WRITE}.
+	 * Contains the same options as <tt>NOTRUNC_OPTIONS</tt>,
+	 * except {@link StandardOpenOption#DSYNC}, since flushing
+	 * is then performed explicitly.
+	 *
+	 * @since 0.2
+	 */
+	private static final OpenOption[] BUFFERED_NOTRUNC_OPTIONS;
+
+	/**
+	 * Options for truncating open without synchronous writes.
+	 *
+	 * Contains the same options as {@link #BUFFERED_NOTRUNC_OPTIONS},
+	 * plus {@link StandardOpenOption#TRUNCATE_EXISTING}.
+	 *
+	 * @since 0.2
+	 */
+	private static final OpenOption[] BUFFERED_TRUNC_OPTIONS;
+
+	/**
+	 * Options for read-only open.
+	 *
+	 * Used if the stage is
+	 * {@link StageOptions#isReadOnly() read-only}.
+	 * Contains only {@link StandardOpenOption#READ}.
+	 *
+	 * @since 0.2
+	 */
+	private static final OpenOption[] READ_ONLY_OPTIONS;
+
+	/**
+	 * Number of read-only stages opened so far.
+	 *
+	 * Used to tell the MBeans of read-only stages
+	 * opened on the same file apart.
+	 *
+	 * @since 0.2
+	 */
+	private static final AtomicLong READ_ONLY_INSTANCES = new AtomicLong();
+
 	static {
 		NOTRUNC_OPTIONS = new OpenOption[] {
 			StandardOpenOption.READ,
@@ -138,10 +237,25 @@ public final class StageFile implements Closeable {
 			StandardOpenOption.CREATE,
 			StandardOpenOption.DSYNC
 		};
-		TRUNC_OPTIONS = new OpenOption[NOTRUNC_OPTIONS.length + 1];
-		for(int i = 0; i < NOTRUNC_OPTIONS.length; ++i)
-			TRUNC_OPTIONS[i] = NOTRUNC_OPTIONS[i];
-		TRUNC_OPTIONS[NOTRUNC_OPTIONS.length] = StandardOpenOption.TRUNCATE_EXISTING;
+		TRUNC_OPTIONS = StageFile.withOption(NOTRUNC_OPTIONS, StandardOpenOption.TRUNCATE_EXISTING);
+		BUFFERED_NOTRUNC_OPTIONS = new OpenOption[] {
+			StandardOpenOption.READ,
+			StandardOpenOption.WRITE,
+			StandardOpenOption.CREATE
+		};
+		BUFFERED_TRUNC_OPTIONS = StageFile.withOption(BUFFERED_NOTRUNC_OPTIONS,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		READ_ONLY_OPTIONS = new OpenOption[] {
+			StandardOpenOption.READ
+		};
+	}
+
+	private static OpenOption[] withOption(OpenOption[] options, OpenOption option) {
+		OpenOption[] result = new OpenOption[options.length + 1];
+		for(int i = 0; i < options.length; ++i)
+			result[i] = options[i];
+		result[options.length] = option;
+		return result;
 	}
 
 	/**
@@ -166,8 +280,9 @@ public final class StageFile implements Closeable {
 	/**
 	 * The big stage lock.
 	 *
-	 * Write operations synchronize on this object.
-	 * Furthermore, since
+	 * {@link #sequence(Runnable) Sequenced} operations
+	 * and {@link #close() closing} synchronize on this
+	 * object. Furthermore, since
 	 * {@link #reopen(boolean) reopening} the
 	 * underlying file might be necessary, and
 	 * doing so involves creating a new channel,
@@ -181,6 +296,236 @@ public final class StageFile implements Closeable {
 	 */
 	private final Object lock = new Object();
 
+	/**
+	 * Gate separating appends from sequenced operations.
+	 *
+	 * {@link #writeChunk(ByteBuffer) Appends} hold the
+	 * read lock while their range is reserved and written,
+	 * such that any number of them may proceed concurrently.
+	 * {@link #sequence(Runnable) Sequenced} operations hold
+	 * the write lock, which excludes all appends (other
+	 * than by the sequenced task itself) and makes it safe
+	 * for the task to append to the channel directly.
+	 * {@link StageTransaction Transactions} hold the read
+	 * lock from beginning to end.
+	 *
+	 * @since 0.2
+	 */
+	private final ReadWriteLock appendGate = new ReentrantReadWriteLock();
+
+	/**
+	 * Logical end of the stage and visibility watermark.
+	 *
+	 * Appends reserve their offset range here instead of
+	 * consulting the size of the file.
+	 *
+	 * @since 0.2
+	 */
+	private final AppendTracker tracker;
+
+	/**
+	 * Options the stage was opened with.
+	 *
+	 * This is a private copy and is never modified.
+	 *
+	 * @since 0.2
+	 */
+	private final StageOptions options;
+
+	/**
+	 * Options to use when {@link #reopen(boolean) reopening}.
+	 *
+	 * Either {@link #NOTRUNC_OPTIONS} or
+	 * {@link #BUFFERED_NOTRUNC_OPTIONS}, depending
+	 * on the durability level.
+	 *
+	 * @since 0.2
+	 */
+	private final OpenOption[] reopenOptions;
+
+	/**
+	 * Flush monitor.
+	 *
+	 * Guards {@link #durableEnd} and {@link #syncing}.
+	 * Threads waiting for a group commit wait on
+	 * this object. This is deliberately distinct from
+	 * {@link #lock}, so that writes may proceed while
+	 * the file is being flushed.
+	 *
+	 * @since 0.2
+	 */
+	private final Object syncLock = new Object();
+
+	/**
+	 * End offset of the data known to have been flushed.
+	 *
+	 * Guarded by {@link #syncLock}.
+	 *
+	 * @since 0.2
+	 */
+	private long durableEnd;
+
+	/**
+	 * Whether some thread is currently flushing the file.
+	 *
+	 * Guarded by {@link #syncLock}.
+	 *
+	 * @since 0.2
+	 */
+	private boolean syncing;
+
+	/**
+	 * End of the space allocated in the file.
+	 *
+	 * Only used if the stage is
+	 * {@link StageOptions#getPreallocationExtent() preallocated},
+	 * in which case no write may extend beyond this offset
+	 * until the file has been grown past the end of the
+	 * write. Only ever increases, and only while holding
+	 * {@link #extentLock}.
+	 *
+	 * @since 0.2
+	 */
+	private volatile long allocatedEnd;
+
+	/**
+	 * Serializes growing a preallocated file.
+	 *
+	 * @since 0.2
+	 * @see #allocate(long)
+	 */
+	private final Object extentLock = new Object();
+
+	/**
+	 * Offset of a range that could neither be written nor padded.
+	 *
+	 * <tt>-1</tt> unless a write to a
+	 * {@link StageOptions#isFramed() framed} stage failed
+	 * and so did filling its range with padding (see
+	 * {@link #abandon(long, long, RuntimeException)}).
+	 * Recovery would truncate the file at that range, so
+	 * the stage refuses to append once this is set, and
+	 * appends ending past the range fail to commit.
+	 * Only ever set while holding {@link #lock}, after
+	 * {@link #failure}.
+	 *
+	 * @since 0.2
+	 */
+	private volatile long failedAt = -1l;
+
+	/**
+	 * Reason for {@link #failedAt}.
+	 *
+	 * @since 0.2
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Memory mapped windows, if reads are mapped.
+	 *
+	 * <tt>null</tt> unless
+	 * {@link StageOptions#isMemoryMapped() memory mapping}
+	 * was requested.
+	 *
+	 * @since 0.2
+	 */
+	private final StageMapping mapping;
+
+	/**
+	 * Pool of I/O threads owned by this stage.
+	 *
+	 * Created lazily by {@link #getIOExecutor()} unless an
+	 * {@link StageOptions#getIOExecutor() I/O executor}
+	 * was given, and shut down by {@link #close()}.
+	 * Guarded by {@link #executorLock}.
+	 *
+	 * @since 0.2
+	 */
+	private ThreadPoolExecutor ownExecutor;
+
+	/**
+	 * Pool of carrier threads owned by this stage.
+	 *
+	 * Created lazily by {@link #carry(Callable)} if the
+	 * stage is {@link StageOptions#isUninterruptible() uninterruptible},
+	 * and shut down by {@link #close()}.
+	 * Guarded by {@link #executorLock}.
+	 *
+	 * @since 0.2
+	 */
+	private ThreadPoolExecutor carrierExecutor;
+
+	/**
+	 * Whether channel operations run on carrier threads.
+	 *
+	 * Caches {@link StageOptions#isUninterruptible()}.
+	 *
+	 * @since 0.2
+	 */
+	private final boolean carriers;
+
+	/**
+	 * Monitor guarding {@link #ownExecutor}
+	 * and {@link #carrierExecutor}.
+	 *
+	 * @since 0.2
+	 */
+	private final Object executorLock = new Object();
+
+	/**
+	 * Block cache, if reads are cached.
+	 *
+	 * <tt>null</tt> unless a positive
+	 * {@link StageOptions#getCacheBudget() cache budget}
+	 * was requested and reads are not memory mapped.
+	 *
+	 * @since 0.2
+	 */
+	private final BlockCache cache;
+
+	/**
+	 * Loads blocks into the {@link #cache}.
+	 *
+	 * @since 0.2
+	 */
+	private final BlockCache.Loader cacheLoader = this::readDirect;
+
+	/**
+	 * Time of the last flush, as per {@link System#nanoTime()}.
+	 *
+	 * Only used for {@link StageDurability#PERIODIC}.
+	 *
+	 * @since 0.2
+	 */
+	private volatile long lastSync;
+
+	/**
+	 * I/O statistics.
+	 *
+	 * <tt>null</tt> unless the stage is
+	 * {@link StageOptions#isMonitored() monitored}.
+	 *
+	 * @since 0.2
+	 */
+	private final StageStatistics statistics;
+
+	/**
+	 * Direct buffers for staging I/O.
+	 *
+	 * @since 0.2
+	 */
+	private final BufferPool bufferPool = new BufferPool();
+
+	/**
+	 * Name under which {@link #statistics} are
+	 * registered with the platform MBean server,
+	 * or <tt>null</tt> if not registered.
+	 * Guarded by {@link #lock}.
+	 *
+	 * @since 0.2
+	 */
+	private ObjectName mbeanName;
+
 	/**
 	 * Open a stage file.
 	 *
@@ -218,8 +563,165 @@ public final class StageFile implements Closeable {
 	 * @since 0.1
 	 */
 	public StageFile(File path, boolean truncate) throws IOException {
+		this(path, truncate, null);
+	}
+
+	/**
+	 * Open a stage file with the given options.
+	 *
+	 * Behaves like {@link #StageFile(File, boolean)},
+	 * except that the behavior of the stage is tuned
+	 * as per the given <tt>options</tt>. In particular,
+	 * the {@link StageOptions#getDurability() durability level}
+	 * determines whether the file is opened with
+	 * {@link StandardOpenOption#DSYNC DSYNC} and
+	 * how written chunks are flushed to the device.
+	 * <p>
+	 * If the stage is {@link StageOptions#isFramed() framed}
+	 * and is not truncated, all frames are validated before
+	 * this constructor returns, verifying checksums in
+	 * parallel on the {@link StageOptions#getIOExecutor() I/O executor},
+	 * and the file is truncated to the end of the last intact
+	 * frame preceding the first incomplete or corrupt one.
+	 * <p>
+	 * If the stage is
+	 * {@link StageOptions#getPreallocationExtent() preallocated}
+	 * and is not truncated, the logical end of the stage is
+	 * taken from the file header rather than from the size
+	 * of the file.
+	 * <p>
+	 * If the stage is {@link StageOptions#isReadOnly() read-only},
+	 * the file is opened for reading only and is never
+	 * modified, not even by the recovery of a framed stage
+	 * (which merely ignores a torn tail instead of cutting
+	 * it off), and reads are always memory mapped.
+	 *
+	 * @param path
+	 * 	pathname of stage file to be opened;
+	 * 	must not be <tt>null</tt>
+	 * @param truncate
+	 * 	<tt>true</tt> if and only if stage file should be
+	 * 	truncated to zero length
+	 * @param options
+	 * 	tunables for the stage, or <tt>null</tt>
+	 * 	to use the defaults
+	 * @throws NullPointerException
+	 * 	if <tt>path</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the <tt>options</tt> request both framing
+	 * 	and preallocation, or if a read-only stage
+	 * 	is to be truncated
+	 * @throws IOException
+	 * 	if an I/O error occurs when attemping to open the file,
+	 * 	or if the stage is framed or preallocated but the file
+	 * 	is nonempty (or read-only) and does not start with the
+	 * 	magic number of the respective format
+	 *
+	 * @since 0.2
+	 */
+	public StageFile(File path, boolean truncate, StageOptions options) throws IOException {
 		this.path = path;
-		channel = FileChannel.open(path.toPath(), truncate ? StageFile.TRUNC_OPTIONS : StageFile.NOTRUNC_OPTIONS);
+		this.options = options == null ? new StageOptions() : new StageOptions(options);
+		if(this.options.isFramed() && this.options.getPreallocationExtent() > 0l)
+			throw new IllegalArgumentException("Framed stages cannot be preallocated");
+		if(this.options.isReadOnly() && truncate)
+			throw new IllegalArgumentException("Cannot truncate a read-only stage");
+		carriers = this.options.isUninterruptible();
+		OpenOption[] openOptions;
+		if(this.options.isReadOnly())
+			reopenOptions = openOptions = StageFile.READ_ONLY_OPTIONS;
+		else if(this.options.getDurability() == StageDurability.PER_WRITE) {
+			reopenOptions = StageFile.NOTRUNC_OPTIONS;
+			openOptions = truncate ? StageFile.TRUNC_OPTIONS : StageFile.NOTRUNC_OPTIONS;
+		}
+		else {
+			reopenOptions = StageFile.BUFFERED_NOTRUNC_OPTIONS;
+			openOptions = truncate ? StageFile.BUFFERED_TRUNC_OPTIONS : StageFile.BUFFERED_NOTRUNC_OPTIONS;
+		}
+		mapping = this.options.isMemoryMapped() || this.options.isReadOnly()
+				? new StageMapping(this.options.getMapWindowSize()) : null;
+		cache = mapping == null && this.options.getCacheBudget() > 0l
+				? new BlockCache(this.options.getCacheBudget(), this.options.getCacheBlockSize(),
+						this.options.isCacheOffHeap())
+				: null;
+		channel = FileChannel.open(path.toPath(), openOptions);
+		if(this.options.isFramed()) {
+			try {
+				durableEnd = ChunkFraming.recover(channel, path, getIOExecutor(), this.options.isReadOnly());
+			}
+			catch(IOException | RuntimeException e) {
+				closeAfterFailure();
+				throw e;
+			}
+			tracker = new AppendTracker(durableEnd, ChunkFraming.FILE_HEADER_SIZE);
+		}
+		else if(this.options.getPreallocationExtent() > 0l) {
+			try {
+				durableEnd = Preallocation.recover(channel, path, this.options.isReadOnly());
+				allocatedEnd = channel.size();
+			}
+			catch(IOException | RuntimeException e) {
+				closeAfterFailure();
+				throw e;
+			}
+			tracker = new AppendTracker(durableEnd, Preallocation.FILE_HEADER_SIZE);
+		}
+		else {
+			durableEnd = channel.size();
+			tracker = new AppendTracker(durableEnd, 0l);
+		}
+		lastSync = System.nanoTime();
+		if(this.options.isMonitored()) {
+			statistics = new StageStatistics(path.getAbsolutePath());
+			try {
+				mbeanName = new ObjectName("org.unclesniper.arceye.stage:type=StageFile,path="
+						+ ObjectName.quote(path.getAbsolutePath()) + (this.options.isReadOnly()
+						? ",instance=" + StageFile.READ_ONLY_INSTANCES.incrementAndGet() : ""));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, mbeanName);
+			}
+			catch(JMException jme) {
+				closeAfterFailure();
+				throw new IOException("Failed to register MBean for stage file " + path.getAbsolutePath(), jme);
+			}
+		}
+		else
+			statistics = null;
+	}
+
+	/**
+	 * Release what a failed constructor has acquired.
+	 *
+	 * Called if the constructor throws after the channel
+	 * has been opened, by which time framed recovery may
+	 * already have created the {@link #ownExecutor}.
+	 *
+	 * @throws IOException
+	 * 	if closing the channel fails
+	 * @since 0.2
+	 */
+	private void closeAfterFailure() throws IOException {
+		shutdownExecutors();
+		channel.close();
+	}
+
+	/**
+	 * Shut down the executors owned by this stage, if any.
+	 *
+	 * They are created anew should they be needed again.
+	 *
+	 * @since 0.2
+	 */
+	private void shutdownExecutors() {
+		synchronized(executorLock) {
+			if(ownExecutor != null) {
+				ownExecutor.shutdown();
+				ownExecutor = null;
+			}
+			if(carrierExecutor != null) {
+				carrierExecutor.shutdown();
+				carrierExecutor = null;
+			}
+		}
 	}
 
 	/**
@@ -235,9 +737,15 @@ public final class StageFile implements Closeable {
 	 */
 	private void reopen(boolean forRead) {
 		try {
+			long waitStart = statistics == null ? 0l : System.nanoTime();
 			synchronized(lock) {
-				if(!channel.isOpen())
-					channel = FileChannel.open(path.toPath(), StageFile.NOTRUNC_OPTIONS);
+				if(statistics != null)
+					statistics.recordLockWait(System.nanoTime() - waitStart);
+				if(!channel.isOpen()) {
+					channel = FileChannel.open(path.toPath(), reopenOptions);
+					if(statistics != null)
+						statistics.recordReopen();
+				}
 			}
 		}
 		catch(IOException ioe) {
@@ -310,12 +818,16 @@ public final class StageFile implements Closeable {
 	 * 	<li>
 	 * 		flush the file. Note that the file will
 	 * 		be open with
-	 * 		{@link StandardOpenOption#DSYNC data synchronicity},
-	 * 		so explicit flushes will be unnecessary in
-	 * 		many cases. If this is
+	 * 		{@link StandardOpenOption#DSYNC data synchronicity}
+	 * 		unless a weaker
+	 * 		{@link #getDurability() durability level}
+	 * 		was requested, so explicit flushes will be
+	 * 		unnecessary in many cases. If this is
 	 * 		{@link StandardOpenOption#SYNC not sufficient},
 	 * 		the caller may nonetheless flush the file
 	 * 		{@link FileChannel#force(boolean) explicitly}.
+	 * 		Prefer {@link #sync() sync} for flushing
+	 * 		data only.
 	 * 	</li>
 	 * </ul>
 	 * Note that the identity of the channel being used
@@ -336,6 +848,67 @@ public final class StageFile implements Closeable {
 		return channel;
 	}
 
+	/**
+	 * Retrieve the durability level.
+	 *
+	 * @return
+	 * 	the {@link StageOptions#getDurability() durability level}
+	 * 	the stage was opened with
+	 * @since 0.2
+	 */
+	public StageDurability getDurability() {
+		return options.getDurability();
+	}
+
+	/**
+	 * Retrieve the I/O statistics of the stage.
+	 *
+	 * The returned object is the one registered with the
+	 * platform MBean server while the stage is open; it
+	 * keeps counting even after the stage has been
+	 * {@link #close() closed} (and thus unregistered),
+	 * as the stage remains usable.
+	 *
+	 * @return
+	 * 	the live statistics, or <tt>null</tt> unless
+	 * 	the stage is {@link StageOptions#isMonitored() monitored}
+	 * @since 0.2
+	 */
+	public StageFileMXBean getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Retrieve the buffer pool of the stage.
+	 *
+	 * The stage stages gathered writes and coalesced
+	 * reads in buffers from this pool; structures stored
+	 * in the stage should use it for their own I/O
+	 * buffers, too.
+	 *
+	 * @return
+	 * 	the pool of direct buffers owned by this stage
+	 * @since 0.2
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Retrieve the number of bytes written before each chunk.
+	 *
+	 * Needed to size the reservation of a
+	 * {@link #beginTransaction(long) transaction}.
+	 *
+	 * @return
+	 * 	the size of the frame header if the stage is
+	 * 	{@link StageOptions#isFramed() framed}, or else zero
+	 * @since 0.2
+	 */
+	public int getFrameOverhead() {
+		return options.isFramed() ? ChunkFraming.FRAME_HEADER_SIZE : 0;
+	}
+
 	/**
 	 * Close the underlying file channel.
 	 *
@@ -353,6 +926,19 @@ public final class StageFile implements Closeable {
 	 * reopened. See
 	 * {@link #readChunk(ByteBuffer, long) readChunk}
 	 * for details.
+	 * <p>
+	 * If the stage is
+	 * {@link StageOptions#isMonitored() monitored},
+	 * its MBean is unregistered; reopening the
+	 * channel does not register it again. If it is
+	 * {@link StageOptions#getPreallocationExtent() preallocated},
+	 * all data is flushed and the logical end is recorded
+	 * before the channel is closed, regardless of the
+	 * {@link #getDurability() durability level}. If it is
+	 * {@link StageOptions#isFramed() framed}, the data is
+	 * likewise flushed and the recovery watermark moved
+	 * past it, unless the durability level is
+	 * {@link StageDurability#NONE}.
 	 *
 	 * @throws IOException
 	 * 	if an I/O error occurs when attempting
@@ -360,9 +946,27 @@ public final class StageFile implements Closeable {
 	 * @since 0.1
 	 */
 	public void close() throws IOException {
+		if(!options.isReadOnly() && (options.getPreallocationExtent() > 0l
+				|| (options.isFramed() && options.getDurability() != StageDurability.NONE)))
+			awaitDurable(tracker.getVisibleEnd(), 0l);
+		shutdownExecutors();
 		synchronized(lock) {
-			if(channel.isOpen())
+			if(mbeanName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+				}
+				catch(JMException jme) {
+					// someone else unregistered it; nothing left to do
+				}
+				mbeanName = null;
+			}
+			if(mapping != null)
+				mapping.clear();
+			if(channel.isOpen()) {
+				if(options.getDurability() == StageDurability.PERIODIC && !options.isReadOnly())
+					channel.force(false);
 				channel.close();
+			}
 		}
 	}
 
@@ -467,6 +1071,41 @@ public final class StageFile implements Closeable {
 	 * <tt>ChunkReadIOException</tt> will be thrown
 	 * accordingly.
 	 * <p>
+	 * Note that the channel also closes itself if a
+	 * thread is interrupted while performing I/O on it,
+	 * failing the operations of all other threads using
+	 * it at the time, which then reopen it. The interrupt
+	 * status is cleared for the duration of the read and
+	 * restored afterwards, but an interrupt arriving during
+	 * the read still closes the channel. If the stage is
+	 * {@link StageOptions#isUninterruptible() uninterruptible},
+	 * all channel operations are instead performed on
+	 * dedicated carrier threads, which are never interrupted,
+	 * while the calling thread waits for them; interrupts
+	 * arriving in the meantime are merely recorded in the
+	 * interrupt status of the calling thread.
+	 * <p>
+	 * If the stage was opened with a
+	 * {@link StageOptions#getCacheBudget() block cache},
+	 * bytes in blocks that lie entirely below the
+	 * {@link #getVisibleEnd() visible end} are copied
+	 * from the cache, loading the respective blocks into
+	 * the cache first if necessary. Concurrent reads
+	 * missing the same block cause only one read from
+	 * the channel. Bytes beyond the last complete block
+	 * are read as described above.
+	 * <p>
+	 * If the stage was opened with
+	 * {@link StageOptions#isMemoryMapped() memory mapping}
+	 * enabled, bytes already written via
+	 * {@link #writeChunk(ByteBuffer) writeChunk} are copied
+	 * from mapped windows of the file instead of being read
+	 * from the channel. Any part of the region not covered
+	 * by a mapped window (such as the most recently appended
+	 * bytes, or bytes appended other than via this class)
+	 * is read from the channel as described above, so the
+	 * observable semantics are the same in either case.
+	 * <p>
 	 * This method is thread safe in the face of
 	 * concurrent calls to itself,
 	 * {@link #writeChunk(ByteBuffer) writeChunk},
@@ -501,15 +1140,79 @@ public final class StageFile implements Closeable {
 	 * @since 0.1
 	 */
 	public void readChunk(ByteBuffer buffer, long offset) {
+		if(statistics == null) {
+			readRegion(buffer, offset);
+			return;
+		}
+		long start = System.nanoTime();
+		int origin = buffer.position();
+		readRegion(buffer, offset);
+		statistics.recordRead(1, buffer.position() - origin, System.nanoTime() - start);
+	}
+
+	/**
+	 * Read a region of the stage.
+	 *
+	 * Implements {@link #readChunk(ByteBuffer, long) readChunk},
+	 * but does not record {@link #statistics}.
+	 *
+	 * @param buffer
+	 * 	destination buffer
+	 * @param offset
+	 * 	file offset to start reading at
+	 * @since 0.2
+	 */
+	private void readRegion(ByteBuffer buffer, long offset) {
+		if((mapping != null || cache != null) && offset < 0l)
+			throw new IllegalArgumentException("Negative position");
+		if(cache != null)
+			offset += cache.read(cacheLoader, buffer, offset, tracker.getVisibleEnd());
+		readDirect(buffer, offset);
+	}
+
+	/**
+	 * Read a chunk of data, bypassing the block cache.
+	 *
+	 * Implements {@link #readChunk(ByteBuffer, long) readChunk}
+	 * (via the memory mapping, if any, or else the channel)
+	 * and is used by the {@link #cache block cache} to load
+	 * blocks.
+	 *
+	 * @param buffer
+	 * 	destination buffer
+	 * @param offset
+	 * 	file offset to start reading at
+	 * @since 0.2
+	 */
+	private void readDirect(ByteBuffer buffer, long offset) {
+		if(options.getPreallocationExtent() > 0l) {
+			// the preallocated space would read as zeros instead of EOF
+			long end = tracker.getReservedEnd();
+			if(offset + buffer.remaining() > end)
+				throw new ChunkOffsetOutOfRangeException(path, Math.max(offset, end));
+		}
 		boolean interrupted;
+		int origin = buffer.position();
+		long base = offset;
 		for(;;) {
 			interrupted = Thread.interrupted();
 			try {
+				if(mapping != null) {
+					long position = base + (buffer.position() - origin);
+					if(carriers)
+						carry(() -> mapping.read(channel, buffer, position, tracker.getVisibleEnd()));
+					else
+						mapping.read(channel, buffer, position, tracker.getVisibleEnd());
+					offset = base + (buffer.position() - origin);
+				}
 				while(buffer.remaining() > 0) {
-					int count = channel.read(buffer, offset);
+					long position = offset;
+					int count = carriers ? carry(() -> channel.read(buffer, position)) : channel.read(buffer, offset);
 					if(count < 0)
 						throw new ChunkOffsetOutOfRangeException(path, offset);
 					offset += count;
+					if(statistics != null && buffer.remaining() > 0)
+						statistics.recordShortRead();
 				}
 				break;
 			}
@@ -527,15 +1230,339 @@ public final class StageFile implements Closeable {
 	}
 
 	/**
-	 * Write a chunk of data to the stage file.
+	 * Read a chunk of data from the stage file asynchronously.
 	 *
-	 * The <tt>buffer</tt> indicates the source of
-	 * the bytes to be written: The <i>remaining</i>
-	 * size (id est, the difference between its
-	 * <i>limit</i> and its <i>position</i>) is
-	 * appended to the file with bytes taken from
-	 * the buffer starting at its <i>position</i>.
-	 * This method is analogous to
+	 * Schedules a {@link #readChunk(ByteBuffer, long) readChunk}
+	 * of the given arguments on an I/O thread and returns
+	 * immediately. The returned future completes with the
+	 * <tt>buffer</tt> itself once the read has succeeded, or
+	 * exceptionally with whatever exception <tt>readChunk</tt>
+	 * would have thrown, in particular
+	 * {@link ChunkOffsetOutOfRangeException} and
+	 * {@link ChunkReadIOException}. Short reads are retried
+	 * and closed channels reopened just as with the
+	 * synchronous operation, as the same code path is used.
+	 * Several asynchronous reads may thus be in flight at
+	 * the same time, overlapping their latencies.
+	 * <p>
+	 * The I/O thread is taken from the
+	 * {@link StageOptions#getIOExecutor() I/O executor}
+	 * if one was given, or else from a pool of up to
+	 * {@link StageOptions#getIOThreads() a fixed number}
+	 * of daemon threads owned by the stage. That pool is
+	 * created on first use, shut down by
+	 * {@link #close() close} (after the tasks already
+	 * submitted have run) and recreated as necessary,
+	 * in keeping with the reopen semantics. Interrupting
+	 * the calling thread has no effect on the read, and
+	 * cancelling the returned future does not interrupt
+	 * the I/O thread.
+	 * <p>
+	 * The caller <b>must not</b> access the <tt>buffer</tt>
+	 * until the returned future has completed.
+	 *
+	 * @param buffer
+	 * 	destination buffer into which read bytes
+	 * 	are placed
+	 * @param offset
+	 * 	<i>chunk ID</i> (id est, file offset) from
+	 * 	which to read
+	 * @return
+	 * 	a future completing with <tt>buffer</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the position is negative
+	 * @since 0.2
+	 */
+	public CompletableFuture<ByteBuffer> readChunkAsync(ByteBuffer buffer, long offset) {
+		if(buffer == null)
+			throw new NullPointerException();
+		if(offset < 0l)
+			throw new IllegalArgumentException("Negative position");
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		Runnable task = () -> {
+			try {
+				readChunk(buffer, offset);
+				future.complete(buffer);
+			}
+			catch(Throwable t) {
+				future.completeExceptionally(t);
+			}
+		};
+		for(;;) {
+			try {
+				getIOExecutor().execute(task);
+				return future;
+			}
+			catch(RejectedExecutionException ree) {
+				// raced with close(); the next attempt will use a fresh pool
+				if(options.getIOExecutor() != null)
+					throw ree;
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the executor for asynchronous I/O.
+	 *
+	 * @return
+	 * 	the {@link StageOptions#getIOExecutor() I/O executor}
+	 * 	if one was given, or else the pool owned by this
+	 * 	stage, which is created if necessary
+	 * @since 0.2
+	 */
+	private Executor getIOExecutor() {
+		Executor executor = options.getIOExecutor();
+		if(executor != null)
+			return executor;
+		synchronized(executorLock) {
+			if(ownExecutor == null || ownExecutor.isShutdown()) {
+				int threads = options.getIOThreads();
+				ThreadFactory factory = new ThreadFactory() {
+					private int count;
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "stage-io-" + path.getName() + "-" + ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				};
+				ownExecutor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), factory);
+				ownExecutor.allowCoreThreadTimeOut(true);
+			}
+			return ownExecutor;
+		}
+	}
+
+	/**
+	 * Run a channel operation on a carrier thread.
+	 *
+	 * Used for all channel operations if the stage is
+	 * {@link StageOptions#isUninterruptible() uninterruptible}.
+	 * Since carrier threads are never interrupted, the
+	 * channel is never closed by an interrupt. The calling
+	 * thread waits for the operation to finish, even if it
+	 * is interrupted while waiting; in that case, its
+	 * interrupt status is set again before returning.
+	 *
+	 * @param operation
+	 * 	the channel operation
+	 * @return
+	 * 	the result of the operation
+	 * @throws IOException
+	 * 	if the operation fails with an {@link IOException}
+	 * @since 0.2
+	 */
+	private <T> T carry(Callable<T> operation) throws IOException {
+		FutureTask<T> task = new FutureTask<T>(operation);
+		for(;;) {
+			try {
+				getCarrierExecutor().execute(task);
+				break;
+			}
+			catch(RejectedExecutionException ree) {
+				// raced with close(); the next attempt will use a fresh pool
+			}
+		}
+		boolean interrupted = false;
+		try {
+			for(;;) {
+				try {
+					return task.get();
+				}
+				catch(InterruptedException ie) {
+					interrupted = true;
+				}
+				catch(ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if(cause instanceof IOException)
+						throw (IOException)cause;
+					if(cause instanceof RuntimeException)
+						throw (RuntimeException)cause;
+					if(cause instanceof Error)
+						throw (Error)cause;
+					throw new IOException(cause);
+				}
+			}
+		}
+		finally {
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Retrieve the pool of carrier threads.
+	 *
+	 * The pool grows as needed, such that concurrent
+	 * channel operations never wait for each other,
+	 * and idle carriers expire after a minute.
+	 *
+	 * @return
+	 * 	the {@link #carrierExecutor}, which is
+	 * 	created if necessary
+	 * @since 0.2
+	 */
+	private Executor getCarrierExecutor() {
+		synchronized(executorLock) {
+			if(carrierExecutor == null || carrierExecutor.isShutdown()) {
+				ThreadFactory factory = new ThreadFactory() {
+					private int count;
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "stage-carrier-" + path.getName() + "-" + ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				};
+				carrierExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60l, TimeUnit.SECONDS,
+						new SynchronousQueue<Runnable>(), factory);
+			}
+			return carrierExecutor;
+		}
+	}
+
+	/**
+	 * Read several chunks of data from the stage file at once.
+	 *
+	 * Behaves as though
+	 * {@link #readChunk(ByteBuffer, long) readChunk}
+	 * were called for each pair of <tt>offsets[i]</tt>
+	 * and <tt>buffers[i]</tt>, except that the requests
+	 * are sorted by offset and adjacent or nearby regions
+	 * (no more than {@link #MAX_COALESCE_GAP} bytes apart)
+	 * are merged into a single read of up to
+	 * {@link #MAX_GATHER_SIZE} bytes, the result of which
+	 * is then scattered into the individual buffers. This
+	 * reduces the number of reads issued and turns random
+	 * access into mostly sequential access. Regions may
+	 * overlap. If memory mapping is enabled, merging is
+	 * pointless and the chunks are simply copied one by
+	 * one; the same goes for stages with a
+	 * {@link StageOptions#getCacheBudget() block cache}.
+	 * <p>
+	 * The semantics with regard to exceptions, closed
+	 * channels and interruption are those of
+	 * <tt>readChunk</tt>. If an exception is thrown, any
+	 * subset of the buffers may have been filled; the
+	 * <i>position</i> of a buffer is advanced only by the
+	 * number of bytes actually transferred into it.
+	 *
+	 * @param offsets
+	 * 	<i>chunk IDs</i> from which to read
+	 * @param buffers
+	 * 	destination buffers, one per offset
+	 * @throws NullPointerException
+	 * 	if <tt>offsets</tt> or <tt>buffers</tt> is
+	 * 	or contains <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the arrays differ in length, or if any
+	 * 	offset is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present for
+	 * 	any of the requested regions
+	 * @throws ChunkReadIOException
+	 * 	if the underlying channel read fails with
+	 * 	an {@link IOException}
+	 * @since 0.2
+	 */
+	public void readChunks(long[] offsets, ByteBuffer[] buffers) {
+		if(offsets.length != buffers.length)
+			throw new IllegalArgumentException("Number of offsets (" + offsets.length
+					+ ") does not match number of buffers (" + buffers.length + ")");
+		for(int i = 0; i < offsets.length; ++i) {
+			if(offsets[i] < 0l)
+				throw new IllegalArgumentException("Negative position");
+			if(buffers[i] == null)
+				throw new NullPointerException();
+		}
+		if(statistics == null) {
+			readBatch(offsets, buffers);
+			return;
+		}
+		long start = System.nanoTime();
+		long size = 0l;
+		for(ByteBuffer buffer : buffers)
+			size += buffer.remaining();
+		readBatch(offsets, buffers);
+		statistics.recordRead(offsets.length, size, System.nanoTime() - start);
+	}
+
+	/**
+	 * Read several chunks at once.
+	 *
+	 * Implements {@link #readChunks(long[], ByteBuffer[]) readChunks}
+	 * once the arguments have been validated, but does not
+	 * record {@link #statistics}.
+	 *
+	 * @param offsets
+	 * 	chunk IDs from which to read
+	 * @param buffers
+	 * 	destination buffers, one per offset
+	 * @since 0.2
+	 */
+	private void readBatch(long[] offsets, ByteBuffer[] buffers) {
+		if(mapping != null || cache != null || offsets.length < 2) {
+			for(int i = 0; i < offsets.length; ++i)
+				readRegion(buffers[i], offsets[i]);
+			return;
+		}
+		Integer[] order = new Integer[offsets.length];
+		for(int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(offsets[a], offsets[b]));
+		ByteBuffer scratch = null;
+		try {
+			int first = 0;
+			while(first < order.length) {
+				long start = offsets[order[first]];
+				long end = start + buffers[order[first]].remaining();
+				int last = first + 1;
+				for(; last < order.length; ++last) {
+					long nextStart = offsets[order[last]];
+					long nextEnd = Math.max(end, nextStart + buffers[order[last]].remaining());
+					if(nextStart - end > StageFile.MAX_COALESCE_GAP
+							|| nextEnd - start > StageFile.MAX_GATHER_SIZE)
+						break;
+					end = nextEnd;
+				}
+				if(last - first == 1)
+					readRegion(buffers[order[first]], start);
+				else {
+					int size = (int)(end - start);
+					if(scratch == null || scratch.capacity() < size) {
+						bufferPool.release(scratch);
+						scratch = bufferPool.acquire(size);
+					}
+					scratch.clear();
+					scratch.limit(size);
+					readRegion(scratch, start);
+					for(int i = first; i < last; ++i) {
+						ByteBuffer buffer = buffers[order[i]];
+						int from = (int)(offsets[order[i]] - start);
+						scratch.limit(from + buffer.remaining());
+						scratch.position(from);
+						buffer.put(scratch);
+					}
+				}
+				first = last;
+			}
+		}
+		finally {
+			bufferPool.release(scratch);
+		}
+	}
+
+	/**
+	 * Write a chunk of data to the stage file.
+	 *
+	 * The <tt>buffer</tt> indicates the source of
+	 * the bytes to be written: The <i>remaining</i>
+	 * size (id est, the difference between its
+	 * <i>limit</i> and its <i>position</i>) is
+	 * appended to the file with bytes taken from
+	 * the buffer starting at its <i>position</i>.
+	 * This method is analogous to
 	 * {@link #readChunk(ByteBuffer, long) readChunk}:
 	 * <ul>
 	 * 	<li>
@@ -575,18 +1602,23 @@ public final class StageFile implements Closeable {
 	 * 		modifies the current <i>position</i>
 	 * 		of the underlying channel. Instead, the
 	 * 		bytes are written to the end of the
-	 * 		file, meaning the written region will
-	 * 		start at the offset equal to what the
-	 * 		size of the file was when the call to
-	 * 		this method acquired the internal lock.
-	 * 		(However, the only means of ensuring
-	 * 		that no intervening writes are
-	 * 		performed that might alter the size
-	 * 		between calling this method and
-	 * 		acquisition of the lock, or between
-	 * 		release of the lock and return of
-	 * 		control to the caller, is by using
+	 * 		stage, meaning the written region will
+	 * 		start at the {@link #getReservedEnd() logical end}
+	 * 		of the stage at the moment the call to
+	 * 		this method reserved its range. Reserving
+	 * 		a range is a single atomic operation; the
+	 * 		bytes are then written without holding
+	 * 		any lock, so any number of appends may
+	 * 		write to the file concurrently. (However,
+	 * 		the only means of ensuring that no
+	 * 		intervening writes are performed that
+	 * 		might alter the logical end between calling
+	 * 		this method and reservation of the range,
+	 * 		or between completion of the write and
+	 * 		return of control to the caller, is by using
 	 * 		{@link #sequence(Runnable) sequence}.)
+	 * 		If the write fails, the reserved range is
+	 * 		abandoned and will never be reused.
 	 * 		It is therefore safe to introspect
 	 * 		and/or alter the <i>position</i> of
 	 * 		the underlying channel without the
@@ -604,6 +1636,20 @@ public final class StageFile implements Closeable {
 	 * 		to be thrown.
 	 * 	</li>
 	 * 	<li>
+	 * 		When this method returns normally, the
+	 * 		chunk has been flushed to the device as
+	 * 		per the {@link #getDurability() durability level}:
+	 * 		With {@link StageDurability#PER_WRITE} and
+	 * 		{@link StageDurability#GROUP_COMMIT}, it is
+	 * 		durable; with {@link StageDurability#PERIODIC}
+	 * 		and {@link StageDurability#NONE}, it may not
+	 * 		be until a later {@link #sync() sync}.
+	 * 		Waiting for a group commit happens after
+	 * 		the internal lock has been released, such
+	 * 		that other writes may proceed in the
+	 * 		meantime.
+	 * 	</li>
+	 * 	<li>
 	 * 		This method is thread safe in the face of
 	 * 		concurrent calls to itself,
 	 * 		{@link #readChunk(ByteBuffer, long) readChunk},
@@ -636,32 +1682,837 @@ public final class StageFile implements Closeable {
 	 * @throws ChunkWriteIOException
 	 * 	if the underlying channel write fails
 	 * 	with an {@link IOException}
+	 * @throws StageReadOnlyException
+	 * 	if the stage is {@link StageOptions#isReadOnly() read-only}
 	 * @since 0.1
 	 */
 	public long writeChunk(ByteBuffer buffer) {
+		return appendChunk(buffer, -1l);
+	}
+
+	/**
+	 * Append a chunk, optionally within a size limit.
+	 *
+	 * Implements {@link #writeChunk(ByteBuffer) writeChunk}.
+	 * If <tt>limit</tt> is non-negative, the chunk is only
+	 * written if it would not extend the stage beyond
+	 * <tt>limit</tt> bytes, or if the stage is empty.
+	 *
+	 * @param buffer
+	 * 	source buffer
+	 * @param limit
+	 * 	maximum logical size of the stage after the
+	 * 	write, or <tt>-1</tt> for no limit
+	 * @return
+	 * 	the chunk ID, or <tt>-1</tt> if the chunk
+	 * 	would have exceeded the <tt>limit</tt>
+	 * @since 0.2
+	 */
+	long appendChunk(ByteBuffer buffer, long limit) {
+		if(options.isReadOnly())
+			throw new StageReadOnlyException(path);
+		if(options.isFramed()) {
+			long[] ids = appendChunks(new ByteBuffer[] {buffer}, limit);
+			return ids == null ? -1l : ids[0];
+		}
+		long begin = statistics == null ? 0l : System.nanoTime();
+		long size = buffer.remaining();
+		long start;
+		Lock gate = appendGate.readLock();
+		gate.lock();
+		try {
+			start = limit < 0l ? tracker.reserve(size) : tracker.tryReserve(size, limit);
+			if(start < 0l)
+				return -1l;
+			try {
+				writeFully(buffer, start);
+			}
+			catch(RuntimeException re) {
+				abandon(start, size, re);
+				throw re;
+			}
+			finally {
+				tracker.complete(start, start + size);
+			}
+		}
+		finally {
+			gate.unlock();
+		}
+		commit(start + size);
+		if(statistics != null)
+			statistics.recordWrite(1, size, System.nanoTime() - begin);
+		return start;
+	}
+
+	/**
+	 * Write several chunks of data to the stage file at once.
+	 *
+	 * Appends the <i>remaining</i> bytes of each of the given
+	 * <tt>buffers</tt>, in order, as though by calling
+	 * {@link #writeChunk(ByteBuffer) writeChunk} for each of
+	 * them, except that
+	 * <ul>
+	 * 	<li>
+	 * 		the chunks are guaranteed to end up adjacent
+	 * 		in the file, in the order given, without
+	 * 		intervening writes from other sources.
+	 * 	</li>
+	 * 	<li>
+	 * 		a single range is reserved for all chunks
+	 * 		and the data is transferred with as few
+	 * 		channel writes as possible (usually one),
+	 * 		by gathering the chunks into a staging buffer
+	 * 		of up to {@link #MAX_GATHER_SIZE} bytes
+	 * 		before each write. (The channel offers no
+	 * 		positional gathering write, and heap buffers
+	 * 		would be copied into a temporary buffer by
+	 * 		the channel anyway.)
+	 * 	</li>
+	 * 	<li>
+	 * 		the whole batch is made durable at once, as
+	 * 		per the {@link #getDurability() durability level}.
+	 * 	</li>
+	 * </ul>
+	 * The <i>position</i> of each buffer is advanced by the
+	 * number of bytes taken from it. If an exception is
+	 * thrown, any number of bytes may have been written,
+	 * and the positions of the buffers may have been
+	 * advanced regardless of whether the respective bytes
+	 * reached the file.
+	 *
+	 * @param buffers
+	 * 	source buffers from which the bytes of the
+	 * 	individual chunks are drawn; must not be
+	 * 	<tt>null</tt> nor contain <tt>null</tt>
+	 * @return
+	 * 	the chunk IDs of the written chunks, in the
+	 * 	order of the <tt>buffers</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>buffers</tt> is or contains <tt>null</tt>
+	 * @throws ChunkWriteIOException
+	 * 	if the underlying channel write fails
+	 * 	with an {@link IOException}
+	 * @throws StageReadOnlyException
+	 * 	if the stage is {@link StageOptions#isReadOnly() read-only}
+	 * @since 0.2
+	 */
+	public long[] writeChunks(ByteBuffer... buffers) {
+		return appendChunks(buffers, -1l);
+	}
+
+	/**
+	 * Append several chunks, optionally within a size limit.
+	 *
+	 * Implements {@link #writeChunks(ByteBuffer[]) writeChunks}
+	 * the same way {@link #appendChunk(ByteBuffer, long) appendChunk}
+	 * implements {@link #writeChunk(ByteBuffer) writeChunk}.
+	 *
+	 * @param buffers
+	 * 	source buffers
+	 * @param limit
+	 * 	maximum logical size of the stage after the
+	 * 	write, or <tt>-1</tt> for no limit
+	 * @return
+	 * 	the chunk IDs, or <tt>null</tt> if the chunks
+	 * 	would have exceeded the <tt>limit</tt>
+	 * @since 0.2
+	 */
+	long[] appendChunks(ByteBuffer[] buffers, long limit) {
+		if(options.isReadOnly())
+			throw new StageReadOnlyException(path);
+		checkFailure();
+		long begin = statistics == null ? 0l : System.nanoTime();
+		long[] ids = new long[buffers.length];
+		long size = 0l;
+		for(int i = 0; i < buffers.length; ++i) {
+			if(options.isFramed())
+				size += ChunkFraming.FRAME_HEADER_SIZE;
+			ids[i] = size;
+			size += buffers[i].remaining();
+		}
+		if(options.isFramed())
+			buffers = ChunkFraming.frame(buffers);
+		long start;
+		Lock gate = appendGate.readLock();
+		gate.lock();
+		try {
+			start = limit < 0l ? tracker.reserve(size) : tracker.tryReserve(size, limit);
+			if(start < 0l)
+				return null;
+			try {
+				if(buffers.length == 1)
+					writeFully(buffers[0], start);
+				else if(buffers.length > 1)
+					writeGathered(buffers, start, size);
+			}
+			catch(RuntimeException re) {
+				abandon(start, size, re);
+				throw re;
+			}
+			finally {
+				tracker.complete(start, start + size);
+			}
+		}
+		finally {
+			gate.unlock();
+		}
+		commit(start + size);
+		if(statistics != null)
+			statistics.recordWrite(ids.length, size, System.nanoTime() - begin);
+		for(int i = 0; i < ids.length; ++i)
+			ids[i] += start;
+		return ids;
+	}
+
+	/**
+	 * Append a prepared image of adjacent chunks.
+	 *
+	 * Used by {@link TieredStage} to spill its arena, which
+	 * already holds the exact bytes the chunks are to occupy
+	 * in the file, frame headers included. The image is
+	 * transferred with a single positional write and made
+	 * durable as per the {@link #getDurability() durability level},
+	 * but only if the stage currently ends at <tt>start</tt>;
+	 * otherwise, nothing is reserved or written.
+	 *
+	 * @param image
+	 * 	source buffer holding the chunks
+	 * @param start
+	 * 	offset at which the image must be placed
+	 * @param chunkCount
+	 * 	number of chunks in the image, for the
+	 * 	{@link StageOptions#isMonitored() statistics}
+	 * @return
+	 * 	<tt>true</tt> if the image was appended,
+	 * 	<tt>false</tt> if the stage does not end
+	 * 	at <tt>start</tt>
+	 * @throws ChunkWriteIOException
+	 * 	if the underlying channel write fails
+	 * 	with an {@link IOException}
+	 * @throws StageReadOnlyException
+	 * 	if the stage is {@link StageOptions#isReadOnly() read-only}
+	 * @since 0.2
+	 */
+	boolean appendImage(ByteBuffer image, long start, int chunkCount) {
+		if(options.isReadOnly())
+			throw new StageReadOnlyException(path);
+		checkFailure();
+		long begin = statistics == null ? 0l : System.nanoTime();
+		long size = image.remaining();
+		Lock gate = appendGate.readLock();
+		gate.lock();
+		try {
+			// reserves the range only if nothing has been reserved past start
+			if(!tracker.tryResize(start, start + size))
+				return false;
+			try {
+				writeFully(image, start);
+			}
+			catch(RuntimeException re) {
+				abandon(start, size, re);
+				throw re;
+			}
+			finally {
+				tracker.complete(start, start + size);
+			}
+		}
+		finally {
+			gate.unlock();
+		}
+		commit(start + size);
+		if(statistics != null)
+			statistics.recordWrite(chunkCount, size, System.nanoTime() - begin);
+		return true;
+	}
+
+	/**
+	 * Deal with a range whose write has failed.
+	 *
+	 * Called before the range is completed. In a
+	 * {@link StageOptions#isFramed() framed} stage, the range
+	 * would otherwise break recovery, which truncates the file
+	 * at the first frame that does not verify, thus dropping
+	 * any chunks appended after the range as well. The range
+	 * is therefore overwritten with padding frames of zeros
+	 * (the failed write may have left any part of its bytes
+	 * behind), just like the unused remainder of a
+	 * {@link #beginTransaction(long) transaction}. Should that
+	 * fail too, the stage is marked as {@link #failedAt failed}
+	 * instead. Unframed stages are never read past their chunks,
+	 * so the range is left as it is.
+	 *
+	 * @param start
+	 * 	start of the range
+	 * @param size
+	 * 	size of the range
+	 * @param cause
+	 * 	exception thrown by the failed write; any
+	 * 	exception thrown while padding is added to it
+	 * 	as a suppressed exception
+	 * @since 0.2
+	 */
+	private void abandon(long start, long size, RuntimeException cause) {
+		if(!options.isFramed() || size == 0l)
+			return;
+		try {
+			if(size < ChunkFraming.FRAME_HEADER_SIZE)
+				throw new IllegalStateException("Range of " + size + " bytes cannot hold a padding frame");
+			ByteBuffer zeros = bufferPool.acquire((int)Math.min(size, (long)StageFile.MAX_GATHER_SIZE));
+			try {
+				int capacity = zeros.limit();
+				while(zeros.remaining() >= 8)
+					zeros.putLong(0l);
+				while(zeros.remaining() > 0)
+					zeros.put((byte)0);
+				CRC32C crc = new CRC32C();
+				long end = start + size;
+				for(long offset = start; offset < end;) {
+					int frameSize = (int)Math.min(end - offset, (long)capacity);
+					// leave room for the header of the next frame
+					if(end - offset - frameSize > 0l && end - offset - frameSize < ChunkFraming.FRAME_HEADER_SIZE)
+						frameSize -= ChunkFraming.FRAME_HEADER_SIZE;
+					int length = frameSize - ChunkFraming.FRAME_HEADER_SIZE;
+					ChunkFraming.beginChecksum(crc, length);
+					zeros.limit(frameSize);
+					zeros.position(ChunkFraming.FRAME_HEADER_SIZE);
+					crc.update(zeros);
+					zeros.putInt(0, length);
+					zeros.putInt(4, (int)crc.getValue());
+					zeros.position(0);
+					writeFully(zeros, offset);
+					zeros.putLong(0, 0l);
+					offset += frameSize;
+				}
+			}
+			finally {
+				bufferPool.release(zeros);
+			}
+		}
+		catch(RuntimeException re) {
+			cause.addSuppressed(re);
+			synchronized(lock) {
+				if(failedAt < 0l || start < failedAt) {
+					failure = new IOException("Range of " + size + " bytes at offset " + start
+							+ " could neither be written nor padded", cause);
+					failedAt = start;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Refuse to append to a {@link #failedAt failed} stage.
+	 *
+	 * @throws ChunkWriteIOException
+	 * 	if the stage has failed
+	 * @since 0.2
+	 */
+	private void checkFailure() {
+		if(failedAt >= 0l)
+			throw new ChunkWriteIOException(path, failure);
+	}
+
+	private void writeGathered(ByteBuffer[] buffers, long offset, long size) {
+		ByteBuffer staging = bufferPool.acquire((int)Math.min(size, (long)StageFile.MAX_GATHER_SIZE));
+		try {
+			writeStaged(buffers, offset, staging);
+		}
+		finally {
+			bufferPool.release(staging);
+		}
+	}
+
+	private void writeStaged(ByteBuffer[] buffers, long offset, ByteBuffer staging) {
+		int index = 0;
+		while(index < buffers.length) {
+			staging.clear();
+			while(index < buffers.length && staging.remaining() > 0) {
+				ByteBuffer source = buffers[index];
+				if(source.remaining() <= staging.remaining()) {
+					staging.put(source);
+					++index;
+				}
+				else {
+					int limit = source.limit();
+					source.limit(source.position() + staging.remaining());
+					staging.put(source);
+					source.limit(limit);
+				}
+			}
+			staging.flip();
+			int count = staging.remaining();
+			writeFully(staging, offset);
+			offset += count;
+		}
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer at the given offset.
+	 *
+	 * Grows a {@link StageOptions#getPreallocationExtent() preallocated}
+	 * file first if the write would extend beyond the space
+	 * allocated so far.
+	 *
+	 * @param buffer
+	 * 	source buffer
+	 * @param offset
+	 * 	file offset at which to write
+	 * @since 0.2
+	 */
+	void writeFully(ByteBuffer buffer, long offset) {
+		if(options.getPreallocationExtent() > 0l && offset + buffer.remaining() > allocatedEnd)
+			allocate(offset + buffer.remaining());
+		writeAt(buffer, offset);
+	}
+
+	/**
+	 * Grow a preallocated file.
+	 *
+	 * Zero-fills the file from the current
+	 * {@link #allocatedEnd} up to the next multiple of the
+	 * {@link StageOptions#getPreallocationExtent() extent}
+	 * covering <tt>end</tt>. No write touches that range
+	 * before <tt>allocatedEnd</tt> has been moved past it,
+	 * so the zeros cannot overwrite any chunk.
+	 *
+	 * @param end
+	 * 	offset up to which space is needed
+	 * @since 0.2
+	 */
+	private void allocate(long end) {
+		synchronized(extentLock) {
+			long from = allocatedEnd;
+			if(end <= from)
+				return;
+			long to = Preallocation.roundUp(end, options.getPreallocationExtent());
+			ByteBuffer zeros = bufferPool.acquire((int)Math.min(to - from, (long)StageFile.MAX_GATHER_SIZE));
+			try {
+				while(zeros.remaining() >= 8)
+					zeros.putLong(0l);
+				while(zeros.remaining() > 0)
+					zeros.put((byte)0);
+				for(long offset = from; offset < to; offset += zeros.limit()) {
+					zeros.rewind();
+					if(to - offset < zeros.limit())
+						zeros.limit((int)(to - offset));
+					writeAt(zeros, offset);
+				}
+			}
+			finally {
+				bufferPool.release(zeros);
+			}
+			allocatedEnd = to;
+		}
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer at the given offset.
+	 *
+	 * Performs as many positional writes as necessary,
+	 * reopening the channel if it was closed.
+	 *
+	 * @param buffer
+	 * 	source buffer
+	 * @param offset
+	 * 	file offset at which to write
+	 * @since 0.2
+	 */
+	private void writeAt(ByteBuffer buffer, long offset) {
 		boolean interrupted;
-		synchronized(lock) {
-			for(;;) {
-				interrupted = Thread.interrupted();
-				try {
-					long start = channel.size();
-					long offset = start;
-					while(buffer.remaining() > 0)
-						offset += channel.write(buffer, offset);
-					return start;
+		for(;;) {
+			interrupted = Thread.interrupted();
+			try {
+				while(buffer.remaining() > 0) {
+					long position = offset;
+					offset += carriers ? carry(() -> channel.write(buffer, position)) : channel.write(buffer, offset);
+					if(statistics != null && buffer.remaining() > 0)
+						statistics.recordShortWrite();
 				}
-				catch(ClosedChannelException cce) {
-					reopen(false);
+				return;
+			}
+			catch(ClosedChannelException cce) {
+				reopen(false);
+			}
+			catch(IOException ioe) {
+				throw new ChunkWriteIOException(path, ioe);
+			}
+			finally {
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Transaction appending to the file.
+	 *
+	 * Holds the {@link #appendGate} while open, and
+	 * ends its reservation via the {@link #tracker}.
+	 */
+	private final class FileTransaction extends BufferedTransaction {
+
+		private final Lock gate;
+
+		private final long base;
+
+		FileTransaction(Lock gate, long base, long capacity) {
+			super(StageFile.this, base, capacity);
+			this.gate = gate;
+			this.base = base;
+		}
+
+		boolean tryResize(long end, long newEnd) {
+			return tracker.tryResize(end, newEnd);
+		}
+
+		void write(ByteBuffer buffer, long offset) {
+			writeFully(buffer, offset);
+		}
+
+		void abandoned(long end, RuntimeException cause) {
+			abandon(base, end - base, cause);
+		}
+
+		void complete(long end) {
+			tracker.complete(base, end);
+			gate.unlock();
+		}
+
+		void committed(long end, long begin) {
+			StageFile.this.commit(end);
+			if(statistics != null)
+				statistics.recordWrite(getChunkCount(), getSize(), System.nanoTime() - begin);
+		}
+
+	}
+
+	/**
+	 * Begin an atomic batch of appends.
+	 *
+	 * Reserves <tt>capacity</tt> bytes right away, which
+	 * should cover the sizes of all chunks to be appended
+	 * in the transaction, plus
+	 * {@link #getFrameOverhead() the frame overhead} for
+	 * each of them. The reservation can only be extended
+	 * as long as nothing else is appended to the stage in
+	 * the meantime, so the estimate should err on the
+	 * large side. See {@link StageTransaction} for
+	 * details. The calling thread holds the transaction
+	 * and <b>must</b> end it, preferably via a
+	 * <tt>try</tt>-with-resources statement.
+	 * <p>
+	 * Should the transaction allocate fewer bytes than
+	 * were reserved, the remainder is given back if no
+	 * append has been reserved after the transaction in
+	 * the meantime, or else left as padding: zero bytes,
+	 * or a single padding frame in a
+	 * {@link StageOptions#isFramed() framed} stage (to
+	 * which end a non-zero reservation spans at least one
+	 * frame header). Allocating more bytes than were
+	 * reserved extends the reservation under the same
+	 * condition, and fails otherwise. Aborting the
+	 * transaction treats its whole range the same way.
+	 * <p>
+	 * While a transaction is open, it holds the gate that
+	 * {@link #sequence(Runnable) sequenced} operations
+	 * must pass, just like a single append does while in
+	 * progress, so the thread holding it <b>must not</b>
+	 * call <tt>sequence</tt> lest it deadlock. Appends
+	 * reserved after the transaction become visible (and
+	 * durable) only once the transaction has ended.
+	 *
+	 * @param capacity
+	 * 	number of bytes to reserve
+	 * @return
+	 * 	the open transaction
+	 * @throws IllegalArgumentException
+	 * 	if <tt>capacity</tt> is negative
+	 * @throws StageReadOnlyException
+	 * 	if the stage is {@link StageOptions#isReadOnly() read-only}
+	 * @since 0.2
+	 */
+	public StageTransaction beginTransaction(long capacity) {
+		if(capacity < 0l)
+			throw new IllegalArgumentException("Negative transaction capacity: " + capacity);
+		if(options.isReadOnly())
+			throw new StageReadOnlyException(path);
+		checkFailure();
+		int frameOverhead = getFrameOverhead();
+		if(capacity > 0l && capacity < frameOverhead)
+			capacity = frameOverhead;
+		Lock gate = appendGate.readLock();
+		gate.lock();
+		return new FileTransaction(gate, tracker.reserve(capacity), capacity);
+	}
+
+	/**
+	 * Retrieve the logical end of the stage.
+	 *
+	 * This is the offset at which the next
+	 * {@link #writeChunk(ByteBuffer) append} will start,
+	 * including all appends that are still in progress.
+	 *
+	 * @return
+	 * 	the reserved end offset of the stage
+	 * @since 0.2
+	 */
+	public long getReservedEnd() {
+		return tracker.getReservedEnd();
+	}
+
+	/**
+	 * Retrieve the visibility watermark.
+	 *
+	 * All appends to ranges below the returned offset have
+	 * completed (successfully or otherwise), meaning any
+	 * chunk ID below it can be read back. Since appends
+	 * run concurrently, a chunk whose write has completed
+	 * may lie beyond this offset while a preceding append
+	 * is still in progress.
+	 *
+	 * @return
+	 * 	the visible end offset of the stage
+	 * @since 0.2
+	 */
+	public long getVisibleEnd() {
+		return tracker.getVisibleEnd();
+	}
+
+	/**
+	 * Retrieve the durability watermark.
+	 *
+	 * All data below the returned offset has been
+	 * flushed to the device. With
+	 * {@link StageDurability#PER_WRITE}, this equals
+	 * the {@link #getVisibleEnd() visible end}.
+	 *
+	 * @return
+	 * 	the durable end offset of the stage
+	 * @since 0.2
+	 */
+	public long getDurableEnd() {
+		if(options.getDurability() == StageDurability.PER_WRITE && options.getPreallocationExtent() <= 0l)
+			return tracker.getVisibleEnd();
+		synchronized(syncLock) {
+			return durableEnd;
+		}
+	}
+
+	/**
+	 * Make written data durable as per the durability level.
+	 *
+	 * Called after each write, without holding {@link #lock}.
+	 * With {@link StageDurability#PER_WRITE}, the data itself
+	 * is already durable, but the logical end recorded in a
+	 * {@link StageOptions#getPreallocationExtent() preallocated}
+	 * file must still be moved past it, which costs a second
+	 * synchronous write (see
+	 * {@link StageOptions#getPreallocationExtent()} for why
+	 * it cannot be deferred).
+	 *
+	 * @param end
+	 * 	end offset of the data just written
+	 * @since 0.2
+	 */
+	void commit(long end) {
+		switch(options.getDurability()) {
+			case PER_WRITE:
+				if(options.getPreallocationExtent() > 0l)
+					awaitDurable(end, 0l);
+				break;
+			case GROUP_COMMIT:
+				awaitDurable(end, options.getGroupCommitWindow());
+				break;
+			case PERIODIC:
+				if(System.nanoTime() - lastSync >= options.getSyncInterval())
+					awaitDurable(end, 0l);
+				break;
+			default:
+				break;
+		}
+		long failed = failedAt;
+		if(failed >= 0l && failed < end)
+			throw new ChunkWriteIOException(path, failure);
+	}
+
+	/**
+	 * Flush all data written so far to the device.
+	 *
+	 * Returns once every chunk whose write has completed
+	 * before this method was called is durable. If another
+	 * thread is flushing the file at the time, the calling
+	 * thread joins that flush (and possibly the next one)
+	 * instead of flushing the file again. With
+	 * {@link StageDurability#PER_WRITE}, all data is
+	 * already durable and this method returns immediately,
+	 * unless the stage is {@link StageOptions#isFramed() framed},
+	 * in which case the recovery watermark is moved to the
+	 * end of the data.
+	 * <p>
+	 * Analogous to {@link #writeChunk(ByteBuffer) writeChunk},
+	 * any {@link IOException} is reported as a
+	 * {@link ChunkWriteIOException} and a closed channel
+	 * is reopened. The interrupt status of the calling
+	 * thread is preserved.
+	 *
+	 * @throws ChunkWriteIOException
+	 * 	if the underlying flush fails with an
+	 * 	{@link IOException}
+	 * @since 0.2
+	 */
+	public void sync() {
+		if(options.getDurability() != StageDurability.PER_WRITE || options.isFramed())
+			awaitDurable(tracker.getReservedEnd(), 0l);
+	}
+
+	/**
+	 * Wait until the given offset is durable.
+	 *
+	 * If no other thread is currently flushing the file,
+	 * the calling thread becomes the committer: It lingers
+	 * for the given <tt>window</tt> (so that concurrent
+	 * writers may complete their writes), then flushes
+	 * everything written up to that point with a single
+	 * {@link FileChannel#force(boolean) force} and wakes
+	 * up all waiting threads. Otherwise, the calling thread
+	 * waits for the current committer and retries if that
+	 * flush did not cover <tt>end</tt>. Should the flush
+	 * fail, the committer rethrows and the waiting threads
+	 * take over, so that none of them returns before its
+	 * data is durable.
+	 *
+	 * @param end
+	 * 	offset up to which the data must be durable
+	 * @param window
+	 * 	group commit window in nanoseconds
+	 * @since 0.2
+	 */
+	private void awaitDurable(long end, long window) {
+		boolean interrupted = Thread.interrupted();
+		try {
+			for(;;) {
+				synchronized(syncLock) {
+					while(durableEnd < end && syncing) {
+						try {
+							syncLock.wait();
+						}
+						catch(InterruptedException ie) {
+							interrupted = true;
+						}
+					}
+					if(durableEnd >= end)
+						return;
+					syncing = true;
 				}
-				catch(IOException ioe) {
-					throw new ChunkWriteIOException(path, ioe);
+				long persisted = -1l;
+				try {
+					if(window > 0l) {
+						long deadline = System.nanoTime() + window;
+						for(long left = window; left > 0l; left = deadline - System.nanoTime()) {
+							LockSupport.parkNanos(this, left);
+							if(Thread.interrupted())
+								interrupted = true;
+						}
+					}
+					if(tracker.awaitVisible(end))
+						interrupted = true;
+					long syncStart = System.nanoTime();
+					long target = tracker.getVisibleEnd();
+					persist(target);
+					persisted = target;
+					lastSync = syncStart;
 				}
 				finally {
-					if(interrupted)
-						Thread.currentThread().interrupt();
+					// on failure, waiters retry the flush themselves
+					synchronized(syncLock) {
+						syncing = false;
+						if(persisted > durableEnd)
+							durableEnd = persisted;
+						syncLock.notifyAll();
+					}
 				}
 			}
 		}
+		finally {
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Make the data up to the given offset durable.
+	 *
+	 * Flushes the file, and then, if the stage is
+	 * {@link StageOptions#getPreallocationExtent() preallocated},
+	 * records <tt>end</tt> as the logical end in the file
+	 * header and flushes again, such that the header never
+	 * covers data that has not reached the device. If the
+	 * stage is {@link StageOptions#isFramed() framed},
+	 * <tt>end</tt> is recorded as the recovery watermark
+	 * instead, without flushing again. With
+	 * {@link StageDurability#PER_WRITE}, the writes are
+	 * synchronous and no explicit flush is needed. Only
+	 * ever called by the committer in
+	 * {@link #awaitDurable(long, long) awaitDurable}, so
+	 * header updates never race with each other.
+	 *
+	 * @param end
+	 * 	offset up to which all appends have completed
+	 * @since 0.2
+	 */
+	private void persist(long end) {
+		boolean synchronous = options.getDurability() == StageDurability.PER_WRITE;
+		if(!synchronous)
+			force();
+		if(options.isFramed()) {
+			ByteBuffer watermark = ByteBuffer.allocate(8);
+			watermark.putLong(0, end);
+			writeAt(watermark, ChunkFraming.WATERMARK_OFFSET);
+			return;
+		}
+		if(options.getPreallocationExtent() <= 0l)
+			return;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putLong(0, end);
+		writeAt(header, Preallocation.END_OFFSET);
+		if(!synchronous)
+			force();
+	}
+
+	/**
+	 * Flush the file data to the device.
+	 *
+	 * Handles closed channels like
+	 * {@link #writeChunk(ByteBuffer) writeChunk} does.
+	 * Since flushing any descriptor of a file flushes
+	 * all of its data, flushing a reopened channel also
+	 * covers data written through the previous one.
+	 *
+	 * @since 0.2
+	 */
+	private void force() {
+		for(;;) {
+			boolean interrupted = Thread.interrupted();
+			try {
+				if(carriers)
+					carry(() -> { channel.force(false); return null; });
+				else
+					channel.force(false);
+				if(statistics != null)
+					statistics.recordSync();
+				return;
+			}
+			catch(ClosedChannelException cce) {
+				reopen(false);
+			}
+			catch(IOException ioe) {
+				throw new ChunkWriteIOException(path, ioe);
+			}
+			finally {
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	/**
@@ -671,9 +2522,15 @@ public final class StageFile implements Closeable {
 	 * the lock on which modifications synchronize.
 	 * Calls to
 	 * {@link #writeChunk(ByteBuffer) writeChunk},
+	 * {@link #beginTransaction(long) beginTransaction}
 	 * and {@link #close() close}, as well as reopen
 	 * attempts will block while the task is being
-	 * run.
+	 * run; the task itself is only started once all
+	 * appends in progress and all open transactions
+	 * have completed. Should the
+	 * task append to the channel directly, the
+	 * {@link #getReservedEnd() logical end} of the
+	 * stage is moved past those bytes afterwards.
 	 *
 	 * @param task
 	 * 	action to execute while synchronized on the
@@ -681,8 +2538,70 @@ public final class StageFile implements Closeable {
 	 * @since 0.1
 	 */
 	public void sequence(Runnable task) {
-		synchronized(lock) {
-			task.run();
+		long waitStart = statistics == null ? 0l : System.nanoTime();
+		Lock gate = appendGate.writeLock();
+		gate.lock();
+		try {
+			synchronized(lock) {
+				if(statistics != null)
+					statistics.recordLockWait(System.nanoTime() - waitStart);
+				try {
+					task.run();
+				}
+				finally {
+					resync();
+				}
+			}
+		}
+		finally {
+			gate.unlock();
+		}
+	}
+
+	/**
+	 * Adopt data appended to the channel directly.
+	 *
+	 * Moves the logical end of the stage forward to
+	 * the size of the file, in case a
+	 * {@link #sequence(Runnable) sequenced} task has
+	 * appended to the channel without going through
+	 * {@link #writeChunk(ByteBuffer) writeChunk}.
+	 * In a {@link StageOptions#getPreallocationExtent() preallocated}
+	 * file, only data appended beyond the preallocated
+	 * space can be told apart from that space, and is
+	 * adopted along with the rest of the preallocated
+	 * space before it.
+	 * Must only be called while holding the write
+	 * lock of {@link #appendGate}.
+	 *
+	 * @since 0.2
+	 */
+	private void resync() {
+		boolean interrupted;
+		for(;;) {
+			interrupted = Thread.interrupted();
+			try {
+				long size = carriers ? carry(() -> channel.size()) : channel.size();
+				if(options.getPreallocationExtent() <= 0l)
+					tracker.advanceTo(size);
+				else if(size > allocatedEnd) {
+					synchronized(extentLock) {
+						allocatedEnd = size;
+					}
+					tracker.advanceTo(size);
+				}
+				return;
+			}
+			catch(ClosedChannelException cce) {
+				reopen(false);
+			}
+			catch(IOException ioe) {
+				throw new ChunkWriteIOException(path, ioe);
+			}
+			finally {
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
 		}
 	}
 
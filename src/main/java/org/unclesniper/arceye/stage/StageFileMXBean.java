@@ -0,0 +1,194 @@
+package org.unclesniper.arceye.stage;
+
+/**
+ * Management interface exposing the I/O statistics of a stage.
+ *
+ * A {@link StageFile} opened with
+ * {@link StageOptions#isMonitored() monitoring} enabled
+ * registers an instance of this interface with the platform
+ * MBean server under the name
+ * <tt>org.unclesniper.arceye.stage:type=StageFile,path=</tt><i>path</i>,
+ * where <i>path</i> is the quoted absolute pathname of the file.
+ * All counters start at zero when the stage is opened and are
+ * never reset. Times are given in nanoseconds.
+ * <p>
+ * Latency histograms have {@link #HISTOGRAM_BUCKETS} buckets
+ * on a base-two logarithmic scale: bucket zero counts operations
+ * that took less than one nanosecond (as far as
+ * {@link System#nanoTime()} can tell), and bucket <tt>i</tt>
+ * (for <tt>i &gt; 0</tt>) counts operations that took at least
+ * <tt>2<sup>i-1</sup></tt> but less than <tt>2<sup>i</sup></tt>
+ * nanoseconds. The last bucket also counts all operations
+ * that took even longer.
+ *
+ * @since 0.2
+ * @see StageFile#getStatistics()
+ */
+public interface StageFileMXBean {
+
+	/**
+	 * Number of buckets in the latency histograms.
+	 *
+	 * The last bucket starts at about 34 seconds.
+	 *
+	 * @since 0.2
+	 */
+	int HISTOGRAM_BUCKETS = 36;
+
+	/**
+	 * Retrieve the absolute pathname of the stage file.
+	 *
+	 * @return
+	 * 	the pathname of the monitored file
+	 * @since 0.2
+	 */
+	String getPath();
+
+	/**
+	 * Retrieve the number of bytes read.
+	 *
+	 * Counts the bytes requested by callers, regardless
+	 * of whether they were served from the channel, a
+	 * mapping or the block cache.
+	 *
+	 * @return
+	 * 	the total number of bytes read
+	 * @since 0.2
+	 */
+	long getBytesRead();
+
+	/**
+	 * Retrieve the number of chunks read.
+	 *
+	 * A {@link StageFile#readChunks(long[], java.nio.ByteBuffer[]) batch read}
+	 * counts each of its chunks.
+	 *
+	 * @return
+	 * 	the total number of chunks read
+	 * @since 0.2
+	 */
+	long getChunksRead();
+
+	/**
+	 * Retrieve the number of bytes appended.
+	 *
+	 * Includes frame headers of
+	 * {@link StageOptions#isFramed() framed} stages.
+	 *
+	 * @return
+	 * 	the total number of bytes written
+	 * @since 0.2
+	 */
+	long getBytesWritten();
+
+	/**
+	 * Retrieve the number of chunks appended.
+	 *
+	 * A {@link StageFile#writeChunks(java.nio.ByteBuffer[]) batch write}
+	 * counts each of its chunks.
+	 *
+	 * @return
+	 * 	the total number of chunks written
+	 * @since 0.2
+	 */
+	long getChunksWritten();
+
+	/**
+	 * Retrieve the read latency histogram.
+	 *
+	 * Each read call, batch or not, is one sample.
+	 *
+	 * @return
+	 * 	a snapshot of the histogram of the latencies
+	 * 	of successful read calls
+	 * @since 0.2
+	 */
+	long[] getReadLatencyHistogram();
+
+	/**
+	 * Retrieve the write latency histogram.
+	 *
+	 * Each write call, batch or not, is one sample,
+	 * including the time spent waiting for the write
+	 * to become durable.
+	 *
+	 * @return
+	 * 	a snapshot of the histogram of the latencies
+	 * 	of successful write calls
+	 * @since 0.2
+	 */
+	long[] getWriteLatencyHistogram();
+
+	/**
+	 * Retrieve the time spent waiting for the stage lock.
+	 *
+	 * Accumulates the time threads waited to acquire the
+	 * lock serializing {@link StageFile#sequence(Runnable) sequenced}
+	 * tasks and channel reopens.
+	 *
+	 * @return
+	 * 	the total lock wait time in nanoseconds
+	 * @since 0.2
+	 */
+	long getLockWaitTime();
+
+	/**
+	 * Retrieve the number of stage lock acquisitions.
+	 *
+	 * @return
+	 * 	the number of times the stage
+	 * 	lock was acquired
+	 * @since 0.2
+	 * @see #getLockWaitTime()
+	 */
+	long getLockAcquisitions();
+
+	/**
+	 * Retrieve the number of short read retries.
+	 *
+	 * Counts the channel reads that had to be repeated
+	 * because the previous read transferred fewer bytes
+	 * than requested.
+	 *
+	 * @return
+	 * 	the number of short reads
+	 * @since 0.2
+	 */
+	long getShortReadRetries();
+
+	/**
+	 * Retrieve the number of short write retries.
+	 *
+	 * @return
+	 * 	the number of short writes
+	 * @since 0.2
+	 * @see #getShortReadRetries()
+	 */
+	long getShortWriteRetries();
+
+	/**
+	 * Retrieve the number of channel reopens.
+	 *
+	 * Counts the times the channel was found closed
+	 * (thus raising {@link java.nio.channels.ClosedChannelException})
+	 * and was reopened.
+	 *
+	 * @return
+	 * 	the number of reopens
+	 * @since 0.2
+	 */
+	long getReopenCount();
+
+	/**
+	 * Retrieve the number of explicit flushes.
+	 *
+	 * Counts calls to {@link java.nio.channels.FileChannel#force(boolean)}
+	 * made on behalf of the durability level.
+	 *
+	 * @return
+	 * 	the number of flushes
+	 * @since 0.2
+	 */
+	long getSyncCount();
+
+}
@@ -0,0 +1,135 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped view of a stage file.
+ *
+ * The file is mapped in windows of a fixed size, each
+ * window starting at a multiple of that size. Windows
+ * are mapped lazily as they are read from. Since mapping
+ * a region beyond the end of the file would extend the
+ * file, a window is never mapped beyond the end of the
+ * data written so far; the last window is thus mapped
+ * partially and remapped as the file grows, but only
+ * once it has grown by at least {@link #REMAP_GRANULE}
+ * bytes (or has become complete), so as to avoid a
+ * mapping operation per append. Reads not covered by
+ * a mapped window are left to the caller.
+ *
+ * @since 0.2
+ */
+final class StageMapping {
+
+	/**
+	 * Minimum growth of a partially mapped window that
+	 * warrants remapping it.
+	 *
+	 * @since 0.2
+	 */
+	static final long REMAP_GRANULE = 64l * 1024l;
+
+	private static final MappedByteBuffer[] NO_WINDOWS = new MappedByteBuffer[0];
+
+	private final long windowSize;
+
+	private volatile MappedByteBuffer[] windows = StageMapping.NO_WINDOWS;
+
+	StageMapping(long windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	long getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Read as much as possible from mapped windows.
+	 *
+	 * Transfers bytes into <tt>buffer</tt> starting at
+	 * <tt>offset</tt> until either the buffer is full or
+	 * the next byte is not covered by a window that is or
+	 * can be mapped without exceeding <tt>available</tt>.
+	 *
+	 * @param channel
+	 * 	channel to map windows from
+	 * @param buffer
+	 * 	destination buffer
+	 * @param offset
+	 * 	file offset to start reading at
+	 * @param available
+	 * 	end offset of the data that may be mapped
+	 * @return
+	 * 	the number of bytes transferred
+	 * @throws IOException
+	 * 	if mapping a window fails
+	 */
+	int read(FileChannel channel, ByteBuffer buffer, long offset, long available) throws IOException {
+		int total = 0;
+		while(buffer.remaining() > 0) {
+			long index = offset / windowSize;
+			if(index > Integer.MAX_VALUE)
+				break;
+			int within = (int)(offset - index * windowSize);
+			MappedByteBuffer window = getWindow(channel, (int)index, within + buffer.remaining(), available);
+			if(window == null || window.capacity() <= within)
+				break;
+			int count = window.capacity() - within;
+			if(count > buffer.remaining())
+				count = buffer.remaining();
+			ByteBuffer source = window.duplicate();
+			source.position(within);
+			source.limit(within + count);
+			buffer.put(source);
+			total += count;
+			offset += count;
+		}
+		return total;
+	}
+
+	private MappedByteBuffer getWindow(FileChannel channel, int index, long wanted, long available)
+			throws IOException {
+		MappedByteBuffer[] current = windows;
+		MappedByteBuffer window = index < current.length ? current[index] : null;
+		if(window != null && window.capacity() >= wanted)
+			return window;
+		long start = index * windowSize;
+		long size = available - start;
+		if(size > windowSize)
+			size = windowSize;
+		long have = window == null ? 0l : window.capacity();
+		if(size <= have || (size < windowSize && size - have < StageMapping.REMAP_GRANULE))
+			return window;
+		synchronized(this) {
+			current = windows;
+			window = index < current.length ? current[index] : null;
+			if(window != null && window.capacity() >= size)
+				return window;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			if(index >= current.length) {
+				MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+				System.arraycopy(current, 0, grown, 0, current.length);
+				current = grown;
+			}
+			else
+				current = current.clone();
+			current[index] = window;
+			windows = current;
+			return window;
+		}
+	}
+
+	/**
+	 * Drop all windows.
+	 *
+	 * The mappings themselves are released once
+	 * no longer referenced.
+	 */
+	synchronized void clear() {
+		windows = StageMapping.NO_WINDOWS;
+	}
+
+}
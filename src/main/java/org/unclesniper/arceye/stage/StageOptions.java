@@ -0,0 +1,631 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunables for opening a {@link StageFile}.
+ *
+ * An options object is consulted only when a stage is
+ * {@link StageFile#StageFile(java.io.File, boolean, StageOptions) opened};
+ * the stage retains a private copy, so the same options object may
+ * be modified and reused for other stages afterwards. A freshly
+ * constructed options object describes the behavior of a stage
+ * opened via {@link StageFile#StageFile(java.io.File, boolean)}.
+ *
+ * @since 0.2
+ */
+public class StageOptions {
+
+	/**
+	 * Default group commit window in nanoseconds.
+	 *
+	 * Zero, meaning that the committing thread does
+	 * not linger in order to collect more writes.
+	 *
+	 * @since 0.2
+	 */
+	public static final long DEFAULT_GROUP_COMMIT_WINDOW = 0l;
+
+	/**
+	 * Default sync interval in nanoseconds.
+	 *
+	 * Equates one second.
+	 *
+	 * @since 0.2
+	 */
+	public static final long DEFAULT_SYNC_INTERVAL = 1000000000l;
+
+	/**
+	 * Default size of memory mapped windows.
+	 *
+	 * Equates 64 MiB.
+	 *
+	 * @since 0.2
+	 */
+	public static final long DEFAULT_MAP_WINDOW_SIZE = 64l * 1024l * 1024l;
+
+	/**
+	 * Default number of I/O threads.
+	 *
+	 * @since 0.2
+	 */
+	public static final int DEFAULT_IO_THREADS = 4;
+
+	/**
+	 * Default size of cached blocks.
+	 *
+	 * Equates 16 KiB.
+	 *
+	 * @since 0.2
+	 */
+	public static final int DEFAULT_CACHE_BLOCK_SIZE = 16 * 1024;
+
+	private StageDurability durability = StageDurability.PER_WRITE;
+
+	private long groupCommitWindow = StageOptions.DEFAULT_GROUP_COMMIT_WINDOW;
+
+	private long syncInterval = StageOptions.DEFAULT_SYNC_INTERVAL;
+
+	private boolean memoryMapped;
+
+	private long mapWindowSize = StageOptions.DEFAULT_MAP_WINDOW_SIZE;
+
+	private int ioThreads = StageOptions.DEFAULT_IO_THREADS;
+
+	private Executor ioExecutor;
+
+	private long cacheBudget;
+
+	private int cacheBlockSize = StageOptions.DEFAULT_CACHE_BLOCK_SIZE;
+
+	private boolean cacheOffHeap;
+
+	private boolean framed;
+
+	private boolean monitored;
+
+	private long preallocationExtent;
+
+	private boolean uninterruptible;
+
+	private boolean readOnly;
+
+	/**
+	 * Construct default options.
+	 *
+	 * @since 0.2
+	 */
+	public StageOptions() {}
+
+	/**
+	 * Copy options.
+	 *
+	 * @param other
+	 * 	options to copy; must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>other</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public StageOptions(StageOptions other) {
+		durability = other.durability;
+		groupCommitWindow = other.groupCommitWindow;
+		syncInterval = other.syncInterval;
+		memoryMapped = other.memoryMapped;
+		mapWindowSize = other.mapWindowSize;
+		ioThreads = other.ioThreads;
+		ioExecutor = other.ioExecutor;
+		cacheBudget = other.cacheBudget;
+		cacheBlockSize = other.cacheBlockSize;
+		cacheOffHeap = other.cacheOffHeap;
+		framed = other.framed;
+		monitored = other.monitored;
+		preallocationExtent = other.preallocationExtent;
+		uninterruptible = other.uninterruptible;
+		readOnly = other.readOnly;
+	}
+
+	/**
+	 * Retrieve the durability level.
+	 *
+	 * @return
+	 * 	the durability level; never <tt>null</tt>
+	 * @since 0.2
+	 */
+	public StageDurability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Set the durability level.
+	 *
+	 * @param durability
+	 * 	the new durability level, or <tt>null</tt>
+	 * 	to select {@link StageDurability#PER_WRITE}
+	 * @since 0.2
+	 */
+	public void setDurability(StageDurability durability) {
+		this.durability = durability == null ? StageDurability.PER_WRITE : durability;
+	}
+
+	/**
+	 * Retrieve the group commit window.
+	 *
+	 * This is the maximum amount of time the thread
+	 * performing a group commit waits for additional
+	 * writes to complete before flushing the file.
+	 * Only applies to {@link StageDurability#GROUP_COMMIT}.
+	 *
+	 * @return
+	 * 	the group commit window in nanoseconds
+	 * @since 0.2
+	 */
+	public long getGroupCommitWindow() {
+		return groupCommitWindow;
+	}
+
+	/**
+	 * Set the group commit window.
+	 *
+	 * @param window
+	 * 	the new window; negative values select
+	 * 	{@link #DEFAULT_GROUP_COMMIT_WINDOW}
+	 * @param unit
+	 * 	unit of <tt>window</tt>; must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>unit</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public void setGroupCommitWindow(long window, TimeUnit unit) {
+		groupCommitWindow = window < 0l ? StageOptions.DEFAULT_GROUP_COMMIT_WINDOW : unit.toNanos(window);
+	}
+
+	/**
+	 * Retrieve the sync interval.
+	 *
+	 * This is the maximum amount of time between
+	 * flushes caused by writes.
+	 * Only applies to {@link StageDurability#PERIODIC}.
+	 *
+	 * @return
+	 * 	the sync interval in nanoseconds
+	 * @since 0.2
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Set the sync interval.
+	 *
+	 * @param interval
+	 * 	the new interval; negative values select
+	 * 	{@link #DEFAULT_SYNC_INTERVAL}
+	 * @param unit
+	 * 	unit of <tt>interval</tt>; must not be <tt>null</tt>
+	 * @throws NullPointerException
+	 * 	if <tt>unit</tt> is <tt>null</tt>
+	 * @since 0.2
+	 */
+	public void setSyncInterval(long interval, TimeUnit unit) {
+		syncInterval = interval < 0l ? StageOptions.DEFAULT_SYNC_INTERVAL : unit.toNanos(interval);
+	}
+
+	/**
+	 * Determine whether reads are served from memory mappings.
+	 *
+	 * If set, {@link StageFile#readChunk(java.nio.ByteBuffer, long) readChunk}
+	 * copies data out of windows of the file mapped into
+	 * memory rather than reading from the channel, thus
+	 * avoiding a system call per read. Writes are still
+	 * performed via the channel; mapped windows grow along
+	 * with the file as it is read from.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if reads are memory mapped
+	 * @since 0.2
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Set whether reads are served from memory mappings.
+	 *
+	 * @param memoryMapped
+	 * 	<tt>true</tt> if reads should be memory mapped
+	 * @since 0.2
+	 * @see #isMemoryMapped()
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Retrieve the size of memory mapped windows.
+	 *
+	 * Only applies if {@link #isMemoryMapped() memory mapping}
+	 * is enabled.
+	 *
+	 * @return
+	 * 	the window size in bytes
+	 * @since 0.2
+	 */
+	public long getMapWindowSize() {
+		return mapWindowSize;
+	}
+
+	/**
+	 * Set the size of memory mapped windows.
+	 *
+	 * @param mapWindowSize
+	 * 	the new window size in bytes; non-positive values
+	 * 	select {@link #DEFAULT_MAP_WINDOW_SIZE}
+	 * @throws IllegalArgumentException
+	 * 	if <tt>mapWindowSize</tt> exceeds
+	 * 	{@link Integer#MAX_VALUE}
+	 * @since 0.2
+	 */
+	public void setMapWindowSize(long mapWindowSize) {
+		if(mapWindowSize > (long)Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Map window size exceeds maximum mapping size: " + mapWindowSize);
+		this.mapWindowSize = mapWindowSize <= 0l ? StageOptions.DEFAULT_MAP_WINDOW_SIZE : mapWindowSize;
+	}
+
+	/**
+	 * Retrieve the number of I/O threads.
+	 *
+	 * Asynchronous operations such as
+	 * {@link StageFile#readChunkAsync(java.nio.ByteBuffer, long) readChunkAsync}
+	 * are carried out by a pool of at most this many
+	 * threads owned by the stage, unless an
+	 * {@link #getIOExecutor() I/O executor} is given.
+	 *
+	 * @return
+	 * 	the maximum number of I/O threads
+	 * @since 0.2
+	 */
+	public int getIOThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * Set the number of I/O threads.
+	 *
+	 * @param ioThreads
+	 * 	the new maximum number of I/O threads;
+	 * 	non-positive values select
+	 * 	{@link #DEFAULT_IO_THREADS}
+	 * @since 0.2
+	 */
+	public void setIOThreads(int ioThreads) {
+		this.ioThreads = ioThreads <= 0 ? StageOptions.DEFAULT_IO_THREADS : ioThreads;
+	}
+
+	/**
+	 * Retrieve the I/O executor.
+	 *
+	 * If non-<tt>null</tt>, asynchronous operations are
+	 * submitted to this executor instead of a pool owned
+	 * by the stage. The stage never shuts down an executor
+	 * given in this manner. Tasks submitted by the stage
+	 * perform blocking I/O, so the executor should not be
+	 * one whose threads are expected never to block.
+	 *
+	 * @return
+	 * 	the I/O executor, or <tt>null</tt> if the
+	 * 	stage creates its own
+	 * @since 0.2
+	 */
+	public Executor getIOExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * Set the I/O executor.
+	 *
+	 * @param ioExecutor
+	 * 	the new I/O executor, or <tt>null</tt> to have
+	 * 	the stage create its own
+	 * @since 0.2
+	 * @see #getIOExecutor()
+	 */
+	public void setIOExecutor(Executor ioExecutor) {
+		this.ioExecutor = ioExecutor;
+	}
+
+	/**
+	 * Retrieve the block cache budget.
+	 *
+	 * If positive, the stage keeps a cache of recently read
+	 * blocks of the file in memory, using at most (roughly)
+	 * this many bytes. Reads that can be satisfied from the
+	 * cache do not touch the file at all. Since stage data
+	 * is immutable, the cache never needs to be invalidated.
+	 * The cache is not used if reads are
+	 * {@link #isMemoryMapped() memory mapped}, as the page
+	 * cache already serves that purpose.
+	 *
+	 * @return
+	 * 	the cache budget in bytes; zero if no
+	 * 	cache is to be used
+	 * @since 0.2
+	 */
+	public long getCacheBudget() {
+		return cacheBudget;
+	}
+
+	/**
+	 * Set the block cache budget.
+	 *
+	 * @param cacheBudget
+	 * 	the new cache budget in bytes; non-positive
+	 * 	values disable the cache
+	 * @since 0.2
+	 * @see #getCacheBudget()
+	 */
+	public void setCacheBudget(long cacheBudget) {
+		this.cacheBudget = cacheBudget < 0l ? 0l : cacheBudget;
+	}
+
+	/**
+	 * Retrieve the size of cached blocks.
+	 *
+	 * The cache holds blocks of this size, each
+	 * starting at a multiple of this size.
+	 *
+	 * @return
+	 * 	the cache block size in bytes
+	 * @since 0.2
+	 */
+	public int getCacheBlockSize() {
+		return cacheBlockSize;
+	}
+
+	/**
+	 * Set the size of cached blocks.
+	 *
+	 * @param cacheBlockSize
+	 * 	the new block size in bytes; non-positive
+	 * 	values select {@link #DEFAULT_CACHE_BLOCK_SIZE}
+	 * @since 0.2
+	 */
+	public void setCacheBlockSize(int cacheBlockSize) {
+		this.cacheBlockSize = cacheBlockSize <= 0 ? StageOptions.DEFAULT_CACHE_BLOCK_SIZE : cacheBlockSize;
+	}
+
+	/**
+	 * Determine whether cached blocks are kept off-heap.
+	 *
+	 * If set, cached blocks are
+	 * {@link java.nio.ByteBuffer#allocateDirect(int) direct buffers}.
+	 * Buffers of evicted blocks are reused either way.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if the block
+	 * 	cache uses direct buffers
+	 * @since 0.2
+	 */
+	public boolean isCacheOffHeap() {
+		return cacheOffHeap;
+	}
+
+	/**
+	 * Set whether cached blocks are kept off-heap.
+	 *
+	 * @param cacheOffHeap
+	 * 	<tt>true</tt> if the block cache should
+	 * 	use direct buffers
+	 * @since 0.2
+	 * @see #isCacheOffHeap()
+	 */
+	public void setCacheOffHeap(boolean cacheOffHeap) {
+		this.cacheOffHeap = cacheOffHeap;
+	}
+
+	/**
+	 * Determine whether chunks are framed.
+	 *
+	 * If set, every chunk is preceded in the file by a
+	 * header holding its length and its
+	 * {@link java.util.zip.CRC32C CRC32C} checksum, and the
+	 * file starts with a magic number identifying the format.
+	 * When such a file is reopened without truncation, the
+	 * frames written since the data was last flushed are
+	 * validated and the file is truncated to the end of the
+	 * last intact frame, thus discarding a torn tail left
+	 * behind by a crash; frames that had been flushed are
+	 * neither read nor discarded. This allows running with
+	 * a weaker {@link #getDurability() durability level}
+	 * without risking garbage at the end of the stage.
+	 * <p>
+	 * A file must always be opened with the same setting
+	 * it was created with.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if
+	 * 	chunks are written as frames
+	 * @since 0.2
+	 */
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Set whether chunks are framed.
+	 *
+	 * @param framed
+	 * 	<tt>true</tt> if chunks should
+	 * 	be written as frames
+	 * @since 0.2
+	 * @see #isFramed()
+	 */
+	public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	/**
+	 * Determine whether I/O statistics are collected.
+	 *
+	 * If set, the stage counts bytes and chunks transferred,
+	 * records latency histograms and lock wait times, and
+	 * registers a {@link StageFileMXBean} with the platform
+	 * MBean server while it is open. Recording adds a couple
+	 * of {@link System#nanoTime()} calls to each operation.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if the
+	 * 	stage is to be monitored
+	 * @since 0.2
+	 */
+	public boolean isMonitored() {
+		return monitored;
+	}
+
+	/**
+	 * Set whether I/O statistics are collected.
+	 *
+	 * @param monitored
+	 * 	<tt>true</tt> if the stage
+	 * 	is to be monitored
+	 * @since 0.2
+	 * @see #isMonitored()
+	 */
+	public void setMonitored(boolean monitored) {
+		this.monitored = monitored;
+	}
+
+	/**
+	 * Retrieve the preallocation extent.
+	 *
+	 * If positive, the file is grown ahead of the appends
+	 * in steps of this many bytes (filled with zeros), so
+	 * that appends only ever write to space that is already
+	 * allocated and do not change the size of the file,
+	 * which spares synchronous writes and flushes the
+	 * update of the file size metadata. The logical end of
+	 * the stage is then recorded in a header at the start
+	 * of the file whenever data is made durable, and is
+	 * used instead of the size of the file when the stage
+	 * is reopened. Preallocation cannot be combined with
+	 * {@link #isFramed() framing}.
+	 * <p>
+	 * Since chunks are not self-delimiting, recovery cannot
+	 * look past the recorded logical end, so it must cover
+	 * everything reported durable. With
+	 * {@link StageDurability#PER_WRITE}, every append is
+	 * therefore followed by a second synchronous write of
+	 * the header (shared by appends completing while it is
+	 * under way), trading the metadata update of a write
+	 * extending the file for a data write to the header.
+	 * Whether that pays off depends on the file system: on
+	 * some, a synchronous write extending the file costs less
+	 * than two in place, and preallocation then slows down
+	 * appends. <tt>StageFileWriteBenchmark</tt> compares both
+	 * settings. The lazier durability levels update the
+	 * header once per flush rather than once per append,
+	 * which makes its cost negligible.
+	 * <p>
+	 * A file must always be opened with the same setting
+	 * (positive or not) it was created with.
+	 *
+	 * @return
+	 * 	the preallocation extent in bytes; zero if
+	 * 	the file is not to be preallocated
+	 * @since 0.2
+	 */
+	public long getPreallocationExtent() {
+		return preallocationExtent;
+	}
+
+	/**
+	 * Set the preallocation extent.
+	 *
+	 * @param preallocationExtent
+	 * 	the new extent in bytes; non-positive
+	 * 	values disable preallocation
+	 * @since 0.2
+	 * @see #getPreallocationExtent()
+	 */
+	public void setPreallocationExtent(long preallocationExtent) {
+		this.preallocationExtent = preallocationExtent < 0l ? 0l : preallocationExtent;
+	}
+
+	/**
+	 * Determine whether channel I/O is shielded from interrupts.
+	 *
+	 * A {@link java.nio.channels.FileChannel} closes itself
+	 * if a thread is interrupted while performing I/O on it,
+	 * which fails the I/O of all other threads using the
+	 * channel and forces the stage to reopen it. If set, the
+	 * stage performs all channel operations on dedicated
+	 * carrier threads instead, which are never interrupted,
+	 * while the calling thread waits for the operation to
+	 * finish. Interrupting the calling thread then merely
+	 * sets its interrupt status, as it does with the
+	 * default setting. This is recommended if threads
+	 * using the stage may be interrupted routinely (such
+	 * as by cancelling tasks of an executor), at the
+	 * expense of a hand-off between threads per operation.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if channel
+	 * 	I/O runs on carrier threads
+	 * @since 0.2
+	 */
+	public boolean isUninterruptible() {
+		return uninterruptible;
+	}
+
+	/**
+	 * Set whether channel I/O is shielded from interrupts.
+	 *
+	 * @param uninterruptible
+	 * 	<tt>true</tt> if channel I/O should
+	 * 	run on carrier threads
+	 * @since 0.2
+	 * @see #isUninterruptible()
+	 */
+	public void setUninterruptible(boolean uninterruptible) {
+		this.uninterruptible = uninterruptible;
+	}
+
+	/**
+	 * Determine whether the stage is opened read-only.
+	 *
+	 * If set, the file is opened for reading only, all
+	 * attempts to write to the stage fail with a
+	 * {@link StageReadOnlyException}, and the file is never
+	 * modified in any way, so that any number of read-only
+	 * stages (in any number of processes) may be open on
+	 * the same finished file at the same time. Since the
+	 * contents of the file are then final, reads are always
+	 * {@link #isMemoryMapped() memory mapped}, regardless of
+	 * that setting. The durability settings are irrelevant,
+	 * but {@link #isFramed() framing} and
+	 * {@link #getPreallocationExtent() preallocation} must
+	 * match the file as usual.
+	 *
+	 * @return
+	 * 	<tt>true</tt> if and only if the
+	 * 	stage is opened read-only
+	 * @since 0.2
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Set whether the stage is opened read-only.
+	 *
+	 * @param readOnly
+	 * 	<tt>true</tt> if the stage is
+	 * 	to be opened read-only
+	 * @since 0.2
+	 * @see #isReadOnly()
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+
+public class StageReadOnlyException extends StagingException {
+
+	private final File stageFile;
+
+	public StageReadOnlyException(File stageFile) {
+		super("Stage file " + stageFile.getAbsolutePath() + " is open read-only");
+		this.stageFile = stageFile;
+	}
+
+	public File getStageFile() {
+		return stageFile;
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.unclesniper.arceye.stage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters backing a {@link StageFileMXBean}.
+ *
+ * All counters are {@link LongAdder}s, so recording
+ * does not contend between threads.
+ *
+ * @since 0.2
+ */
+final class StageStatistics implements StageFileMXBean {
+
+	private final String path;
+
+	private final LongAdder bytesRead = new LongAdder();
+
+	private final LongAdder chunksRead = new LongAdder();
+
+	private final LongAdder bytesWritten = new LongAdder();
+
+	private final LongAdder chunksWritten = new LongAdder();
+
+	private final LongAdder[] readLatencies = StageStatistics.makeHistogram();
+
+	private final LongAdder[] writeLatencies = StageStatistics.makeHistogram();
+
+	private final LongAdder lockWaitTime = new LongAdder();
+
+	private final LongAdder lockAcquisitions = new LongAdder();
+
+	private final LongAdder shortReads = new LongAdder();
+
+	private final LongAdder shortWrites = new LongAdder();
+
+	private final LongAdder reopens = new LongAdder();
+
+	private final LongAdder syncs = new LongAdder();
+
+	StageStatistics(String path) {
+		this.path = path;
+	}
+
+	private static LongAdder[] makeHistogram() {
+		LongAdder[] histogram = new LongAdder[StageFileMXBean.HISTOGRAM_BUCKETS];
+		for(int i = 0; i < histogram.length; ++i)
+			histogram[i] = new LongAdder();
+		return histogram;
+	}
+
+	private static void record(LongAdder[] histogram, long nanos) {
+		int bucket = nanos <= 0l ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+		histogram[Math.min(bucket, histogram.length - 1)].increment();
+	}
+
+	private static long[] snapshot(LongAdder[] histogram) {
+		long[] counts = new long[histogram.length];
+		for(int i = 0; i < counts.length; ++i)
+			counts[i] = histogram[i].sum();
+		return counts;
+	}
+
+	void recordRead(int chunks, long bytes, long nanos) {
+		chunksRead.add(chunks);
+		bytesRead.add(bytes);
+		StageStatistics.record(readLatencies, nanos);
+	}
+
+	void recordWrite(int chunks, long bytes, long nanos) {
+		chunksWritten.add(chunks);
+		bytesWritten.add(bytes);
+		StageStatistics.record(writeLatencies, nanos);
+	}
+
+	void recordLockWait(long nanos) {
+		lockAcquisitions.increment();
+		lockWaitTime.add(nanos);
+	}
+
+	void recordShortRead() {
+		shortReads.increment();
+	}
+
+	void recordShortWrite() {
+		shortWrites.increment();
+	}
+
+	void recordReopen() {
+		reopens.increment();
+	}
+
+	void recordSync() {
+		syncs.increment();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getChunksRead() {
+		return chunksRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getChunksWritten() {
+		return chunksWritten.sum();
+	}
+
+	public long[] getReadLatencyHistogram() {
+		return StageStatistics.snapshot(readLatencies);
+	}
+
+	public long[] getWriteLatencyHistogram() {
+		return StageStatistics.snapshot(writeLatencies);
+	}
+
+	public long getLockWaitTime() {
+		return lockWaitTime.sum();
+	}
+
+	public long getLockAcquisitions() {
+		return lockAcquisitions.sum();
+	}
+
+	public long getShortReadRetries() {
+		return shortReads.sum();
+	}
+
+	public long getShortWriteRetries() {
+		return shortWrites.sum();
+	}
+
+	public long getReopenCount() {
+		return reopens.sum();
+	}
+
+	public long getSyncCount() {
+		return syncs.sum();
+	}
+
+}
@@ -0,0 +1,231 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Batch of chunks appended to a stage as a whole.
+ *
+ * A transaction is {@link Stage#beginTransaction(long) begun}
+ * with an estimate of the number of bytes it will occupy in the
+ * stage. Chunks are then {@link #add(ByteBuffer) added} one by
+ * one, each receiving its chunk ID right away, so that chunks
+ * added later may refer to chunks added earlier, and the
+ * transaction is finally {@link #commit() committed}. A
+ * transaction that is {@link #close() closed} without having
+ * been committed is aborted.
+ * <p>
+ * How much of this is done at once is up to the stage. The
+ * transactions of {@link StageFile}, {@link TieredStage} and
+ * {@link MemoryStage} are <i>buffered</i>: they reserve the
+ * estimated range up front and stage all chunks in a buffer,
+ * which is appended as a whole upon commit (with a single
+ * channel write and a single flush, in the case of a
+ * <tt>StageFile</tt>), making the chunks visible to readers at
+ * the same time; aborting such a transaction appends nothing.
+ * Buffered transactions also support
+ * {@link #allocate(int) allocating} chunks before
+ * {@link #put(long, ByteBuffer) filling} them, in any order,
+ * so chunks may refer to each other regardless of the
+ * direction of the references. The chunks of a buffered
+ * transaction are adjacent in the stage and in the order of
+ * their allocation. See {@link StageFile#beginTransaction(long)}
+ * for the details of reservations.
+ * <p>
+ * Stages that cannot predict chunk IDs (such as
+ * {@link CompressedStage}) fall back to the default of
+ * {@link Stage#beginTransaction(long)}, which appends each
+ * chunk as it is added, via {@link Stage#writeChunk(ByteBuffer)}.
+ * Such a transaction is not atomic, and does not support
+ * allocating chunks ahead of time. Structures that only ever
+ * add chunks after the chunks they refer to therefore work
+ * with either kind.
+ * <p>
+ * A transaction is confined to the thread that began it,
+ * which must also commit or abort it, and <b>must not</b>
+ * otherwise append to the same stage while the transaction is
+ * open: a buffered transaction holds the stage exclusively or
+ * blocks appends reserved after it from becoming visible, so
+ * transactions should be short.
+ *
+ * @since 0.2
+ */
+public interface StageTransaction extends AutoCloseable {
+
+	/**
+	 * Retrieve the stage appended to.
+	 *
+	 * @return
+	 * 	the stage the transaction was begun on
+	 * @since 0.2
+	 */
+	Stage getStage();
+
+	/**
+	 * Determine whether the transaction is still open.
+	 *
+	 * @return
+	 * 	<tt>false</tt> once the transaction has been
+	 * 	committed or aborted
+	 * @since 0.2
+	 */
+	boolean isOpen();
+
+	/**
+	 * Retrieve the number of chunks allocated so far.
+	 *
+	 * @return
+	 * 	the number of chunks in the transaction
+	 * @since 0.2
+	 */
+	int getChunkCount();
+
+	/**
+	 * Retrieve the number of bytes allocated so far.
+	 *
+	 * @return
+	 * 	the number of bytes occupied in the stage by
+	 * 	the chunks allocated, including any
+	 * 	{@link Stage#getFrameOverhead() frame overhead}
+	 * @since 0.2
+	 */
+	long getSize();
+
+	/**
+	 * Retrieve the number of bytes currently reserved.
+	 *
+	 * @return
+	 * 	the size of the range reserved for the
+	 * 	transaction, or the estimate it was begun with
+	 * 	if it does not reserve ahead
+	 * @since 0.2
+	 */
+	long getCapacity();
+
+	/**
+	 * Allocate a chunk.
+	 *
+	 * The chunk ID is assigned immediately and is
+	 * final, provided that the transaction is
+	 * committed. The chunk must then be
+	 * {@link #put(long, ByteBuffer) filled} before
+	 * the transaction is committed.
+	 *
+	 * @param size
+	 * 	size of the chunk
+	 * @return
+	 * 	the chunk ID of the chunk
+	 * @throws IllegalArgumentException
+	 * 	if <tt>size</tt> is negative
+	 * @throws IllegalStateException
+	 * 	if the transaction has ended, or if the
+	 * 	chunk exceeds the reservation and the
+	 * 	reservation cannot be extended
+	 * @throws UnsupportedOperationException
+	 * 	if the transaction is not buffered
+	 * @since 0.2
+	 */
+	long allocate(int size);
+
+	/**
+	 * Fill an allocated chunk.
+	 *
+	 * Copies the <i>remaining</i> bytes of the
+	 * <tt>buffer</tt>, which must equate the size the
+	 * chunk was allocated with, and advances the
+	 * <i>position</i> of the buffer accordingly. A chunk
+	 * may be filled more than once, the last time
+	 * taking effect.
+	 *
+	 * @param chunkID
+	 * 	ID of a chunk allocated by this transaction
+	 * @param buffer
+	 * 	source buffer from which the chunk is drawn
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the chunk ID was not allocated by this
+	 * 	transaction, or if the number of remaining
+	 * 	bytes does not match the size of the chunk
+	 * @throws IllegalStateException
+	 * 	if the transaction has ended
+	 * @throws UnsupportedOperationException
+	 * 	if the transaction is not buffered
+	 * @since 0.2
+	 */
+	void put(long chunkID, ByteBuffer buffer);
+
+	/**
+	 * Add a chunk.
+	 *
+	 * Consumes the <i>remaining</i> bytes of the
+	 * <tt>buffer</tt>. A buffered transaction
+	 * {@link #allocate(int) allocates} and
+	 * {@link #put(long, ByteBuffer) fills} a chunk;
+	 * otherwise, the chunk is appended right away.
+	 *
+	 * @param buffer
+	 * 	source buffer from which the chunk is drawn
+	 * @return
+	 * 	the chunk ID of the chunk
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalStateException
+	 * 	if the transaction has ended, or if the
+	 * 	chunk exceeds the reservation and the
+	 * 	reservation cannot be extended
+	 * @since 0.2
+	 */
+	long add(ByteBuffer buffer);
+
+	/**
+	 * Append all chunks to the stage.
+	 *
+	 * All allocated chunks must have been filled.
+	 * The transaction has ended once this method
+	 * returns, even if it does so by throwing a
+	 * <tt>ChunkWriteIOException</tt>; in that case,
+	 * none of the chunks may be referred to.
+	 *
+	 * @throws IllegalStateException
+	 * 	if the transaction has ended, or if an
+	 * 	allocated chunk has not been filled (in
+	 * 	which case the transaction remains open)
+	 * @throws ChunkWriteIOException
+	 * 	if the underlying write fails with an
+	 * 	{@link java.io.IOException}
+	 * @since 0.2
+	 */
+	void commit();
+
+	/**
+	 * Abort the transaction.
+	 *
+	 * A buffered transaction appends none of its
+	 * chunks; otherwise, the chunks added so far
+	 * remain in the stage, but must not be referred to.
+	 *
+	 * @throws IllegalStateException
+	 * 	if the transaction has ended
+	 * @throws ChunkWriteIOException
+	 * 	if writing any padding fails with an
+	 * 	{@link java.io.IOException}
+	 * @since 0.2
+	 */
+	void abort();
+
+	/**
+	 * Abort the transaction unless it has ended.
+	 *
+	 * Allows for transactions to be used in
+	 * <tt>try</tt>-with-resources statements,
+	 * committing at the end of the <tt>try</tt>
+	 * block.
+	 *
+	 * @throws ChunkWriteIOException
+	 * 	if writing any padding fails with an
+	 * 	{@link java.io.IOException}
+	 * @since 0.2
+	 */
+	void close();
+
+}
@@ -0,0 +1,536 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stage keeping recently written chunks in memory.
+ *
+ * Wraps a backing {@link StageFile}, in front of which
+ * it keeps an <i>arena</i>: a direct buffer of a fixed
+ * size, into which chunks are written first. Once the
+ * arena is full (or upon {@link #flush() flush}), all
+ * chunks in it are <i>spilled</i> to the backing stage
+ * with a single positional write of the arena, and the
+ * arena is reused. Chunks read back shortly after
+ * having been written (as is typical for the nodes of
+ * a {@link History} around the current state) are thus
+ * served from memory, and the backing stage only ever
+ * sees large sequential appends. Since the arena is
+ * allocated off-heap, it does not add to the heap.
+ * <p>
+ * The chunk ID of a chunk is the offset it has (or will
+ * have) in the backing stage, so chunk IDs remain valid
+ * when chunks are spilled. To that end, the arena holds
+ * an exact image of the bytes the spilled chunks will
+ * occupy, including the frame headers of a
+ * {@link StageOptions#isFramed() framed} backing stage.
+ * Consequently, the backing stage <b>must not</b> be
+ * written to other than through the tiered stage while
+ * chunks are held in the arena; this is detected when
+ * spilling and reported as an {@link IllegalStateException}.
+ * Chunks that do not fit into the arena at all are
+ * written to the backing stage directly, after spilling
+ * the arena.
+ * <p>
+ * Chunks in the arena are <b>not</b> durable before they
+ * are spilled; {@link #sync() sync} spills them first.
+ * Apart from that, the semantics of all operations are
+ * those of the respective operations of
+ * <tt>StageFile</tt>. All operations are thread safe;
+ * writes (including transactions) and spills exclude
+ * each other as well as reads from the arena, while
+ * reads from the backing stage proceed concurrently.
+ *
+ * @since 0.2
+ */
+public final class TieredStage implements Stage {
+
+	private final StageFile backing;
+
+	private final ByteBuffer arena;
+
+	private final int frameOverhead;
+
+	private final ReadWriteLock arenaLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Chunk ID corresponding to the start of the arena.
+	 *
+	 * Guarded by {@link #arenaLock}; volatile so that
+	 * reads from the backing stage can be told apart
+	 * from reads from the arena without locking.
+	 */
+	private volatile long arenaStart;
+
+	/**
+	 * Number of bytes of the arena in use.
+	 *
+	 * Guarded by {@link #arenaLock}.
+	 */
+	private int arenaUsed;
+
+	private int chunkCount;
+
+	/**
+	 * Wrap a stage file with an arena of the given size.
+	 *
+	 * @param backing
+	 * 	stage to spill chunks to; must not be <tt>null</tt>
+	 * @param arenaSize
+	 * 	size of the arena in bytes
+	 * @throws NullPointerException
+	 * 	if <tt>backing</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if <tt>arenaSize</tt> is not positive
+	 * @since 0.2
+	 */
+	public TieredStage(StageFile backing, int arenaSize) {
+		if(backing == null)
+			throw new NullPointerException();
+		if(arenaSize <= 0)
+			throw new IllegalArgumentException("Arena size must be positive: " + arenaSize);
+		this.backing = backing;
+		arena = ByteBuffer.allocateDirect(arenaSize);
+		frameOverhead = backing.getFrameOverhead();
+		arenaStart = backing.getReservedEnd();
+	}
+
+	/**
+	 * Retrieve the backing stage.
+	 *
+	 * @return
+	 * 	the stage chunks are spilled to
+	 * @since 0.2
+	 */
+	public StageFile getBacking() {
+		return backing;
+	}
+
+	/**
+	 * Retrieve the buffer pool of the backing stage.
+	 *
+	 * @return
+	 * 	the pool of {@link #getBacking() the backing stage}
+	 * @since 0.2
+	 */
+	public BufferPool getBufferPool() {
+		return backing.getBufferPool();
+	}
+
+	/**
+	 * Retrieve the frame overhead of the backing stage.
+	 *
+	 * @return
+	 * 	the {@link StageFile#getFrameOverhead() frame overhead}
+	 * 	of {@link #getBacking() the backing stage}, which the
+	 * 	arena mirrors
+	 * @since 0.2
+	 */
+	public int getFrameOverhead() {
+		return frameOverhead;
+	}
+
+	/**
+	 * Retrieve the size of the arena.
+	 *
+	 * @return
+	 * 	the number of bytes the arena can hold
+	 * @since 0.2
+	 */
+	public int getArenaSize() {
+		return arena.capacity();
+	}
+
+	/**
+	 * Retrieve the number of bytes currently held in the arena.
+	 *
+	 * @return
+	 * 	the number of bytes that have not
+	 * 	been spilled yet
+	 * @since 0.2
+	 */
+	public int getArenaUsage() {
+		Lock lock = arenaLock.readLock();
+		lock.lock();
+		try {
+			return arenaUsed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copy a chunk into the arena.
+	 *
+	 * Must be called while holding the write lock,
+	 * and only if the chunk fits.
+	 *
+	 * @return
+	 * 	the chunk ID of the chunk
+	 */
+	private long place(ByteBuffer buffer) {
+		int length = buffer.remaining();
+		int offset = arenaUsed + frameOverhead;
+		ByteBuffer target = arena.duplicate();
+		target.position(offset);
+		if(frameOverhead > 0) {
+			CRC32C crc = new CRC32C();
+			ChunkFraming.beginChecksum(crc, length);
+			crc.update(buffer.duplicate());
+			target.putInt(arenaUsed, length);
+			target.putInt(arenaUsed + 4, (int)crc.getValue());
+		}
+		target.put(buffer);
+		++chunkCount;
+		arenaUsed = offset + length;
+		return arenaStart + offset;
+	}
+
+	private boolean fits(long size) {
+		return size <= arena.capacity() - arenaUsed;
+	}
+
+	/**
+	 * Write a chunk of data to the stage.
+	 *
+	 * See {@link StageFile#writeChunk(ByteBuffer)}. The
+	 * chunk is copied into the arena, spilling the arena
+	 * first if the chunk does not fit into the space left.
+	 *
+	 * @param buffer
+	 * 	source buffer from which bytes to be written
+	 * 	are drawn
+	 * @return
+	 * 	resulting chunk ID of the chunk written
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws ChunkWriteIOException
+	 * 	if spilling fails with an {@link IOException}
+	 * @since 0.2
+	 */
+	public long writeChunk(ByteBuffer buffer) {
+		long size = (long)buffer.remaining() + frameOverhead;
+		Lock lock = arenaLock.writeLock();
+		lock.lock();
+		try {
+			if(!fits(size))
+				spill();
+			if(fits(size))
+				return place(buffer);
+			long id = backing.writeChunk(buffer);
+			arenaStart = backing.getReservedEnd();
+			return id;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write several chunks of data to the stage at once.
+	 *
+	 * See {@link StageFile#writeChunks(ByteBuffer[])}. The
+	 * chunks are copied into the arena together, spilling
+	 * the arena first if they do not fit into the space
+	 * left; they end up adjacent either way.
+	 *
+	 * @param buffers
+	 * 	source buffers from which the bytes of the
+	 * 	individual chunks are drawn
+	 * @return
+	 * 	the chunk IDs of the written chunks, in the
+	 * 	order of the <tt>buffers</tt>
+	 * @since 0.2
+	 */
+	public long[] writeChunks(ByteBuffer... buffers) {
+		long size = 0l;
+		for(ByteBuffer buffer : buffers)
+			size += (long)buffer.remaining() + frameOverhead;
+		Lock lock = arenaLock.writeLock();
+		lock.lock();
+		try {
+			if(!fits(size))
+				spill();
+			if(!fits(size)) {
+				long[] ids = backing.writeChunks(buffers);
+				arenaStart = backing.getReservedEnd();
+				return ids;
+			}
+			long[] ids = new long[buffers.length];
+			for(int i = 0; i < buffers.length; ++i)
+				ids[i] = place(buffers[i]);
+			return ids;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Transaction appending to the arena.
+	 *
+	 * Holds the write lock while open, so its
+	 * reservation can always be resized, and the
+	 * range it reserves always starts at the end
+	 * of the arena.
+	 */
+	private final class ArenaTransaction extends BufferedTransaction {
+
+		private final Lock lock;
+
+		ArenaTransaction(Lock lock, long base, long capacity) {
+			super(TieredStage.this, base, capacity);
+			this.lock = lock;
+		}
+
+		boolean tryResize(long end, long newEnd) {
+			return true;
+		}
+
+		void write(ByteBuffer buffer, long offset) {
+			int size = buffer.remaining();
+			if(!fits(size))
+				spill();
+			if(fits(size)) {
+				ByteBuffer target = arena.duplicate();
+				target.position(arenaUsed);
+				target.put(buffer);
+				arenaUsed += size;
+				TieredStage.this.chunkCount += getChunkCount();
+				return;
+			}
+			if(!backing.appendImage(buffer, arenaStart, getChunkCount()))
+				throw new IllegalStateException("Backing stage " + backing.getPath().getAbsolutePath()
+						+ " was written to while chunks were held in memory");
+			arenaStart += size;
+		}
+
+		void complete(long end) {
+			lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Begin a batch of appends.
+	 *
+	 * See {@link StageFile#beginTransaction(long)}. The
+	 * transaction holds the arena exclusively until it
+	 * ends, so its reservation can always be extended
+	 * and given back. When the transaction is committed,
+	 * its chunks are copied into the arena as a whole
+	 * (spilling the arena first if they do not fit into
+	 * the space left), or else written to the backing
+	 * stage directly, just like
+	 * {@link #writeChunks(ByteBuffer[]) writeChunks} does.
+	 *
+	 * @param capacity
+	 * 	estimated number of bytes the
+	 * 	transaction will occupy
+	 * @return
+	 * 	the open transaction
+	 * @throws IllegalArgumentException
+	 * 	if <tt>capacity</tt> is negative
+	 * @since 0.2
+	 */
+	public StageTransaction beginTransaction(long capacity) {
+		if(capacity < 0l)
+			throw new IllegalArgumentException("Negative transaction capacity: " + capacity);
+		Lock lock = arenaLock.writeLock();
+		lock.lock();
+		return new ArenaTransaction(lock, arenaStart + arenaUsed, capacity);
+	}
+
+	/**
+	 * Move all chunks from the arena to the backing stage.
+	 *
+	 * Must be called while holding the write lock.
+	 */
+	private void spill() {
+		if(chunkCount == 0)
+			return;
+		ByteBuffer image = arena.duplicate();
+		image.limit(arenaUsed).position(0);
+		if(!backing.appendImage(image, arenaStart, chunkCount))
+			throw new IllegalStateException("Backing stage " + backing.getPath().getAbsolutePath()
+					+ " was written to while chunks were held in memory");
+		arenaStart += arenaUsed;
+		arenaUsed = 0;
+		chunkCount = 0;
+	}
+
+	/**
+	 * Spill all chunks held in the arena.
+	 *
+	 * Chunks are then in the backing stage, but not
+	 * necessarily durable; see {@link #sync()}.
+	 *
+	 * @throws ChunkWriteIOException
+	 * 	if spilling fails with an {@link IOException}
+	 * @since 0.2
+	 */
+	public void flush() {
+		Lock lock = arenaLock.writeLock();
+		lock.lock();
+		try {
+			spill();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copy the part of a region held in the arena.
+	 *
+	 * Must be called while holding the read lock.
+	 */
+	private void readArena(ByteBuffer buffer, long offset) {
+		long end = arenaStart + arenaUsed;
+		if(offset + buffer.remaining() > end)
+			throw new ChunkOffsetOutOfRangeException(backing.getPath(), Math.max(offset, end));
+		ByteBuffer source = arena.duplicate();
+		int from = (int)(offset - arenaStart);
+		source.limit(from + buffer.remaining());
+		source.position(from);
+		buffer.put(source);
+	}
+
+	/**
+	 * Read a chunk of data from the stage.
+	 *
+	 * See {@link StageFile#readChunk(ByteBuffer, long)}.
+	 * Bytes held in the arena are copied from there; the
+	 * rest is read from the backing stage.
+	 *
+	 * @param buffer
+	 * 	destination buffer into which read bytes
+	 * 	are placed
+	 * @param offset
+	 * 	chunk ID from which to read
+	 * @throws NullPointerException
+	 * 	if <tt>buffer</tt> is <tt>null</tt>
+	 * @throws IllegalArgumentException
+	 * 	if the chunk ID is negative
+	 * @throws ChunkOffsetOutOfRangeException
+	 * 	if insufficient bytes are present
+	 * @throws ChunkReadIOException
+	 * 	if the underlying channel read fails with
+	 * 	an {@link IOException}
+	 * @since 0.2
+	 */
+	public void readChunk(ByteBuffer buffer, long offset) {
+		if(offset < 0l)
+			throw new IllegalArgumentException("Negative position");
+		if(offset + buffer.remaining() <= arenaStart) {
+			backing.readChunk(buffer, offset);
+			return;
+		}
+		Lock lock = arenaLock.readLock();
+		lock.lock();
+		try {
+			if(offset < arenaStart) {
+				int limit = buffer.limit();
+				buffer.limit(buffer.position() + (int)Math.min(arenaStart - offset, (long)buffer.remaining()));
+				try {
+					backing.readChunk(buffer, offset);
+				}
+				finally {
+					buffer.limit(limit);
+				}
+				offset = arenaStart;
+			}
+			if(buffer.remaining() > 0)
+				readArena(buffer, offset);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read several chunks of data from the stage at once.
+	 *
+	 * See {@link StageFile#readChunks(long[], ByteBuffer[])}.
+	 * The chunks held in the arena are copied from there,
+	 * and all others are read from the backing stage in a
+	 * single batch.
+	 *
+	 * @param offsets
+	 * 	chunk IDs from which to read
+	 * @param buffers
+	 * 	destination buffers, one per chunk ID
+	 * @since 0.2
+	 */
+	public void readChunks(long[] offsets, ByteBuffer[] buffers) {
+		if(offsets.length != buffers.length)
+			throw new IllegalArgumentException("Number of offsets (" + offsets.length
+					+ ") does not match number of buffers (" + buffers.length + ")");
+		long start = arenaStart;
+		int onDisk = 0;
+		for(int i = 0; i < offsets.length; ++i) {
+			if(offsets[i] < 0l)
+				throw new IllegalArgumentException("Negative position");
+			if(offsets[i] + buffers[i].remaining() <= start)
+				++onDisk;
+		}
+		if(onDisk == offsets.length) {
+			backing.readChunks(offsets, buffers);
+			return;
+		}
+		long[] diskOffsets = new long[onDisk];
+		ByteBuffer[] diskBuffers = new ByteBuffer[onDisk];
+		int index = 0;
+		for(int i = 0; i < offsets.length; ++i) {
+			if(offsets[i] + buffers[i].remaining() <= start) {
+				diskOffsets[index] = offsets[i];
+				diskBuffers[index++] = buffers[i];
+			}
+		}
+		backing.readChunks(diskOffsets, diskBuffers);
+		for(int i = 0; i < offsets.length; ++i) {
+			if(offsets[i] + buffers[i].remaining() > start)
+				readChunk(buffers[i], offsets[i]);
+		}
+	}
+
+	/**
+	 * Spill the arena and flush the backing stage.
+	 *
+	 * See {@link StageFile#sync()}.
+	 *
+	 * @since 0.2
+	 */
+	public void sync() {
+		flush();
+		backing.sync();
+	}
+
+	/**
+	 * Spill the arena and close the backing stage.
+	 *
+	 * See {@link StageFile#close()}. The backing stage is
+	 * closed even if spilling fails, in which case the
+	 * chunks still held in the arena are lost.
+	 *
+	 * @throws IOException
+	 * 	if an I/O error occurs when attempting
+	 * 	to close the file
+	 * @since 0.2
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			backing.close();
+		}
+	}
+
+}
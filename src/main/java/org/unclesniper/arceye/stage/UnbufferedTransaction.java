@@ -0,0 +1,92 @@
+package org.unclesniper.arceye.stage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transaction appending each chunk as it is added.
+ *
+ * Returned by the default implementation of
+ * {@link Stage#beginTransaction(long)}, for stages that
+ * cannot tell chunk IDs before the chunks have been
+ * written. Each {@link #add(ByteBuffer) added} chunk is
+ * {@link Stage#writeChunk(ByteBuffer) written} right away,
+ * so the transaction is neither atomic nor able to
+ * {@link #allocate(int) allocate} chunks ahead of time;
+ * committing and aborting merely end it.
+ *
+ * @since 0.2
+ */
+final class UnbufferedTransaction implements StageTransaction {
+
+	private final Stage stage;
+
+	private final long capacity;
+
+	private long size;
+
+	private int chunkCount;
+
+	private boolean open = true;
+
+	UnbufferedTransaction(Stage stage, long capacity) {
+		this.stage = stage;
+		this.capacity = capacity;
+	}
+
+	public Stage getStage() {
+		return stage;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	private void checkOpen() {
+		if(!open)
+			throw new IllegalStateException("Transaction has already ended");
+	}
+
+	public long allocate(int size) {
+		throw new UnsupportedOperationException("Stage cannot allocate chunks ahead of time");
+	}
+
+	public void put(long chunkID, ByteBuffer buffer) {
+		throw new UnsupportedOperationException("Stage cannot allocate chunks ahead of time");
+	}
+
+	public long add(ByteBuffer buffer) {
+		checkOpen();
+		int length = buffer.remaining();
+		long chunkID = stage.writeChunk(buffer);
+		size += stage.getFrameOverhead() + length;
+		++chunkCount;
+		return chunkID;
+	}
+
+	public void commit() {
+		checkOpen();
+		open = false;
+	}
+
+	public void abort() {
+		checkOpen();
+		open = false;
+	}
+
+	public void close() {
+		open = false;
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.unclesniper.arceye.stage;
+
+import org.junit.Test;
+import java.io.IOException;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArcStackTests {
+
+	@Test
+	public void pushPop() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			ArcStack<String> stack = new ArcStack<String>(stage, NodeCodecs.utf8(32));
+			for(int i = 0; i < 20; ++i)
+				stack.push("element" + i);
+			assertThat(stack.getHeight()).isEqualTo(20l);
+			assertThat(stage.getVisibleEnd()).isGreaterThan(0l);
+			for(int i = 19; i >= 10; --i)
+				assertThat(stack.pop()).isEqualTo("element" + i);
+			stack.push("replacement");
+			long topID = stack.save();
+			ArcStack<String> reopened = new ArcStack<String>(stage, NodeCodecs.utf8(32), topID, 4, true);
+			assertThat(reopened.peek()).isEqualTo("replacement");
+			assertThat(reopened.pop()).isEqualTo("replacement");
+			for(int i = 9; i >= 0; --i)
+				assertThat(reopened.pop()).isEqualTo("element" + i);
+			assertThat(reopened.isEmpty()).isTrue();
+			try {
+				reopened.pop();
+				fail("Popped empty stack");
+			}
+			catch(IllegalStateException ise) {}
+		}
+	}
+
+	@Test
+	public void lazyPayloads() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			ArcStack<String> stack = new ArcStack<String>(stage, NodeCodecs.utf8(32), -1l, 2, true);
+			stack.setLazyDecoding(true);
+			for(int i = 0; i < 6; ++i)
+				stack.push("element" + i);
+			for(int i = 5; i >= 1; --i)
+				stack.pop();
+			ArcStack.Node<String> top = stack.getTop();
+			assertThat(top.getID()).isGreaterThanOrEqualTo(0l);
+			long topID = stack.save();
+			ArcStack<String> reopened = new ArcStack<String>(stage, NodeCodecs.utf8(32), topID, 2, true);
+			assertThat(top.getPayload()).isEqualTo("element0");
+			assertThat(reopened.pop()).isEqualTo("element0");
+		}
+	}
+
+	@Test
+	public void longStack() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			LongArcStack stack = new LongArcStack(stage, 4);
+			for(long i = 0l; i < 100l; ++i)
+				stack.push(i * 3l);
+			assertThat(stack.getHeight()).isEqualTo(100l);
+			assertThat(stack.peek()).isEqualTo(297l);
+			for(long i = 99l; i >= 50l; --i)
+				assertThat(stack.pop()).isEqualTo(i * 3l);
+			long topID = stack.save();
+			assertThat(stage.getVisibleEnd() % LongArcStack.NODE_SIZE).isZero();
+			ArcStack<Long> boxed = new ArcStack<Long>(stage, NodeCodecs.LONG, topID, 4, true);
+			for(long i = 49l; i >= 0l; --i)
+				assertThat(boxed.pop()).isEqualTo(i * 3l);
+			assertThat(boxed.isEmpty()).isTrue();
+			LongArcStack reopened = new LongArcStack(stage, topID, 0);
+			assertThat(reopened.getHeight()).isEqualTo(50l);
+			assertThat(reopened.pop()).isEqualTo(147l);
+		}
+	}
+
+	@Test
+	public void longStackInMemory() {
+		try(MemoryStage stage = new MemoryStage()) {
+			LongArcStack stack = new LongArcStack(stage, 2);
+			for(long i = 0l; i < 10l; ++i)
+				stack.push(i);
+			long topID = stack.save();
+			assertThat(stage.getSize()).isEqualTo(10l * LongArcStack.NODE_SIZE);
+			LongArcStack reopened = new LongArcStack(stage, topID, 2);
+			for(long i = 9l; i >= 0l; --i)
+				assertThat(reopened.pop()).isEqualTo(i);
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.unclesniper.arceye.stage;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BufferPoolTests {
+
+	@Test
+	public void sizeClasses() {
+		BufferPool pool = new BufferPool();
+		ByteBuffer small = pool.acquire(1);
+		assertThat(small.isDirect()).isTrue();
+		assertThat(small.capacity()).isEqualTo(BufferPool.MIN_CLASS_SIZE);
+		assertThat(small.position()).isZero();
+		assertThat(small.limit()).isEqualTo(1);
+		ByteBuffer medium = pool.acquire(1000);
+		assertThat(medium.capacity()).isEqualTo(1024);
+		ByteBuffer large = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+		assertThat(large.isDirect()).isFalse();
+		pool.release(large);
+		pool.release(null);
+	}
+
+	@Test
+	public void reuse() {
+		BufferPool pool = new BufferPool();
+		ByteBuffer first = pool.acquire(600);
+		pool.release(first);
+		ByteBuffer second = pool.acquire(1024);
+		assertThat(second).isSameAs(first);
+		assertThat(second.limit()).isEqualTo(1024);
+		assertThat(pool.acquire(1024)).isNotSameAs(first);
+	}
+
+}
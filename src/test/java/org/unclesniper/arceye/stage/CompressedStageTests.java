@@ -0,0 +1,106 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompressedStageTests {
+
+	@Test
+	public void roundTrip() throws IOException {
+		File path = StageFileTests.makeStagePath();
+		long first, second;
+		try(CompressedStage stage = new CompressedStage(new StageFile(path, true))) {
+			first = stage.writeChunk(StageFileTests.chunk(4096, 1));
+			second = stage.writeChunk(StageFileTests.chunk(3, 2));
+			assertThat(stage.getBacking().getVisibleEnd())
+					.isLessThan(4096l + 3l + 2l * CompressedStage.FRAME_HEADER_SIZE);
+		}
+		try(CompressedStage stage = new CompressedStage(new StageFile(path, false))) {
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			stage.readChunk(buffer, first);
+			buffer.flip();
+			assertThat(buffer).isEqualTo(StageFileTests.chunk(4096, 1));
+			buffer = ByteBuffer.allocate(10);
+			stage.readChunk(buffer, first);
+			buffer.flip();
+			assertThat(buffer).isEqualTo(StageFileTests.chunk(10, 1));
+			buffer = ByteBuffer.allocate(3);
+			stage.readChunk(buffer, second);
+			buffer.flip();
+			assertThat(buffer).isEqualTo(StageFileTests.chunk(3, 2));
+		}
+	}
+
+	@Test
+	public void unbufferedTransaction() throws IOException {
+		try(CompressedStage stage = new CompressedStage(new StageFile(StageFileTests.makeStagePath(), true))) {
+			try(StageTransaction transaction = stage.beginTransaction(100l)) {
+				long id = transaction.add(StageFileTests.chunk(50, 1));
+				StageFileTests.checkChunk(stage, id, 50, 1);
+				try {
+					transaction.allocate(10);
+					fail("Allocated chunk in unbuffered transaction");
+				}
+				catch(UnsupportedOperationException uoe) {}
+				transaction.commit();
+				assertThat(transaction.getChunkCount()).isEqualTo(1);
+			}
+		}
+	}
+
+	@Test
+	public void batches() throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try(CompressedStage stage = new CompressedStage(new StageFile(StageFileTests.makeStagePath(), true),
+				null, executor)) {
+			int[] sizes = new int[] {100, 1, 5000, 0, 77};
+			ByteBuffer[] buffers = new ByteBuffer[sizes.length];
+			for(int i = 0; i < sizes.length; ++i)
+				buffers[i] = StageFileTests.chunk(sizes[i], i);
+			long[] ids = stage.writeChunks(buffers);
+			for(int i = 0; i < sizes.length; ++i)
+				buffers[i] = ByteBuffer.allocate(sizes[i]);
+			stage.readChunks(ids, buffers);
+			for(int i = 0; i < sizes.length; ++i) {
+				buffers[i].flip();
+				assertThat(buffers[i]).isEqualTo(StageFileTests.chunk(sizes[i], i));
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void longStack() throws IOException {
+		File path = StageFileTests.makeStagePath();
+		long top;
+		try(Stage stage = new CompressedStage(new StageFile(path, true))) {
+			LongArcStack stack = new LongArcStack(stage, 4);
+			for(long i = 1l; i <= 20l; ++i)
+				stack.push(i << 33);
+			top = stack.save();
+		}
+		try(Stage stage = new CompressedStage(new StageFile(path, false))) {
+			LongArcStack stack = new LongArcStack(stage, top, 4);
+			for(long i = 20l; i >= 1l; --i)
+				assertThat(stack.pop()).isEqualTo(i << 33);
+			assertThat(stack.isEmpty()).isTrue();
+		}
+	}
+
+	@Test(expected = ChunkOffsetOutOfRangeException.class)
+	public void readPastChunk() throws IOException {
+		try(CompressedStage stage = new CompressedStage(new StageFile(StageFileTests.makeStagePath(), true))) {
+			long id = stage.writeChunk(StageFileTests.chunk(64, 0));
+			stage.readChunk(ByteBuffer.allocate(65), id);
+		}
+	}
+
+}
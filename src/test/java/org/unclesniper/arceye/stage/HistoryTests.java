@@ -0,0 +1,166 @@
+package org.unclesniper.arceye.stage;
+
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistoryTests {
+
+	private static final class CountingIO implements NodeIO<Long> {
+
+		int decoded;
+
+		public int getNodeBufferSize() {
+			return 8;
+		}
+
+		public long writeNode(Long node, ByteBuffer buffer, Stage stage) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void writeNode(Long node, ByteBuffer buffer) {
+			buffer.putLong(node);
+		}
+
+		public Long readNode(ByteBuffer buffer, Stage stage, long offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Long readNode(ByteBuffer buffer) {
+			++decoded;
+			return buffer.getLong();
+		}
+
+	}
+
+	private static final class PoisonedIO extends AbstractNodeIO<Long> {
+
+		long poison = -1l;
+
+		public int getNodeBufferSize() {
+			return 8;
+		}
+
+		public void writeNode(Long node, ByteBuffer buffer) {
+			if(node == poison)
+				throw new IllegalStateException("Cannot encode state " + node);
+			buffer.putLong(node);
+		}
+
+		public Long readNode(ByteBuffer buffer) {
+			return buffer.getLong();
+		}
+
+	}
+
+	@Test
+	public void lazyUndo() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true); StageFile copy = StageFileTests.makeStage(true)) {
+			CountingIO stateIO = new CountingIO();
+			History<Long> history = new History<Long>(0l, stage, stateIO);
+			for(long i = 1l; i <= 20l; ++i)
+				history.advance(i * 10l);
+			long root = history.save();
+			History<Long> lazy = new History<Long>(stage, stateIO, root);
+			lazy.setLazyDecoding(true);
+			int decoded = stateIO.decoded;
+			lazy.undo(2l);
+			assertThat(stateIO.decoded).isEqualTo(decoded);
+			assertThat(lazy.getCurrentState().getState()).isEqualTo(20l);
+			assertThat(stateIO.decoded).isEqualTo(decoded + 1);
+			lazy.undo();
+			lazy.setStage(copy);
+			assertThat(stateIO.decoded).isEqualTo(decoded + 1);
+			History<Long> copied = new History<Long>(copy, stateIO, lazy.getCurrentState().getID());
+			assertThat(copied.getCurrentState().getState()).isEqualTo(10l);
+			copied.redo(copied.getCurrentState().getNextLinks().iterator().next().getNextID());
+			assertThat(copied.getCurrentState().getState()).isEqualTo(20l);
+			lazy.setStateIO(null);
+			assertThat(lazy.getCurrentState().getState()).isEqualTo(10l);
+		}
+	}
+
+	@Test
+	public void batchedEviction() throws IOException {
+		StageOptions options = new StageOptions();
+		options.setMonitored(true);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			History<Long> history = new History<Long>(0l, stage, NodeCodecs.LONG);
+			history.setMaxCachedStrata(3);
+			for(long i = 1l; i <= 40l; ++i)
+				history.advance(i);
+			history.undo(20l);
+			history.advance(-1l);
+			long root = history.save();
+			long writes = 0l;
+			for(long count : stage.getStatistics().getWriteLatencyHistogram())
+				writes += count;
+			assertThat(writes * 3l).isLessThanOrEqualTo(stage.getStatistics().getChunksWritten());
+			// transactions are sized exactly, so they leave no padding
+			assertThat(stage.getStatistics().getBytesWritten()).isEqualTo(stage.getVisibleEnd());
+			History<Long> reopened = new History<Long>(stage, NodeCodecs.LONG, root);
+			assertThat(reopened.getCurrentState().getState()).isEqualTo(-1l);
+			reopened.undo(7l);
+			assertThat(reopened.getCurrentState().getState()).isEqualTo(7l);
+			assertThat(reopened.getCurrentState().getNextLinkCount()).isEqualTo(1);
+			reopened.undo(0l);
+			assertThat(reopened.getCurrentState().getState()).isZero();
+		}
+	}
+
+	private static void checkUnsaved(History<Long> history, long states) {
+		History.Snapshot<Long> snapshot = history.getCurrentState();
+		for(long i = states; i >= 0l; --i) {
+			assertThat(snapshot.getState()).isEqualTo(i);
+			assertThat(snapshot.getID()).isEqualTo(-1l);
+			assertThat(snapshot.getPreviousID()).isEqualTo(-1l);
+			if(i > 0l)
+				assertThat(snapshot.getPrevious().getNextLinks().iterator().next().getNextID()).isEqualTo(-1l);
+			snapshot = snapshot.getPrevious();
+		}
+		assertThat(snapshot).isNull();
+	}
+
+	@Test
+	public void failedEncoding() {
+		try(MemoryStage stage = new MemoryStage()) {
+			PoisonedIO stateIO = new PoisonedIO();
+			stateIO.poison = 3l;
+			History<Long> history = new History<Long>(0l, null, stateIO);
+			for(long i = 1l; i <= 5l; ++i)
+				history.advance(i);
+			try {
+				history.setStage(stage);
+				fail("Saved unencodable state");
+			}
+			catch(IllegalStateException ise) {}
+			assertThat(stage.getSize()).isZero();
+			HistoryTests.checkUnsaved(history, 5l);
+			stateIO.poison = -1l;
+			long root = history.save();
+			History<Long> reopened = new History<Long>(stage, stateIO, root);
+			reopened.undo(2l);
+			assertThat(reopened.getCurrentState().getState()).isEqualTo(2l);
+		}
+	}
+
+	@Test
+	public void failedCommit() throws IOException {
+		try(TieredStage stage = new TieredStage(StageFileTests.makeStage(true), 64)) {
+			History<Long> history = new History<Long>(0l, null, NodeCodecs.LONG);
+			for(long i = 1l; i <= 5l; ++i)
+				history.advance(i);
+			// the batch exceeds the arena, and the backing stage no longer ends where the arena starts
+			stage.getBacking().writeChunk(StageFileTests.chunk(8, 1));
+			try {
+				history.setStage(stage);
+				fail("Committed to stage appended to behind its back");
+			}
+			catch(IllegalStateException ise) {}
+			HistoryTests.checkUnsaved(history, 5l);
+		}
+	}
+
+}
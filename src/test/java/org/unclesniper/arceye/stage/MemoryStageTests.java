@@ -0,0 +1,97 @@
+package org.unclesniper.arceye.stage;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoryStageTests {
+
+	@Test
+	public void spanBlocks() {
+		try(MemoryStage stage = new MemoryStage(64)) {
+			assertThat(stage.writeChunk(StageFileTests.chunk(40, 1))).isZero();
+			assertThat(stage.writeChunk(StageFileTests.chunk(200, 2))).isEqualTo(40l);
+			long[] ids = stage.writeChunks(StageFileTests.chunk(30, 3), ByteBuffer.allocate(0),
+					StageFileTests.chunk(10, 4));
+			assertThat(ids).containsExactly(240l, 270l, 270l);
+			assertThat(stage.getSize()).isEqualTo(280l);
+			StageFileTests.checkChunk(stage, 0l, 40, 1);
+			StageFileTests.checkChunk(stage, 40l, 200, 2);
+			StageFileTests.checkChunk(stage, 240l, 30, 3);
+			ByteBuffer[] buffers = new ByteBuffer[] {ByteBuffer.allocate(10), ByteBuffer.allocate(40)};
+			stage.readChunks(new long[] {270l, 0l}, buffers);
+			assertThat(buffers[0].flip()).isEqualTo(StageFileTests.chunk(10, 4));
+			assertThat(buffers[1].flip()).isEqualTo(StageFileTests.chunk(40, 1));
+			try {
+				stage.readChunk(ByteBuffer.allocate(2), 279l);
+				fail("Read beyond end");
+			}
+			catch(ChunkOffsetOutOfRangeException coore) {
+				assertThat(coore.getChunkOffset()).isEqualTo(280l);
+			}
+		}
+	}
+
+	@Test
+	public void transaction() {
+		try(MemoryStage stage = new MemoryStage(64)) {
+			stage.writeChunk(StageFileTests.chunk(10, 1));
+			long first, second;
+			try(StageTransaction transaction = stage.beginTransaction(16l)) {
+				first = transaction.allocate(40);
+				second = transaction.add(StageFileTests.chunk(30, 3));
+				transaction.put(first, StageFileTests.chunk(40, 2));
+				assertThat(stage.getSize()).isEqualTo(10l);
+				transaction.commit();
+			}
+			assertThat(first).isEqualTo(10l);
+			assertThat(second).isEqualTo(50l);
+			assertThat(stage.getSize()).isEqualTo(80l);
+			StageFileTests.checkChunk(stage, first, 40, 2);
+			StageFileTests.checkChunk(stage, second, 30, 3);
+			try(StageTransaction transaction = stage.beginTransaction(8l)) {
+				transaction.add(StageFileTests.chunk(8, 4));
+			}
+			assertThat(stage.getSize()).isEqualTo(80l);
+			assertThat(stage.writeChunk(StageFileTests.chunk(1, 5))).isEqualTo(80l);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closed() {
+		MemoryStage stage = new MemoryStage();
+		stage.writeChunk(StageFileTests.chunk(8, 1));
+		stage.close();
+		stage.readChunk(ByteBuffer.allocate(8), 0l);
+	}
+
+	@Test
+	public void structures() {
+		try(MemoryStage stage = new MemoryStage(100)) {
+			History<Long> history = new History<Long>(0l, stage, NodeCodecs.LONG);
+			for(long i = 1l; i <= 6l; ++i)
+				history.advance(i);
+			history.undo(4l);
+			history.advance(40l);
+			long root = history.save();
+			History<Long> copy = new History<Long>(stage, NodeCodecs.LONG, root);
+			assertThat(copy.getCurrentState().getState()).isEqualTo(40l);
+			copy.undo();
+			assertThat(copy.getCurrentState().getState()).isEqualTo(4l);
+			copy.undo(0l);
+			assertThat(copy.getCurrentState().getState()).isEqualTo(0l);
+			ByteBuffer node = ByteBuffer.allocate(32).putLong(0l).putLong(-1l).putInt(-1).putInt(8).putLong(7l);
+			long bottom = stage.writeChunk(node.flip());
+			node.clear().putLong(1l).putLong(bottom).putInt(32).putInt(8).putLong(8l);
+			long top = stage.writeChunk(node.flip());
+			ArcStack<Long> stack = new ArcStack<Long>(stage, NodeCodecs.LONG, top, 1, true);
+			assertThat(stack.getReferencedChunkIDs()).containsExactly(top, bottom);
+			ChunkLayout layout = new ChunkLayout();
+			ArcStack.newChunkTracer(NodeCodecs.LONG).trace(stage, top, layout);
+			assertThat(layout.getSize()).isEqualTo(32);
+			assertThat(layout.getReferenceTarget(0)).isEqualTo(bottom);
+		}
+	}
+
+}
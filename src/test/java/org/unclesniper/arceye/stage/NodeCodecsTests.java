@@ -0,0 +1,119 @@
+package org.unclesniper.arceye.stage;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NodeCodecsTests {
+
+	private static final class RemainderIO implements NodeIO<String> {
+
+		public int getNodeBufferSize() {
+			return 64;
+		}
+
+		public int getNodeSize(String node) {
+			return node.length();
+		}
+
+		public long writeNode(String node, ByteBuffer buffer, Stage stage) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void writeNode(String node, ByteBuffer buffer) {
+			buffer.put(node.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		public String readNode(ByteBuffer buffer, Stage stage, long offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		public String readNode(ByteBuffer buffer) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+
+	}
+
+	private static <T> T roundTrip(NodeIO<T> codec, T node) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(codec.getNodeBufferSize() + 3);
+		buffer.put((byte)1);
+		codec.writeNode(node, buffer);
+		assertThat(buffer.position()).isEqualTo(1 + codec.getNodeSize(node));
+		buffer.put((byte)2).put((byte)3);
+		buffer.flip();
+		buffer.get();
+		T result = codec.readNode(buffer);
+		assertThat(buffer.get()).isEqualTo((byte)2);
+		return result;
+	}
+
+	@Test
+	public void primitives() {
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.LONG, Long.MIN_VALUE)).isEqualTo(Long.MIN_VALUE);
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.INT, -42)).isEqualTo(-42);
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.DOUBLE, Math.PI)).isEqualTo(Math.PI);
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.CHUNK_ID, 17l)).isEqualTo(17l);
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.CHUNK_ID, -5l)).isEqualTo(-1l);
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		NodeCodecs.DOUBLE.writeDouble(Double.NaN, buffer);
+		buffer.flip();
+		assertThat(NodeCodecs.DOUBLE.readDouble(buffer)).isNaN();
+	}
+
+	@Test
+	public void bytes() {
+		byte[] data = new byte[] {5, 6, 7};
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.fixedBytes(3), data)).containsExactly(5, 6, 7);
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.bytes(10), data)).containsExactly(5, 6, 7);
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.bytes(10), new byte[0])).isEmpty();
+		assertThat(NodeCodecs.bytes(10).getNodeSize(data)).isEqualTo(7);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bytesTooLong() {
+		NodeCodecs.bytes(2).writeNode(new byte[3], ByteBuffer.allocate(16));
+	}
+
+	@Test
+	public void utf8() {
+		String text = "a\u00e9\u20ac\ud83d\ude00\ud800z";
+		assertThat(NodeCodecs.getEncodedLength(text))
+				.isEqualTo(text.getBytes(StandardCharsets.UTF_8).length);
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		NodeCodecs.utf8(60).writeNode(text, buffer);
+		buffer.flip();
+		assertThat(buffer.getInt()).isEqualTo(12);
+		byte[] encoded = new byte[12];
+		buffer.get(encoded);
+		assertThat(encoded).isEqualTo(text.getBytes(StandardCharsets.UTF_8));
+		assertThat(NodeCodecsTests.roundTrip(NodeCodecs.utf8(60), "\u00e9t\u00e9")).isEqualTo("\u00e9t\u00e9");
+	}
+
+	@Test
+	public void tuple() {
+		NodeCodecs.TupleNodeIO codec = NodeCodecs.tuple(NodeCodecs.LONG, new RemainderIO(), NodeCodecs.utf8(16),
+				NodeCodecs.tuple(NodeCodecs.INT, NodeCodecs.DOUBLE));
+		Object[] node = new Object[] {3l, "raw", "text", new Object[] {4, 0.5}};
+		assertThat(codec.getNodeSize(node)).isEqualTo(8 + 4 + 3 + 4 + 4 + 4 + 8);
+		Object[] result = NodeCodecsTests.roundTrip(codec, node);
+		assertThat(result).hasSize(4);
+		assertThat(result[0]).isEqualTo(3l);
+		assertThat(result[1]).isEqualTo("raw");
+		assertThat(result[2]).isEqualTo("text");
+		assertThat((Object[])result[3]).containsExactly(4, 0.5);
+	}
+
+	@Test
+	public void ownChunk() {
+		try(MemoryStage stage = new MemoryStage()) {
+			ByteBuffer buffer = ByteBuffer.allocate(64);
+			long id = NodeCodecs.utf8(32).writeNode("chunk", buffer, stage);
+			assertThat(stage.getSize()).isEqualTo(4 + 4 + 5);
+			assertThat(NodeCodecs.utf8(32).readNode(buffer, stage, id)).isEqualTo("chunk");
+		}
+	}
+
+}
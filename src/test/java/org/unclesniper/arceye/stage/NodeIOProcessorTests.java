@@ -0,0 +1,198 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+import org.junit.Test;
+import java.util.Arrays;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import javax.tools.Diagnostic;
+import java.lang.reflect.Field;
+import java.net.URLClassLoader;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import javax.tools.JavaFileObject;
+import java.lang.reflect.Constructor;
+import javax.tools.DiagnosticCollector;
+import java.nio.charset.StandardCharsets;
+import javax.tools.StandardJavaFileManager;
+import org.unclesniper.arceye.stage.codegen.NodeIOProcessor;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NodeIOProcessorTests {
+
+	private static File makeDirectory() throws IOException {
+		return Files.createTempDirectory("codegen").toFile();
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				NodeIOProcessorTests.deleteTree(child);
+		}
+		file.delete();
+	}
+
+	private static File writeSource(File dir, String name, String source) throws IOException {
+		File file = new File(dir, name + ".java");
+		Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static boolean compile(File outDir, DiagnosticCollector<JavaFileObject> diagnostics, File... sources)
+			throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		try(StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null)) {
+			JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+					Arrays.asList("-d", outDir.getPath(), "-classpath", System.getProperty("java.class.path")),
+					null, files.getJavaFileObjects(sources));
+			task.setProcessors(List.of(new NodeIOProcessor()));
+			return task.call();
+		}
+	}
+
+	private static <T> T roundTrip(NodeIO<T> codec, T node, int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(size + 3);
+		buffer.position(3);
+		codec.writeNode(node, buffer);
+		assertThat(buffer.position()).isEqualTo(size + 3);
+		buffer.flip().position(3);
+		T result = codec.readNode(buffer);
+		assertThat(buffer.remaining()).isZero();
+		return result;
+	}
+
+	@Test
+	public void generate() throws Exception {
+		File srcDir = NodeIOProcessorTests.makeDirectory(), outDir = NodeIOProcessorTests.makeDirectory();
+		try {
+			NodeIOProcessorTests.generate(srcDir, outDir);
+		}
+		finally {
+			NodeIOProcessorTests.deleteTree(srcDir);
+			NodeIOProcessorTests.deleteTree(outDir);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void generate(File srcDir, File outDir) throws Exception {
+		File point = NodeIOProcessorTests.writeSource(srcDir, "Point", "package demo;\n"
+				+ "@org.unclesniper.arceye.stage.GenerateNodeIO\n"
+				+ "public record Point(int x, long y, boolean flag, char c, double d) {}\n");
+		File counter = NodeIOProcessorTests.writeSource(srcDir, "Counter", "package demo;\n"
+				+ "@org.unclesniper.arceye.stage.GenerateNodeIO(name = \"CounterCodec\")\n"
+				+ "class Counter {\n"
+				+ "\tstatic int shared;\n"
+				+ "\tshort hits;\n"
+				+ "\tfloat ratio;\n"
+				+ "\ttransient int cache;\n"
+				+ "\tbyte tag;\n"
+				+ "}\n");
+		File base = NodeIOProcessorTests.writeSource(srcDir, "Base", "package demo;\n"
+				+ "class Base {\n"
+				+ "\tint serial;\n"
+				+ "}\n");
+		File derived = NodeIOProcessorTests.writeSource(srcDir, "Derived", "package demo;\n"
+				+ "@org.unclesniper.arceye.stage.GenerateNodeIO\n"
+				+ "class Derived extends Base {\n"
+				+ "\tlong stamp;\n"
+				+ "}\n");
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		assertThat(NodeIOProcessorTests.compile(outDir, diagnostics, point, counter, base, derived))
+				.as(diagnostics.getDiagnostics().toString()).isTrue();
+		try(URLClassLoader loader = new URLClassLoader(new URL[] {outDir.toURI().toURL()},
+				NodeIOProcessorTests.class.getClassLoader())) {
+			Class<?> pointCodec = loader.loadClass("demo.PointNodeIO");
+			assertThat(pointCodec.getField("NODE_SIZE").getInt(null)).isEqualTo(4 + 8 + 1 + 2 + 8);
+			NodeIO<Object> codec = (NodeIO<Object>)pointCodec.getField("INSTANCE").get(null);
+			assertThat(codec.getNodeBufferSize()).isEqualTo(23);
+			Object node = loader.loadClass("demo.Point").getConstructors()[0]
+					.newInstance(-7, 1l << 40, true, '\u20ac', Double.NaN);
+			assertThat(NodeIOProcessorTests.roundTrip(codec, node, 23)).isEqualTo(node);
+			Class<?> counterClass = loader.loadClass("demo.Counter");
+			Class<?> counterCodec = loader.loadClass("demo.CounterCodec");
+			Field instance = counterCodec.getField("INSTANCE");
+			instance.setAccessible(true);
+			codec = (NodeIO<Object>)instance.get(null);
+			assertThat(codec.getNodeBufferSize()).isEqualTo(2 + 4 + 1);
+			Constructor<?> constructor = counterClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			node = constructor.newInstance();
+			Field hits = counterClass.getDeclaredField("hits"), ratio = counterClass.getDeclaredField("ratio");
+			Field cache = counterClass.getDeclaredField("cache"), tag = counterClass.getDeclaredField("tag");
+			for(Field field : new Field[] {hits, ratio, cache, tag})
+				field.setAccessible(true);
+			hits.setShort(node, (short)-300);
+			ratio.setFloat(node, 0.25f);
+			cache.setInt(node, 99);
+			tag.setByte(node, (byte)5);
+			Object result = NodeIOProcessorTests.roundTrip(codec, node, 7);
+			assertThat(hits.getShort(result)).isEqualTo((short)-300);
+			assertThat(ratio.getFloat(result)).isEqualTo(0.25f);
+			assertThat(cache.getInt(result)).isZero();
+			assertThat(tag.getByte(result)).isEqualTo((byte)5);
+			try(MemoryStage stage = new MemoryStage()) {
+				ByteBuffer buffer = ByteBuffer.allocate(16);
+				long id = codec.writeNode(node, buffer, stage);
+				assertThat(stage.getSize()).isEqualTo(AbstractNodeIO.CHUNK_PREFIX_SIZE + 7l);
+				assertThat(hits.getShort(codec.readNode(buffer, stage, id))).isEqualTo((short)-300);
+			}
+			Class<?> derivedClass = loader.loadClass("demo.Derived");
+			instance = loader.loadClass("demo.DerivedNodeIO").getField("INSTANCE");
+			instance.setAccessible(true);
+			codec = (NodeIO<Object>)instance.get(null);
+			assertThat(codec.getNodeBufferSize()).isEqualTo(4 + 8);
+			constructor = derivedClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			node = constructor.newInstance();
+			Field serial = derivedClass.getSuperclass().getDeclaredField("serial");
+			Field stamp = derivedClass.getDeclaredField("stamp");
+			serial.setAccessible(true);
+			stamp.setAccessible(true);
+			serial.setInt(node, 42);
+			stamp.setLong(node, -5l);
+			result = NodeIOProcessorTests.roundTrip(codec, node, 12);
+			assertThat(serial.getInt(result)).isEqualTo(42);
+			assertThat(stamp.getLong(result)).isEqualTo(-5l);
+		}
+	}
+
+	@Test
+	public void reject() throws IOException {
+		File srcDir = NodeIOProcessorTests.makeDirectory(), outDir = NodeIOProcessorTests.makeDirectory();
+		try {
+			File source = NodeIOProcessorTests.writeSource(srcDir, "Named", "package demo;\n"
+					+ "@org.unclesniper.arceye.stage.GenerateNodeIO\n"
+					+ "public class Named {\n"
+					+ "\tprivate int id;\n"
+					+ "\tString name;\n"
+					+ "}\n");
+			File hiding = NodeIOProcessorTests.writeSource(srcDir, "Hiding", "package demo;\n"
+					+ "@org.unclesniper.arceye.stage.GenerateNodeIO\n"
+					+ "class Hiding extends Hidden {\n"
+					+ "\tint id;\n"
+					+ "}\n"
+					+ "class Hidden {\n"
+					+ "\tint id;\n"
+					+ "}\n");
+			DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+			assertThat(NodeIOProcessorTests.compile(outDir, diagnostics, source, hiding)).isFalse();
+			int errors = 0;
+			for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+				if(diagnostic.getKind() == Diagnostic.Kind.ERROR)
+					++errors;
+			}
+			assertThat(errors).isEqualTo(3);
+			assertThat(new File(outDir, "demo/NamedNodeIO.class")).doesNotExist();
+			assertThat(new File(outDir, "demo/HidingNodeIO.class")).doesNotExist();
+		}
+		finally {
+			NodeIOProcessorTests.deleteTree(srcDir);
+			NodeIOProcessorTests.deleteTree(outDir);
+		}
+	}
+
+}
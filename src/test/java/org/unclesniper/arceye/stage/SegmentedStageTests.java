@@ -0,0 +1,78 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentedStageTests {
+
+	private static File makeBasePath() throws IOException {
+		File directory = Files.createTempDirectory("stage").toFile();
+		directory.deleteOnExit();
+		return new File(directory, "segments");
+	}
+
+	@Test
+	public void chunkIDs() {
+		long id = SegmentedStage.makeChunkID(3, 17l);
+		assertThat(SegmentedStage.getSegment(id)).isEqualTo(3);
+		assertThat(SegmentedStage.getSegmentOffset(id)).isEqualTo(17l);
+		id = SegmentedStage.makeChunkID(SegmentedStage.MAX_SEGMENT, SegmentedStage.MAX_SEGMENT_SIZE - 1l);
+		assertThat(id).isEqualTo(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void rollOver() throws IOException {
+		File base = SegmentedStageTests.makeBasePath();
+		long[] ids = new long[5];
+		try(SegmentedStage stage = new SegmentedStage(base, true, 10l, null)) {
+			ids[0] = stage.writeChunk(StageFileTests.chunk(6, 0));
+			ids[1] = stage.writeChunk(StageFileTests.chunk(4, 1));
+			ids[2] = stage.writeChunk(StageFileTests.chunk(1, 2));
+			ids[3] = stage.writeChunk(StageFileTests.chunk(25, 3));
+			ids[4] = stage.writeChunks(StageFileTests.chunk(3, 4))[0];
+			assertThat(stage.getCurrentSegment()).isEqualTo(3);
+		}
+		assertThat(ids).containsExactly(
+			SegmentedStage.makeChunkID(0, 0l),
+			SegmentedStage.makeChunkID(0, 6l),
+			SegmentedStage.makeChunkID(1, 0l),
+			SegmentedStage.makeChunkID(2, 0l),
+			SegmentedStage.makeChunkID(3, 0l)
+		);
+		try(SegmentedStage stage = new SegmentedStage(base, false, 10l, null)) {
+			assertThat(stage.getCurrentSegment()).isEqualTo(3);
+			int[] sizes = new int[] {6, 4, 1, 25, 3};
+			ByteBuffer[] buffers = new ByteBuffer[sizes.length];
+			for(int i = 0; i < sizes.length; ++i)
+				buffers[i] = ByteBuffer.allocate(sizes[i]);
+			stage.readChunks(ids, buffers);
+			for(int i = 0; i < sizes.length; ++i) {
+				buffers[i].flip();
+				assertThat(buffers[i]).isEqualTo(StageFileTests.chunk(sizes[i], i));
+			}
+			assertThat(stage.dropSegment(1)).isTrue();
+			assertThat(stage.getSegmentPath(1).exists()).isFalse();
+			assertThat(stage.writeChunk(StageFileTests.chunk(2, 5)))
+					.isEqualTo(SegmentedStage.makeChunkID(3, 3l));
+		}
+		try(SegmentedStage stage = new SegmentedStage(base, true, 10l, null)) {
+			assertThat(stage.getCurrentSegment()).isZero();
+			assertThat(stage.getSegmentPath(2).exists()).isFalse();
+		}
+	}
+
+	@Test(expected = ChunkOffsetOutOfRangeException.class)
+	public void readDropped() throws IOException {
+		try(SegmentedStage stage = new SegmentedStage(SegmentedStageTests.makeBasePath(), true, 4l, null)) {
+			long id = stage.writeChunk(StageFileTests.chunk(4, 0));
+			stage.writeChunk(StageFileTests.chunk(4, 1));
+			stage.dropSegment(0);
+			stage.readChunk(ByteBuffer.allocate(4), id);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.unclesniper.arceye.stage;
+
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StageCompactorTests {
+
+	private static final class StringIO implements NodeIO<String> {
+
+		public int getNodeBufferSize() {
+			return 1024;
+		}
+
+		public int getNodeSize(String node) {
+			return node.length();
+		}
+
+		public long writeNode(String node, ByteBuffer buffer, Stage stage) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void writeNode(String node, ByteBuffer buffer) {
+			buffer.put(node.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		public String readNode(ByteBuffer buffer, Stage stage, long offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		public String readNode(ByteBuffer buffer) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+
+	}
+
+	@Test
+	public void compactHistory() throws IOException {
+		try(StageFile source = StageFileTests.makeStage(true); StageFile target = StageFileTests.makeStage(true)) {
+			History<Long> history = new History<Long>(0l, source, NodeCodecs.LONG);
+			for(long i = 1l; i <= 6l; ++i) {
+				source.writeChunk(ByteBuffer.allocate(100));
+				history.advance(i);
+			}
+			history.undo(4l);
+			history.advance(40l);
+			long root = history.save();
+			source.writeChunk(ByteBuffer.allocate(1000));
+			StageCompactor compactor = new StageCompactor(source, target);
+			ChunkTracer tracer = History.newChunkTracer(NodeCodecs.LONG);
+			compactor.addRoots(history.getReferencedChunkIDs(), tracer);
+			ChunkMapping mapping = compactor.compact();
+			assertThat(mapping.size()).isEqualTo(8);
+			assertThat(target.getVisibleEnd()).isEqualTo(source.getVisibleEnd() - 6l * 100l - 1000l);
+			for(int i = 1; i < mapping.size(); ++i)
+				assertThat(mapping.getNewID(i)).isGreaterThan(mapping.getNewID(i - 1));
+			history.relocate(target, mapping);
+			assertThat(history.getStage()).isSameAs(target);
+			assertThat(history.getCurrentState().getID()).isEqualTo(mapping.map(root));
+			History<Long> copy = new History<Long>(target, NodeCodecs.LONG, mapping.map(root));
+			assertThat(copy.getCurrentState().getState()).isEqualTo(40l);
+			History<Long> original = new History<Long>(source, NodeCodecs.LONG, root);
+			copy.undo();
+			original.undo();
+			assertThat(copy.getCurrentState().getState()).isEqualTo(4l);
+			assertThat(copy.getCurrentState().getNextLinkCount())
+					.isEqualTo(original.getCurrentState().getNextLinkCount());
+			copy.undo(0l);
+			assertThat(copy.getCurrentState().getState()).isEqualTo(0l);
+		}
+	}
+
+	@Test
+	public void compactVariableLengthHistory() throws IOException {
+		try(StageFile source = StageFileTests.makeStage(true); StageFile target = StageFileTests.makeStage(true)) {
+			History<String> history = new History<String>("", source, new StringIO());
+			for(int i = 1; i <= 5; ++i)
+				history.advance("state" + i);
+			history.undo(2l);
+			history.advance("a much longer replacement state");
+			long root = history.save();
+			long written = source.getVisibleEnd();
+			assertThat(written).isLessThan(7l * 1024l);
+			StageCompactor compactor = new StageCompactor(source, target);
+			compactor.addRoots(history.getReferencedChunkIDs(), History.newChunkTracer(new StringIO()));
+			ChunkMapping mapping = compactor.compact();
+			assertThat(mapping.size()).isEqualTo(5);
+			assertThat(target.getVisibleEnd()).isLessThan(written);
+			History<String> copy = new History<String>(target, new StringIO(), mapping.map(root));
+			assertThat(copy.getCurrentState().getState()).isEqualTo("a much longer replacement state");
+			History<String> original = new History<String>(source, new StringIO(), root);
+			copy.undo();
+			original.undo();
+			assertThat(copy.getCurrentState().getState()).isEqualTo("state2");
+			assertThat(copy.getCurrentState().getNextLinkCount())
+					.isEqualTo(original.getCurrentState().getNextLinkCount());
+			copy.undo(0l);
+			assertThat(copy.getCurrentState().getState()).isEmpty();
+		}
+	}
+
+	@Test
+	public void compactStateReferences() throws IOException {
+		try(StageFile source = StageFileTests.makeStage(true); StageFile target = StageFileTests.makeStage(true)) {
+			LongArcStack stack = new LongArcStack(source, 4);
+			for(long i = 1l; i <= 10l; ++i)
+				stack.push(i * 11l);
+			long stackID = stack.save();
+			source.writeChunk(ByteBuffer.allocate(500));
+			NodeCodecs.TupleNodeIO stateIO = NodeCodecs.tuple(NodeCodecs.utf8(16),
+					NodeCodecs.chunkID(LongArcStack.newChunkTracer()));
+			History<Object[]> history = new History<Object[]>(new Object[] {"empty", -1l}, source, stateIO);
+			history.advance(new Object[] {"full", stackID});
+			long root = history.save();
+			StageCompactor compactor = new StageCompactor(source, target);
+			compactor.addRoots(history.getReferencedChunkIDs(), History.newChunkTracer(stateIO));
+			ChunkMapping mapping = compactor.compact();
+			assertThat(mapping.size()).isEqualTo(12);
+			assertThat(mapping.contains(stackID)).isTrue();
+			History<Object[]> copy = new History<Object[]>(target, stateIO, mapping.map(root));
+			Object[] state = copy.getCurrentState().getState();
+			assertThat(state[0]).isEqualTo("full");
+			assertThat(state[1]).isEqualTo(mapping.map(stackID));
+			LongArcStack stackCopy = new LongArcStack(target, (Long)state[1], 4);
+			for(long i = 10l; i >= 1l; --i)
+				assertThat(stackCopy.pop()).isEqualTo(i * 11l);
+			assertThat(stackCopy.isEmpty()).isTrue();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void untracedReference() throws IOException {
+		try(StageFile source = StageFileTests.makeStage(true); StageFile target = StageFileTests.makeStage(true)) {
+			long referenced = source.writeChunk(ByteBuffer.allocate(8));
+			History<Long> history = new History<Long>(referenced, source, NodeCodecs.CHUNK_ID);
+			StageCompactor compactor = new StageCompactor(source, target);
+			compactor.addRoot(history.save(), History.newChunkTracer(NodeCodecs.CHUNK_ID));
+			compactor.compact();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void missingSize() throws IOException {
+		try(StageFile source = StageFileTests.makeStage(true); StageFile target = StageFileTests.makeStage(true)) {
+			source.writeChunk(ByteBuffer.allocate(8));
+			StageCompactor compactor = new StageCompactor(source, target);
+			compactor.addRoot(0l, (stage, chunkID, layout) -> {});
+			compactor.compact();
+		}
+	}
+
+}
@@ -8,18 +8,52 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import javax.management.ObjectName;
+import javax.management.MBeanServer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.nio.file.StandardOpenOption;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
 import java.nio.channels.ClosedChannelException;
+import static org.assertj.core.api.Assertions.fail;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class StageFileTests {
 
+	public static File makeStagePath() throws IOException {
+		File file = File.createTempFile("stage", ".stage");
+		file.deleteOnExit();
+		return file;
+	}
+
+	public static ByteBuffer chunk(int size, int seed) {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for(int i = 0; buffer.remaining() > 0; ++i)
+			buffer.put((byte)(seed + i % 7));
+		buffer.flip();
+		return buffer;
+	}
+
+	public static void checkChunk(Stage stage, long id, int size, int seed) {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		stage.readChunk(buffer, id);
+		buffer.flip();
+		assertThat(buffer).isEqualTo(StageFileTests.chunk(size, seed));
+	}
+
 	public static StageFile makeStage(boolean truncate) throws IOException {
 		File file = File.createTempFile("stage", null);
 		file.deleteOnExit();
 		return new StageFile(file, truncate);
 	}
 
+	public static StageFile makeStage(StageOptions options) throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		return new StageFile(file, true, options);
+	}
+
 	private static boolean isClosed(FileChannel channel) throws IOException {
 		try {
 			channel.position();
@@ -200,4 +234,644 @@ public class StageFileTests {
 		assertThat(buffer.limit()).isEqualTo(15);
 	}
 
+	@Test
+	public void groupCommit() throws Exception {
+		StageOptions options = new StageOptions();
+		options.setDurability(StageDurability.GROUP_COMMIT);
+		options.setGroupCommitWindow(1l, TimeUnit.MILLISECONDS);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			assertThat(stage.getDurability()).isEqualTo(StageDurability.GROUP_COMMIT);
+			Thread[] threads = new Thread[8];
+			long[] ids = new long[threads.length];
+			for(int i = 0; i < threads.length; ++i) {
+				final int index = i;
+				threads[i] = new Thread(() -> {
+					ByteBuffer buffer = ByteBuffer.allocate(4);
+					buffer.putInt(index).flip();
+					ids[index] = stage.writeChunk(buffer);
+				});
+				threads[i].start();
+			}
+			for(Thread thread : threads)
+				thread.join();
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			for(int i = 0; i < threads.length; ++i) {
+				buffer.clear();
+				stage.readChunk(buffer, ids[i]);
+				buffer.flip();
+				assertThat(buffer.getInt()).isEqualTo(i);
+			}
+			assertThat(stage.getChannel().size()).isEqualTo(4l * threads.length);
+		}
+	}
+
+	@Test
+	public void syncInterruptedState() throws IOException {
+		StageOptions options = new StageOptions();
+		options.setDurability(StageDurability.NONE);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			stage.writeChunk(ByteBuffer.allocate(3));
+			Thread.currentThread().interrupt();
+			stage.sync();
+			assertThat(Thread.interrupted()).isTrue();
+			assertThat(stage.getChannel().isOpen()).isTrue();
+		}
+	}
+
+	@Test
+	public void readMapped() throws IOException {
+		Random random = new Random();
+		byte[] junk = new byte[100];
+		random.nextBytes(junk);
+		StageOptions options = new StageOptions();
+		options.setMemoryMapped(true);
+		options.setMapWindowSize(16l);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			stage.writeChunk(ByteBuffer.wrap(junk, 0, 40));
+			ByteBuffer buffer = ByteBuffer.allocate(30);
+			stage.readChunk(buffer, 5l);
+			assertThat(buffer.array()).isEqualTo(Arrays.copyOfRange(junk, 5, 35));
+			stage.writeChunk(ByteBuffer.wrap(junk, 40, 60));
+			buffer = ByteBuffer.allocate(90);
+			stage.readChunk(buffer, 7l);
+			assertThat(buffer.remaining()).isZero();
+			assertThat(buffer.array()).isEqualTo(Arrays.copyOfRange(junk, 7, 97));
+			stage.getChannel().close();
+			buffer.clear();
+			stage.readChunk(buffer, 10l);
+			assertThat(buffer.array()).isEqualTo(Arrays.copyOfRange(junk, 10, 100));
+		}
+	}
+
+	@Test(expected = ChunkOffsetOutOfRangeException.class)
+	public void readMappedBeyond() throws IOException {
+		StageOptions options = new StageOptions();
+		options.setMemoryMapped(true);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			stage.writeChunk(ByteBuffer.allocate(10));
+			stage.readChunk(ByteBuffer.allocate(10), 5l);
+		}
+	}
+
+	@Test
+	public void concurrentAppends() throws Exception {
+		StageOptions options = new StageOptions();
+		options.setDurability(StageDurability.NONE);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			Thread[] threads = new Thread[8];
+			long[][] ids = new long[threads.length][64];
+			for(int i = 0; i < threads.length; ++i) {
+				final int index = i;
+				threads[i] = new Thread(() -> {
+					ByteBuffer buffer = ByteBuffer.allocate(12);
+					for(int j = 0; j < ids[index].length; ++j) {
+						buffer.clear();
+						buffer.putInt(index).putLong(j).flip();
+						ids[index][j] = stage.writeChunk(buffer);
+					}
+				});
+				threads[i].start();
+			}
+			for(Thread thread : threads)
+				thread.join();
+			long total = 12l * threads.length * ids[0].length;
+			assertThat(stage.getReservedEnd()).isEqualTo(total);
+			assertThat(stage.getVisibleEnd()).isEqualTo(total);
+			assertThat(stage.getChannel().size()).isEqualTo(total);
+			ByteBuffer buffer = ByteBuffer.allocate(12);
+			for(int i = 0; i < threads.length; ++i) {
+				for(int j = 0; j < ids[i].length; ++j) {
+					assertThat(ids[i][j] % 12l).isZero();
+					buffer.clear();
+					stage.readChunk(buffer, ids[i][j]);
+					buffer.flip();
+					assertThat(buffer.getInt()).isEqualTo(i);
+					assertThat(buffer.getLong()).isEqualTo(j);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sequenceDirectAppend() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			stage.writeChunk(ByteBuffer.allocate(5));
+			stage.sequence(() -> {
+				try {
+					stage.getChannel().write(ByteBuffer.allocate(7), 5l);
+				}
+				catch(IOException ioe) {
+					throw new RuntimeException(ioe);
+				}
+			});
+			assertThat(stage.getReservedEnd()).isEqualTo(12l);
+			assertThat(stage.writeChunk(ByteBuffer.allocate(3))).isEqualTo(12l);
+			assertThat(stage.getDurableEnd()).isEqualTo(15l);
+		}
+	}
+
+	@Test
+	public void writeGathered() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			stage.writeChunk(ByteBuffer.allocate(3));
+			ByteBuffer[] buffers = new ByteBuffer[] {
+				ByteBuffer.wrap(new byte[] {1, 2}),
+				ByteBuffer.allocate(0),
+				ByteBuffer.wrap(new byte[] {3, 4, 5})
+			};
+			long[] ids = stage.writeChunks(buffers);
+			assertThat(ids).containsExactly(3l, 5l, 5l);
+			for(ByteBuffer buffer : buffers)
+				assertThat(buffer.remaining()).isZero();
+			ByteBuffer buffer = ByteBuffer.allocate(5);
+			stage.readChunk(buffer, 3l);
+			assertThat(buffer.array()).containsExactly(1, 2, 3, 4, 5);
+			assertThat(stage.writeChunks()).isEmpty();
+			assertThat(stage.getReservedEnd()).isEqualTo(8l);
+		}
+	}
+
+	@Test
+	public void readBatch() throws IOException {
+		Random random = new Random();
+		byte[] junk = new byte[3 * StageFile.MAX_COALESCE_GAP];
+		random.nextBytes(junk);
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			stage.writeChunk(ByteBuffer.wrap(junk));
+			long[] offsets = new long[] {junk.length - 10, 5l, 20l, 12l};
+			ByteBuffer[] buffers = new ByteBuffer[] {
+				ByteBuffer.allocate(10),
+				ByteBuffer.allocate(10),
+				ByteBuffer.allocate(4),
+				ByteBuffer.allocate(12)
+			};
+			stage.readChunks(offsets, buffers);
+			for(int i = 0; i < offsets.length; ++i) {
+				assertThat(buffers[i].remaining()).isZero();
+				int from = (int)offsets[i];
+				assertThat(buffers[i].array()).isEqualTo(Arrays.copyOfRange(junk, from,
+						from + buffers[i].capacity()));
+			}
+		}
+	}
+
+	@Test(expected = ChunkOffsetOutOfRangeException.class)
+	public void readBatchBeyond() throws IOException {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			stage.writeChunk(ByteBuffer.allocate(10));
+			stage.readChunks(new long[] {0l, 8l}, new ByteBuffer[] {ByteBuffer.allocate(4), ByteBuffer.allocate(4)});
+		}
+	}
+
+	@Test
+	public void readAsync() throws Exception {
+		byte[] junk = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			stage.writeChunk(ByteBuffer.wrap(junk));
+			ByteBuffer first = ByteBuffer.allocate(3);
+			ByteBuffer second = ByteBuffer.allocate(4);
+			assertThat(stage.readChunkAsync(first, 1l).get()).isSameAs(first);
+			stage.close();
+			assertThat(stage.readChunkAsync(second, 4l).get()).isSameAs(second);
+			assertThat(first.array()).containsExactly(2, 3, 4);
+			assertThat(second.array()).containsExactly(5, 6, 7, 8);
+			try {
+				stage.readChunkAsync(ByteBuffer.allocate(4), 6l).get();
+				fail("Read beyond end of file succeeded");
+			}
+			catch(ExecutionException ee) {
+				assertThat(ee.getCause()).isInstanceOf(ChunkOffsetOutOfRangeException.class);
+			}
+		}
+	}
+
+	@Test
+	public void readCached() throws Exception {
+		byte[] junk = new byte[200];
+		new Random().nextBytes(junk);
+		StageOptions options = new StageOptions();
+		options.setCacheBudget(48l);
+		options.setCacheBlockSize(16);
+		options.setCacheOffHeap(true);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			stage.writeChunk(ByteBuffer.wrap(junk));
+			Thread[] threads = new Thread[4];
+			boolean[] failed = new boolean[threads.length];
+			for(int i = 0; i < threads.length; ++i) {
+				final int index = i;
+				threads[i] = new Thread(() -> {
+					Random random = new Random(index);
+					for(int j = 0; j < 500; ++j) {
+						int offset = random.nextInt(junk.length);
+						ByteBuffer buffer = ByteBuffer.allocate(random.nextInt(junk.length - offset + 1));
+						stage.readChunk(buffer, offset);
+						if(!Arrays.equals(buffer.array(), Arrays.copyOfRange(junk, offset,
+								offset + buffer.capacity())))
+							failed[index] = true;
+					}
+				});
+				threads[i].start();
+			}
+			for(Thread thread : threads)
+				thread.join();
+			for(boolean fail : failed)
+				assertThat(fail).isFalse();
+			stage.getChannel().close();
+			ByteBuffer buffer = ByteBuffer.allocate(150);
+			stage.readChunk(buffer, 50l);
+			assertThat(buffer.array()).isEqualTo(Arrays.copyOfRange(junk, 50, 200));
+		}
+	}
+
+	@Test
+	public void framedRecovery() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		options.setDurability(StageDurability.NONE);
+		byte[] big = new byte[3 * 1024 * 1024];
+		new Random(7l).nextBytes(big);
+		long[] ids = new long[4];
+		long intactEnd;
+		try(StageFile stage = new StageFile(file, true, options)) {
+			ids[0] = stage.writeChunk(ByteBuffer.wrap(big));
+			long[] batch = stage.writeChunks(ByteBuffer.wrap(big, 0, 10), ByteBuffer.allocate(0),
+					ByteBuffer.wrap(big, 10, 2 * 1024 * 1024));
+			System.arraycopy(batch, 0, ids, 1, 3);
+			intactEnd = stage.getVisibleEnd();
+			stage.writeChunk(ByteBuffer.wrap(big, 0, 100));
+		}
+		assertThat(ids[0]).isEqualTo(24l);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {(byte)~big[50]}), intactEnd + 8l + 50l);
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), channel.size());
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(intactEnd);
+			assertThat(file.length()).isEqualTo(intactEnd);
+			ByteBuffer buffer = ByteBuffer.allocate(big.length);
+			stage.readChunk(buffer, ids[0]);
+			assertThat(buffer.array()).isEqualTo(big);
+			buffer = ByteBuffer.allocate(2 * 1024 * 1024);
+			stage.readChunk(buffer, ids[3]);
+			assertThat(buffer.array()).isEqualTo(Arrays.copyOfRange(big, 10, 10 + 2 * 1024 * 1024));
+			assertThat(stage.writeChunk(ByteBuffer.wrap(big, 0, 4))).isEqualTo(intactEnd + 8l);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(intactEnd + 12l);
+		}
+	}
+
+	@Test
+	public void framedWatermark() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		options.setDurability(StageDurability.NONE);
+		long id, synced;
+		try(StageFile stage = new StageFile(file, true, options)) {
+			id = stage.writeChunk(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+			stage.sync();
+			synced = stage.getVisibleEnd();
+			stage.writeChunk(ByteBuffer.wrap(new byte[] {4, 5}));
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {9}), id + 1l);
+			channel.write(ByteBuffer.wrap(new byte[] {9}), synced + 8l);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(synced);
+			ByteBuffer buffer = ByteBuffer.allocate(3);
+			stage.readChunk(buffer, id);
+			assertThat(buffer.array()).containsExactly(1, 9, 3);
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(synced - 1l);
+		}
+		try {
+			new StageFile(file, false, options).close();
+			fail("Opened stage file shorter than its watermark");
+		}
+		catch(IOException ioe) {}
+		assertThat(file.length()).isEqualTo(synced - 1l);
+	}
+
+	@Test
+	public void framedZeroTail() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		options.setDurability(StageDurability.NONE);
+		long id, end;
+		try(StageFile stage = new StageFile(file, true, options)) {
+			id = stage.writeChunk(StageFileTests.chunk(100, 3));
+			end = stage.getVisibleEnd();
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(4096), end);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(end);
+			assertThat(file.length()).isEqualTo(end);
+			StageFileTests.checkChunk(stage, id, 100, 3);
+			assertThat(stage.writeChunk(ByteBuffer.allocate(0))).isEqualTo(end + 8l);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(end + 8l);
+		}
+	}
+
+	@Test
+	public void framedFailedWrite() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		File moved = new File(file.getPath() + ".moved");
+		moved.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		options.setDurability(StageDurability.NONE);
+		long id, end;
+		try(StageFile stage = new StageFile(file, true, options)) {
+			id = stage.writeChunk(StageFileTests.chunk(100, 3));
+			end = stage.getVisibleEnd();
+			stage.getChannel().close();
+			assertThat(file.renameTo(moved)).isTrue();
+			assertThat(file.mkdir()).isTrue();
+			try {
+				stage.writeChunk(StageFileTests.chunk(10, 4));
+				fail("Wrote chunk to stage file replaced by a directory");
+			}
+			catch(ChunkWriteIOException cwioe) {}
+			assertThat(file.delete()).isTrue();
+			assertThat(moved.renameTo(file)).isTrue();
+			try {
+				stage.writeChunk(StageFileTests.chunk(10, 5));
+				fail("Wrote chunk after a range could not be padded");
+			}
+			catch(ChunkWriteIOException cwioe) {}
+			StageFileTests.checkChunk(stage, id, 100, 3);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(end);
+			StageFileTests.checkChunk(stage, id, 100, 3);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void framedForeignFile() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		try(StageFile stage = new StageFile(file, true)) {
+			stage.writeChunk(ByteBuffer.allocate(64));
+		}
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		new StageFile(file, false, options).close();
+	}
+
+	@Test
+	public void monitored() throws Exception {
+		StageOptions options = new StageOptions();
+		options.setMonitored(true);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name;
+		StageFileMXBean statistics;
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			name = new ObjectName("org.unclesniper.arceye.stage:type=StageFile,path="
+					+ ObjectName.quote(stage.getPath().getAbsolutePath()));
+			assertThat(server.isRegistered(name)).isTrue();
+			statistics = stage.getStatistics();
+			long id = stage.writeChunk(ByteBuffer.allocate(10));
+			stage.writeChunks(ByteBuffer.allocate(3), ByteBuffer.allocate(4));
+			stage.readChunk(ByteBuffer.allocate(10), id);
+			stage.readChunks(new long[] {0l, 10l}, new ByteBuffer[] {ByteBuffer.allocate(2), ByteBuffer.allocate(7)});
+			stage.getChannel().close();
+			stage.readChunk(ByteBuffer.allocate(1), 0l);
+			assertThat(server.getAttribute(name, "BytesWritten")).isEqualTo(17l);
+		}
+		assertThat(server.isRegistered(name)).isFalse();
+		assertThat(statistics.getChunksWritten()).isEqualTo(3l);
+		assertThat(statistics.getBytesRead()).isEqualTo(20l);
+		assertThat(statistics.getChunksRead()).isEqualTo(4l);
+		assertThat(statistics.getReopenCount()).isEqualTo(1l);
+		assertThat(Arrays.stream(statistics.getReadLatencyHistogram()).sum()).isEqualTo(3l);
+		assertThat(Arrays.stream(statistics.getWriteLatencyHistogram()).sum()).isEqualTo(2l);
+	}
+
+	@Test
+	public void transaction() throws Exception {
+		try(StageFile stage = StageFileTests.makeStage(true)) {
+			stage.writeChunk(ByteBuffer.allocate(4));
+			long first, second;
+			try(StageTransaction transaction = stage.beginTransaction(32l)) {
+				first = transaction.allocate(8);
+				second = transaction.allocate(8);
+				transaction.put(second, ByteBuffer.allocate(8).putLong(0, first));
+				transaction.put(first, ByteBuffer.allocate(8).putLong(0, second));
+				assertThat(stage.getVisibleEnd()).isEqualTo(4l);
+				transaction.commit();
+			}
+			assertThat(first).isEqualTo(4l);
+			assertThat(second).isEqualTo(12l);
+			assertThat(stage.getReservedEnd()).isEqualTo(20l);
+			assertThat(stage.getVisibleEnd()).isEqualTo(20l);
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			stage.readChunk(buffer, first);
+			assertThat(buffer.getLong(0)).isEqualTo(second);
+			try(StageTransaction transaction = stage.beginTransaction(16l)) {
+				transaction.add(ByteBuffer.allocate(6));
+				Thread writer = new Thread(() -> stage.writeChunk(ByteBuffer.wrap(new byte[] {9})));
+				writer.start();
+				writer.join();
+				try {
+					transaction.allocate(20);
+					fail("Transaction grew past concurrent append");
+				}
+				catch(IllegalStateException ise) {}
+				transaction.commit();
+			}
+			assertThat(stage.getReservedEnd()).isEqualTo(37l);
+			assertThat(stage.getVisibleEnd()).isEqualTo(37l);
+			assertThat(stage.getChannel().size()).isEqualTo(37l);
+			buffer = ByteBuffer.allocate(1);
+			stage.readChunk(buffer, 36l);
+			assertThat(buffer.get(0)).isEqualTo((byte)9);
+			try(StageTransaction transaction = stage.beginTransaction(4l)) {
+				transaction.add(ByteBuffer.allocate(10));
+			}
+			assertThat(stage.getReservedEnd()).isEqualTo(37l);
+		}
+	}
+
+	@Test
+	public void framedTransactionPadding() throws Exception {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		long id;
+		try(StageFile stage = new StageFile(file, true, options)) {
+			try(StageTransaction transaction = stage.beginTransaction(100l)) {
+				id = transaction.add(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+				Thread writer = new Thread(() -> stage.writeChunk(ByteBuffer.wrap(new byte[] {4})));
+				writer.start();
+				writer.join();
+				transaction.commit();
+			}
+			assertThat(id).isEqualTo(24l);
+			assertThat(stage.getVisibleEnd()).isEqualTo(125l);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(125l);
+			ByteBuffer buffer = ByteBuffer.allocate(1);
+			stage.readChunk(buffer, 124l);
+			assertThat(buffer.get(0)).isEqualTo((byte)4);
+		}
+	}
+
+	@Test
+	public void framedSmallReservation() throws Exception {
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			for(int i = 0; i < 2; ++i) {
+				try(StageTransaction transaction = stage.beginTransaction(3l)) {
+					assertThat(transaction.getCapacity()).isEqualTo(8l);
+					Thread writer = new Thread(() -> stage.writeChunk(ByteBuffer.wrap(new byte[] {4})));
+					writer.start();
+					writer.join();
+					if(i == 0)
+						transaction.commit();
+				}
+			}
+			assertThat(stage.getVisibleEnd()).isEqualTo(16l + 4l * 8l + 2l);
+		}
+	}
+
+	@Test
+	public void preallocated() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setPreallocationExtent(4096l);
+		try(StageFile stage = new StageFile(file, true, options)) {
+			assertThat(stage.writeChunk(ByteBuffer.wrap(new byte[] {1, 2, 3}))).isEqualTo(16l);
+			assertThat(file.length()).isEqualTo(4096l);
+			long[] ids = stage.writeChunks(ByteBuffer.allocate(5000), ByteBuffer.wrap(new byte[] {4}));
+			assertThat(ids).containsExactly(19l, 5019l);
+			assertThat(file.length()).isEqualTo(8192l);
+			assertThat(stage.getDurableEnd()).isEqualTo(5020l);
+			try {
+				stage.readChunk(ByteBuffer.allocate(2), 5019l);
+				fail("Read preallocated space");
+			}
+			catch(ChunkOffsetOutOfRangeException coore) {
+				assertThat(coore.getChunkOffset()).isEqualTo(5020l);
+			}
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(16);
+			channel.read(header, 0l);
+			assertThat(header.getLong(8)).isEqualTo(5020l);
+		}
+		options.setDurability(StageDurability.NONE);
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(5020l);
+			ByteBuffer buffer = ByteBuffer.allocate(1);
+			stage.readChunk(buffer, 5019l);
+			assertThat(buffer.get(0)).isEqualTo((byte)4);
+			assertThat(stage.writeChunk(ByteBuffer.allocate(10))).isEqualTo(5020l);
+			assertThat(stage.getDurableEnd()).isEqualTo(5020l);
+		}
+		try(StageFile stage = new StageFile(file, false, options)) {
+			assertThat(stage.getVisibleEnd()).isEqualTo(5030l);
+			assertThat(file.length()).isEqualTo(8192l);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void preallocatedFramed() throws IOException {
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		options.setPreallocationExtent(4096l);
+		StageFileTests.makeStage(options).close();
+	}
+
+	@Test
+	public void uninterruptible() throws Exception {
+		StageOptions options = new StageOptions();
+		options.setUninterruptible(true);
+		options.setMonitored(true);
+		try(StageFile stage = StageFileTests.makeStage(options)) {
+			long id = stage.writeChunk(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+			boolean[] interrupted = new boolean[1];
+			Thread reader = new Thread(() -> {
+				ByteBuffer buffer = ByteBuffer.allocate(4);
+				for(int i = 0; i < 2000; ++i) {
+					buffer.clear();
+					stage.readChunk(buffer, id);
+					stage.writeChunk(ByteBuffer.allocate(1));
+				}
+				interrupted[0] = Thread.interrupted();
+			});
+			reader.start();
+			while(reader.isAlive()) {
+				reader.interrupt();
+				Thread.yield();
+			}
+			reader.join();
+			assertThat(interrupted[0]).isTrue();
+			assertThat(stage.getStatistics().getReopenCount()).isZero();
+			assertThat(stage.getChannel().isOpen()).isTrue();
+		}
+	}
+
+	@Test
+	public void readOnly() throws IOException {
+		File file = File.createTempFile("stage", null);
+		file.deleteOnExit();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		long id;
+		try(StageFile stage = new StageFile(file, true, options)) {
+			id = stage.writeChunk(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+		}
+		try(FileOutputStream stream = new FileOutputStream(file, true)) {
+			stream.write(new byte[] {0, 0, 0, 9});
+		}
+		options.setReadOnly(true);
+		options.setMonitored(true);
+		try(StageFile first = new StageFile(file, false, options);
+				StageFile second = new StageFile(file, false, options)) {
+			assertThat(first.getVisibleEnd()).isEqualTo(27l);
+			assertThat(file.length()).isEqualTo(31l);
+			for(StageFile stage : new StageFile[] {first, second}) {
+				ByteBuffer buffer = ByteBuffer.allocate(3);
+				stage.readChunk(buffer, id);
+				assertThat(buffer.array()).containsExactly(1, 2, 3);
+			}
+			try {
+				first.writeChunk(ByteBuffer.allocate(1));
+				fail("Wrote to read-only stage");
+			}
+			catch(StageReadOnlyException sroe) {}
+			try {
+				second.beginTransaction(8l);
+				fail("Began transaction on read-only stage");
+			}
+			catch(StageReadOnlyException sroe) {}
+		}
+		assertThat(file.length()).isEqualTo(31l);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void readOnlyTruncate() throws IOException {
+		StageOptions options = new StageOptions();
+		options.setReadOnly(true);
+		StageFileTests.makeStage(options).close();
+	}
+
 }
@@ -6,5 +6,15 @@ import org.junit.runner.RunWith;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	StageFileTests.class,
+	SegmentedStageTests.class,
+	CompressedStageTests.class,
+	BufferPoolTests.class,
+	StageCompactorTests.class,
+	TieredStageTests.class,
+	MemoryStageTests.class,
+	NodeCodecsTests.class,
+	ArcStackTests.class,
+	HistoryTests.class,
+	NodeIOProcessorTests.class,
 })
 public class TestSuite {}
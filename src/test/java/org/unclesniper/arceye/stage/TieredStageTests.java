@@ -0,0 +1,112 @@
+package org.unclesniper.arceye.stage;
+
+import java.io.File;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TieredStageTests {
+
+	@Test
+	public void spill() throws IOException {
+		File path = StageFileTests.makeStagePath();
+		long[] ids = new long[4];
+		try(TieredStage stage = new TieredStage(new StageFile(path, true), 100)) {
+			ids[0] = stage.writeChunk(StageFileTests.chunk(40, 1));
+			ids[1] = stage.writeChunk(StageFileTests.chunk(40, 2));
+			assertThat(ids).startsWith(0l, 40l);
+			assertThat(stage.getBacking().getReservedEnd()).isZero();
+			assertThat(stage.getArenaUsage()).isEqualTo(80);
+			StageFileTests.checkChunk(stage, ids[0], 40, 1);
+			ids[2] = stage.writeChunk(StageFileTests.chunk(30, 3));
+			assertThat(ids[2]).isEqualTo(80l);
+			assertThat(stage.getBacking().getReservedEnd()).isEqualTo(80l);
+			assertThat(stage.getArenaUsage()).isEqualTo(30);
+			ByteBuffer spanning = ByteBuffer.allocate(20);
+			stage.readChunk(spanning, 70l);
+			spanning.flip();
+			spanning.limit(10);
+			assertThat(spanning).isEqualTo(StageFileTests.chunk(40, 2).position(30));
+			ids[3] = stage.writeChunk(StageFileTests.chunk(500, 4));
+			assertThat(ids[3]).isEqualTo(110l);
+			assertThat(stage.getArenaUsage()).isZero();
+			try {
+				stage.readChunk(ByteBuffer.allocate(1), 610l);
+				fail("Read beyond end");
+			}
+			catch(ChunkOffsetOutOfRangeException coore) {}
+		}
+		try(TieredStage stage = new TieredStage(new StageFile(path, false), 100)) {
+			StageFileTests.checkChunk(stage, ids[0], 40, 1);
+			StageFileTests.checkChunk(stage, ids[1], 40, 2);
+			StageFileTests.checkChunk(stage, ids[2], 30, 3);
+			StageFileTests.checkChunk(stage, ids[3], 500, 4);
+			assertThat(stage.writeChunk(StageFileTests.chunk(1, 5))).isEqualTo(610l);
+		}
+	}
+
+	@Test
+	public void framedBatches() throws IOException {
+		File path = StageFileTests.makeStagePath();
+		StageOptions options = new StageOptions();
+		options.setFramed(true);
+		long[] ids;
+		try(TieredStage stage = new TieredStage(new StageFile(path, true, options), 1024)) {
+			ids = stage.writeChunks(StageFileTests.chunk(10, 1), StageFileTests.chunk(0, 2),
+					StageFileTests.chunk(20, 3));
+			assertThat(ids).containsExactly(24l, 42l, 50l);
+			ByteBuffer[] buffers = new ByteBuffer[] {ByteBuffer.allocate(20), ByteBuffer.allocate(10)};
+			stage.readChunks(new long[] {ids[2], ids[0]}, buffers);
+			buffers[0].flip();
+			assertThat(buffers[0]).isEqualTo(StageFileTests.chunk(20, 3));
+			stage.flush();
+			assertThat(stage.getBacking().getVisibleEnd()).isEqualTo(70l);
+		}
+		try(TieredStage stage = new TieredStage(new StageFile(path, false, options), 1024)) {
+			StageFileTests.checkChunk(stage, ids[0], 10, 1);
+			StageFileTests.checkChunk(stage, ids[2], 20, 3);
+		}
+	}
+
+	@Test
+	public void transaction() throws IOException {
+		File path = StageFileTests.makeStagePath();
+		long[] ids = new long[3];
+		try(TieredStage stage = new TieredStage(new StageFile(path, true), 100)) {
+			stage.writeChunk(StageFileTests.chunk(60, 1));
+			try(StageTransaction transaction = stage.beginTransaction(70l)) {
+				ids[0] = transaction.add(StageFileTests.chunk(30, 2));
+				ids[1] = transaction.add(StageFileTests.chunk(40, 3));
+				transaction.commit();
+			}
+			assertThat(ids).startsWith(60l, 90l);
+			assertThat(stage.getBacking().getReservedEnd()).isEqualTo(60l);
+			assertThat(stage.getArenaUsage()).isEqualTo(70);
+			try(StageTransaction transaction = stage.beginTransaction(200l)) {
+				ids[2] = transaction.add(StageFileTests.chunk(150, 4));
+				transaction.commit();
+			}
+			assertThat(ids[2]).isEqualTo(130l);
+			assertThat(stage.getArenaUsage()).isZero();
+			assertThat(stage.getBacking().getReservedEnd()).isEqualTo(280l);
+			StageFileTests.checkChunk(stage, ids[1], 40, 3);
+		}
+		try(TieredStage stage = new TieredStage(new StageFile(path, false), 100)) {
+			StageFileTests.checkChunk(stage, ids[0], 30, 2);
+			StageFileTests.checkChunk(stage, ids[1], 40, 3);
+			StageFileTests.checkChunk(stage, ids[2], 150, 4);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void foreignWrite() throws IOException {
+		try(TieredStage stage = new TieredStage(new StageFile(StageFileTests.makeStagePath(), true), 100)) {
+			stage.writeChunk(StageFileTests.chunk(10, 1));
+			stage.getBacking().writeChunk(StageFileTests.chunk(10, 2));
+			stage.flush();
+		}
+	}
+
+}